@@ -0,0 +1,166 @@
+package ptureader;
+
+/** Spatial binning of FastLifetime to a target photon count:
+ * lifetime of a pixel is computed from the photons of a neighbourhood
+ * (square kernel around the pixel grown until it has nTargetPhotons,
+ * or quadtree region split while all quarters have nTargetPhotons),
+ * intensity stays at native resolution. Sums of any rectangle are
+ * taken from summed-area tables of intensity and lifetime sum,
+ * so each query is O(1) and the binning is linear in image size. **/
+public class AdaptiveBinning
+{
+	/** no binning **/
+	public final static int NONE = 0;
+
+	/** square kernel centered at each pixel **/
+	public final static int SQUARE = 1;
+
+	/** quadtree regions **/
+	public final static int QUADTREE = 2;
+
+	final static String [] sModes = new String [] {"None", "Square kernel", "Quadtree"};
+
+	/** binning mode (SQUARE or QUADTREE) **/
+	public final int nMode;
+
+	/** photons to reach in each kernel or region **/
+	public final int nTargetPhotons;
+
+	/** maximum kernel radius (half size without the center) **/
+	public final int nMaxRadius;
+
+	public AdaptiveBinning(final int nMode, final int nTargetPhotons, final int nMaxRadius)
+	{
+		this.nMode = nMode;
+		this.nTargetPhotons = Math.max(1, nTargetPhotons);
+		this.nMaxRadius = Math.max(0, nMaxRadius);
+	}
+
+	/** returns binning of the mode (null for NONE) **/
+	public static AdaptiveBinning create(final int nMode, final int nTargetPhotons, final int nMaxRadius)
+	{
+		return (nMode == NONE) ? null : new AdaptiveBinning(nMode, nTargetPhotons, nMaxRadius);
+	}
+
+	/** fills fBinnedInt and fBinnedLT with the photons and lifetime sum
+	 * of the neighbourhood of each pixel of the fInt and fLT images **/
+	public void apply(final float [] fInt, final float [] fLT, final int nPixX, final int nPixY, final float [] fBinnedInt, final float [] fBinnedLT)
+	{
+		final SummedArea satInt = new SummedArea(fInt, nPixX, nPixY);
+		final SummedArea satLT = new SummedArea(fLT, nPixX, nPixY);
+		if(nMode == QUADTREE)
+		{
+			splitRegion(satInt, satLT, 0, 0, nPixX, nPixY, fBinnedInt, fBinnedLT);
+			return;
+		}
+		final int nRadiusLimit = Math.min(nMaxRadius, Math.max(nPixX, nPixY));
+		for(int y = 0; y < nPixY; y++)
+		{
+			for(int x = 0; x < nPixX; x++)
+			{
+				//photons in the kernel do not decrease with radius, so the smallest one is found by bisection
+				int nLow = 0;
+				int nHigh = nRadiusLimit;
+				if(satInt.getSquare(x, y, nHigh) >= nTargetPhotons)
+				{
+					while(nLow < nHigh)
+					{
+						final int nMid = (nLow + nHigh) >>> 1;
+						if(satInt.getSquare(x, y, nMid) >= nTargetPhotons)
+							nHigh = nMid;
+						else
+							nLow = nMid + 1;
+					}
+				}
+				final int i = y * nPixX + x;
+				fBinnedInt[i] = (float) satInt.getSquare(x, y, nHigh);
+				fBinnedLT[i] = (float) satLT.getSquare(x, y, nHigh);
+			}
+		}
+	}
+
+	/** region is split into quarters while each of them has enough photons,
+	 * pixels of the leaf get the sums of the whole leaf **/
+	void splitRegion(final SummedArea satInt, final SummedArea satLT, final int x0, final int y0, final int nWidth, final int nHeight, final float [] fBinnedInt, final float [] fBinnedLT)
+	{
+		final int nHalfX = nWidth / 2;
+		final int nHalfY = nHeight / 2;
+		if(nHalfX > 0 && nHalfY > 0
+				&& satInt.getRect(x0, y0, nHalfX, nHalfY) >= nTargetPhotons
+				&& satInt.getRect(x0 + nHalfX, y0, nWidth - nHalfX, nHalfY) >= nTargetPhotons
+				&& satInt.getRect(x0, y0 + nHalfY, nHalfX, nHeight - nHalfY) >= nTargetPhotons
+				&& satInt.getRect(x0 + nHalfX, y0 + nHalfY, nWidth - nHalfX, nHeight - nHalfY) >= nTargetPhotons)
+		{
+			splitRegion(satInt, satLT, x0, y0, nHalfX, nHalfY, fBinnedInt, fBinnedLT);
+			splitRegion(satInt, satLT, x0 + nHalfX, y0, nWidth - nHalfX, nHalfY, fBinnedInt, fBinnedLT);
+			splitRegion(satInt, satLT, x0, y0 + nHalfY, nHalfX, nHeight - nHalfY, fBinnedInt, fBinnedLT);
+			splitRegion(satInt, satLT, x0 + nHalfX, y0 + nHalfY, nWidth - nHalfX, nHeight - nHalfY, fBinnedInt, fBinnedLT);
+			return;
+		}
+		final float fSumInt = (float) satInt.getRect(x0, y0, nWidth, nHeight);
+		final float fSumLT = (float) satLT.getRect(x0, y0, nWidth, nHeight);
+		for(int y = y0; y < y0 + nHeight; y++)
+		{
+			final int nRow = y * satInt.nPixX;
+			for(int x = x0; x < x0 + nWidth; x++)
+			{
+				fBinnedInt[nRow + x] = fSumInt;
+				fBinnedLT[nRow + x] = fSumLT;
+			}
+		}
+	}
+
+	/** description of the binning for the log **/
+	public String getReport()
+	{
+		return "FastLifetime binning: " + sModes[nMode] + ", " + Integer.toString(nTargetPhotons) + " photons"
+			+ ((nMode == SQUARE) ? ", maximum kernel " + Integer.toString(2 * nMaxRadius + 1) + "x" + Integer.toString(2 * nMaxRadius + 1) : "");
+	}
+
+	/** summed-area table: value at (x+1, y+1) is the sum of pixels
+	 * from (0, 0) to (x, y) inclusive, double keeps the sums exact **/
+	static class SummedArea
+	{
+		final int nPixX;
+
+		final int nPixY;
+
+		final double [] dSum;
+
+		SummedArea(final float [] fImage, final int nPixX, final int nPixY)
+		{
+			this.nPixX = nPixX;
+			this.nPixY = nPixY;
+			final int nW = nPixX + 1;
+			dSum = new double[nW * (nPixY + 1)];
+			for(int y = 0; y < nPixY; y++)
+			{
+				double dRow = 0;
+				for(int x = 0; x < nPixX; x++)
+				{
+					dRow += fImage[y * nPixX + x];
+					dSum[(y + 1) * nW + x + 1] = dSum[y * nW + x + 1] + dRow;
+				}
+			}
+		}
+
+		/** sum of the rectangle (inside of the image) **/
+		double getRect(final int x0, final int y0, final int nWidth, final int nHeight)
+		{
+			final int nW = nPixX + 1;
+			final int x1 = x0 + nWidth;
+			final int y1 = y0 + nHeight;
+			return dSum[y1 * nW + x1] - dSum[y0 * nW + x1] - dSum[y1 * nW + x0] + dSum[y0 * nW + x0];
+		}
+
+		/** sum of the square of radius nRadius around the pixel, clipped by the image **/
+		double getSquare(final int x, final int y, final int nRadius)
+		{
+			final int x0 = Math.max(0, x - nRadius);
+			final int y0 = Math.max(0, y - nRadius);
+			final int x1 = Math.min(nPixX, x + nRadius + 1);
+			final int y1 = Math.min(nPixY, y + nRadius + 1);
+			return getRect(x0, y0, x1 - x0, y1 - y0);
+		}
+	}
+}
@@ -0,0 +1,475 @@
+package ptureader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/** Directory based work queue for batch conversion of many files
+ * by independent worker processes sharing only a filesystem
+ * (no scheduler or server). Each file is a small job ticket
+ * (properties file) in one of the queue folders:
+ * <pre>
+ * todo/     waiting jobs
+ * running/  claimed jobs, ticket name ends with the worker id
+ * done/     finished jobs (completion markers)
+ * failed/   jobs that failed MAX_ATTEMPTS times
+ * </pre>
+ * A worker claims a job by atomic rename of its ticket from todo to running,
+ * only one worker succeeds. While working, it updates the modification time
+ * of the ticket (heartbeat). Tickets not updated for longer than the stale
+ * timeout belong to dead workers and are moved back to todo by any other worker.
+ * The job converts the file to N5 (lifetime stack, see N5Export),
+ * the container is written under a temporary name and renamed when complete,
+ * if the ticket of the worker is still in running (otherwise the job was
+ * taken over by another worker and the temporary output is dropped).
+ * All folders should be on the same filesystem (rename must be atomic).
+ * Usage:
+ * <pre>
+ * BatchQueue add queue_folder input_folder
+ * BatchQueue work queue_folder output_folder [stale timeout, s]
+ * BatchQueue status queue_folder
+ * </pre>
+ * Several workers (on one or many machines) run "work" with the same folders,
+ * each one exits when there are no waiting or running jobs. **/
+public class BatchQueue
+{
+	final static String TODO = "todo";
+
+	final static String RUNNING = "running";
+
+	final static String DONE = "done";
+
+	final static String FAILED = "failed";
+
+	/** extension of job tickets **/
+	final static String JOB = ".job";
+
+	/** number of attempts before the job is moved to failed **/
+	final static int MAX_ATTEMPTS = 3;
+
+	/** maximum heartbeat period, ms **/
+	final static long HEARTBEAT_MS = 10000;
+
+	/** default time after which a running job without heartbeat is retried, ms **/
+	final static long DEFAULT_STALE_MS = 120000;
+
+	/** waiting for other workers between checks of the queue, ms **/
+	final static long POLL_MS = 5000;
+
+	/** N5 export settings **/
+	final static int [] BLOCK_SIZE = new int [] {64, 64, 64, 1, 1};
+
+	final static int N5_SCALES = 3;
+
+	final Path queue;
+
+	/** id of this worker (host and process) **/
+	final String sWorker;
+
+	final long nStaleMs;
+
+	final Consumer<String> log;
+
+	public BatchQueue(final Path queue, final long nStaleMs, final Consumer<String> log) throws IOException
+	{
+		this.queue = queue;
+		this.nStaleMs = nStaleMs;
+		this.log = log;
+		//"pid@host" in the usual JVMs
+		final String [] sName = ManagementFactory.getRuntimeMXBean().getName().split("@");
+		sWorker = ((sName.length > 1) ? sName[1] + "-" : "") + sName[0];
+		for(final String sFolder : new String [] {TODO, RUNNING, DONE, FAILED})
+		{
+			Files.createDirectories(queue.resolve(sFolder));
+		}
+	}
+
+	/** adds tickets for all ptu/pt3 files of the folder,
+	 * files already queued (in any state) are skipped.
+	 * Returns the number of added jobs. **/
+	public int add(final Path input) throws IOException
+	{
+		int nAdded = 0;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(input))
+		{
+			for(final Path file : files)
+			{
+				final String sExt = PtuFile.getExtension(file);
+				if(!Files.isRegularFile(file) || !(sExt.equals("ptu") || sExt.equals("pt3")))
+					continue;
+				final String sJob = file.getFileName().toString() + JOB;
+				if(isQueued(sJob))
+					continue;
+				final Properties job = new Properties();
+				job.setProperty("file", file.toAbsolutePath().toString());
+				job.setProperty("attempts", "0");
+				//written aside and renamed, so workers never see a partial ticket
+				final Path tmp = queue.resolve(sJob + ".tmp");
+				writeJob(tmp, job);
+				Files.move(tmp, queue.resolve(TODO).resolve(sJob), StandardCopyOption.ATOMIC_MOVE);
+				nAdded++;
+			}
+		}
+		return nAdded;
+	}
+
+	boolean isQueued(final String sJob) throws IOException
+	{
+		if(Files.exists(queue.resolve(TODO).resolve(sJob)) || Files.exists(queue.resolve(DONE).resolve(sJob))
+				|| Files.exists(queue.resolve(FAILED).resolve(sJob)))
+			return true;
+		return !list(RUNNING, sJob + ".").isEmpty();
+	}
+
+	/** processes jobs until the queue is empty, returns the number of jobs done by this worker **/
+	public int work(final Path output) throws IOException
+	{
+		Files.createDirectories(output);
+		int nDone = 0;
+		while(true)
+		{
+			recoverStale(output);
+			final Path claimed = claim();
+			if(claimed != null)
+			{
+				if(process(claimed, output))
+					nDone++;
+				continue;
+			}
+			if(list(RUNNING, "").isEmpty() && list(TODO, "").isEmpty())
+				break;
+			//jobs of other workers are running, they may die and need a retry
+			try
+			{
+				Thread.sleep(POLL_MS);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return nDone;
+	}
+
+	/** moves the first waiting job to running (atomically),
+	 * returns its ticket or null if there are no waiting jobs **/
+	Path claim() throws IOException
+	{
+		for(final Path ticket : list(TODO, ""))
+		{
+			final Path running = queue.resolve(RUNNING).resolve(ticket.getFileName().toString() + "." + sWorker);
+			try
+			{
+				Files.move(ticket, running, StandardCopyOption.ATOMIC_MOVE);
+				//heartbeat starts from the claim, not from the creation of the ticket
+				Files.setLastModifiedTime(running, FileTime.fromMillis(System.currentTimeMillis()));
+				return running;
+			}
+			catch (NoSuchFileException e)
+			{
+				//claimed by another worker
+			}
+		}
+		return null;
+	}
+
+	/** moves running jobs without heartbeat back to todo (or to failed)
+	 * and removes partial output of their workers **/
+	void recoverStale(final Path output) throws IOException
+	{
+		final long nNow = System.currentTimeMillis();
+		for(final Path running : list(RUNNING, ""))
+		{
+			try
+			{
+				if(nNow - Files.getLastModifiedTime(running).toMillis() <= nStaleMs)
+					continue;
+				final String sName = running.getFileName().toString();
+				final String sJob = sName.substring(0, sName.indexOf(JOB + ".") + JOB.length());
+				final Properties job = readJob(running);
+				final boolean bFailed = Integer.parseInt(job.getProperty("attempts", "0")) >= MAX_ATTEMPTS;
+				Files.move(running, queue.resolve(bFailed ? FAILED : TODO).resolve(sJob), StandardCopyOption.ATOMIC_MOVE);
+				final String sDead = sName.substring(sJob.length() + 1);
+				deleteTree(output.resolve(getOutputName(Paths.get(job.getProperty("file"))) + ".part-" + sDead));
+				log.accept("Worker " + sDead + " stopped responding, "
+						+ (bFailed ? "job failed: " : "job is queued again: ") + sJob);
+			}
+			catch (NoSuchFileException e)
+			{
+				//finished or recovered by another worker meanwhile
+			}
+		}
+	}
+
+	/** converts the file of the claimed job, returns true if it is done **/
+	boolean process(final Path running, final Path output) throws IOException
+	{
+		final String sName = running.getFileName().toString();
+		final String sJob = sName.substring(0, sName.length() - sWorker.length() - 1);
+		final Properties job = readJob(running);
+		final int nAttempt = Integer.parseInt(job.getProperty("attempts", "0")) + 1;
+		job.setProperty("attempts", Integer.toString(nAttempt));
+		job.setProperty("worker", sWorker);
+		updateJob(running, job);
+		final Path file = Paths.get(job.getProperty("file"));
+		log.accept(sWorker + ": converting " + file + " (attempt " + nAttempt + ")");
+
+		//several heartbeats within the stale timeout
+		final long nHeartbeatMs = Math.max(1, Math.min(HEARTBEAT_MS, nStaleMs / 4));
+		final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+			final Thread t = new Thread(r, "BatchQueue heartbeat");
+			t.setDaemon(true);
+			return t;
+		});
+		heartbeat.scheduleAtFixedRate(() -> {
+			try
+			{
+				Files.setLastModifiedTime(running, FileTime.fromMillis(System.currentTimeMillis()));
+			}
+			catch (IOException e)
+			{
+				//ticket was moved (recovered as stale), the result will be discarded
+			}
+		}, nHeartbeatMs, nHeartbeatMs, TimeUnit.MILLISECONDS);
+		final long nStart = System.currentTimeMillis();
+		final Path root = output.resolve(getOutputName(file));
+		final Path tmp = output.resolve(getOutputName(file) + ".part-" + sWorker);
+		String sError = null;
+		try
+		{
+			convert(file, tmp);
+			//the job may have been recovered as stale and given to another worker
+			//meanwhile, then its output is not ours to replace
+			if(!isOwned(running))
+			{
+				deleteTree(tmp);
+				log.accept(sWorker + ": job was taken over by another worker: " + sJob);
+				return false;
+			}
+			publish(tmp, root);
+		}
+		catch (IOException | RuntimeException e)
+		{
+			sError = e.toString();
+		}
+		finally
+		{
+			heartbeat.shutdownNow();
+		}
+		final String sTarget;
+		if(sError == null)
+		{
+			job.setProperty("ms", Long.toString(System.currentTimeMillis() - nStart));
+			sTarget = DONE;
+		}
+		else
+		{
+			job.setProperty("error", sError);
+			sTarget = (nAttempt >= MAX_ATTEMPTS) ? FAILED : TODO;
+		}
+		try
+		{
+			updateJob(running, job);
+			Files.move(running, queue.resolve(sTarget).resolve(sJob), StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (NoSuchFileException e)
+		{
+			log.accept(sWorker + ": job was taken over by another worker: " + sJob);
+			return false;
+		}
+		log.accept(sWorker + ": " + sJob + (sError == null ? " done" : " failed: " + sError));
+		return sError == null;
+	}
+
+	/** refreshes the heartbeat of the claimed job,
+	 * returns false if its ticket is not in running anymore **/
+	static boolean isOwned(final Path running) throws IOException
+	{
+		try
+		{
+			Files.setLastModifiedTime(running, FileTime.fromMillis(System.currentTimeMillis()));
+			return true;
+		}
+		catch (NoSuchFileException e)
+		{
+			return false;
+		}
+	}
+
+	/** writes N5 container of the file to the temporary folder **/
+	void convert(final Path file, final Path tmp) throws IOException
+	{
+		deleteTree(tmp);
+		//header is not logged, there are many files
+		try (PtuFile ptuFile = PtuFile.open(file, s -> {}))
+		{
+			final PtuIndex index = ptuFile.analyze(null);
+			final DecodeParameters params = new DecodeParameters();
+			params.bLoadIntAverLTImages = false;
+			params.nLTload = 1;
+			params.validate(index.nTotFrames);
+			final FlimData data = new FlimData(ptuFile.header, index, params, ptuFile.pool, s -> {});
+			final N5Export export = new N5Export(tmp, ptuFile.header, data, BLOCK_SIZE, N5_SCALES, true, Runtime.getRuntime().availableProcessors());
+			data.binListener = export;
+			try
+			{
+				ptuFile.decode(index, params, data, null);
+			}
+			finally
+			{
+				export.finish();
+				data.release(ptuFile.pool);
+			}
+		}
+	}
+
+	/** renames the complete container to its final name **/
+	static void publish(final Path tmp, final Path root) throws IOException
+	{
+		//output of an earlier attempt (worker died before marking the job)
+		deleteTree(root);
+		try
+		{
+			Files.move(tmp, root, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (FileAlreadyExistsException | AtomicMoveNotSupportedException e)
+		{
+			throw new IOException("Unable to rename " + tmp + " to " + root, e);
+		}
+	}
+
+	/** name of the N5 container of the file **/
+	static String getOutputName(final Path file)
+	{
+		return file.getFileName().toString().split(".pt")[0] + ".n5";
+	}
+
+	/** tickets of the queue folder starting with the prefix, sorted by name **/
+	ArrayList<Path> list(final String sFolder, final String sPrefix) throws IOException
+	{
+		final ArrayList<Path> out = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(queue.resolve(sFolder)))
+		{
+			for(final Path file : files)
+			{
+				final String sName = file.getFileName().toString();
+				if(sName.startsWith(sPrefix) && sName.contains(JOB))
+					out.add(file);
+			}
+		}
+		Collections.sort(out);
+		return out;
+	}
+
+	static Properties readJob(final Path ticket) throws IOException
+	{
+		final Properties job = new Properties();
+		try (InputStream in = Files.newInputStream(ticket))
+		{
+			job.load(in);
+		}
+		return job;
+	}
+
+	static void writeJob(final Path ticket, final Properties job) throws IOException
+	{
+		try (OutputStream out = Files.newOutputStream(ticket))
+		{
+			job.store(out, "PTU_Reader batch job");
+		}
+	}
+
+	/** rewrites the ticket only if it still exists (NoSuchFileException otherwise),
+	 * so a worker never recreates a ticket recovered by another one **/
+	static void updateJob(final Path ticket, final Properties job) throws IOException
+	{
+		try (OutputStream out = Files.newOutputStream(ticket, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			job.store(out, "PTU_Reader batch job");
+		}
+	}
+
+	static void deleteTree(final Path root) throws IOException
+	{
+		if(!Files.exists(root))
+			return;
+		try (Stream<Path> paths = Files.walk(root))
+		{
+			final ArrayList<Path> all = new ArrayList<>();
+			paths.forEach(all::add);
+			//children before parents
+			all.sort(Comparator.reverseOrder());
+			for(final Path path : all)
+			{
+				Files.deleteIfExists(path);
+			}
+		}
+	}
+
+	/** number of tickets in each folder **/
+	public String getStatus() throws IOException
+	{
+		final StringBuilder sb = new StringBuilder();
+		for(final String sFolder : new String [] {TODO, RUNNING, DONE, FAILED})
+		{
+			sb.append(sFolder).append(": ").append(list(sFolder, "").size()).append("\n");
+		}
+		return sb.toString();
+	}
+
+	public static void main(final String[] args)
+	{
+		if(args.length < 2)
+		{
+			System.out.println("Usage: BatchQueue add queue_folder input_folder\n"
+					+ "       BatchQueue work queue_folder output_folder [stale timeout, s]\n"
+					+ "       BatchQueue status queue_folder");
+			System.exit(1);
+		}
+		try
+		{
+			final long nStaleMs = (args.length > 3) ? (long)(Double.parseDouble(args[3]) * 1000) : DEFAULT_STALE_MS;
+			final BatchQueue batch = new BatchQueue(Paths.get(args[1]), nStaleMs, System.out::println);
+			switch(args[0])
+			{
+			case "add":
+				System.out.println("Added " + batch.add(Paths.get(args[2])) + " jobs.");
+				break;
+			case "work":
+				final long nStart = System.currentTimeMillis();
+				final int nDone = batch.work(Paths.get(args[2]));
+				System.out.println(batch.sWorker + ": " + nDone + " jobs done in " + (System.currentTimeMillis() - nStart) + " ms.");
+				break;
+			default:
+				System.out.print(batch.getStatus());
+			}
+		}
+		catch (IOException e)
+		{
+			System.out.println("Error: " + e.getMessage());
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
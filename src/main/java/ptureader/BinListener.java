@@ -0,0 +1,9 @@
+package ptureader;
+
+/** Receives bins of FlimData as soon as decoding of them is finished
+ * (all photons of the bin are placed), bins are reported in increasing order.
+ * Called on the decoding thread, so it should return quickly. **/
+public interface BinListener
+{
+	void binDecoded(FlimData data, int nBin);
+}
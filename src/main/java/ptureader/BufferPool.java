@@ -0,0 +1,206 @@
+package ptureader;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/** Pool of reusable primitive arrays, record blocks and chunk buffers,
+ * so a long running service can decode many files
+ * without allocating new buffers every time.
+ * Returned arrays are kept until the total retained size
+ * reaches the limit provided in the constructor. **/
+public class BufferPool
+{
+	/** maximum total size of retained arrays (in bytes) **/
+	final long nMaxRetainedBytes;
+
+	/** current total size of retained arrays (in bytes) **/
+	long nRetainedBytes = 0;
+
+	final HashMap<Integer, ArrayDeque<float[]>> floatArrays = new HashMap<>();
+
+	final HashMap<Integer, ArrayDeque<byte[]>> byteArrays = new HashMap<>();
+
+	final HashMap<Integer, ArrayDeque<long[]>> longArrays = new HashMap<>();
+
+	final HashMap<Integer, ArrayDeque<short[]>> shortArrays = new HashMap<>();
+
+	final HashMap<Integer, ArrayDeque<int[]>> intArrays = new HashMap<>();
+
+	final ArrayDeque<RecordBlock> blocks = new ArrayDeque<>();
+
+	final HashMap<Integer, ArrayDeque<ByteBuffer>> directBuffers = new HashMap<>();
+
+	final HashMap<Integer, ArrayDeque<ByteBuffer>> heapBuffers = new HashMap<>();
+
+	/** pool that does not retain anything **/
+	public BufferPool()
+	{
+		this(0);
+	}
+
+	public BufferPool(final long nMaxRetainedBytes)
+	{
+		this.nMaxRetainedBytes = nMaxRetainedBytes;
+	}
+
+	/** returns zero filled array of provided length **/
+	public synchronized float [] getFloats(final int nLength)
+	{
+		final float [] out = poll(floatArrays, nLength, 4L);
+		if(out == null)
+			return new float[nLength];
+		Arrays.fill(out, 0.0f);
+		return out;
+	}
+
+	/** returns zero filled array of provided length **/
+	public synchronized byte [] getBytes(final int nLength)
+	{
+		final byte [] out = poll(byteArrays, nLength, 1L);
+		if(out == null)
+			return new byte[nLength];
+		Arrays.fill(out, (byte)0);
+		return out;
+	}
+
+	/** returns zero filled array of provided length **/
+	public synchronized long [] getLongs(final int nLength)
+	{
+		final long [] out = poll(longArrays, nLength, 8L);
+		if(out == null)
+			return new long[nLength];
+		Arrays.fill(out, 0L);
+		return out;
+	}
+
+	/** returns zero filled array of provided length **/
+	public synchronized short [] getShorts(final int nLength)
+	{
+		final short [] out = poll(shortArrays, nLength, 2L);
+		if(out == null)
+			return new short[nLength];
+		Arrays.fill(out, (short)0);
+		return out;
+	}
+
+	/** returns zero filled array of provided length **/
+	public synchronized int [] getInts(final int nLength)
+	{
+		final int [] out = poll(intArrays, nLength, 4L);
+		if(out == null)
+			return new int[nLength];
+		Arrays.fill(out, 0);
+		return out;
+	}
+
+	public synchronized RecordBlock getBlock()
+	{
+		final RecordBlock out = blocks.poll();
+		if(out == null)
+			return new RecordBlock();
+		nRetainedBytes -= blockBytes(out);
+		return out;
+	}
+
+	/** returns cleared little endian buffer of provided capacity,
+	 * direct or backed by an array (contents are not zeroed) **/
+	public synchronized ByteBuffer getBuffer(final int nBytes, final boolean bDirect)
+	{
+		final ByteBuffer out = poll(bDirect ? directBuffers : heapBuffers, nBytes, 1L);
+		if(out == null)
+		{
+			final ByteBuffer buffer = bDirect ? ByteBuffer.allocateDirect(nBytes) : ByteBuffer.allocate(nBytes);
+			return buffer.order(ByteOrder.LITTLE_ENDIAN);
+		}
+		out.clear();
+		return out;
+	}
+
+	public synchronized void release(final float [] arr)
+	{
+		if(arr != null)
+			offer(floatArrays, arr, arr.length, 4L);
+	}
+
+	public synchronized void release(final byte [] arr)
+	{
+		if(arr != null)
+			offer(byteArrays, arr, arr.length, 1L);
+	}
+
+	public synchronized void release(final long [] arr)
+	{
+		if(arr != null)
+			offer(longArrays, arr, arr.length, 8L);
+	}
+
+	public synchronized void release(final short [] arr)
+	{
+		if(arr != null)
+			offer(shortArrays, arr, arr.length, 2L);
+	}
+
+	public synchronized void release(final int [] arr)
+	{
+		if(arr != null)
+			offer(intArrays, arr, arr.length, 4L);
+	}
+
+	public synchronized void release(final ByteBuffer buffer)
+	{
+		if(buffer != null)
+			offer(buffer.isDirect() ? directBuffers : heapBuffers, buffer, buffer.capacity(), 1L);
+	}
+
+	public synchronized void release(final RecordBlock block)
+	{
+		if(block == null || nRetainedBytes + blockBytes(block) > nMaxRetainedBytes)
+			return;
+		nRetainedBytes += blockBytes(block);
+		blocks.push(block);
+	}
+
+	/** drops all retained arrays **/
+	public synchronized void clear()
+	{
+		floatArrays.clear();
+		byteArrays.clear();
+		longArrays.clear();
+		shortArrays.clear();
+		intArrays.clear();
+		blocks.clear();
+		directBuffers.clear();
+		heapBuffers.clear();
+		nRetainedBytes = 0;
+	}
+
+	<T> T poll(final HashMap<Integer, ArrayDeque<T>> map, final int nLength, final long nElementBytes)
+	{
+		final ArrayDeque<T> queue = map.get(nLength);
+		if(queue == null)
+			return null;
+		final T out = queue.poll();
+		if(out != null)
+		{
+			nRetainedBytes -= nLength * nElementBytes;
+		}
+		return out;
+	}
+
+	<T> void offer(final HashMap<Integer, ArrayDeque<T>> map, final T arr, final int nLength, final long nElementBytes)
+	{
+		final long nBytes = nLength * nElementBytes;
+		if(nRetainedBytes + nBytes > nMaxRetainedBytes)
+			return;
+		map.computeIfAbsent(nLength, k -> new ArrayDeque<>()).push(arr);
+		nRetainedBytes += nBytes;
+	}
+
+	static long blockBytes(final RecordBlock block)
+	{
+		return 5L * 4L * block.capacity();
+	}
+}
@@ -0,0 +1,82 @@
+package ptureader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** Records source prefetching large aligned blocks of the file
+ * into a small ring of reusable direct buffers on a separate thread
+ * (see PipelinedRecordSource), so the disk (or network storage)
+ * is busy while records are decoded.
+ * Positional reads are used, so several sources can read
+ * the same channel concurrently. **/
+public class ChannelRecordSource extends PipelinedRecordSource
+{
+	/** size of one block in bytes **/
+	final static int CHUNK_BYTES = 1 << 22;
+
+	/** number of blocks in the ring **/
+	final static int RING_SIZE = 4;
+
+	final FileChannel fc;
+
+	/** position of the first record in the file (in bytes) **/
+	final long nDataPosition;
+
+	/** end of the records in the file (in bytes) **/
+	final long nDataEnd;
+
+	/** file position of the next block (accessed by the reading thread) **/
+	long nFilePosition;
+
+	/** prefetches records starting from nDataPosition (in bytes)
+	 * up to the end of the file **/
+	public ChannelRecordSource(final FileChannel fc, final long nDataPosition) throws IOException
+	{
+		this(fc, nDataPosition, new BufferPool());
+	}
+
+	/** same, direct buffers of the ring are taken from the pool
+	 * (and returned on close) **/
+	public ChannelRecordSource(final FileChannel fc, final long nDataPosition, final BufferPool pool) throws IOException
+	{
+		super(pool, RING_SIZE, CHUNK_BYTES, true);
+		this.fc = fc;
+		this.nDataPosition = nDataPosition;
+		this.nDataEnd = fc.size();
+		nFilePosition = nDataPosition;
+		start("PTU prefetch reader");
+	}
+
+	@Override
+	boolean fillChunk(final ByteBuffer chunk) throws IOException
+	{
+		//blocks end at file offsets aligned to the block size,
+		//if records are aligned to 4 bytes in the file
+		long nBlockEnd = nFilePosition + CHUNK_BYTES;
+		if(nDataPosition % 4 == 0)
+		{
+			nBlockEnd -= nBlockEnd % CHUNK_BYTES;
+		}
+		nBlockEnd = Math.min(nBlockEnd, nDataEnd);
+		chunk.limit((int)(nBlockEnd - nFilePosition));
+		while(chunk.hasRemaining())
+		{
+			final int n = fc.read(chunk, nFilePosition);
+			if(n < 0)
+				break;
+			nFilePosition += n;
+		}
+		return nFilePosition < nDataEnd;
+	}
+
+	/** restarts prefetching from the provided record **/
+	@Override
+	public void seek(final long nRecord) throws IOException
+	{
+		stop();
+		nPosition = Math.max(0, nRecord);
+		nFilePosition = Math.min(nDataPosition + 4L * nPosition, nDataEnd);
+		start("PTU prefetch reader");
+	}
+}
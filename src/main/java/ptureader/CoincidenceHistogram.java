@@ -0,0 +1,196 @@
+package ptureader;
+
+/** Streaming start-stop (coincidence) histogram of time differences
+ * between photons of two channels, g2(tau) for antibunching measurements.
+ * For each photon only photons of the other channel within the maximum lag
+ * (kept in a sliding window over the sorted time stamps) are paired,
+ * so the histogram is built in one linear pass with memory
+ * limited by the window capacity (not by the measurement length).
+ * Positive lags mean channel B photon after channel A photon.
+ * Photons should be added in the order of arrival. **/
+public class CoincidenceHistogram implements PhotonConsumer
+{
+	/** initial capacity of the window (photons of one channel) **/
+	final static int WINDOW_CAPACITY = 64;
+
+	/** maximum capacity of the window, oldest photons are dropped beyond it **/
+	public final static int MAX_WINDOW = 1 << 20;
+
+	/** channels (zero based) **/
+	final int nChA;
+
+	final int nChB;
+
+	/** width of the histogram bin in time units **/
+	final long nBinWidth;
+
+	/** number of bins of positive (and negative) lags,
+	 * zero lag is at bin nHalfBins **/
+	final int nHalfBins;
+
+	/** maximum lag (time units) that fits the histogram **/
+	final long nMaxLag;
+
+	/** coincidence counts per lag bin **/
+	public final long [] lCounts;
+
+	/** recent photons of channel A and B **/
+	final Window windowA = new Window();
+
+	final Window windowB = new Window();
+
+	/** number of photons of channel A and B **/
+	public long nPhotonsA = 0;
+
+	public long nPhotonsB = 0;
+
+	/** photons dropped from full windows (their pairs are missing) **/
+	public long nDropped = 0;
+
+	/** time of the first and the last photon **/
+	long nFirstTime = -1;
+
+	long nLastTime = -1;
+
+	/** histogram of lags from -nHalfBins*nBinWidth to nHalfBins*nBinWidth,
+	 * time units are the units of add() (sync periods for photon()) **/
+	public CoincidenceHistogram(final int nChA, final int nChB, final long nBinWidth, final int nHalfBins)
+	{
+		this.nChA = nChA;
+		this.nChB = nChB;
+		this.nBinWidth = Math.max(1, nBinWidth);
+		this.nHalfBins = Math.max(0, nHalfBins);
+		nMaxLag = (this.nHalfBins + 1) * this.nBinWidth;
+		lCounts = new long[2 * this.nHalfBins + 1];
+	}
+
+	@Override
+	public void photon(final long nSync, final int nCh, final int dtime)
+	{
+		add(nSync, nCh);
+	}
+
+	/** adds photon of the channel (zero based) at nTime (not decreasing) **/
+	public void add(final long nTime, final int nCh)
+	{
+		final boolean bA = (nCh == nChA);
+		final boolean bB = (nCh == nChB);
+		if(!bA && !bB)
+			return;
+		if(nFirstTime < 0)
+			nFirstTime = nTime;
+		nLastTime = nTime;
+		//pairs with earlier photons, newest first
+		if(bB)
+		{
+			final long [] times = windowA.times;
+			final int nMask = times.length - 1;
+			for(int i = windowA.nSize - 1; i >= 0; i--)
+			{
+				final long nLag = nTime - times[(windowA.nStart + i) & nMask];
+				if(nLag > nMaxLag)
+					break;
+				count(nLag);
+			}
+			nPhotonsB++;
+		}
+		if(bA)
+		{
+			final long [] times = windowB.times;
+			final int nMask = times.length - 1;
+			for(int i = windowB.nSize - 1; i >= 0; i--)
+			{
+				final long nLag = times[(windowB.nStart + i) & nMask] - nTime;
+				if(nLag < -nMaxLag)
+					break;
+				count(nLag);
+			}
+			nPhotonsA++;
+		}
+		//windows are updated after pairing (photon is not paired with itself)
+		if(bA && !windowA.push(nTime, nMaxLag))
+			nDropped++;
+		if(bB && !windowB.push(nTime, nMaxLag))
+			nDropped++;
+	}
+
+	void count(final long nLag)
+	{
+		final long nBin = Math.floorDiv(nLag + nBinWidth / 2, nBinWidth) + nHalfBins;
+		if(nBin >= 0 && nBin < lCounts.length)
+			lCounts[(int)nBin]++;
+	}
+
+	/** time stamps of the recent photons of one channel (ring buffer) **/
+	static class Window
+	{
+		long [] times = new long[WINDOW_CAPACITY];
+
+		/** index of the oldest photon **/
+		int nStart = 0;
+
+		/** number of photons in the window **/
+		int nSize = 0;
+
+		/** removes photons older than nMaxLag from nTime and adds the photon,
+		 * returns false if the oldest photon was dropped because the window is full **/
+		boolean push(final long nTime, final long nMaxLag)
+		{
+			int nMask = times.length - 1;
+			while(nSize > 0 && nTime - times[nStart] > nMaxLag)
+			{
+				nStart = (nStart + 1) & nMask;
+				nSize--;
+			}
+			boolean bAll = true;
+			if(nSize == times.length)
+			{
+				if(times.length < MAX_WINDOW)
+				{
+					final long [] grown = new long[times.length * 2];
+					for(int i = 0; i < nSize; i++)
+					{
+						grown[i] = times[(nStart + i) & nMask];
+					}
+					times = grown;
+					nStart = 0;
+					nMask = times.length - 1;
+				}
+				else
+				{
+					nStart = (nStart + 1) & nMask;
+					nSize--;
+					bAll = false;
+				}
+			}
+			times[(nStart + nSize) & nMask] = nTime;
+			nSize++;
+			return bAll;
+		}
+	}
+
+	/** lags of the bin centers in time units **/
+	public double [] getLags()
+	{
+		final double [] lags = new double[lCounts.length];
+		for(int i = 0; i < lCounts.length; i++)
+		{
+			lags[i] = (double)(i - nHalfBins) * nBinWidth;
+		}
+		return lags;
+	}
+
+	/** normalized g2(tau) = counts * T / (N_A * N_B * binWidth),
+	 * equal to 1 for uncorrelated photons **/
+	public double [] getG2()
+	{
+		final double [] g2 = new double[lCounts.length];
+		final double dDuration = nLastTime - nFirstTime;
+		final double dNorm = (double)nPhotonsA * nPhotonsB * nBinWidth;
+		for(int i = 0; i < lCounts.length; i++)
+		{
+			g2[i] = (dNorm > 0) ? lCounts[i] * dDuration / dNorm : 0.0;
+		}
+		return g2;
+	}
+}
@@ -0,0 +1,375 @@
+package ptureader;
+
+import java.util.Arrays;
+
+/** Streaming multi-tau correlator of the photon stream (point FCS/FLCS).
+ * Calculates G(tau) = &lt;A(t)B(t+tau)&gt;/(&lt;A&gt;&lt;B&gt;) of two signals,
+ * made of photons of selected channels with optional microtime (lifetime)
+ * dependent weights (FLCS filters, microtime gates). Same channels in A and B
+ * give autocorrelation, different ones give cross-correlation.
+ * Lags are arranged in levels: level 0 has 2*nChannels lags of nBaseBin width,
+ * each next level has nChannels lags with twice the bin width of the previous one.
+ * Only bins with photons are processed (O(N log tau) for N photons)
+ * and memory depends only on the number of levels and lags,
+ * not on the length of the measurement.
+ * Photons should be added in the order of arrival, then finish() is called. **/
+public class Correlator implements PhotonConsumer
+{
+	/** number of levels by default **/
+	public final static int DEFAULT_LEVELS = 24;
+
+	/** lags per level by default **/
+	public final static int DEFAULT_CHANNELS = 16;
+
+	/** number of levels **/
+	final int nLevels;
+
+	/** lags per level (level 0 has twice as many) **/
+	final int nChannels;
+
+	/** length of the history of each level (2*nChannels, power of 2) **/
+	final int nRing;
+
+	final int nRingMask;
+
+	/** width of level 0 bin in sync periods **/
+	final long nBaseBin;
+
+	/** channels included to signal A and B **/
+	final boolean [] bChannelsA = new boolean[4];
+
+	final boolean [] bChannelsB = new boolean[4];
+
+	/** weights of photons per channel and microtime, null means weight 1 **/
+	final double [][] weightsA = new double[4][];
+
+	final double [][] weightsB = new double[4][];
+
+	/** current (not finished) bin of each level, -1 if there is none **/
+	final long [] nCurBin;
+
+	/** A and B values of the current bin of each level **/
+	final double [] dCurA;
+
+	final double [] dCurB;
+
+	/** history of A values of each level: bin numbers and values **/
+	final long [][] nRingBin;
+
+	final double [][] dRingA;
+
+	/** accumulated products B(t)A(t-lag) per level and lag **/
+	final double [][] dAcc;
+
+	/** total of A and B values **/
+	double dSumA = 0;
+
+	double dSumB = 0;
+
+	/** first and last level 0 bins with photons **/
+	long nFirstBin = -1;
+
+	long nLastBin = -1;
+
+	/** number of added photons (with non zero weight) **/
+	public long nPhotons = 0;
+
+	/** nChannels is rounded up to the power of 2,
+	 * nBaseBin is the width of the smallest lag in sync periods **/
+	public Correlator(final int nLevels, final int nChannels, final long nBaseBin)
+	{
+		this.nLevels = Math.max(1, nLevels);
+		this.nChannels = Math.max(2, Integer.highestOneBit(Math.max(1, nChannels - 1)) << 1);
+		this.nBaseBin = Math.max(1, nBaseBin);
+		nRing = 2 * this.nChannels;
+		nRingMask = nRing - 1;
+		nCurBin = new long[this.nLevels];
+		Arrays.fill(nCurBin, -1);
+		dCurA = new double[this.nLevels];
+		dCurB = new double[this.nLevels];
+		nRingBin = new long[this.nLevels][nRing];
+		for(int k = 0; k < this.nLevels; k++)
+		{
+			Arrays.fill(nRingBin[k], Long.MIN_VALUE);
+		}
+		dRingA = new double[this.nLevels][nRing];
+		dAcc = new double[this.nLevels][nRing];
+	}
+
+	/** adds channel (zero based) to signal A with microtime weights
+	 * (weights of microtimes beyond the array are zero),
+	 * null weights mean weight 1 for all photons **/
+	public void setChannelA(final int nCh, final double [] weights)
+	{
+		bChannelsA[nCh] = true;
+		weightsA[nCh] = weights;
+	}
+
+	/** adds channel (zero based) to signal B, see setChannelA **/
+	public void setChannelB(final int nCh, final double [] weights)
+	{
+		bChannelsB[nCh] = true;
+		weightsB[nCh] = weights;
+	}
+
+	@Override
+	public void photon(final long nSync, final int nCh, final int dtime)
+	{
+		if(nCh < 0 || nCh > 3)
+			return;
+		final double wA = bChannelsA[nCh] ? getWeight(weightsA[nCh], dtime) : 0.0;
+		final double wB = bChannelsB[nCh] ? getWeight(weightsB[nCh], dtime) : 0.0;
+		if(wA != 0.0 || wB != 0.0)
+		{
+			add(nSync, wA, wB);
+		}
+	}
+
+	static double getWeight(final double [] weights, final int dtime)
+	{
+		if(weights == null)
+			return 1.0;
+		return (dtime < weights.length) ? weights[dtime] : 0.0;
+	}
+
+	/** adds photon arrived at nSync (sync periods, not decreasing)
+	 * with weights wA and wB in signals A and B **/
+	public void add(final long nSync, final double wA, final double wB)
+	{
+		final long nBin = nSync / nBaseBin;
+		if(nFirstBin < 0)
+			nFirstBin = nBin;
+		nLastBin = nBin;
+		for(int k = 0; k < nLevels; k++)
+		{
+			final long nLevelBin = nBin >> k;
+			if(nLevelBin != nCurBin[k])
+			{
+				closeBin(k);
+				nCurBin[k] = nLevelBin;
+			}
+			dCurA[k] += wA;
+			dCurB[k] += wB;
+		}
+		dSumA += wA;
+		dSumB += wB;
+		nPhotons++;
+	}
+
+	/** correlates the current bin of the level with its history
+	 * and puts it to the history **/
+	void closeBin(final int k)
+	{
+		final long nBin = nCurBin[k];
+		if(nBin < 0)
+			return;
+		final long [] ringBin = nRingBin[k];
+		final double [] ringA = dRingA[k];
+		final double b = dCurB[k];
+		if(b != 0.0)
+		{
+			final double [] acc = dAcc[k];
+			//level 0 starts from lag 1, others continue lags of the previous level
+			for(int j = (k == 0) ? 1 : nChannels; j < nRing; j++)
+			{
+				final long nDelayed = nBin - j;
+				final int nSlot = (int)(nDelayed & nRingMask);
+				//empty bins are not stored, stored bin can be older
+				if(ringBin[nSlot] == nDelayed)
+				{
+					acc[j] += b * ringA[nSlot];
+				}
+			}
+		}
+		final double a = dCurA[k];
+		if(a != 0.0)
+		{
+			final int nSlot = (int)(nBin & nRingMask);
+			ringBin[nSlot] = nBin;
+			ringA[nSlot] = a;
+		}
+		dCurA[k] = 0.0;
+		dCurB[k] = 0.0;
+	}
+
+	/** processes the last bins, should be called after all photons are added **/
+	public void finish()
+	{
+		for(int k = 0; k < nLevels; k++)
+		{
+			closeBin(k);
+			nCurBin[k] = -1;
+		}
+	}
+
+	/** total number of lags **/
+	public int getLagCount()
+	{
+		return (nRing - 1) + (nLevels - 1) * nChannels;
+	}
+
+	/** lags in sync periods (multiply by header.dGlobalResolution to get seconds) **/
+	public double [] getLags()
+	{
+		final double [] lags = new double[getLagCount()];
+		int n = 0;
+		for(int k = 0; k < nLevels; k++)
+		{
+			for(int j = (k == 0) ? 1 : nChannels; j < nRing; j++)
+			{
+				lags[n++] = (double)j * nBaseBin * (1L << k);
+			}
+		}
+		return lags;
+	}
+
+	/** normalized correlation G(tau) for lags of getLags(),
+	 * NaN for lags longer than the measurement **/
+	public double [] getCorrelation()
+	{
+		final double [] g = new double[getLagCount()];
+		int n = 0;
+		for(int k = 0; k < nLevels; k++)
+		{
+			//number of bins of the level covering the measurement
+			final double dBins = (nFirstBin < 0) ? 0 : (nLastBin >> k) - (nFirstBin >> k) + 1;
+			for(int j = (k == 0) ? 1 : nChannels; j < nRing; j++)
+			{
+				if(dBins - j <= 0 || dSumA == 0.0 || dSumB == 0.0)
+				{
+					g[n++] = Double.NaN;
+				}
+				else
+				{
+					g[n++] = dAcc[k][j] * dBins * dBins / ((dBins - j) * dSumA * dSumB);
+				}
+			}
+		}
+		return g;
+	}
+
+	/** FLCS filters of nComp components: patterns[nComp][nDtime] are normalized
+	 * microtime patterns of the components, decay[nDtime] is the measured
+	 * microtime histogram. Returns filters[nComp][nDtime],
+	 * F = (M^T D^-1 M)^-1 M^T D^-1, where D = diag(decay),
+	 * or null if the patterns are not independent. **/
+	public static double [][] getFLCSFilters(final double [][] patterns, final double [] decay)
+	{
+		final int nComp = patterns.length;
+		final int nDtime = decay.length;
+		//M^T D^-1 M
+		final double [][] mdm = new double[nComp][nComp];
+		for(int c1 = 0; c1 < nComp; c1++)
+		{
+			for(int c2 = 0; c2 < nComp; c2++)
+			{
+				double dSum = 0.0;
+				for(int t = 0; t < nDtime; t++)
+				{
+					if(decay[t] > 0)
+						dSum += patterns[c1][t] * patterns[c2][t] / decay[t];
+				}
+				mdm[c1][c2] = dSum;
+			}
+		}
+		final double [][] inv = invert(mdm);
+		if(inv == null)
+			return null;
+		final double [][] filters = new double[nComp][nDtime];
+		for(int c = 0; c < nComp; c++)
+		{
+			for(int t = 0; t < nDtime; t++)
+			{
+				if(decay[t] <= 0)
+					continue;
+				double dSum = 0.0;
+				for(int c2 = 0; c2 < nComp; c2++)
+				{
+					dSum += inv[c][c2] * patterns[c2][t];
+				}
+				filters[c][t] = dSum / decay[t];
+			}
+		}
+		return filters;
+	}
+
+	/** FLCS filter removing uncorrelated (flat) background from the decay,
+	 * background level is the lowest running average of the histogram **/
+	public static double [] getBackgroundFilter(final double [] decay)
+	{
+		final int nDtime = decay.length;
+		final int nWindow = Math.max(1, Math.min(8, nDtime));
+		double dBackground = Double.MAX_VALUE;
+		double dRunning = 0.0;
+		for(int t = 0; t < nDtime; t++)
+		{
+			dRunning += decay[t];
+			if(t >= nWindow)
+				dRunning -= decay[t - nWindow];
+			if(t >= nWindow - 1)
+				dBackground = Math.min(dBackground, dRunning / nWindow);
+		}
+		final double [][] patterns = new double[2][nDtime];
+		double dSignal = 0.0;
+		for(int t = 0; t < nDtime; t++)
+		{
+			patterns[0][t] = Math.max(0.0, decay[t] - dBackground);
+			dSignal += patterns[0][t];
+			patterns[1][t] = 1.0 / nDtime;
+		}
+		if(dSignal <= 0)
+			return null;
+		for(int t = 0; t < nDtime; t++)
+		{
+			patterns[0][t] /= dSignal;
+		}
+		final double [][] filters = getFLCSFilters(patterns, decay);
+		return (filters == null) ? null : filters[0];
+	}
+
+	/** inverse of a small matrix (Gauss-Jordan), null if it is singular **/
+	static double [][] invert(final double [][] matrix)
+	{
+		final int n = matrix.length;
+		final double [][] a = new double[n][];
+		final double [][] inv = new double[n][n];
+		for(int i = 0; i < n; i++)
+		{
+			a[i] = matrix[i].clone();
+			inv[i][i] = 1.0;
+		}
+		for(int col = 0; col < n; col++)
+		{
+			int nPivot = col;
+			for(int row = col + 1; row < n; row++)
+			{
+				if(Math.abs(a[row][col]) > Math.abs(a[nPivot][col]))
+					nPivot = row;
+			}
+			if(Math.abs(a[nPivot][col]) < 1e-300)
+				return null;
+			double [] tmp = a[col]; a[col] = a[nPivot]; a[nPivot] = tmp;
+			tmp = inv[col]; inv[col] = inv[nPivot]; inv[nPivot] = tmp;
+			final double dPivot = a[col][col];
+			for(int j = 0; j < n; j++)
+			{
+				a[col][j] /= dPivot;
+				inv[col][j] /= dPivot;
+			}
+			for(int row = 0; row < n; row++)
+			{
+				if(row == col)
+					continue;
+				final double dFactor = a[row][col];
+				if(dFactor == 0.0)
+					continue;
+				for(int j = 0; j < n; j++)
+				{
+					a[row][j] -= dFactor * a[col][j];
+					inv[row][j] -= dFactor * inv[col][j];
+				}
+			}
+		}
+		return inv;
+	}
+}
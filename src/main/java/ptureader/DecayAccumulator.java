@@ -0,0 +1,243 @@
+package ptureader;
+
+/** Lifetime (microtime) histograms of all pixels of one channel,
+ * stored pixel major: histogram of each pixel is contiguous,
+ * [nPix * nLTSlices + dtime], so placing a photon touches one counter
+ * next to the recent ones of the same pixel and per pixel fitting
+ * reads one continuous run of memory.
+ * Counters are 8, 16 or 32 bit (unsigned), saturating at the maximum value.
+ * Histograms of each bin are split into blocks of power of 2 pixels,
+ * so a block never exceeds the maximum array length.
+ * ImageJ slice major layout (image per dtime) is made only
+ * when the stack is displayed or exported (see getSlice and DecayStack). **/
+public class DecayAccumulator
+{
+	/** maximum number of counters in one array **/
+	final static int MAX_BLOCK = 1 << 30;
+
+	/** number of pixels of one histogram **/
+	public final int nPixTotal;
+
+	/** number of lifetime values (dtimemax+1) **/
+	public final int nLTSlices;
+
+	/** number of bins (1 for the whole stack) **/
+	public final int nBins;
+
+	/** counter width: 8, 16 or 32 **/
+	public final int nBits;
+
+	/** pixels per block is 1 << nBlockShift **/
+	final int nBlockShift;
+
+	final int nBlockMask;
+
+	/** blocks per bin **/
+	final int nBlocks;
+
+	/** blocks of the bins, [nBin * nBlocks + nBlock], only one of them is used **/
+	final byte [][] bytes;
+
+	final short [][] shorts;
+
+	final int [][] ints;
+
+	/** allocates zero counters of nBits width (taken from the pool) **/
+	public DecayAccumulator(final int nPixTotal, final int nLTSlices, final int nBins, final int nBits, final BufferPool pool)
+	{
+		this.nPixTotal = nPixTotal;
+		this.nLTSlices = nLTSlices;
+		this.nBins = nBins;
+		this.nBits = nBits;
+		int nShift = 31 - Integer.numberOfLeadingZeros(Math.max(1, MAX_BLOCK / nLTSlices));
+		//no need of blocks larger than the image
+		while(nShift > 0 && (1 << (nShift - 1)) >= nPixTotal)
+		{
+			nShift--;
+		}
+		nBlockShift = nShift;
+		nBlockMask = (1 << nBlockShift) - 1;
+		nBlocks = (nPixTotal + nBlockMask) >> nBlockShift;
+		bytes = (nBits == 8) ? new byte[nBins * nBlocks][] : null;
+		shorts = (nBits == 16) ? new short[nBins * nBlocks][] : null;
+		ints = (nBits == 32) ? new int[nBins * nBlocks][] : null;
+		for(int nBin = 0; nBin < nBins; nBin++)
+		{
+			for(int nBlock = 0; nBlock < nBlocks; nBlock++)
+			{
+				final int nLength = Math.min(1 << nBlockShift, nPixTotal - (nBlock << nBlockShift)) * nLTSlices;
+				final int nArr = nBin * nBlocks + nBlock;
+				switch(nBits)
+				{
+				case 8:
+					bytes[nArr] = pool.getBytes(nLength);
+					break;
+				case 16:
+					shorts[nArr] = pool.getShorts(nLength);
+					break;
+				default:
+					ints[nArr] = pool.getInts(nLength);
+				}
+			}
+		}
+	}
+
+	/** copy constructor **/
+	DecayAccumulator(final DecayAccumulator src)
+	{
+		nPixTotal = src.nPixTotal;
+		nLTSlices = src.nLTSlices;
+		nBins = src.nBins;
+		nBits = src.nBits;
+		nBlockShift = src.nBlockShift;
+		nBlockMask = src.nBlockMask;
+		nBlocks = src.nBlocks;
+		bytes = (src.bytes == null) ? null : new byte[src.bytes.length][];
+		shorts = (src.shorts == null) ? null : new short[src.shorts.length][];
+		ints = (src.ints == null) ? null : new int[src.ints.length][];
+		for(int nArr = 0; nArr < nBins * nBlocks; nArr++)
+		{
+			if(bytes != null)
+				bytes[nArr] = src.bytes[nArr].clone();
+			if(shorts != null)
+				shorts[nArr] = src.shorts[nArr].clone();
+			if(ints != null)
+				ints[nArr] = src.ints[nArr].clone();
+		}
+	}
+
+	/** smallest counter width (8, 16 or 32) that holds nMaxCount,
+	 * but not wider than nMaxBits **/
+	public static int getCounterBits(final long nMaxCount, final int nMaxBits)
+	{
+		int nBits = 32;
+		if(nMaxCount <= 0xFF)
+			nBits = 8;
+		else if(nMaxCount <= 0xFFFF)
+			nBits = 16;
+		return Math.max(8, Math.min(nBits, nMaxBits));
+	}
+
+	/** counter width for the stack decoded with params: the upper bound
+	 * of photons in one bin (all records of its frames) limited by params.nLTCounterBits **/
+	public static int getCounterBits(final PtuHeader header, final PtuIndex index, final DecodeParameters params)
+	{
+		final int nFrames = (params.nLTload == 0) ? (params.nFrameMax - params.nFrameMin + 1) : params.nTimeBin;
+		final long nPhotons = (long)Math.ceil((double)header.nRecords * nFrames / Math.max(1, index.nTotFrames));
+		return getCounterBits(nPhotons, params.nLTCounterBits);
+	}
+
+	/** adds photon of the pixel with the lifetime dtime to the bin **/
+	public void add(final int nBin, final int nPix, final int dtime)
+	{
+		final int nArr = nBin * nBlocks + (nPix >>> nBlockShift);
+		final int i = (nPix & nBlockMask) * nLTSlices + dtime;
+		switch(nBits)
+		{
+		case 8:
+			final byte [] b = bytes[nArr];
+			if(b[i] != (byte)0xFF)
+				b[i]++;
+			break;
+		case 16:
+			final short [] s = shorts[nArr];
+			if(s[i] != (short)0xFFFF)
+				s[i]++;
+			break;
+		default:
+			final int [] n = ints[nArr];
+			if(n[i] != -1)
+				n[i]++;
+		}
+	}
+
+	/** number of photons of the pixel with the lifetime dtime in the bin **/
+	public long get(final int nBin, final int nPix, final int dtime)
+	{
+		final int nArr = nBin * nBlocks + (nPix >>> nBlockShift);
+		final int i = (nPix & nBlockMask) * nLTSlices + dtime;
+		switch(nBits)
+		{
+		case 8:
+			return bytes[nArr][i] & 0xFFL;
+		case 16:
+			return shorts[nArr][i] & 0xFFFFL;
+		default:
+			return ints[nArr][i] & 0xFFFFFFFFL;
+		}
+	}
+
+	/** copies lifetime histogram of the pixel in the bin to decay[nLTSlices] **/
+	public void getDecay(final int nBin, final int nPix, final long [] decay)
+	{
+		final int nArr = nBin * nBlocks + (nPix >>> nBlockShift);
+		final int nStart = (nPix & nBlockMask) * nLTSlices;
+		switch(nBits)
+		{
+		case 8:
+			final byte [] b = bytes[nArr];
+			for(int t = 0; t < nLTSlices; t++)
+				decay[t] = b[nStart + t] & 0xFFL;
+			break;
+		case 16:
+			final short [] s = shorts[nArr];
+			for(int t = 0; t < nLTSlices; t++)
+				decay[t] = s[nStart + t] & 0xFFFFL;
+			break;
+		default:
+			final int [] n = ints[nArr];
+			for(int t = 0; t < nLTSlices; t++)
+				decay[t] = n[nStart + t] & 0xFFFFFFFFL;
+		}
+	}
+
+	/** image of the lifetime dtime in the bin (slice major, as ImageJ stack slice),
+	 * 8-bit, saturated at 255 **/
+	public void getSlice(final int nBin, final int dtime, final byte [] pixels)
+	{
+		for(int nBlock = 0; nBlock < nBlocks; nBlock++)
+		{
+			final int nArr = nBin * nBlocks + nBlock;
+			final int nFirst = nBlock << nBlockShift;
+			final int nEnd = Math.min(nPixTotal, nFirst + (1 << nBlockShift));
+			int i = dtime;
+			switch(nBits)
+			{
+			case 8:
+				final byte [] b = bytes[nArr];
+				for(int nPix = nFirst; nPix < nEnd; nPix++, i += nLTSlices)
+					pixels[nPix] = b[i];
+				break;
+			case 16:
+				final short [] s = shorts[nArr];
+				for(int nPix = nFirst; nPix < nEnd; nPix++, i += nLTSlices)
+					pixels[nPix] = (byte) Math.min(s[i] & 0xFFFF, 255);
+				break;
+			default:
+				final int [] n = ints[nArr];
+				for(int nPix = nFirst; nPix < nEnd; nPix++, i += nLTSlices)
+					pixels[nPix] = (byte) Math.min(n[i] & 0xFFFFFFFFL, 255);
+			}
+		}
+	}
+
+	/** memory occupied by the counters (in bytes) **/
+	public long getSizeBytes()
+	{
+		return (long)nPixTotal * nLTSlices * nBins * (nBits / 8);
+	}
+
+	/** returns all arrays to the pool **/
+	public void release(final BufferPool pool)
+	{
+		for(int nArr = 0; nArr < nBins * nBlocks; nArr++)
+		{
+			if(bytes != null)
+				pool.release(bytes[nArr]);
+			if(shorts != null)
+				pool.release(shorts[nArr]);
+			if(ints != null)
+				pool.release(ints[nArr]);
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package ptureader;
+
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+/** Lifetime ordered stack of one channel made slice by slice
+ * from the pixel major DecayAccumulator (transposed only when a slice is shown).
+ * Slices are ordered as in PhotonStack: dtime for the whole stack
+ * or (bin*nLTSlices + dtime) for the binned one, 8-bit, saturated at 255. **/
+public class DecayStack extends VirtualStack
+{
+	final DecayAccumulator decay;
+
+	public DecayStack(final DecayAccumulator decay, final int nPixX, final int nPixY)
+	{
+		super(nPixX, nPixY, null, null);
+		this.decay = decay;
+	}
+
+	@Override
+	public int getSize()
+	{
+		return decay.nLTSlices * decay.nBins;
+	}
+
+	@Override
+	public String getSliceLabel(final int n)
+	{
+		return "";
+	}
+
+	/** n is one based **/
+	@Override
+	public ImageProcessor getProcessor(final int n)
+	{
+		final int nSlice = n - 1;
+		final byte [] pixels = new byte[decay.nPixTotal];
+		decay.getSlice(nSlice / decay.nLTSlices, nSlice % decay.nLTSlices, pixels);
+		return new ByteProcessor(getWidth(), getHeight(), pixels);
+	}
+}
@@ -0,0 +1,289 @@
+package ptureader;
+
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** In-process (session wide) cache of analysis and decoding results.
+ * Header and index are cached per file, decoded accumulators per file
+ * and decoding parameters. Files are identified by real path, size and
+ * modification time, so modified files are decoded again.
+ * Accumulators are kept within the memory budget, least recently used
+ * entries above it are only softly referenced (and can be collected
+ * by the garbage collector when memory is low).
+ * Cached FlimData should not be modified, use copies. **/
+public class DecodeCache
+{
+	/** maximum number of files with cached header/index **/
+	final static int MAX_FILES = 64;
+
+	/** default cache, shared by all plugin invocations **/
+	final static DecodeCache instance = new DecodeCache(Runtime.getRuntime().maxMemory() / 4);
+
+	/** file identity **/
+	public final static class FileKey
+	{
+		final Path path;
+		final long nSize;
+		final long nLastModified;
+		/** records limit of the loaded valid part (see PtuFile.limit), -1 for all records **/
+		final long nMaxRecords;
+
+		FileKey(final Path path, final long nSize, final long nLastModified)
+		{
+			this(path, nSize, nLastModified, -1);
+		}
+
+		FileKey(final Path path, final long nSize, final long nLastModified, final long nMaxRecords)
+		{
+			this.path = path;
+			this.nSize = nSize;
+			this.nLastModified = nLastModified;
+			this.nMaxRecords = nMaxRecords;
+		}
+
+		/** returns identity of the valid part of the file (first nMaxRecords records),
+		 * its data are cached separately from the whole file **/
+		public FileKey limit(final long nMaxRecords)
+		{
+			return new FileKey(path, nSize, nLastModified, nMaxRecords);
+		}
+
+		/** returns identity of the file (only file attributes are read) **/
+		public static FileKey of(final Path path) throws IOException
+		{
+			final Path realPath = path.toRealPath();
+			return new FileKey(realPath, Files.size(realPath), Files.getLastModifiedTime(realPath).toMillis());
+		}
+
+		@Override
+		public boolean equals(final Object o)
+		{
+			if(!(o instanceof FileKey))
+				return false;
+			final FileKey other = (FileKey) o;
+			return path.equals(other.path) && nSize == other.nSize && nLastModified == other.nLastModified
+					&& nMaxRecords == other.nMaxRecords;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return path.hashCode() * 31 + Long.hashCode(nSize) * 17 + Long.hashCode(nLastModified) * 7 + Long.hashCode(nMaxRecords);
+		}
+	}
+
+	/** header and index of the file **/
+	public final static class FileInfo
+	{
+		public final PtuHeader header;
+		public final PtuIndex index;
+
+		FileInfo(final PtuHeader header, final PtuIndex index)
+		{
+			this.header = header;
+			this.index = index;
+		}
+	}
+
+	/** decoded data with its parameters **/
+	final static class DataEntry
+	{
+		final FileKey file;
+		final DecodeParameters params;
+		final long nBytes;
+
+		DataEntry(final FileKey file, final DecodeParameters params, final long nBytes)
+		{
+			this.file = file;
+			this.params = params;
+			this.nBytes = nBytes;
+		}
+	}
+
+	/** memory budget for strongly referenced accumulators (in bytes) **/
+	long nBudgetBytes;
+
+	/** memory occupied by strongly referenced accumulators (in bytes) **/
+	long nUsedBytes = 0;
+
+	/** headers and indices, in access order **/
+	final LinkedHashMap<FileKey, FileInfo> files = new LinkedHashMap<FileKey, FileInfo>(16, 0.75f, true)
+	{
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<FileKey, FileInfo> eldest)
+		{
+			return size() > MAX_FILES;
+		}
+	};
+
+	/** strongly referenced data, in access order **/
+	final LinkedHashMap<DataEntry, FlimData> data = new LinkedHashMap<>(16, 0.75f, true);
+
+	/** data evicted from the budget **/
+	final LinkedHashMap<DataEntry, SoftReference<FlimData>> softData = new LinkedHashMap<>();
+
+	/** frame sums (the last ones per file), only softly referenced **/
+	final LinkedHashMap<FileKey, SoftReference<FrameSums>> sums = new LinkedHashMap<FileKey, SoftReference<FrameSums>>(16, 0.75f, true)
+	{
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<FileKey, SoftReference<FrameSums>> eldest)
+		{
+			return size() > MAX_FILES;
+		}
+	};
+
+	public DecodeCache(final long nBudgetBytes)
+	{
+		this.nBudgetBytes = nBudgetBytes;
+	}
+
+	/** returns cache shared by all plugin invocations in this JVM **/
+	public static DecodeCache getInstance()
+	{
+		return instance;
+	}
+
+	/** changes the memory budget, evicting entries if necessary **/
+	public synchronized void setBudget(final long nBudgetBytes)
+	{
+		this.nBudgetBytes = nBudgetBytes;
+		evict();
+	}
+
+	public synchronized void putInfo(final FileKey file, final PtuHeader header, final PtuIndex index)
+	{
+		files.put(file, new FileInfo(header, index));
+	}
+
+	/** returns cached header and index of the file or null **/
+	public synchronized FileInfo getInfo(final FileKey file)
+	{
+		return files.get(file);
+	}
+
+	/** stores decoded (not yet converted to fast lifetime) data,
+	 * the data should not be modified after that.
+	 * Data larger than the budget is not cached. 
+	 * Returns true if the data was stored. **/
+	public synchronized boolean putData(final FileKey file, final DecodeParameters params, final FlimData flimData)
+	{
+		if(flimData.bLifetimeComputed)
+			return false;
+		final long nBytes = flimData.getSizeBytes();
+		if(nBytes > nBudgetBytes)
+			return false;
+		final DecodeParameters storedParams = params.copy();
+		//lifetime stack could be skipped due to lack of memory
+		storedParams.bLoadIntAverLTImages = flimData.bIntAverLT;
+		storedParams.bLoadLTOrderedStacks = flimData.bLTStack;
+		final DataEntry entry = new DataEntry(file, storedParams, nBytes);
+		data.put(entry, flimData);
+		nUsedBytes += nBytes;
+		evict();
+		return true;
+	}
+
+	/** returns cached data decoded with parameters covering the requested ones
+	 * or null if there is none. Returned data should not be modified. **/
+	public synchronized FlimData getData(final FileKey file, final DecodeParameters requested)
+	{
+		for(final DataEntry entry : new ArrayList<>(data.keySet()))
+		{
+			if(entry.file.equals(file) && entry.params.covers(requested))
+			{
+				//updates access order
+				return data.get(entry);
+			}
+		}
+		final Iterator<Map.Entry<DataEntry, SoftReference<FlimData>>> it = softData.entrySet().iterator();
+		while(it.hasNext())
+		{
+			final Map.Entry<DataEntry, SoftReference<FlimData>> soft = it.next();
+			final FlimData flimData = soft.getValue().get();
+			if(flimData == null)
+			{
+				it.remove();
+				continue;
+			}
+			final DataEntry entry = soft.getKey();
+			if(entry.file.equals(file) && entry.params.covers(requested))
+			{
+				//promote back to the budget
+				it.remove();
+				data.put(entry, flimData);
+				nUsedBytes += entry.nBytes;
+				evict();
+				return flimData;
+			}
+		}
+		return null;
+	}
+
+	/** stores complete frame sums of the file (replacing previous ones),
+	 * they should not be modified after that **/
+	public synchronized void putSums(final FileKey file, final FrameSums frameSums)
+	{
+		sums.put(file, new SoftReference<>(frameSums));
+	}
+
+	/** returns frame sums of the file or null **/
+	public synchronized FrameSums getSums(final FileKey file)
+	{
+		final SoftReference<FrameSums> ref = sums.get(file);
+		if(ref == null)
+			return null;
+		final FrameSums frameSums = ref.get();
+		if(frameSums == null)
+		{
+			sums.remove(file);
+		}
+		return frameSums;
+	}
+
+	/** removes header, index, data and sums of the file **/
+	public synchronized void remove(final FileKey file)
+	{
+		files.remove(file);
+		sums.remove(file);
+		final Iterator<Map.Entry<DataEntry, FlimData>> it = data.entrySet().iterator();
+		while(it.hasNext())
+		{
+			final DataEntry entry = it.next().getKey();
+			if(entry.file.equals(file))
+			{
+				nUsedBytes -= entry.nBytes;
+				it.remove();
+			}
+		}
+		softData.keySet().removeIf(entry -> entry.file.equals(file));
+	}
+
+	/** removes everything from the cache **/
+	public synchronized void clear()
+	{
+		files.clear();
+		data.clear();
+		softData.clear();
+		sums.clear();
+		nUsedBytes = 0;
+	}
+
+	/** moves least recently used data above the budget to soft references **/
+	void evict()
+	{
+		final Iterator<Map.Entry<DataEntry, FlimData>> it = data.entrySet().iterator();
+		while(nUsedBytes > nBudgetBytes && it.hasNext())
+		{
+			final Map.Entry<DataEntry, FlimData> eldest = it.next();
+			it.remove();
+			nUsedBytes -= eldest.getKey().nBytes;
+			softData.put(eldest.getKey(), new SoftReference<>(eldest.getValue()));
+		}
+	}
+}
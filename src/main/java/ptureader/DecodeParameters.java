@@ -0,0 +1,118 @@
+package ptureader;
+
+/** Parameters of the decoding (second) pass over records **/
+public class DecodeParameters
+{
+	/** load intensity and average lifetime per frame images**/
+	public boolean bLoadIntAverLTImages = true;
+	
+	/** load lifetime ordered stack**/
+	public boolean bLoadLTOrderedStacks = true;
+	
+	/** Lifetime loading option:
+	 * 0 = whole stack
+	 * 1 = use binning **/
+	public int nLTload = 0;
+	
+	/** maximum width of lifetime stack counters (8, 16 or 32 bits),
+	 * narrower counters are used if the photons of one bin fit them
+	 * (see DecayAccumulator), the displayed stack is 8-bit anyway **/
+	public int nLTCounterBits = 8;
+	
+	/** bin size in frames**/
+	public int nTimeBin = 1;
+	
+	/** min frame number to load**/
+	public int nFrameMin = 1;
+	
+	/** max frame number to load (inclusive)**/
+	public int nFrameMax = Integer.MAX_VALUE;
+	
+	/** make negative lifetime zero **/
+	public boolean bRemoveNegativeLT = false;
+	
+	/** spatial binning of FastLifetime to a target photon count (null = none) **/
+	public AdaptiveBinning ltBinning = null;
+	
+	/** build (and save) photon index for ROI decay curves **/
+	public boolean bBuildPhotonIndex = false;
+	
+	/** crop, channels and microtime window of loaded photons **/
+	public PhotonFilter filter = new PhotonFilter();
+	
+	/** per frame shifts applied to photons (null = no correction),
+	 * estimated for this file and range (see DriftCorrection) **/
+	public DriftCorrection drift = null;
+	
+	/** makes frame range and binning consistent with the total number of frames **/
+	public void validate(final int nTotFrames)
+	{
+		if (nFrameMin < 1) nFrameMin = 1;
+		if (nFrameMax > nTotFrames) nFrameMax = nTotFrames;
+		if (nFrameMin > nFrameMax) 
+		{
+			nFrameMin = 1; 
+			nFrameMax = nTotFrames;
+		}
+		if(nTimeBin < 1)
+		{
+			nTimeBin = 1;
+		}
+		if(nLTload == 0)
+		{
+			nTimeBin = nFrameMax - nFrameMin + 1;
+		}
+	}
+	
+	/** returns independent copy of parameters **/
+	public DecodeParameters copy()
+	{
+		final DecodeParameters out = new DecodeParameters();
+		out.bLoadIntAverLTImages = bLoadIntAverLTImages;
+		out.bLoadLTOrderedStacks = bLoadLTOrderedStacks;
+		out.nLTload = nLTload;
+		out.nLTCounterBits = nLTCounterBits;
+		out.nTimeBin = nTimeBin;
+		out.nFrameMin = nFrameMin;
+		out.nFrameMax = nFrameMax;
+		out.bRemoveNegativeLT = bRemoveNegativeLT;
+		out.ltBinning = ltBinning;
+		out.bBuildPhotonIndex = bBuildPhotonIndex;
+		out.filter = filter.copy();
+		//shifts are not modified after estimation, so they are shared
+		out.drift = drift;
+		return out;
+	}
+	
+	/** returns true if data decoded with these parameters
+	 * contains everything needed for the requested parameters 
+	 * (bRemoveNegativeLT and ltBinning are applied after decoding and photon index
+	 * is stored separately, so they are ignored) **/
+	public boolean covers(final DecodeParameters requested)
+	{
+		if(nFrameMin != requested.nFrameMin || nFrameMax != requested.nFrameMax)
+			return false;
+		if(!filter.equals(requested.filter))
+			return false;
+		if(drift != requested.drift)
+			return false;
+		if(requested.bLoadIntAverLTImages)
+		{
+			if(!bLoadIntAverLTImages || nTimeBin != requested.nTimeBin)
+				return false;
+		}
+		if(requested.bLoadLTOrderedStacks)
+		{
+			if(!bLoadLTOrderedStacks || nLTload != requested.nLTload || nTimeBin != requested.nTimeBin
+					|| nLTCounterBits < requested.nLTCounterBits)
+				return false;
+		}
+		return true;
+	}
+	
+	/** number of frames (bins) in the output **/
+	public int getTotalBins()
+	{
+		return (int)Math.ceil((double)(nFrameMax-nFrameMin+1)/(double)nTimeBin);
+	}
+}
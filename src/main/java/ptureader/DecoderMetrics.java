@@ -0,0 +1,210 @@
+package ptureader;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/** Totals of all passes over records in this JVM (records, photons, markers,
+ * overflows, dropped photons, bytes and time per phase), published through JMX
+ * as ptureader:type=DecoderMetrics and forwarded to registered sinks.
+ * Passes report once at their end (see PhaseMetrics), counters are LongAdders,
+ * so files decoded in parallel do not contend. **/
+public class DecoderMetrics implements DecoderMetricsMBean
+{
+	/** metrics used by PtuFile by default **/
+	public final static DecoderMetrics global = new DecoderMetrics();
+
+	final static String MBEAN_NAME = "ptureader:type=DecoderMetrics";
+
+	final LongAdder lRecords = new LongAdder();
+
+	final LongAdder lPhotons = new LongAdder();
+
+	final LongAdder lMarkers = new LongAdder();
+
+	final LongAdder lOverflows = new LongAdder();
+
+	final LongAdder lDropped = new LongAdder();
+
+	final LongAdder lBytes = new LongAdder();
+
+	final LongAdder lNoLineMarkers = new LongAdder();
+
+	final LongAdder lIncomplete = new LongAdder();
+
+	/** number and duration (ns) of passes per phase **/
+	final LongAdder [] lPhaseCount = new LongAdder[PhaseMetrics.PHASE_NAMES.length];
+
+	final LongAdder [] lPhaseNanos = new LongAdder[PhaseMetrics.PHASE_NAMES.length];
+
+	final CopyOnWriteArrayList<MetricsSink> sinks = new CopyOnWriteArrayList<>();
+
+	static
+	{
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().registerMBean(global, new ObjectName(MBEAN_NAME));
+		}
+		catch (JMException | SecurityException e)
+		{
+			//already registered (by another class loader) or not allowed,
+			//counting and sinks work anyway
+		}
+	}
+
+	public DecoderMetrics()
+	{
+		for(int nPhase = 0; nPhase < lPhaseCount.length; nPhase++)
+		{
+			lPhaseCount[nPhase] = new LongAdder();
+			lPhaseNanos[nPhase] = new LongAdder();
+		}
+	}
+
+	public void addSink(final MetricsSink sink)
+	{
+		sinks.add(sink);
+	}
+
+	public void removeSink(final MetricsSink sink)
+	{
+		sinks.remove(sink);
+	}
+
+	/** adds counts of the finished pass and forwards it to the sinks **/
+	public void phaseFinished(final PhaseMetrics phase)
+	{
+		lRecords.add(phase.nRecords);
+		lPhotons.add(phase.nPhotons);
+		lMarkers.add(phase.nMarkers);
+		lOverflows.add(phase.nOverflows);
+		lDropped.add(phase.nDropped);
+		lBytes.add(phase.nBytes);
+		lPhaseCount[phase.nPhase].increment();
+		lPhaseNanos[phase.nPhase].add(phase.nNanos);
+		if(!phase.bComplete)
+		{
+			lIncomplete.increment();
+		}
+		else if(phase.nLines == 0)
+		{
+			lNoLineMarkers.increment();
+		}
+		for(final MetricsSink sink : sinks)
+		{
+			sink.phaseFinished(phase);
+		}
+	}
+
+	@Override
+	public long getRecords()
+	{
+		return lRecords.sum();
+	}
+
+	@Override
+	public long getPhotons()
+	{
+		return lPhotons.sum();
+	}
+
+	@Override
+	public long getMarkers()
+	{
+		return lMarkers.sum();
+	}
+
+	@Override
+	public long getOverflows()
+	{
+		return lOverflows.sum();
+	}
+
+	@Override
+	public long getDroppedPhotons()
+	{
+		return lDropped.sum();
+	}
+
+	@Override
+	public long getBytesRead()
+	{
+		return lBytes.sum();
+	}
+
+	@Override
+	public long getFilesWithoutLineMarkers()
+	{
+		return lNoLineMarkers.sum();
+	}
+
+	@Override
+	public long getIncompletePasses()
+	{
+		return lIncomplete.sum();
+	}
+
+	@Override
+	public long getAnalyzeCount()
+	{
+		return lPhaseCount[PhaseMetrics.PHASE_ANALYZE].sum();
+	}
+
+	@Override
+	public long getAnalyzeMillis()
+	{
+		return lPhaseNanos[PhaseMetrics.PHASE_ANALYZE].sum() / 1000000;
+	}
+
+	@Override
+	public long getDecodeCount()
+	{
+		return lPhaseCount[PhaseMetrics.PHASE_DECODE].sum();
+	}
+
+	@Override
+	public long getDecodeMillis()
+	{
+		return lPhaseNanos[PhaseMetrics.PHASE_DECODE].sum() / 1000000;
+	}
+
+	@Override
+	public long getPhotonsCount()
+	{
+		return lPhaseCount[PhaseMetrics.PHASE_PHOTONS].sum();
+	}
+
+	@Override
+	public long getPhotonsMillis()
+	{
+		return lPhaseNanos[PhaseMetrics.PHASE_PHOTONS].sum() / 1000000;
+	}
+
+	@Override
+	public double getRecordsPerSecond()
+	{
+		long nNanos = 0;
+		for(final LongAdder lNanos : lPhaseNanos)
+		{
+			nNanos += lNanos.sum();
+		}
+		return (nNanos == 0) ? 0 : lRecords.sum() * 1e9 / nNanos;
+	}
+
+	@Override
+	public void reset()
+	{
+		for(final LongAdder lCounter : new LongAdder [] {lRecords, lPhotons, lMarkers, lOverflows, lDropped, lBytes, lNoLineMarkers, lIncomplete})
+		{
+			lCounter.reset();
+		}
+		for(int nPhase = 0; nPhase < lPhaseCount.length; nPhase++)
+		{
+			lPhaseCount[nPhase].reset();
+			lPhaseNanos[nPhase].reset();
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package ptureader;
+
+/** JMX view of DecoderMetrics (registered as ptureader:type=DecoderMetrics) **/
+public interface DecoderMetricsMBean
+{
+	long getRecords();
+
+	long getPhotons();
+
+	long getMarkers();
+
+	long getOverflows();
+
+	long getDroppedPhotons();
+
+	long getBytesRead();
+
+	/** analysed files without line start/stop markers **/
+	long getFilesWithoutLineMarkers();
+
+	/** passes that did not read all records (cancelled or failed) **/
+	long getIncompletePasses();
+
+	long getAnalyzeCount();
+
+	long getAnalyzeMillis();
+
+	long getDecodeCount();
+
+	long getDecodeMillis();
+
+	long getPhotonsCount();
+
+	long getPhotonsMillis();
+
+	/** records per second of all passes together **/
+	double getRecordsPerSecond();
+
+	void reset();
+}
@@ -0,0 +1,351 @@
+package ptureader;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/** Rigid drift of each frame relative to the first (not empty) frame of the range,
+ * estimated by phase correlation of per frame intensity images
+ * (made by a streaming decoding pass, see PtuFile.decodeFrames).
+ * Frames are correlated in parallel while the next ones are decoded.
+ * The shifts are applied during the placement of photons (see DecodeParameters.drift):
+ * x shift is fractional (it is subtracted from the position within the line before
+ * rounding to the pixel), y shift is a whole number of lines. **/
+public class DriftCorrection
+{
+	/** frames with fewer photons keep the shift of the previous frame **/
+	final static int MIN_PHOTONS = 100;
+
+	/** frame range of the shifts (inclusive), shifts are relative to the first frame
+	 * with at least MIN_PHOTONS photons **/
+	public final int nFrameMin;
+
+	public final int nFrameMax;
+
+	/** shift of the frame content relative to the first frame, pixels **/
+	public final float [] fShiftX;
+
+	public final int [] nShiftY;
+
+	/** estimated (not fractional) y shifts **/
+	final float [] fShiftYEstimate;
+
+	/** whether the frame had enough photons for the estimate **/
+	final boolean [] bEstimated;
+
+	/** image size (of the crop) and the padded (power of 2) size of the transforms **/
+	final int nPixX;
+
+	final int nPixY;
+
+	final int nFFTX;
+
+	final int nFFTY;
+
+	/** Hann window of the image size **/
+	final float [] fWindow;
+
+	/** transform of the reference (first) frame **/
+	double [] refRe = null;
+
+	double [] refIm = null;
+
+	DriftCorrection(final int nPixX, final int nPixY, final int nFrameMin, final int nFrameMax)
+	{
+		this.nPixX = nPixX;
+		this.nPixY = nPixY;
+		this.nFrameMin = nFrameMin;
+		this.nFrameMax = nFrameMax;
+		final int nFrames = nFrameMax - nFrameMin + 1;
+		fShiftX = new float[nFrames];
+		nShiftY = new int[nFrames];
+		fShiftYEstimate = new float[nFrames];
+		bEstimated = new boolean[nFrames];
+		nFFTX = Integer.highestOneBit(Math.max(1, nPixX - 1)) << 1;
+		nFFTY = Integer.highestOneBit(Math.max(1, nPixY - 1)) << 1;
+		fWindow = new float[nPixX * nPixY];
+		for(int y = 0; y < nPixY; y++)
+		{
+			final double wy = 0.5 - 0.5 * Math.cos(2.0 * Math.PI * (y + 0.5) / nPixY);
+			for(int x = 0; x < nPixX; x++)
+			{
+				fWindow[y * nPixX + x] = (float) (wy * (0.5 - 0.5 * Math.cos(2.0 * Math.PI * (x + 0.5) / nPixX)));
+			}
+		}
+	}
+
+	/** decodes intensity of each frame (all channels together, with the filter of params)
+	 * and estimates shifts of the frames on nThreads threads **/
+	public static DriftCorrection estimate(final PtuFile ptuFile, final PtuIndex index, final DecodeParameters params, final int nThreads, final ProgressListener progress) throws IOException
+	{
+		final DecodeParameters frameParams = params.copy();
+		frameParams.nLTload = 1;
+		frameParams.nTimeBin = 1;
+		frameParams.drift = null;
+		frameParams.validate(index.nTotFrames);
+		final DriftCorrection drift = new DriftCorrection(frameParams.filter.getWidth(ptuFile.header.nPixX),
+				frameParams.filter.getHeight(ptuFile.header.nPixY), frameParams.nFrameMin, frameParams.nFrameMax);
+		final int nWorkers = Math.max(1, nThreads);
+		final ExecutorService executor = Executors.newFixedThreadPool(nWorkers);
+		//limits the number of frames waiting for correlation
+		final Semaphore queued = new Semaphore(2 * nWorkers);
+		try
+		{
+			ptuFile.decodeFrames(index, frameParams, false, frame -> {
+				//frame buffers are reused, so the sum is a copy
+				final float [] fImage = new float[drift.nPixX * drift.nPixY];
+				for(int nCh = 0; nCh < 4; nCh++)
+				{
+					if(!frame.bChannels[nCh])
+						continue;
+					for(int i = 0; i < fImage.length; i++)
+					{
+						fImage[i] += frame.fIntensity[nCh][i];
+					}
+				}
+				final int k = frame.nFrameFrom - drift.nFrameMin;
+				//reference is the first frame with enough photons,
+				//frames before it are not shifted
+				if(drift.refRe == null)
+				{
+					drift.setReference(k, fImage);
+					return;
+				}
+				queued.acquireUninterruptibly();
+				executor.execute(() -> {
+					try
+					{
+						drift.estimateFrame(k, fImage);
+					}
+					finally
+					{
+						queued.release();
+					}
+				});
+			}, progress);
+		}
+		finally
+		{
+			executor.shutdown();
+			try
+			{
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		drift.fillMissing();
+		return drift;
+	}
+
+	void setReference(final int k, final float [] fImage)
+	{
+		if(getSum(fImage) < MIN_PHOTONS)
+			return;
+		final double [] re = new double[nFFTX * nFFTY];
+		final double [] im = new double[nFFTX * nFFTY];
+		prepare(fImage, re, im);
+		refRe = re;
+		refIm = im;
+		bEstimated[k] = true;
+	}
+
+	static double getSum(final float [] fImage)
+	{
+		double dSum = 0;
+		for(final float f : fImage)
+			dSum += f;
+		return dSum;
+	}
+
+	/** estimates shift of the frame k (counted from nFrameMin) **/
+	void estimateFrame(final int k, final float [] fImage)
+	{
+		if(getSum(fImage) < MIN_PHOTONS)
+			return;
+		final int nSize = nFFTX * nFFTY;
+		final double [] re = new double[nSize];
+		final double [] im = new double[nSize];
+		prepare(fImage, re, im);
+		//normalized cross power spectrum
+		for(int i = 0; i < nSize; i++)
+		{
+			final double cRe = re[i] * refRe[i] + im[i] * refIm[i];
+			final double cIm = im[i] * refRe[i] - re[i] * refIm[i];
+			final double dMag = Math.sqrt(cRe * cRe + cIm * cIm);
+			re[i] = (dMag > 0) ? cRe / dMag : 0;
+			im[i] = (dMag > 0) ? cIm / dMag : 0;
+		}
+		fft2D(re, im, true);
+		int nPeak = 0;
+		for(int i = 1; i < nSize; i++)
+		{
+			if(re[i] > re[nPeak])
+				nPeak = i;
+		}
+		final int px = nPeak % nFFTX;
+		final int py = nPeak / nFFTX;
+		fShiftX[k] = (float) (wrap(px, nFFTX) + subPixel(re[py * nFFTX + (px + nFFTX - 1) % nFFTX], re[nPeak], re[py * nFFTX + (px + 1) % nFFTX]));
+		fShiftYEstimate[k] = (float) (wrap(py, nFFTY) + subPixel(re[((py + nFFTY - 1) % nFFTY) * nFFTX + px], re[nPeak], re[((py + 1) % nFFTY) * nFFTX + px]));
+		nShiftY[k] = Math.round(fShiftYEstimate[k]);
+		bEstimated[k] = true;
+	}
+
+	/** frames without estimate get the shift of the previous frame **/
+	void fillMissing()
+	{
+		for(int k = 1; k < bEstimated.length; k++)
+		{
+			if(!bEstimated[k])
+			{
+				fShiftX[k] = fShiftX[k - 1];
+				fShiftYEstimate[k] = fShiftYEstimate[k - 1];
+				nShiftY[k] = nShiftY[k - 1];
+			}
+		}
+	}
+
+	/** position of the peak as a signed shift **/
+	static int wrap(final int nPos, final int nSize)
+	{
+		return (nPos > nSize / 2) ? nPos - nSize : nPos;
+	}
+
+	/** offset of the parabola vertex through three points around the peak **/
+	static double subPixel(final double dLeft, final double dPeak, final double dRight)
+	{
+		final double dDenominator = dLeft - 2.0 * dPeak + dRight;
+		if(dDenominator >= 0)
+			return 0;
+		return Math.max(-0.5, Math.min(0.5, 0.5 * (dLeft - dRight) / dDenominator));
+	}
+
+	/** windowed image (without mean) padded with zeros, transformed **/
+	void prepare(final float [] fImage, final double [] re, final double [] im)
+	{
+		double dMean = 0;
+		for(final float f : fImage)
+			dMean += f;
+		dMean /= fImage.length;
+		for(int y = 0; y < nPixY; y++)
+		{
+			for(int x = 0; x < nPixX; x++)
+			{
+				final int i = y * nPixX + x;
+				re[y * nFFTX + x] = (fImage[i] - dMean) * fWindow[i];
+			}
+		}
+		fft2D(re, im, false);
+	}
+
+	/** in place 2D transform of nFFTX x nFFTY complex array (row by row) **/
+	void fft2D(final double [] re, final double [] im, final boolean bInverse)
+	{
+		final double [] lineRe = new double[Math.max(nFFTX, nFFTY)];
+		final double [] lineIm = new double[Math.max(nFFTX, nFFTY)];
+		for(int y = 0; y < nFFTY; y++)
+		{
+			System.arraycopy(re, y * nFFTX, lineRe, 0, nFFTX);
+			System.arraycopy(im, y * nFFTX, lineIm, 0, nFFTX);
+			fft(lineRe, lineIm, nFFTX, bInverse);
+			System.arraycopy(lineRe, 0, re, y * nFFTX, nFFTX);
+			System.arraycopy(lineIm, 0, im, y * nFFTX, nFFTX);
+		}
+		for(int x = 0; x < nFFTX; x++)
+		{
+			for(int y = 0; y < nFFTY; y++)
+			{
+				lineRe[y] = re[y * nFFTX + x];
+				lineIm[y] = im[y * nFFTX + x];
+			}
+			fft(lineRe, lineIm, nFFTY, bInverse);
+			for(int y = 0; y < nFFTY; y++)
+			{
+				re[y * nFFTX + x] = lineRe[y];
+				im[y * nFFTX + x] = lineIm[y];
+			}
+		}
+	}
+
+	/** in place radix-2 transform of the first n values (n is a power of 2), not normalized **/
+	static void fft(final double [] re, final double [] im, final int n, final boolean bInverse)
+	{
+		//bit reversal permutation
+		for(int i = 1, j = 0; i < n; i++)
+		{
+			int nBit = n >> 1;
+			for(; (j & nBit) != 0; nBit >>= 1)
+			{
+				j ^= nBit;
+			}
+			j ^= nBit;
+			if(i < j)
+			{
+				double t = re[i]; re[i] = re[j]; re[j] = t;
+				t = im[i]; im[i] = im[j]; im[j] = t;
+			}
+		}
+		for(int nLen = 2; nLen <= n; nLen <<= 1)
+		{
+			final double dAngle = 2.0 * Math.PI / nLen * (bInverse ? 1 : -1);
+			final double wRe = Math.cos(dAngle);
+			final double wIm = Math.sin(dAngle);
+			for(int i = 0; i < n; i += nLen)
+			{
+				double curRe = 1.0;
+				double curIm = 0.0;
+				final int nHalf = nLen >> 1;
+				for(int j = 0; j < nHalf; j++)
+				{
+					final int a = i + j;
+					final int b = a + nHalf;
+					final double tRe = re[b] * curRe - im[b] * curIm;
+					final double tIm = re[b] * curIm + im[b] * curRe;
+					re[b] = re[a] - tRe;
+					im[b] = im[a] - tIm;
+					re[a] += tRe;
+					im[a] += tIm;
+					final double nextRe = curRe * wRe - curIm * wIm;
+					curIm = curRe * wIm + curIm * wRe;
+					curRe = nextRe;
+				}
+			}
+		}
+	}
+
+	/** x shift of the frame (zero outside of the range) **/
+	public float getShiftX(final int nFrame)
+	{
+		return (nFrame < nFrameMin || nFrame > nFrameMax) ? 0.0f : fShiftX[nFrame - nFrameMin];
+	}
+
+	/** y shift of the frame (zero outside of the range) **/
+	public int getShiftY(final int nFrame)
+	{
+		return (nFrame < nFrameMin || nFrame > nFrameMax) ? 0 : nShiftY[nFrame - nFrameMin];
+	}
+
+	/** description of the shifts for the log **/
+	public String getReport()
+	{
+		float fMaxX = 0;
+		float fMaxY = 0;
+		int nMissing = 0;
+		for(int k = 0; k < fShiftX.length; k++)
+		{
+			fMaxX = Math.max(fMaxX, Math.abs(fShiftX[k]));
+			fMaxY = Math.max(fMaxY, Math.abs(fShiftYEstimate[k]));
+		}
+		for(int k = 0; k < bEstimated.length; k++)
+		{
+			if(!bEstimated[k])
+				nMissing++;
+		}
+		return "Drift of " + Integer.toString(fShiftX.length) + " frames: maximum shift x " + String.format("%.2f", fMaxX)
+			+ ", y " + String.format("%.2f", fMaxY) + " pixels" + ((nMissing > 0) ? " (" + Integer.toString(nMissing) + " frames with few photons are not estimated)" : "");
+	}
+}
@@ -0,0 +1,381 @@
+package ptureader;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/** Accumulators filled during decoding: intensity,
+ * cumulative lifetime (becomes average lifetime after computeFastLifetime),
+ * lifetime ordered stack and total photons histogram per channel.
+ * Intensity and lifetime images are stored as plain arrays of pixels (row by row),
+ * so they can be wrapped into ImageJ stacks without copying,
+ * lifetime stack is stored pixel major (see DecayAccumulator).
+ * For streaming (see FrameStream) intensity and lifetime can be kept
+ * only for nBinSlots recent bins (bin nBin is in slot nBin % nBinSlots),
+ * slots are cleared after the bin is reported to binListener. **/
+public class FlimData
+{
+	/** image width (of the crop)**/
+	public final int nPixX;
+
+	/** image height (of the crop)**/
+	public final int nPixY;
+
+	/** number of frames (bins) in the output **/
+	public final int nTotalBins;
+
+	/** number of bins kept in memory (nTotalBins, unless streaming) **/
+	public final int nBinSlots;
+
+	/** number of lifetime values (dtimemax+1) **/
+	public final int nLTSlices;
+
+	/** array marking presence of channels **/
+	public final boolean [] bChannels = new boolean[4];
+
+	/** whether intensity and fast lifetime are accumulated **/
+	public final boolean bIntAverLT;
+
+	/** whether photons histogram of each bin is accumulated **/
+	public final boolean bBinHistogram;
+
+	/** whether lifetime ordered stack is accumulated **/
+	public boolean bLTStack;
+
+	/** Lifetime stack option: 0 = whole stack, 1 = binned (hyperstack) **/
+	public final int nLTload;
+
+	/** intensity per channel, per bin (slot) **/
+	public final float [][][] fIntensity = new float[4][][];
+
+	/** cumulative lifetime (or average lifetime in ns after computeFastLifetime)
+	 * per channel, per bin (slot) **/
+	public final float [][][] fLifetime = new float[4][][];
+
+	/** optional photons histogram per channel, per bin (slot), null if not requested **/
+	public final long [][][] lBinHistogram = new long[4][][];
+
+	/** lifetime histograms per channel (pixel major), one bin for the whole stack
+	 * or nTotalBins for the binned one, see DecayStack for the slice order **/
+	public final DecayAccumulator [] ltDecay = new DecayAccumulator[4];
+
+	/** total cumulative photons per channel **/
+	public final long [][] lPhotCumHistogram = new long[4][];
+
+	/** IRF average time estimation per channel **/
+	public final float [] tZeroIRF = new float[4];
+
+	/** whether fLifetime contains average lifetime already **/
+	boolean bLifetimeComputed = false;
+
+	/** optional listener notified during decoding when a bin is complete **/
+	public BinListener binListener = null;
+
+	/** optional per frame sums filled during decoding (see FrameSums) **/
+	public FrameSums frameSums = null;
+
+	/** allocates accumulators, arrays are taken from the pool.
+	 * If there is not enough memory for lifetime stack, it is skipped
+	 * (bLTStack is false after that).**/
+	public FlimData(final PtuHeader header, final PtuIndex index, final DecodeParameters params, final BufferPool pool, final Consumer<String> log)
+	{
+		this(header, index, params, params.getTotalBins(), false, pool, log);
+	}
+
+	/** allocates accumulators keeping only nBinSlots recent bins
+	 * of intensity and lifetime (and their histograms, if bBinHistogram) **/
+	public FlimData(final PtuHeader header, final PtuIndex index, final DecodeParameters params, final int nBinSlots, final boolean bBinHistogram, final BufferPool pool, final Consumer<String> log)
+	{
+		nPixX = params.filter.getWidth(header.nPixX);
+		nPixY = params.filter.getHeight(header.nPixY);
+		nTotalBins = params.getTotalBins();
+		this.nBinSlots = Math.max(1, Math.min(nBinSlots, nTotalBins));
+		nLTSlices = index.dtimemax + 1;
+		bIntAverLT = params.bLoadIntAverLTImages;
+		this.bBinHistogram = bIntAverLT && bBinHistogram;
+		bLTStack = params.bLoadLTOrderedStacks;
+		nLTload = params.nLTload;
+		final int nPixTotal = nPixX * nPixY;
+		final int nCounterBits = DecayAccumulator.getCounterBits(header, index, params);
+		for (int nCh = 0; nCh < 4; nCh++)
+		{
+			bChannels[nCh] = index.bChannels[nCh] && params.filter.bChannels[nCh];
+			if(!bChannels[nCh])
+				continue;
+			if(bIntAverLT)
+			{
+				lPhotCumHistogram[nCh] = pool.getLongs(nLTSlices);
+				fIntensity[nCh] = new float[this.nBinSlots][];
+				fLifetime[nCh] = new float[this.nBinSlots][];
+				for(int nSlot = 0; nSlot < this.nBinSlots; nSlot++)
+				{
+					fIntensity[nCh][nSlot] = pool.getFloats(nPixTotal);
+					fLifetime[nCh][nSlot] = pool.getFloats(nPixTotal);
+				}
+				if(this.bBinHistogram)
+				{
+					lBinHistogram[nCh] = new long[this.nBinSlots][];
+					for(int nSlot = 0; nSlot < this.nBinSlots; nSlot++)
+					{
+						lBinHistogram[nCh][nSlot] = pool.getLongs(nLTSlices);
+					}
+				}
+			}
+			if(bLTStack)
+			{
+				try
+				{
+					ltDecay[nCh] = new DecayAccumulator(nPixTotal, nLTSlices, (nLTload == 0) ? 1 : nTotalBins, nCounterBits, pool);
+				}
+				catch (OutOfMemoryError e)
+				{
+					log.accept("Unable to allocate memory for lifetime stack (out of memory)!!\n Skipping lifetime loading.");
+					bLTStack = false;
+					for(int i = 0; i < 4; i++)
+					{
+						ltDecay[i] = null;
+					}
+				}
+			}
+		}
+	}
+
+	/** allocates intensity and lifetime of nTotalBins bins for the data
+	 * made without decoding (see FrameSums) **/
+	FlimData(final int nPixX, final int nPixY, final int nLTSlices, final boolean [] bChannels, final int nTotalBins)
+	{
+		this.nPixX = nPixX;
+		this.nPixY = nPixY;
+		this.nTotalBins = nTotalBins;
+		nBinSlots = nTotalBins;
+		this.nLTSlices = nLTSlices;
+		bIntAverLT = true;
+		bBinHistogram = false;
+		bLTStack = false;
+		nLTload = 1;
+		for (int nCh = 0; nCh < 4; nCh++)
+		{
+			this.bChannels[nCh] = bChannels[nCh];
+			if(!bChannels[nCh])
+				continue;
+			lPhotCumHistogram[nCh] = new long[nLTSlices];
+			fIntensity[nCh] = new float[nTotalBins][nPixX * nPixY];
+			fLifetime[nCh] = new float[nTotalBins][nPixX * nPixY];
+		}
+	}
+
+	/** copy constructor, only requested outputs are copied **/
+	FlimData(final FlimData src, final boolean bIntAverLT, final boolean bLTStack)
+	{
+		nPixX = src.nPixX;
+		nPixY = src.nPixY;
+		nTotalBins = src.nTotalBins;
+		nBinSlots = src.nBinSlots;
+		nLTSlices = src.nLTSlices;
+		nLTload = src.nLTload;
+		this.bIntAverLT = bIntAverLT && src.bIntAverLT;
+		bBinHistogram = this.bIntAverLT && src.bBinHistogram;
+		this.bLTStack = bLTStack && src.bLTStack;
+		bLifetimeComputed = src.bLifetimeComputed;
+		for (int nCh = 0; nCh < 4; nCh++)
+		{
+			bChannels[nCh] = src.bChannels[nCh];
+			tZeroIRF[nCh] = src.tZeroIRF[nCh];
+			if(!bChannels[nCh])
+				continue;
+			if(this.bIntAverLT)
+			{
+				lPhotCumHistogram[nCh] = src.lPhotCumHistogram[nCh].clone();
+				fIntensity[nCh] = new float[nBinSlots][];
+				fLifetime[nCh] = new float[nBinSlots][];
+				for(int nSlot = 0; nSlot < nBinSlots; nSlot++)
+				{
+					fIntensity[nCh][nSlot] = src.fIntensity[nCh][nSlot].clone();
+					fLifetime[nCh][nSlot] = src.fLifetime[nCh][nSlot].clone();
+				}
+				if(bBinHistogram)
+				{
+					lBinHistogram[nCh] = new long[nBinSlots][];
+					for(int nSlot = 0; nSlot < nBinSlots; nSlot++)
+					{
+						lBinHistogram[nCh][nSlot] = src.lBinHistogram[nCh][nSlot].clone();
+					}
+				}
+			}
+			if(this.bLTStack)
+			{
+				ltDecay[nCh] = new DecayAccumulator(src.ltDecay[nCh]);
+			}
+		}
+	}
+	
+	/** returns independent copy containing only requested outputs **/
+	public FlimData copy(final boolean bIntAverLT, final boolean bLTStack)
+	{
+		return new FlimData(this, bIntAverLT, bLTStack);
+	}
+	
+	/** approximate memory occupied by the accumulators (in bytes) **/
+	public long getSizeBytes()
+	{
+		long nBytes = 0;
+		final long nPixTotal = (long)nPixX * nPixY;
+		for (int nCh = 0; nCh < 4; nCh++)
+		{
+			if(fIntensity[nCh] != null)
+			{
+				nBytes += 2L * 4L * nPixTotal * nBinSlots + 8L * nLTSlices;
+			}
+			if(ltDecay[nCh] != null)
+			{
+				nBytes += ltDecay[nCh].getSizeBytes();
+			}
+		}
+		return nBytes;
+	}
+	
+	/** converts cumulative lifetime to the average lifetime (in ns),
+	 * corrected by the estimated IRF time **/
+	public void computeFastLifetime(final float fTimeResolution, final boolean bRemoveNegativeLT, final Consumer<String> log)
+	{
+		computeFastLifetime(fTimeResolution, bRemoveNegativeLT, null, log);
+	}
+
+	/** same, lifetime of each pixel is averaged over its neighbourhood
+	 * given by binning (if not null), intensity is not changed **/
+	public void computeFastLifetime(final float fTimeResolution, final boolean bRemoveNegativeLT, final AdaptiveBinning binning, final Consumer<String> log)
+	{
+		if(!bIntAverLT || bLifetimeComputed)
+			return;
+		estimateIRFZeroTime(fTimeResolution, log);
+		final float [] fBinnedInt = (binning != null) ? new float[nPixX * nPixY] : null;
+		final float [] fBinnedLT = (binning != null) ? new float[nPixX * nPixY] : null;
+		for(int nCh = 0; nCh < 4; nCh++)
+		{
+			if(!bChannels[nCh])
+				continue;
+			for(int nSlot = 0; nSlot < nBinSlots; nSlot++)
+			{
+				final float [] fInt = fIntensity[nCh][nSlot];
+				final float [] fLT = fLifetime[nCh][nSlot];
+				//photons and lifetime sum of each pixel (or of its neighbourhood)
+				float [] fPhotonSum = fInt;
+				float [] fLTSum = fLT;
+				if(binning != null)
+				{
+					binning.apply(fInt, fLT, nPixX, nPixY, fBinnedInt, fBinnedLT);
+					fPhotonSum = fBinnedInt;
+					fLTSum = fBinnedLT;
+				}
+				for(int i = 0; i < fInt.length; i++)
+				{
+					final float fPhotons = fPhotonSum[i];
+					if(fPhotons > 0)
+					{
+						float fLTCorrected = (fTimeResolution*fLTSum[i]/fPhotons) - tZeroIRF[nCh];
+						if(bRemoveNegativeLT)
+						{
+							if(fLTCorrected<0.0f)
+								fLTCorrected = 0.0f;
+						}
+						fLT[i] = fLTCorrected;
+					}
+					//should be already zero otherwise
+				}
+			}
+		}
+		bLifetimeComputed = true;
+	}
+
+	void estimateIRFZeroTime(final float fTimeResolution, final Consumer<String> log)
+	{
+		final int dtimemax = nLTSlices - 1;
+		for(int nCh = 0; nCh < 4; nCh++)
+		{
+			if(bChannels[nCh])
+			{
+				//calculate derivative of total photon histogram
+				final long [] lDerivative = new long[nLTSlices];
+				for (int t = 0; t < dtimemax; t++)
+				{
+					lDerivative[t] = lPhotCumHistogram[nCh][t+1]-lPhotCumHistogram[nCh][t];
+				}
+				//find maximum
+				long lMax = Long.MAX_VALUE*(-1);
+				int maxInd = 0;
+				for(int t=0; t < dtimemax; t++)
+				{
+					if(lDerivative[t]>lMax)
+					{
+						lMax = lDerivative[t];
+						maxInd = t;
+					}
+				}
+				// peak position centroid estimate
+				// according to https://iopscience.iop.org/article/10.3847/2515-5172/aae265
+				// A Robust Method to Measure Centroids of Spectral Lines
+				// Richard Teague  and Daniel Foreman-Mackey
+				// DOI 10.3847/2515-5172/aae265
+				//estimate
+				float fMax = maxInd;
+				if(maxInd > 0 && maxInd < dtimemax - 1)
+				{
+					fMax = ( float ) ( maxInd - 0.5*(lDerivative[maxInd+1]-lDerivative[maxInd-1])/(lDerivative[maxInd+1]+lDerivative[maxInd-1]-2.0f*lDerivative[maxInd]) );
+				}
+				tZeroIRF[nCh] = fTimeResolution*(fMax+1.0f);
+				log.accept("Estimated IRF t=0 for channel "+Integer.toString( nCh )+": "+Float.toString( tZeroIRF[nCh] )+"ns");
+			}
+		}
+	}
+
+	/** clears the slot of the bin for reuse by the bin nBin + nBinSlots **/
+	void clearSlot(final int nBin)
+	{
+		final int nSlot = nBin % nBinSlots;
+		for(int nCh = 0; nCh < 4; nCh++)
+		{
+			if(fIntensity[nCh] != null)
+			{
+				Arrays.fill(fIntensity[nCh][nSlot], 0.0f);
+				Arrays.fill(fLifetime[nCh][nSlot], 0.0f);
+			}
+			if(lBinHistogram[nCh] != null)
+			{
+				Arrays.fill(lBinHistogram[nCh][nSlot], 0L);
+			}
+		}
+	}
+
+	/** returns all arrays to the pool,
+	 * the object should not be used after that **/
+	public void release(final BufferPool pool)
+	{
+		for(int nCh = 0; nCh < 4; nCh++)
+		{
+			pool.release(lPhotCumHistogram[nCh]);
+			lPhotCumHistogram[nCh] = null;
+			if(fIntensity[nCh] != null)
+			{
+				for(int nSlot = 0; nSlot < nBinSlots; nSlot++)
+				{
+					pool.release(fIntensity[nCh][nSlot]);
+					pool.release(fLifetime[nCh][nSlot]);
+				}
+				fIntensity[nCh] = null;
+				fLifetime[nCh] = null;
+			}
+			if(lBinHistogram[nCh] != null)
+			{
+				for(int nSlot = 0; nSlot < nBinSlots; nSlot++)
+				{
+					pool.release(lBinHistogram[nCh][nSlot]);
+				}
+				lBinHistogram[nCh] = null;
+			}
+			if(ltDecay[nCh] != null)
+			{
+				ltDecay[nCh].release(pool);
+				ltDecay[nCh] = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,9 @@
+package ptureader;
+
+/** Receives binned frames as soon as they are decoded (see PtuFile.decodeFrames),
+ * frames are reported in increasing order. Called on the decoding thread,
+ * decoding continues (and buffers of the frame are reused) after it returns. **/
+public interface FrameListener
+{
+	void frameDecoded(FrameResult frame);
+}
@@ -0,0 +1,52 @@
+package ptureader;
+
+/** One decoded binned frame (see PtuFile.decodeFrames and FrameStream).
+ * Arrays are views of the decoding buffers: they are valid only
+ * until the consumer returns (listener) or asks for the next frame (iterator)
+ * and are reused after that, copy them to keep the data. **/
+public class FrameResult
+{
+	/** bin number (starting from 0) **/
+	public int nBin;
+
+	/** first and last frame (starting from 1) of the bin **/
+	public int nFrameFrom;
+
+	public int nFrameTo;
+
+	/** image width and height **/
+	public int nPixX;
+
+	public int nPixY;
+
+	/** channels present in data **/
+	public final boolean [] bChannels = new boolean[4];
+
+	/** intensity per channel (null for absent channels) **/
+	public final float [][] fIntensity = new float[4][];
+
+	/** sum of lifetime (dtime) values per channel (null for absent channels),
+	 * average lifetime in ns is fTimeResolution * fLifetimeSum / fIntensity **/
+	public final float [][] fLifetimeSum = new float[4][];
+
+	/** photons histogram of the bin per channel (null if not requested) **/
+	public final long [][] lHistogram = new long[4][];
+
+	/** points the result to the bin of data **/
+	void set(final FlimData data, final DecodeParameters params, final int nBin)
+	{
+		this.nBin = nBin;
+		nFrameFrom = params.nFrameMin + nBin * params.nTimeBin;
+		nFrameTo = Math.min(params.nFrameMax, nFrameFrom + params.nTimeBin - 1);
+		nPixX = data.nPixX;
+		nPixY = data.nPixY;
+		final int nSlot = nBin % data.nBinSlots;
+		for(int nCh = 0; nCh < 4; nCh++)
+		{
+			bChannels[nCh] = data.bChannels[nCh];
+			fIntensity[nCh] = bChannels[nCh] ? data.fIntensity[nCh][nSlot] : null;
+			fLifetimeSum[nCh] = bChannels[nCh] ? data.fLifetime[nCh][nSlot] : null;
+			lHistogram[nCh] = (bChannels[nCh] && data.bBinHistogram) ? data.lBinHistogram[nCh][nSlot] : null;
+		}
+	}
+}
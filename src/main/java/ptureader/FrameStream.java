@@ -0,0 +1,180 @@
+package ptureader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+
+/** Pull version of PtuFile.decodeFrames: decoding runs on a separate thread
+ * and stops after each binned frame until the consumer asks for the next one.
+ * <pre>
+ * try (FrameStream frames = new FrameStream(ptu, index, params, false))
+ * {
+ *    while(frames.hasNext())
+ *    {
+ *       FrameResult frame = frames.next();
+ *       ...
+ *    }
+ * }
+ * </pre>
+ * The frame returned by next() is valid until the next call of hasNext() or next(),
+ * its buffers are reused after that. Closing the stream stops decoding.
+ * Errors of reading are thrown as UncheckedIOException. **/
+public class FrameStream implements Iterator<FrameResult>, Closeable
+{
+	/** marks the end of the frames **/
+	final static FrameResult END = new FrameResult();
+
+	final Thread decoder;
+
+	/** frames passed from the decoder to the consumer **/
+	final SynchronousQueue<FrameResult> frames = new SynchronousQueue<>();
+
+	/** allows the decoder to continue (and reuse buffers of the frame) **/
+	final Semaphore released = new Semaphore(0);
+
+	/** frame taken from the decoder, but not returned by next() yet **/
+	FrameResult nextFrame = null;
+
+	/** whether the consumer holds a frame (decoder waits) **/
+	boolean bHolding = false;
+
+	volatile boolean bClosed = false;
+
+	volatile IOException error = null;
+
+	public FrameStream(final PtuFile ptuFile, final PtuIndex index, final DecodeParameters params, final boolean bHistogram)
+	{
+		decoder = new Thread(() -> {
+			try
+			{
+				ptuFile.decodeFrames(index, params, bHistogram, frame -> {
+					if(bClosed)
+						throw new CancellationException();
+					try
+					{
+						frames.put(frame);
+						released.acquire();
+					}
+					catch (InterruptedException e)
+					{
+						throw new CancellationException();
+					}
+					if(bClosed)
+						throw new CancellationException();
+				}, null);
+			}
+			catch (IOException e)
+			{
+				error = e;
+			}
+			catch (CancellationException e)
+			{
+				//closed by the consumer
+			}
+			catch (RuntimeException e)
+			{
+				error = new IOException(e);
+			}
+			finally
+			{
+				if(!bClosed)
+				{
+					try
+					{
+						frames.put(END);
+					}
+					catch (InterruptedException e)
+					{
+						//closed by the consumer
+					}
+				}
+			}
+		}, "PTU frame decoder");
+		decoder.setDaemon(true);
+		decoder.start();
+	}
+
+	/** releases the frame held by the consumer and waits for the next one **/
+	@Override
+	public boolean hasNext()
+	{
+		if(nextFrame == null)
+		{
+			releaseFrame();
+			if(bClosed)
+				return false;
+			try
+			{
+				nextFrame = frames.take();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				nextFrame = END;
+			}
+			if(nextFrame == END && error != null)
+			{
+				throw new UncheckedIOException(error);
+			}
+		}
+		return nextFrame != END;
+	}
+
+	@Override
+	public FrameResult next()
+	{
+		if(!hasNext())
+			throw new NoSuchElementException();
+		final FrameResult frame = nextFrame;
+		nextFrame = null;
+		bHolding = true;
+		return frame;
+	}
+
+	void releaseFrame()
+	{
+		if(bHolding)
+		{
+			bHolding = false;
+			released.release();
+		}
+	}
+
+	/** stops decoding (if it is not finished).
+	 * The decoder is not interrupted (that would close the shared FileChannel),
+	 * it stops at the next frame. **/
+	@Override
+	public void close()
+	{
+		if(bClosed)
+			return;
+		bClosed = true;
+		if(nextFrame != null && nextFrame != END)
+		{
+			bHolding = true;
+		}
+		releaseFrame();
+		try
+		{
+			while(decoder.isAlive())
+			{
+				//frame offered before the decoder noticed closing
+				final FrameResult frame = frames.poll(10, TimeUnit.MILLISECONDS);
+				if(frame != null && frame != END)
+				{
+					released.release();
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
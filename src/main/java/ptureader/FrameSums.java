@@ -0,0 +1,228 @@
+package ptureader;
+
+/** Intensity, lifetime sum and photons histogram per channel at native frame
+ * resolution, stored as prefix sums over frames (value of frame nFrameMin..f).
+ * Filled during decoding (see FlimData.frameSums), after that binned,
+ * range limited or sliding window (moving sum) Intensity/FastLifetime stacks
+ * are made without reading the records again, each output bin is
+ * the difference of two prefix sums (O(pixels) per bin, independent of its width).
+ * Sums are int and wrap around on overflow, differences are still exact
+ * while the sum of one output bin fits into int. **/
+public class FrameSums
+{
+	/** image width and height (of the crop) **/
+	public final int nPixX;
+
+	public final int nPixY;
+
+	/** frame range of the sums (inclusive) **/
+	public final int nFrameMin;
+
+	public final int nFrameMax;
+
+	/** number of lifetime values **/
+	public final int nLTSlices;
+
+	/** channels present in data **/
+	public final boolean [] bChannels = new boolean[4];
+
+	/** filter of the decoding **/
+	public final PhotonFilter filter;
+
+	/** drift correction of the decoding (null if none) **/
+	public final DriftCorrection drift;
+
+	/** prefix sums of intensity per channel, per frame (from nFrameMin), per pixel **/
+	final int [][][] nIntensity = new int[4][][];
+
+	/** prefix sums of lifetime (dtime) per channel, per frame, per pixel **/
+	final int [][][] nLifetime = new int[4][][];
+
+	/** prefix sums of photons histogram per channel, per frame **/
+	final long [][][] lHistogram = new long[4][][];
+
+	/** frame currently filled by decoding (nFrameMin - 1 before the first photon) **/
+	int nCurFrame;
+
+	/** arrays of the current frame (to avoid lookups per photon) **/
+	final int [][] nCurIntensity = new int[4][];
+
+	final int [][] nCurLifetime = new int[4][];
+
+	final long [][] lCurHistogram = new long[4][];
+
+	/** allocates sums for the decoding with the parameters,
+	 * frames are allocated as decoding reaches them **/
+	public FrameSums(final PtuHeader header, final PtuIndex index, final DecodeParameters params)
+	{
+		nPixX = params.filter.getWidth(header.nPixX);
+		nPixY = params.filter.getHeight(header.nPixY);
+		nFrameMin = params.nFrameMin;
+		nFrameMax = params.nFrameMax;
+		nLTSlices = index.dtimemax + 1;
+		filter = params.filter.copy();
+		drift = params.drift;
+		nCurFrame = nFrameMin - 1;
+		final int nFrames = nFrameMax - nFrameMin + 1;
+		for(int nCh = 0; nCh < 4; nCh++)
+		{
+			bChannels[nCh] = index.bChannels[nCh] && filter.bChannels[nCh];
+			if(!bChannels[nCh])
+				continue;
+			nIntensity[nCh] = new int[nFrames][];
+			nLifetime[nCh] = new int[nFrames][];
+			lHistogram[nCh] = new long[nFrames][];
+		}
+	}
+
+	/** adds photon of the frame (called by the decoding loop, frames do not decrease) **/
+	void add(final int nCh, final int nPix, final int nFrame, final int dtime)
+	{
+		if(nFrame != nCurFrame)
+		{
+			moveTo(nFrame);
+		}
+		nCurIntensity[nCh][nPix]++;
+		nCurLifetime[nCh][nPix] += dtime;
+		lCurHistogram[nCh][dtime]++;
+	}
+
+	/** starts sums of the frame from the sums of the previous one
+	 * (frames without photons in between get the same sums) **/
+	void moveTo(final int nFrame)
+	{
+		final int nPixTotal = nPixX * nPixY;
+		for(int nNext = nCurFrame + 1; nNext <= nFrame; nNext++)
+		{
+			final int k = nNext - nFrameMin;
+			for(int nCh = 0; nCh < 4; nCh++)
+			{
+				if(!bChannels[nCh])
+					continue;
+				if(k == 0)
+				{
+					nIntensity[nCh][k] = new int[nPixTotal];
+					nLifetime[nCh][k] = new int[nPixTotal];
+					lHistogram[nCh][k] = new long[nLTSlices];
+				}
+				else
+				{
+					nIntensity[nCh][k] = nIntensity[nCh][k - 1].clone();
+					nLifetime[nCh][k] = nLifetime[nCh][k - 1].clone();
+					lHistogram[nCh][k] = lHistogram[nCh][k - 1].clone();
+				}
+				nCurIntensity[nCh] = nIntensity[nCh][k];
+				nCurLifetime[nCh] = nLifetime[nCh][k];
+				lCurHistogram[nCh] = lHistogram[nCh][k];
+			}
+		}
+		nCurFrame = nFrame;
+	}
+
+	/** completes sums of the frames after the last photon,
+	 * should be called after decoding **/
+	public void finish()
+	{
+		if(nCurFrame < nFrameMax)
+		{
+			moveTo(nFrameMax);
+		}
+	}
+
+	/** whether the sums contain frames of the decoding with the parameters **/
+	public boolean covers(final DecodeParameters params)
+	{
+		return filter.equals(params.filter) && drift == params.drift && nFrameMin <= params.nFrameMin && nFrameMax >= params.nFrameMax;
+	}
+
+	/** number of output bins of the given width, starting every nStep frames
+	 * within the range (the last bin can be shorter, if nStep equals nWidth) **/
+	public static int getBinCount(final int nFrameFrom, final int nFrameTo, final int nWidth, final int nStep)
+	{
+		final int nRange = nFrameTo - nFrameFrom + 1;
+		if(nRange <= nWidth)
+			return 1;
+		return (nRange - nWidth + nStep - 1) / nStep + 1;
+	}
+
+	/** makes Intensity and lifetime sum (not yet FastLifetime) of the bins:
+	 * bin k contains frames from nFrameFrom + k*nStep, nWidth frames long
+	 * (clipped by nFrameTo). nStep equal to nWidth gives usual binning,
+	 * nStep = 1 gives sliding window. Photons histogram is the one of the range. **/
+	public FlimData getBins(final int nFrameFrom, final int nFrameTo, final int nWidth, final int nStep)
+	{
+		if(nFrameFrom < nFrameMin || nFrameTo > nFrameMax || nFrameFrom > nFrameTo || nWidth < 1 || nStep < 1)
+		{
+			throw new IllegalArgumentException("Frames " + nFrameFrom + "-" + nFrameTo + " are outside of the sums (frames "
+					+ nFrameMin + "-" + nFrameMax + ")");
+		}
+		final int nBins = getBinCount(nFrameFrom, nFrameTo, nWidth, nStep);
+		final FlimData data = new FlimData(nPixX, nPixY, nLTSlices, bChannels, nBins);
+		for(int nCh = 0; nCh < 4; nCh++)
+		{
+			if(!bChannels[nCh])
+				continue;
+			for(int nBin = 0; nBin < nBins; nBin++)
+			{
+				final int nFrom = nFrameFrom + nBin * nStep;
+				final int nTo = Math.min(nFrameTo, nFrom + nWidth - 1);
+				difference(nIntensity[nCh], nFrom, nTo, data.fIntensity[nCh][nBin]);
+				difference(nLifetime[nCh], nFrom, nTo, data.fLifetime[nCh][nBin]);
+			}
+			final long [] lTo = lHistogram[nCh][nFrameTo - nFrameMin];
+			final long [] lBefore = (nFrameFrom > nFrameMin) ? lHistogram[nCh][nFrameFrom - 1 - nFrameMin] : null;
+			for(int t = 0; t < nLTSlices; t++)
+			{
+				data.lPhotCumHistogram[nCh][t] = lTo[t] - ((lBefore == null) ? 0 : lBefore[t]);
+			}
+		}
+		return data;
+	}
+
+	/** out = sums of frames nFrom..nTo **/
+	void difference(final int [][] nPrefix, final int nFrom, final int nTo, final float [] out)
+	{
+		final int [] nEnd = nPrefix[nTo - nFrameMin];
+		if(nFrom == nFrameMin)
+		{
+			for(int i = 0; i < out.length; i++)
+			{
+				out[i] = nEnd[i];
+			}
+			return;
+		}
+		final int [] nStart = nPrefix[nFrom - 1 - nFrameMin];
+		for(int i = 0; i < out.length; i++)
+		{
+			//int subtraction is exact even if the prefix wrapped around
+			out[i] = nEnd[i] - nStart[i];
+		}
+	}
+
+	/** approximate memory occupied by the sums (in bytes) **/
+	public long getSizeBytes()
+	{
+		long nBytes = 0;
+		for(int nCh = 0; nCh < 4; nCh++)
+		{
+			if(bChannels[nCh])
+			{
+				nBytes += (nFrameMax - nFrameMin + 1) * (2L * 4L * nPixX * nPixY + 8L * nLTSlices);
+			}
+		}
+		return nBytes;
+	}
+
+	/** memory needed for the sums of the decoding with the parameters (in bytes) **/
+	public static long getSizeBytes(final PtuHeader header, final PtuIndex index, final DecodeParameters params)
+	{
+		int nChannels = 0;
+		for(int nCh = 0; nCh < 4; nCh++)
+		{
+			if(index.bChannels[nCh] && params.filter.bChannels[nCh])
+				nChannels++;
+		}
+		final long nPixTotal = (long)params.filter.getWidth(header.nPixX) * params.filter.getHeight(header.nPixY);
+		return nChannels * (long)(params.nFrameMax - params.nFrameMin + 1) * (2L * 4L * nPixTotal + 8L * (index.dtimemax + 1));
+	}
+}
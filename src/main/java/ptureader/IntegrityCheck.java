@@ -0,0 +1,308 @@
+package ptureader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Validation of the records (for crashed acquisitions): the number of records
+ * declared in the header is compared with the file length, then the records
+ * are scanned in parallel chunks (each with its own reader) for states
+ * that cannot appear in a correct file:
+ * photon channel outside of the range of the reader or special record
+ * that does not exist in the format, global time going back without overflow,
+ * line start marker inside of a line or line stop outside of it.
+ * Valid part of the file is the prefix before the first detected damage,
+ * it is loaded from a view of the file limited to nValidRecords (see PtuFile.limit).
+ * Compressed files are scanned in one chunk. **/
+public class IntegrityCheck
+{
+	/** records per chunk of the parallel scan **/
+	final static long CHUNK_RECORDS = 1L << 22;
+
+	/** number of damaged records described in the report **/
+	final static int MAX_DESCRIBED = 10;
+
+	/** problem types **/
+	public final static int BAD_CHANNEL = 0;
+
+	public final static int TIME_BACK = 1;
+
+	public final static int LINE_MARKER = 2;
+
+	final static String [] sProblems = new String [] {"channel out of range", "time going back", "line marker out of order"};
+
+	/** line state of the scan **/
+	final static int LINE_UNKNOWN = 0;
+
+	final static int LINE_INSIDE = 1;
+
+	final static int LINE_OUTSIDE = 2;
+
+	/** number of records declared in the header **/
+	public final long nHeaderRecords;
+
+	/** number of complete records in the file (-1 if unknown, compressed file) **/
+	public final long nFileRecords;
+
+	/** bytes after the last complete record **/
+	public final long nTrailingBytes;
+
+	/** number of records scanned (all records present, unless cancelled) **/
+	public long nScannedRecords = 0;
+
+	/** records before the first detected damage **/
+	public long nValidRecords;
+
+	/** number of damaged records per problem type **/
+	public final long [] nProblems = new long[sProblems.length];
+
+	/** descriptions of the first damaged records (by record index) **/
+	final TreeMap<Long, String> described = new TreeMap<>();
+
+	IntegrityCheck(final PtuHeader header, final long nFileRecords, final long nTrailingBytes)
+	{
+		this.nHeaderRecords = header.nHeaderRecords;
+		this.nFileRecords = nFileRecords;
+		this.nTrailingBytes = nTrailingBytes;
+	}
+
+	/** checks the length and scans all records of the file on nThreads workers **/
+	public static IntegrityCheck scan(final PtuFile ptuFile, final int nThreads, final ProgressListener progress) throws IOException
+	{
+		final PtuHeader header = ptuFile.header;
+		long nFileRecords = -1;
+		long nTrailingBytes = 0;
+		if(ptuFile.fc != null)
+		{
+			final long nDataBytes = Math.max(0, ptuFile.fc.size() - header.dataPosition);
+			nFileRecords = nDataBytes / PtuFile.RECORD_BYTES;
+			nTrailingBytes = nDataBytes % PtuFile.RECORD_BYTES;
+		}
+		final IntegrityCheck check = new IntegrityCheck(header, nFileRecords, nTrailingBytes);
+		//records after the declared ones are checked too (header could be not updated)
+		final long nRecords = (nFileRecords >= 0) ? nFileRecords : header.nRecords;
+		final long nChunk = (ptuFile.sCompression != null) ? Math.max(1, nRecords) : CHUNK_RECORDS;
+		final int nChunks = (int) ((nRecords + nChunk - 1) / nChunk);
+		//chunks report the records of each block, they are summed here
+		final AtomicLong nDone = new AtomicLong();
+		final ProgressListener total = new ProgressListener()
+		{
+			@Override
+			public void progress(final long nRecordsDone, final long nRecordsTotal)
+			{
+				if(progress != null)
+					progress.progress(nDone.addAndGet(nRecordsDone), Math.max(1, nRecords));
+			}
+
+			@Override
+			public boolean isCancelled()
+			{
+				return progress != null && progress.isCancelled();
+			}
+		};
+		final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(nThreads, nChunks)));
+		final ArrayList<Future<IntegrityCheck>> futures = new ArrayList<>();
+		for(int i = 0; i < nChunks; i++)
+		{
+			final long nFrom = i * nChunk;
+			final long nTo = Math.min(nRecords, nFrom + nChunk);
+			futures.add(executor.submit(() -> scanChunk(ptuFile, nFrom, nTo, total)));
+		}
+		//threads are not interrupted (it would close the file channel)
+		executor.shutdown();
+		Throwable failure = null;
+		long nFirstDamage = -1;
+		for(final Future<IntegrityCheck> future : futures)
+		{
+			try
+			{
+				final IntegrityCheck chunk = future.get();
+				check.nScannedRecords += chunk.nScannedRecords;
+				for(int nType = 0; nType < sProblems.length; nType++)
+				{
+					check.nProblems[nType] += chunk.nProblems[nType];
+				}
+				for(final Map.Entry<Long, String> entry : chunk.described.entrySet())
+				{
+					if(check.described.size() < MAX_DESCRIBED)
+						check.described.put(entry.getKey(), entry.getValue());
+				}
+				if(nFirstDamage < 0 && !chunk.described.isEmpty())
+				{
+					nFirstDamage = chunk.described.firstKey();
+				}
+			}
+			catch (ExecutionException e)
+			{
+				if(failure == null)
+					failure = e.getCause();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				failure = new CancellationException("Check of records is interrupted.");
+			}
+		}
+		if(failure instanceof IOException)
+			throw (IOException) failure;
+		if(failure instanceof RuntimeException)
+			throw (RuntimeException) failure;
+		if(failure instanceof Error)
+			throw (Error) failure;
+		if(progress != null)
+			progress.progress(nRecords, nRecords);
+		check.nValidRecords = (nFirstDamage >= 0) ? nFirstDamage : check.nScannedRecords;
+		return check;
+	}
+
+	/** scans records from nFrom to nTo (exclusive), the result contains
+	 * the counts and the first damaged records of the chunk **/
+	static IntegrityCheck scanChunk(final PtuFile ptuFile, final long nFrom, final long nTo, final ProgressListener progress) throws IOException
+	{
+		final PtuHeader header = ptuFile.header;
+		final IntegrityCheck chunk = new IntegrityCheck(header, -1, 0);
+		final boolean bCheckChannels = !header.isT2;
+		final boolean bCheckLines = header.isImage() && header.nLineStart != header.nLineStop;
+		final int nFormat = RecordBlock.getFormat(header.nRecordType);
+		final RecordBlock block = ptuFile.pool.getBlock();
+		try (RecordReader rr = ptuFile.newReader(block))
+		{
+			rr.seekRecord(nFrom);
+			/** global time of the previous record, time within the chunk starts from zero **/
+			long nPrevSync = -1;
+			int nLineState = LINE_UNKNOWN;
+			boolean isPhoton;
+			int nBlock;
+			for(long n = nFrom; n < nTo; n += nBlock)
+			{
+				PtuFile.checkCancelled(progress);
+				nBlock = rr.readBlock(nTo - n);
+				if(nBlock == 0)
+					break;
+				for(int i = 0; i < nBlock; i++)
+				{
+					final long nOverflows = rr.nOverflows;
+					isPhoton = rr.readRecord(i);
+					final boolean bOverflow = rr.nOverflows != nOverflows;
+					int nProblem = -1;
+					if(isPhoton)
+					{
+						//the reader has 4 channels (starting from 1)
+						if(bCheckChannels && (rr.chan < 1 || rr.chan > 4))
+							nProblem = BAD_CHANNEL;
+					}
+					else if(!bOverflow && (nFormat == RecordBlock.FORMAT_HT3 || nFormat == RecordBlock.FORMAT_HT2) && rr.chan > 15)
+					{
+						//special records are markers 1-15 and overflow 63 only
+						nProblem = BAD_CHANNEL;
+					}
+					if(bOverflow)
+					{
+						nPrevSync = rr.ofltime;
+					}
+					else
+					{
+						final long nSync = rr.ofltime + rr.nsync;
+						if(nSync < nPrevSync && nProblem < 0)
+							nProblem = TIME_BACK;
+						nPrevSync = nSync;
+						if(!isPhoton && bCheckLines && nProblem < 0)
+						{
+							if(rr.markers == header.nLineStart)
+							{
+								if(nLineState == LINE_INSIDE)
+									nProblem = LINE_MARKER;
+								nLineState = LINE_INSIDE;
+							}
+							else if(rr.markers == header.nLineStop)
+							{
+								if(nLineState == LINE_OUTSIDE)
+									nProblem = LINE_MARKER;
+								nLineState = LINE_OUTSIDE;
+							}
+						}
+					}
+					if(nProblem >= 0)
+					{
+						chunk.nProblems[nProblem]++;
+						if(chunk.described.size() < MAX_DESCRIBED)
+						{
+							chunk.described.put(n + i, "record " + Long.toString(n + i) + ": " + sProblems[nProblem]);
+						}
+					}
+				}
+				chunk.nScannedRecords += nBlock;
+				progress.progress(nBlock, nTo);
+			}
+		}
+		finally
+		{
+			ptuFile.pool.release(block);
+		}
+		return chunk;
+	}
+
+	/** whether the file is truncated or contains damaged records **/
+	public boolean isDamaged()
+	{
+		return nValidRecords < nHeaderRecords || getProblemCount() > 0;
+	}
+
+	/** total number of damaged records **/
+	public long getProblemCount()
+	{
+		long nTotal = 0;
+		for(final long n : nProblems)
+			nTotal += n;
+		return nTotal;
+	}
+
+	/** description of the check for the log **/
+	public String getReport()
+	{
+		final StringBuilder sb = new StringBuilder();
+		sb.append("Records in the header: ").append(nHeaderRecords);
+		if(nFileRecords >= 0)
+		{
+			sb.append(", in the file: ").append(nFileRecords);
+			if(nTrailingBytes > 0)
+			{
+				sb.append(" (and ").append(nTrailingBytes).append(" bytes of incomplete record)");
+			}
+		}
+		sb.append(", scanned: ").append(nScannedRecords).append("\n");
+		if(nFileRecords >= 0 && nFileRecords < nHeaderRecords)
+		{
+			sb.append("File is truncated, ").append(nHeaderRecords - nFileRecords).append(" records are missing.\n");
+		}
+		if(getProblemCount() == 0)
+		{
+			sb.append("No damaged records found.\n");
+		}
+		else
+		{
+			sb.append("Damaged records: ").append(getProblemCount()).append(" (");
+			for(int nType = 0; nType < sProblems.length; nType++)
+			{
+				sb.append(sProblems[nType]).append(" ").append(nProblems[nType]).append((nType < sProblems.length - 1) ? ", " : ")\n");
+			}
+			for(final String s : described.values())
+			{
+				sb.append("  ").append(s).append("\n");
+			}
+		}
+		if(isDamaged() || nValidRecords != nHeaderRecords)
+		{
+			sb.append("Valid records: ").append(nValidRecords).append(" (")
+				.append(String.format("%.1f", 100.0 * nValidRecords / Math.max(1, nHeaderRecords))).append("% of the header).");
+		}
+		return sb.toString().trim();
+	}
+}
@@ -0,0 +1,66 @@
+package ptureader;
+
+import java.nio.IntBuffer;
+
+/** Records source over the (memory mapped) buffers,
+ * records are split into segments of equal size (except the last one),
+ * since one buffer cannot hold more than 2^31 elements **/
+public class MappedRecordSource implements RecordSource
+{
+	/** little endian views of the records segments (own copies) **/
+	final IntBuffer [] segments;
+	
+	/** number of records in one segment **/
+	final int nSegmentRecords;
+	
+	/** current segment index **/
+	int nSegment = 0;
+	
+	public MappedRecordSource(final IntBuffer [] segments, final int nSegmentRecords)
+	{
+		this.segments = new IntBuffer[segments.length];
+		for(int i = 0; i < segments.length; i++)
+		{
+			this.segments[i] = segments[i].duplicate();
+		}
+		this.nSegmentRecords = nSegmentRecords;
+	}
+
+	@Override
+	public int read(final int [] dst, final int nMax)
+	{
+		int nRead = 0;
+		while(nRead < nMax && nSegment < segments.length)
+		{
+			final IntBuffer records = segments[nSegment];
+			final int n = Math.min(nMax - nRead, records.remaining());
+			records.get(dst, nRead, n);
+			nRead += n;
+			if(!records.hasRemaining())
+			{
+				nSegment++;
+				if(nSegment < segments.length)
+				{
+					segments[nSegment].position(0);
+				}
+			}
+		}
+		return nRead;
+	}
+
+	@Override
+	public void seek(final long nRecord)
+	{
+		if(segments.length == 0)
+			return;
+		nSegment = (int) Math.min(nRecord / nSegmentRecords, segments.length - 1);
+		final IntBuffer records = segments[nSegment];
+		records.position((int) Math.min(nRecord - (long)nSegment * nSegmentRecords, records.limit()));
+	}
+
+	@Override
+	public void close()
+	{
+		//nothing to release, mapping belongs to the file
+	}
+}
@@ -0,0 +1,158 @@
+package ptureader;
+
+/** Chooses how each requested output is stored, based on the size estimates
+ * and available memory. Made after header analysis and load dialog,
+ * but before decoding.
+ * Intensity/FastLifetime images are dense or skipped,
+ * lifetime stack is dense (8, 16 or 32-bit counter per pixel and slice), sparse
+ * (photon index with slices computed on demand, see PhotonStack)
+ * or skipped. **/
+public class MemoryPlan
+{
+	/** output is stored as arrays in memory **/
+	public final static int DENSE = 0;
+
+	/** output is computed on demand from the photon index **/
+	public final static int SPARSE = 1;
+
+	/** output is not loaded (not requested or does not fit) **/
+	public final static int NONE = 2;
+
+	final static String [] sRepresentation = new String [] {"in memory", "on demand from photon index", "not loaded"};
+
+	/** approximate bytes per photon while building the photon index
+	 * (temporary pixel, dtime and frame arrays plus the final index) **/
+	final static int PHOTON_INDEX_BYTES = 16;
+
+	/** storage of intensity and FastLifetime images **/
+	public int nIntAverLT = NONE;
+
+	/** storage of the lifetime stack **/
+	public int nLTStack = NONE;
+
+	/** width of the dense lifetime stack counters **/
+	public int nLTCounterBits = 8;
+
+	/** estimated size of intensity and FastLifetime images (with histograms) **/
+	public long nIntAverLTBytes = 0;
+
+	/** estimated size of the dense lifetime stack **/
+	public long nLTDenseBytes = 0;
+
+	/** estimated size of the photon index (upper bound) **/
+	public long nLTSparseBytes = 0;
+
+	/** memory available for the outputs **/
+	public long nAvailableBytes = 0;
+
+	/** whether any of requested outputs is skipped **/
+	public boolean bDropped = false;
+
+	/** makes the plan within the budget (if nBudgetBytes >= 0)
+	 * and currently free heap **/
+	public static MemoryPlan create(final PtuHeader header, final PtuIndex index, final DecodeParameters params, final long nBudgetBytes)
+	{
+		final MemoryPlan plan = new MemoryPlan();
+		final Runtime runtime = Runtime.getRuntime();
+		plan.nAvailableBytes = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+		if(nBudgetBytes >= 0)
+		{
+			plan.nAvailableBytes = Math.min(plan.nAvailableBytes, nBudgetBytes);
+		}
+
+		int nChannels = 0;
+		for(int nCh = 0; nCh < 4; nCh++)
+		{
+			if(index.bChannels[nCh] && params.filter.bChannels[nCh])
+				nChannels++;
+		}
+		final long nPixTotal = (long)params.filter.getWidth(header.nPixX) * params.filter.getHeight(header.nPixY);
+		final long nBins = params.getTotalBins();
+		final long nLTSlices = index.dtimemax + 1;
+
+		plan.nIntAverLTBytes = nChannels * (2L * 4L * nPixTotal * nBins + 8L * nLTSlices);
+		plan.nLTCounterBits = DecayAccumulator.getCounterBits(header, index, params);
+		plan.nLTDenseBytes = nChannels * nPixTotal * nLTSlices * (params.nLTload == 0 ? 1 : nBins) * (plan.nLTCounterBits / 8);
+		//all records in the frame range can be photons
+		final long nPhotons = (long)Math.ceil((double)header.nRecords * (params.nFrameMax - params.nFrameMin + 1) / Math.max(1, index.nTotFrames));
+		plan.nLTSparseBytes = nPhotons * PHOTON_INDEX_BYTES + nChannels * 4L * (nPixTotal + 1);
+
+		long nFree = plan.nAvailableBytes;
+		if(params.bLoadIntAverLTImages)
+		{
+			if(plan.nIntAverLTBytes <= nFree)
+			{
+				plan.nIntAverLT = DENSE;
+				nFree -= plan.nIntAverLTBytes;
+			}
+			else
+			{
+				plan.bDropped = true;
+			}
+		}
+		if(params.bLoadLTOrderedStacks)
+		{
+			//narrower (saturating) counters before the photon index
+			while(plan.nLTDenseBytes > nFree && plan.nLTCounterBits > 8)
+			{
+				plan.nLTDenseBytes /= 2;
+				plan.nLTCounterBits /= 2;
+			}
+			if(plan.nLTDenseBytes <= nFree)
+			{
+				plan.nLTStack = DENSE;
+			}
+			else if(plan.nLTSparseBytes <= nFree)
+			{
+				plan.nLTStack = SPARSE;
+			}
+			else
+			{
+				plan.bDropped = true;
+			}
+		}
+		return plan;
+	}
+
+	/** whether all requested outputs are stored in memory as usual **/
+	public boolean isDense(final DecodeParameters params)
+	{
+		return (!params.bLoadIntAverLTImages || nIntAverLT == DENSE)
+				&& (!params.bLoadLTOrderedStacks || nLTStack == DENSE);
+	}
+
+	/** parameters of decoding to the dense accumulators (FlimData) **/
+	public DecodeParameters getDecodeParameters(final DecodeParameters params)
+	{
+		final DecodeParameters out = params.copy();
+		out.bLoadIntAverLTImages = (nIntAverLT == DENSE);
+		out.bLoadLTOrderedStacks = (nLTStack == DENSE);
+		out.nLTCounterBits = nLTCounterBits;
+		return out;
+	}
+
+	/** description of the plan for the user **/
+	public String getReport(final DecodeParameters params)
+	{
+		final StringBuilder sb = new StringBuilder();
+		sb.append("Memory available: ").append(toMB(nAvailableBytes)).append(" MB\n");
+		if(params.bLoadIntAverLTImages)
+		{
+			sb.append("Intensity and FastLifetime (").append(toMB(nIntAverLTBytes)).append(" MB): ")
+				.append(sRepresentation[nIntAverLT]).append("\n");
+		}
+		if(params.bLoadLTOrderedStacks)
+		{
+			sb.append("Lifetime stack (").append(toMB(nLTDenseBytes)).append(" MB with ").append(nLTCounterBits)
+				.append("-bit counters, photon index up to ")
+				.append(toMB(nLTSparseBytes)).append(" MB): ")
+				.append(sRepresentation[nLTStack]).append("\n");
+		}
+		return sb.toString();
+	}
+
+	static long toMB(final long nBytes)
+	{
+		return (nBytes + (1 << 20) - 1) >> 20;
+	}
+}
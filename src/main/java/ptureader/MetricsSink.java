@@ -0,0 +1,8 @@
+package ptureader;
+
+/** Receives counts of each finished pass over records (see DecoderMetrics.addSink),
+ * for forwarding them to a monitoring system. Called on the reading thread. **/
+public interface MetricsSink
+{
+	void phaseFinished(PhaseMetrics phase);
+}
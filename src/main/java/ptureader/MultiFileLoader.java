@@ -0,0 +1,388 @@
+package ptureader;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+
+/** Loads a set of compatible ptu files (tiles of a mosaic or time points)
+ * into one Intensity and FastLifetime output: tiles are placed on a grid
+ * (row by row, each tile joins all its frames), time points are concatenated
+ * (each file gives one slice or its bins of nTimeBin frames).
+ * Files are analyzed and decoded in parallel by nThreads workers, each worker
+ * keeps the accumulators of one file only, FastLifetime is computed per file
+ * (with its own IRF estimate) and the result is copied to the output
+ * as soon as the file is decoded. **/
+public class MultiFileLoader
+{
+	/** output modes **/
+	public final static int TILES = 0;
+
+	public final static int TIME_SERIES = 1;
+
+	public final List<Path> files;
+
+	public final PtuHeader [] headers;
+
+	public final PtuIndex [] indices;
+
+	/** one of TILES or TIME_SERIES **/
+	public int nMode = TILES;
+
+	/** number of tiles in a row **/
+	public int nColumns = 1;
+
+	/** bin size (frames) of time series, 0 joins all frames of each file **/
+	public int nTimeBin = 0;
+
+	public boolean bRemoveNegativeLT = false;
+
+	/** first output bin of each file (time series) **/
+	int [] nFirstBin;
+
+	/** output, allocated by allocate() **/
+	public FlimData output = null;
+
+	final Consumer<String> log;
+
+	/** reads headers of the files and checks that they can be put together
+	 * (same image size, pixel size, TCSPC resolution and record type) **/
+	public MultiFileLoader(final List<Path> files, final Consumer<String> log) throws IOException
+	{
+		if(files.isEmpty())
+		{
+			throw new IOException("No files to load.");
+		}
+		this.files = files;
+		this.log = log;
+		headers = new PtuHeader[files.size()];
+		indices = new PtuIndex[files.size()];
+		final StringBuilder sErrors = new StringBuilder();
+		for(int nFile = 0; nFile < files.size(); nFile++)
+		{
+			final DecodeCache.FileKey fileKey = DecodeCache.FileKey.of(files.get(nFile));
+			final DecodeCache.FileInfo info = DecodeCache.getInstance().getInfo(fileKey);
+			if(info != null)
+			{
+				headers[nFile] = info.header;
+				indices[nFile] = info.index;
+			}
+			else
+			{
+				try (PtuFile ptuFile = PtuFile.open(files.get(nFile), s -> {}))
+				{
+					headers[nFile] = ptuFile.header;
+				}
+				catch (IOException | RuntimeException e)
+				{
+					sErrors.append(files.get(nFile).getFileName()).append(": unable to read header (").append(e).append(")\n");
+					continue;
+				}
+			}
+			final String sProblem = getIncompatibility(headers[0], headers[nFile]);
+			if(sProblem != null)
+			{
+				sErrors.append(files.get(nFile).getFileName()).append(": ").append(sProblem).append("\n");
+			}
+		}
+		if(sErrors.length() > 0)
+		{
+			throw new IOException("Files cannot be loaded together with " + files.get(0).getFileName() + ":\n" + sErrors);
+		}
+	}
+
+	/** returns description of the difference or null if the files can be put together **/
+	static String getIncompatibility(final PtuHeader first, final PtuHeader header)
+	{
+		if(first == null)
+			return "header of the first file cannot be read";
+		if(!header.isImage() || header.isT2)
+			return "not a FLIM image (T3) file";
+		if(header.nPixX != first.nPixX || header.nPixY != first.nPixY)
+			return "image size " + header.nPixX + "x" + header.nPixY + " instead of " + first.nPixX + "x" + first.nPixY;
+		if(header.dPixSize != first.dPixSize)
+			return "pixel size " + header.dPixSize + " instead of " + first.dPixSize;
+		if(header.fTimeResolution != first.fTimeResolution)
+			return "TCSPC resolution " + header.fTimeResolution + " instead of " + first.fTimeResolution;
+		if(header.nRecordType != first.nRecordType)
+			return "different record type";
+		return null;
+	}
+
+	/** files of the folder matching the glob pattern (e.g. "tile_*.ptu"), sorted by name **/
+	public static List<Path> listFiles(final Path folder, final String sPattern) throws IOException
+	{
+		final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + sPattern);
+		final ArrayList<Path> out = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder))
+		{
+			for(final Path file : stream)
+			{
+				final String sExt = PtuFile.getExtension(file);
+				if(Files.isRegularFile(file) && matcher.matches(file.getFileName()) && (sExt.equals("ptu") || sExt.equals("pt3")))
+				{
+					out.add(file);
+				}
+			}
+		}
+		Collections.sort(out);
+		return out;
+	}
+
+	/** analyzes files without cached index (in parallel) **/
+	public void analyze(final int nThreads, final ProgressListener progress) throws IOException
+	{
+		final MultiProgress total = new MultiProgress(progress, files.size(), nFile -> indices[nFile] == null);
+		runParallel(nThreads, total, nFile -> {
+			if(indices[nFile] != null)
+				return;
+			try (PtuFile ptuFile = PtuFile.open(files.get(nFile), log))
+			{
+				indices[nFile] = ptuFile.analyze(total.forFile(nFile));
+			}
+			DecodeCache.getInstance().putInfo(DecodeCache.FileKey.of(files.get(nFile)), headers[nFile], indices[nFile]);
+		});
+	}
+
+	/** decoding parameters of the file **/
+	DecodeParameters getParameters(final int nFile)
+	{
+		final DecodeParameters params = new DecodeParameters();
+		params.bLoadLTOrderedStacks = false;
+		params.nLTload = 1;
+		params.nTimeBin = (nMode == TIME_SERIES && nTimeBin > 0) ? nTimeBin : Integer.MAX_VALUE;
+		params.bRemoveNegativeLT = bRemoveNegativeLT;
+		params.validate(indices[nFile].nTotFrames);
+		params.nTimeBin = Math.min(params.nTimeBin, params.nFrameMax - params.nFrameMin + 1);
+		return params;
+	}
+
+	/** allocates the output (files should be analyzed) **/
+	public FlimData allocate()
+	{
+		final PtuHeader header = headers[0];
+		final boolean [] bChannels = new boolean[4];
+		int nLTSlices = 0;
+		nFirstBin = new int[files.size() + 1];
+		for(int nFile = 0; nFile < files.size(); nFile++)
+		{
+			for(int nCh = 0; nCh < 4; nCh++)
+			{
+				bChannels[nCh] |= indices[nFile].bChannels[nCh];
+			}
+			nLTSlices = Math.max(nLTSlices, indices[nFile].dtimemax + 1);
+			nFirstBin[nFile + 1] = nFirstBin[nFile] + ((nMode == TIME_SERIES) ? getParameters(nFile).getTotalBins() : 0);
+		}
+		if(nMode == TILES)
+		{
+			final int nRows = (files.size() + nColumns - 1) / nColumns;
+			output = new FlimData(header.nPixX * nColumns, header.nPixY * nRows, nLTSlices, bChannels, 1);
+		}
+		else
+		{
+			output = new FlimData(header.nPixX, header.nPixY, nLTSlices, bChannels, nFirstBin[files.size()]);
+		}
+		output.bLifetimeComputed = true;
+		return output;
+	}
+
+	/** decodes all files in parallel and places them to the output,
+	 * fileDone is called (on the worker thread) after each file is placed **/
+	public void decode(final int nThreads, final IntConsumer fileDone, final ProgressListener progress) throws IOException
+	{
+		final MultiProgress total = new MultiProgress(progress, files.size(), nFile -> true);
+		runParallel(nThreads, total, nFile -> {
+			final DecodeParameters params = getParameters(nFile);
+			final BufferPool pool = new BufferPool();
+			try (PtuFile ptuFile = PtuFile.open(files.get(nFile), s -> {}, pool))
+			{
+				final FlimData data = new FlimData(headers[nFile], indices[nFile], params, pool, s -> {});
+				try
+				{
+					ptuFile.decode(indices[nFile], params, data, total.forFile(nFile));
+					data.computeFastLifetime(headers[nFile].fTimeResolution, bRemoveNegativeLT, log);
+					place(nFile, data);
+				}
+				finally
+				{
+					data.release(pool);
+				}
+			}
+			if(fileDone != null)
+			{
+				fileDone.accept(nFile);
+			}
+		});
+	}
+
+	/** copies intensity and lifetime of the file to its place in the output **/
+	void place(final int nFile, final FlimData data)
+	{
+		final int nX0 = (nMode == TILES) ? (nFile % nColumns) * data.nPixX : 0;
+		final int nY0 = (nMode == TILES) ? (nFile / nColumns) * data.nPixY : 0;
+		for(int nCh = 0; nCh < 4; nCh++)
+		{
+			if(!data.bChannels[nCh])
+				continue;
+			for(int nBin = 0; nBin < data.nTotalBins; nBin++)
+			{
+				final int nOutBin = (nMode == TILES) ? 0 : nFirstBin[nFile] + nBin;
+				for(int y = 0; y < data.nPixY; y++)
+				{
+					final int nOut = (nY0 + y) * output.nPixX + nX0;
+					System.arraycopy(data.fIntensity[nCh][nBin], y * data.nPixX, output.fIntensity[nCh][nOutBin], nOut, data.nPixX);
+					System.arraycopy(data.fLifetime[nCh][nBin], y * data.nPixX, output.fLifetime[nCh][nOutBin], nOut, data.nPixX);
+				}
+			}
+			for(int t = 0; t < data.nLTSlices; t++)
+			{
+				synchronized(output)
+				{
+					output.lPhotCumHistogram[nCh][t] += data.lPhotCumHistogram[nCh][t];
+				}
+			}
+		}
+	}
+
+	interface FileTask
+	{
+		void run(int nFile) throws IOException;
+	}
+
+	/** runs the task for all files on nThreads workers, the first failure
+	 * stops the other files (through the progress) and is thrown **/
+	void runParallel(final int nThreads, final MultiProgress total, final FileTask task) throws IOException
+	{
+		final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(nThreads, files.size())));
+		final ArrayList<Future<?>> futures = new ArrayList<>();
+		for(int nFile = 0; nFile < files.size(); nFile++)
+		{
+			final int nTaskFile = nFile;
+			futures.add(executor.submit(() -> {
+				PtuFile.checkCancelled(total);
+				try
+				{
+					task.run(nTaskFile);
+				}
+				//the other files are stopped at once, not when the failure is collected
+				catch (IOException e)
+				{
+					total.bFailed = true;
+					throw new IOException(files.get(nTaskFile).getFileName() + ": " + e.getMessage(), e);
+				}
+				catch (RuntimeException | Error e)
+				{
+					if(!(e instanceof CancellationException))
+						total.bFailed = true;
+					throw e;
+				}
+				return null;
+			}));
+		}
+		//threads are not interrupted (it would close the file channels),
+		//the remaining files are stopped through the progress
+		executor.shutdown();
+		Throwable failure = null;
+		for(final Future<?> future : futures)
+		{
+			try
+			{
+				future.get();
+			}
+			catch (ExecutionException e)
+			{
+				if(failure == null || failure instanceof CancellationException)
+				{
+					failure = e.getCause();
+				}
+				total.bFailed = true;
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				total.bFailed = true;
+				failure = new CancellationException("Loading is interrupted.");
+			}
+		}
+		if(failure instanceof IOException)
+			throw (IOException) failure;
+		if(failure instanceof RuntimeException)
+			throw (RuntimeException) failure;
+		if(failure instanceof Error)
+			throw (Error) failure;
+	}
+
+	/** sums progress of the files (in records), cancels all of them
+	 * if the main progress is cancelled or a file fails **/
+	class MultiProgress implements ProgressListener
+	{
+		final ProgressListener progress;
+
+		final AtomicLong nDone = new AtomicLong();
+
+		final long nTotal;
+
+		volatile boolean bFailed = false;
+
+		MultiProgress(final ProgressListener progress, final int nFiles, final IntPredicate counted)
+		{
+			this.progress = progress;
+			long nRecords = 0;
+			for(int nFile = 0; nFile < nFiles; nFile++)
+			{
+				if(counted.test(nFile))
+					nRecords += headers[nFile].nRecords;
+			}
+			nTotal = Math.max(1, nRecords);
+		}
+
+		/** listener of one file, reports its increments **/
+		ProgressListener forFile(final int nFile)
+		{
+			return new ProgressListener()
+			{
+				long nFileDone = 0;
+
+				@Override
+				public void progress(final long nRecordsDone, final long nFileTotal)
+				{
+					MultiProgress.this.progress(nDone.addAndGet(nRecordsDone - nFileDone), nTotal);
+					nFileDone = nRecordsDone;
+				}
+
+				@Override
+				public boolean isCancelled()
+				{
+					return MultiProgress.this.isCancelled();
+				}
+			};
+		}
+
+		@Override
+		public void progress(final long nRecordsDone, final long nRecordsTotal)
+		{
+			if(progress != null)
+				progress.progress(nRecordsDone, nRecordsTotal);
+		}
+
+		@Override
+		public boolean isCancelled()
+		{
+			return bFailed || (progress != null && progress.isCancelled());
+		}
+	}
+}
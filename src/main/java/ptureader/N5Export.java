@@ -0,0 +1,324 @@
+package ptureader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/** Exports lifetime ordered stack (x, y, microtime, frame bin, channel)
+ * to N5 container on the local disk (uint8, raw or gzip blocks),
+ * with multiscale levels (s0, s1, ... downsampled by 2 in x and y)
+ * described by N5 Viewer attributes.
+ * Blocks of frame bins are written by the pool of threads
+ * as soon as the bins are decoded (see BinListener),
+ * so writing runs in parallel with decoding.
+ * Errors of writing are reported by finish(). **/
+public class N5Export implements BinListener
+{
+	/** N5 format version written to the root attributes **/
+	final static String N5_VERSION = "2.5.0";
+
+	/** name of the multiscale group inside the container **/
+	public final static String DATASET = "lifetime";
+
+	/** number of dimensions: x, y, microtime, frame bin, channel **/
+	final static int N_DIM = 5;
+
+	/** root folder of N5 container **/
+	final Path root;
+
+	/** block size per dimension (x, y, microtime, frame bin, channel) **/
+	final int [] blockSize;
+
+	/** number of resolution levels (1 = only full resolution) **/
+	final int nScales;
+
+	/** gzip compression (otherwise raw) **/
+	final boolean bGzip;
+
+	/** full resolution size per dimension **/
+	final long [] dimensions = new long[N_DIM];
+
+	/** channels present in data (zero based), in the order of channel dimension **/
+	final int [] channels;
+
+	final ExecutorService writers;
+
+	/** pending block writing tasks **/
+	final ArrayList<Future<?>> pending = new ArrayList<>();
+
+	/** creates container and writes its metadata.
+	 * blockSize contains block size for x, y, microtime, frame bin and channel
+	 * (values are limited by the data size).**/
+	public N5Export(final Path root, final PtuHeader header, final FlimData data, final int [] blockSize, final int nScales, final boolean bGzip, final int nThreads) throws IOException
+	{
+		if(!data.bLTStack)
+		{
+			throw new IOException("Lifetime stack is not loaded, nothing to export.");
+		}
+		this.root = root;
+		this.nScales = Math.max(1, nScales);
+		this.bGzip = bGzip;
+		int nChannels = 0;
+		for(int nCh = 0; nCh < 4; nCh++)
+		{
+			if(data.bChannels[nCh])
+				nChannels++;
+		}
+		channels = new int[nChannels];
+		nChannels = 0;
+		for(int nCh = 0; nCh < 4; nCh++)
+		{
+			if(data.bChannels[nCh])
+				channels[nChannels++] = nCh;
+		}
+		dimensions[0] = data.nPixX;
+		dimensions[1] = data.nPixY;
+		dimensions[2] = data.nLTSlices;
+		dimensions[3] = (data.nLTload == 0) ? 1 : data.nTotalBins;
+		dimensions[4] = channels.length;
+		this.blockSize = new int[N_DIM];
+		for(int d = 0; d < N_DIM; d++)
+		{
+			this.blockSize[d] = (int) Math.max(1, Math.min(blockSize[d], dimensions[d]));
+		}
+		writeMetadata(header);
+		writers = Executors.newFixedThreadPool(Math.max(1, nThreads), r -> {
+			final Thread t = new Thread(r, "N5 export writer");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/** writes attributes of the container, of the multiscale group and of each level **/
+	void writeMetadata(final PtuHeader header) throws IOException
+	{
+		Files.createDirectories(root);
+		writeText(root.resolve("attributes.json"), "{\"n5\":\"" + N5_VERSION + "\"}");
+
+		final String sResolution = "\"pixelResolution\":{\"unit\":\"um\",\"dimensions\":["
+				+ header.dPixSize + "," + header.dPixSize + "," + header.fTimeResolution + ",1,1]}";
+		final StringBuilder sScales = new StringBuilder();
+		for(int nScale = 0; nScale < nScales; nScale++)
+		{
+			if(nScale > 0)
+				sScales.append(",");
+			sScales.append(jsonArray(getFactors(nScale)));
+		}
+		final StringBuilder sChannels = new StringBuilder();
+		for(int i = 0; i < channels.length; i++)
+		{
+			if(i > 0)
+				sChannels.append(",");
+			sChannels.append(channels[i] + 1);
+		}
+		final Path group = root.resolve(DATASET);
+		Files.createDirectories(group);
+		writeText(group.resolve("attributes.json"), "{\"multiScale\":true,\"scales\":[" + sScales + "],"
+				+ sResolution + ",\"axes\":[\"x\",\"y\",\"microtime\",\"frame\",\"channel\"],"
+				+ "\"channels\":[" + sChannels + "]}");
+
+		final String sCompression = bGzip ? "{\"type\":\"gzip\",\"level\":-1,\"useZlib\":false}" : "{\"type\":\"raw\"}";
+		for(int nScale = 0; nScale < nScales; nScale++)
+		{
+			final Path dataset = group.resolve("s" + nScale);
+			Files.createDirectories(dataset);
+			writeText(dataset.resolve("attributes.json"), "{\"dimensions\":" + jsonArray(getDimensions(nScale))
+					+ ",\"blockSize\":" + jsonArray(blockSize)
+					+ ",\"dataType\":\"uint8\",\"compression\":" + sCompression
+					+ ",\"downsamplingFactors\":" + jsonArray(getFactors(nScale)) + "," + sResolution + "}");
+		}
+	}
+
+	/** downsampling factors of the level **/
+	static long [] getFactors(final int nScale)
+	{
+		return new long[] {1L << nScale, 1L << nScale, 1, 1, 1};
+	}
+
+	/** size of the level **/
+	long [] getDimensions(final int nScale)
+	{
+		final long [] dims = dimensions.clone();
+		for(int d = 0; d < 2; d++)
+		{
+			dims[d] = (dimensions[d] + (1L << nScale) - 1) >> nScale;
+		}
+		return dims;
+	}
+
+	/** schedules writing of all blocks containing the bin
+	 * (if the bin completes them along frame dimension) **/
+	@Override
+	public void binDecoded(final FlimData data, final int nBin)
+	{
+		if((nBin + 1) % blockSize[3] != 0 && nBin != dimensions[3] - 1)
+			return;
+		final long nGridF = nBin / blockSize[3];
+		for(int nScale = 0; nScale < nScales; nScale++)
+		{
+			final long [] dims = getDimensions(nScale);
+			for(long nGridC = 0; nGridC * blockSize[4] < dims[4]; nGridC++)
+				for(long nGridT = 0; nGridT * blockSize[2] < dims[2]; nGridT++)
+					for(long nGridY = 0; nGridY * blockSize[1] < dims[1]; nGridY++)
+						for(long nGridX = 0; nGridX * blockSize[0] < dims[0]; nGridX++)
+						{
+							final long [] grid = new long[] {nGridX, nGridY, nGridT, nGridF, nGridC};
+							final int nLevel = nScale;
+							pending.add(writers.submit(() -> {
+								writeBlock(data, nLevel, grid);
+								return null;
+							}));
+						}
+		}
+	}
+
+	/** writes one block of the level **/
+	void writeBlock(final FlimData data, final int nScale, final long [] grid) throws IOException
+	{
+		final long [] dims = getDimensions(nScale);
+		final int [] start = new int[N_DIM];
+		final int [] size = new int[N_DIM];
+		for(int d = 0; d < N_DIM; d++)
+		{
+			start[d] = (int) (grid[d] * blockSize[d]);
+			size[d] = (int) Math.min(blockSize[d], dims[d] - start[d]);
+		}
+		final int nFactor = 1 << nScale;
+		//N5 blocks are stored with the first dimension changing fastest
+		final byte [] values = new byte[size[0] * size[1] * size[2] * size[3] * size[4]];
+		int nIndex = 0;
+		for(int c = 0; c < size[4]; c++)
+		{
+			final DecayAccumulator decay = data.ltDecay[channels[start[4] + c]];
+			for(int f = 0; f < size[3]; f++)
+			{
+				final int nBin = (data.nLTload == 0) ? 0 : start[3] + f;
+				//lifetimes of a pixel are next to each other in the accumulator
+				for(int y = 0; y < size[1]; y++)
+				{
+					for(int x = 0; x < size[0]; x++)
+					{
+						for(int t = 0; t < size[2]; t++)
+						{
+							values[nIndex + (t * size[1] + y) * size[0] + x] = average(decay, nBin, start[2] + t, data.nPixX, data.nPixY,
+									(start[0] + x) * nFactor, (start[1] + y) * nFactor, nFactor);
+						}
+					}
+				}
+				nIndex += size[0] * size[1] * size[2];
+			}
+		}
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(values.length / 2 + 64);
+		final DataOutputStream out = new DataOutputStream(bytes);
+		//block header: mode, number of dimensions, block size
+		out.writeShort(0);
+		out.writeShort(N_DIM);
+		for(int d = 0; d < N_DIM; d++)
+		{
+			out.writeInt(size[d]);
+		}
+		if(bGzip)
+		{
+			try (OutputStream gzip = new GZIPOutputStream(out, 1 << 16))
+			{
+				gzip.write(values);
+			}
+		}
+		else
+		{
+			out.write(values);
+		}
+		out.flush();
+
+		Path blockPath = root.resolve(DATASET).resolve("s" + nScale);
+		for(int d = 0; d < N_DIM - 1; d++)
+		{
+			blockPath = blockPath.resolve(Long.toString(grid[d]));
+		}
+		Files.createDirectories(blockPath);
+		Files.write(blockPath.resolve(Long.toString(grid[N_DIM - 1])), bytes.toByteArray());
+	}
+
+	/** average value of nFactor x nFactor pixels (within image) starting at x0, y0 **/
+	static byte average(final DecayAccumulator decay, final int nBin, final int dtime, final int nPixX, final int nPixY, final int x0, final int y0, final int nFactor)
+	{
+		final int x1 = Math.min(x0 + nFactor, nPixX);
+		final int y1 = Math.min(y0 + nFactor, nPixY);
+		long nSum = 0;
+		for(int y = y0; y < y1; y++)
+		{
+			for(int x = x0; x < x1; x++)
+			{
+				nSum += Math.min(decay.get(nBin, y * nPixX + x, dtime), 255);
+			}
+		}
+		final int nCount = (x1 - x0) * (y1 - y0);
+		return (byte) ((nSum + nCount / 2) / nCount);
+	}
+
+	/** waits until all blocks are written and stops the writers **/
+	public void finish() throws IOException
+	{
+		try
+		{
+			for(final Future<?> task : pending)
+			{
+				task.get();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			throw new IOException("Export was interrupted");
+		}
+		catch (ExecutionException e)
+		{
+			final Throwable cause = e.getCause();
+			if(cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException("Export failed: " + cause);
+		}
+		finally
+		{
+			pending.clear();
+			writers.shutdownNow();
+		}
+	}
+
+	static String jsonArray(final long [] values)
+	{
+		final StringBuilder sb = new StringBuilder("[");
+		for(int i = 0; i < values.length; i++)
+		{
+			if(i > 0)
+				sb.append(",");
+			sb.append(values[i]);
+		}
+		return sb.append("]").toString();
+	}
+
+	static String jsonArray(final int [] values)
+	{
+		final long [] lValues = new long[values.length];
+		for(int i = 0; i < values.length; i++)
+		{
+			lValues[i] = values[i];
+		}
+		return jsonArray(lValues);
+	}
+
+	static void writeText(final Path path, final String sText) throws IOException
+	{
+		Files.write(path, sText.getBytes(StandardCharsets.UTF_8));
+	}
+}
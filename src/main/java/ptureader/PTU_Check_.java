@@ -0,0 +1,97 @@
+package ptureader;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CancellationException;
+
+import ij.IJ;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.io.OpenDialog;
+import ij.plugin.PlugIn;
+
+/** Checks records of a ptu/pt3 file (truncated or damaged acquisition, see IntegrityCheck),
+ * reports the damage and optionally loads the valid part by PTU_Reader
+ * (without checking the file again). **/
+public class PTU_Check_ implements PlugIn
+{
+	@Override
+	public void run(String arg)
+	{
+		final String sPath;
+		if(arg.equals(""))
+		{
+			final OpenDialog opDiag = new OpenDialog("Choose ptu/pt3 file to check");
+			if(opDiag.getPath() == null)
+				return;
+			sPath = opDiag.getPath();
+		}
+		else
+		{
+			sPath = arg;
+		}
+		final GenericDialog gd = new GenericDialog("Check records");
+		gd.addNumericField("Threads:", Prefs.get("PTU_Reader.nCheckThreads", Runtime.getRuntime().availableProcessors()), 0);
+		gd.addCheckbox("Load valid records", Prefs.get("PTU_Reader.bCheckLoad", true));
+		gd.addCheckbox("Always check records in PTU Reader", Prefs.get("PTU_Reader.bCheckRecords", false));
+		gd.showDialog();
+		if(gd.wasCanceled())
+			return;
+		final int nThreads = Math.max(1, (int) gd.getNextNumber());
+		final boolean bLoad = gd.getNextBoolean();
+		final boolean bAlways = gd.getNextBoolean();
+		Prefs.set("PTU_Reader.nCheckThreads", nThreads);
+		Prefs.set("PTU_Reader.bCheckLoad", bLoad);
+		Prefs.set("PTU_Reader.bCheckRecords", bAlways);
+
+		final Runnable checking = () -> check(Paths.get(sPath), nThreads, bLoad);
+		if(IJ.isMacro())
+		{
+			checking.run();
+		}
+		else
+		{
+			new Thread(checking, "PTU_Reader check " + Paths.get(sPath).getFileName()).start();
+		}
+	}
+
+	void check(final Path path, final int nThreads, final boolean bLoad)
+	{
+		final PTU_Reader_.LoadProgress progress = new PTU_Reader_.LoadProgress();
+		progress.showCancel(path.getFileName().toString());
+		try (PtuFile ptuFile = PtuFile.openShared(path, s -> {}, new BufferPool(PtuFile.READER_POOL_BYTES)))
+		{
+			IJ.showStatus("Checking records...");
+			final long nStart = System.currentTimeMillis();
+			final IntegrityCheck check = IntegrityCheck.scan(ptuFile, nThreads, progress);
+			IJ.showProgress(1.0);
+			IJ.log(path.getFileName() + " (checked in " + Long.toString(System.currentTimeMillis() - nStart) + " ms):\n" + check.getReport());
+			if(!bLoad)
+				return;
+			if(check.nValidRecords == 0)
+			{
+				IJ.error("There are no valid records in " + path.getFileName());
+				return;
+			}
+			//the reader loads its own view of the valid records,
+			//the shared file and its header stay unchanged
+			final PTU_Reader_ reader = new PTU_Reader_();
+			reader.nValidRecords = check.nValidRecords;
+			reader.run(path.toString());
+		}
+		catch (IOException e)
+		{
+			IJ.error(e.getMessage());
+		}
+		catch (CancellationException e)
+		{
+			IJ.log("Check of " + path.getFileName() + " is cancelled.");
+			IJ.showProgress(1.0);
+		}
+		finally
+		{
+			progress.closeCancel();
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package ptureader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import ij.IJ;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.io.DirectoryChooser;
+import ij.io.OpenDialog;
+import ij.plugin.PlugIn;
+
+/** Exports lifetime ordered stack (x, y, microtime, frame, channel)
+ * of ptu/pt3 file to chunked N5 container (see N5Export),
+ * blocks are written in parallel with decoding. **/
+public class PTU_Export_N5_ implements PlugIn
+{
+	final static String [] compressionOptions = new String [] {"gzip", "raw"};
+
+	@Override
+	public void run(String arg)
+	{
+		String sInputFilenamePath;
+		if(arg.equals(""))
+		{
+			OpenDialog opDiag = new OpenDialog("Choose ptu/pt3 file to export");
+			if(opDiag.getPath() == null)
+				return;
+			sInputFilenamePath = opDiag.getPath();
+		}
+		else
+		{
+			sInputFilenamePath = arg;
+		}
+		final File inputFileName = new File(sInputFilenamePath);
+		final String extension = PtuFile.getExtension(inputFileName.toPath());
+		if(!(extension.equals("ptu") || extension.equals("pt3")))
+		{
+			IJ.error("Only ptu and pt3 format files are supported!");
+			return;
+		}
+
+		PtuFile ptuFile = null;
+		try
+		{
+			ptuFile = PtuFile.openShared(inputFileName.toPath(), s -> {}, new BufferPool());
+			final DecodeCache.FileKey fileKey = DecodeCache.FileKey.of(inputFileName.toPath());
+			final DecodeCache.FileInfo info = DecodeCache.getInstance().getInfo(fileKey);
+			final PtuIndex index;
+			if(info == null)
+			{
+				IJ.showStatus("Analyzing average acquisition speed/max time/channels...");
+				index = ptuFile.analyze((nDone, nTotal) -> IJ.showProgress((double)nDone / nTotal));
+				DecodeCache.getInstance().putInfo(fileKey, ptuFile.header, index);
+			}
+			else
+			{
+				index = info.index;
+			}
+
+			final GenericDialog gd = new GenericDialog("Export lifetime stack to N5");
+			gd.addMessage("Total number of frames: " + Integer.toString(index.nTotFrames));
+			gd.addNumericField("Bin frames:", Prefs.get("PTU_Reader.nN5TimeBin", 1), 0);
+			gd.addNumericField("Block size XY:", Prefs.get("PTU_Reader.nN5BlockXY", 64), 0);
+			gd.addNumericField("Block size microtime:", Prefs.get("PTU_Reader.nN5BlockT", 64), 0);
+			gd.addNumericField("Block size frames:", Prefs.get("PTU_Reader.nN5BlockF", 1), 0);
+			gd.addChoice("Compression:", compressionOptions, Prefs.get("PTU_Reader.sN5Compression", "gzip"));
+			gd.addNumericField("Resolution levels:", Prefs.get("PTU_Reader.nN5Scales", 3), 0);
+			gd.addNumericField("Writing threads:", Prefs.get("PTU_Reader.nN5Threads", Runtime.getRuntime().availableProcessors()), 0);
+			gd.showDialog();
+			if(gd.wasCanceled())
+				return;
+			final DecodeParameters params = new DecodeParameters();
+			params.bLoadIntAverLTImages = false;
+			params.bLoadLTOrderedStacks = true;
+			params.nLTload = 1;
+			params.nTimeBin = (int) gd.getNextNumber();
+			final int [] blockSize = new int[5];
+			blockSize[0] = (int) gd.getNextNumber();
+			blockSize[1] = blockSize[0];
+			blockSize[2] = (int) gd.getNextNumber();
+			blockSize[3] = (int) gd.getNextNumber();
+			blockSize[4] = 1;
+			final int nCompression = gd.getNextChoiceIndex();
+			final int nScales = (int) gd.getNextNumber();
+			final int nThreads = (int) gd.getNextNumber();
+			Prefs.set("PTU_Reader.nN5TimeBin", params.nTimeBin);
+			Prefs.set("PTU_Reader.nN5BlockXY", blockSize[0]);
+			Prefs.set("PTU_Reader.nN5BlockT", blockSize[2]);
+			Prefs.set("PTU_Reader.nN5BlockF", blockSize[3]);
+			Prefs.set("PTU_Reader.sN5Compression", compressionOptions[nCompression]);
+			Prefs.set("PTU_Reader.nN5Scales", nScales);
+			Prefs.set("PTU_Reader.nN5Threads", nThreads);
+			params.validate(index.nTotFrames);
+
+			final DirectoryChooser dirChooser = new DirectoryChooser("Choose folder for N5 container");
+			if(dirChooser.getDirectory() == null)
+				return;
+			final String shortFilename = inputFileName.getName().split(".pt")[0];
+			final Path root = new File(dirChooser.getDirectory(), shortFilename + ".n5").toPath();
+
+			final FlimData data = new FlimData(ptuFile.header, index, params, ptuFile.pool, IJ::log);
+			final N5Export export = new N5Export(root, ptuFile.header, data, blockSize, nScales, nCompression == 0, nThreads);
+			data.binListener = export;
+
+			IJ.showStatus("Decoding and writing N5 blocks...");
+			final long nStart = System.currentTimeMillis();
+			try
+			{
+				ptuFile.decode(index, params, data, (nDone, nTotal) -> IJ.showProgress((double)nDone / nTotal));
+			}
+			finally
+			{
+				export.finish();
+				data.release(ptuFile.pool);
+			}
+			IJ.log("Lifetime stack exported to " + root + " in " + Long.toString(System.currentTimeMillis() - nStart) + " ms.");
+			IJ.showStatus("Export to N5...done.");
+		}
+		catch (IOException e)
+		{
+			IJ.error(e.getMessage());
+		}
+		finally
+		{
+			PTU_Reader_.closeFile(ptuFile);
+		}
+	}
+}
@@ -0,0 +1,249 @@
+package ptureader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import ij.IJ;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.gui.Plot;
+import ij.io.OpenDialog;
+import ij.plugin.PlugIn;
+import ij.util.Tools;
+
+/** Auto/cross-correlation (FCS) of the photon stream of ptu/pt3 file
+ * (point measurement or image) with multi-tau Correlator.
+ * Photons can be weighted by microtime: gated or filtered
+ * with FLCS filter removing uncorrelated background (afterpulsing, etc). **/
+public class PTU_FCS_ implements PlugIn
+{
+	final static String [] channelOptions = new String [] {"1", "2", "3", "4"};
+
+	/** histogram size, enough for all supported record types **/
+	final static int MAX_DTIME = 1 << 15;
+
+	int nChA;
+
+	int nChB;
+
+	/** minimum lag in microseconds **/
+	double dMinLag;
+
+	int nLevels;
+
+	int nChannels;
+
+	/** microtime gate (inclusive) **/
+	int nDtimeMin;
+
+	int nDtimeMax;
+
+	boolean bFLCS;
+
+	@Override
+	public void run(String arg)
+	{
+		String sInputFilenamePath;
+		if(arg.equals(""))
+		{
+			OpenDialog opDiag = new OpenDialog("Choose ptu/pt3 file to correlate");
+			if(opDiag.getPath() == null)
+				return;
+			sInputFilenamePath = opDiag.getPath();
+		}
+		else
+		{
+			sInputFilenamePath = arg;
+		}
+		final File inputFileName = new File(sInputFilenamePath);
+
+		try (PtuFile ptuFile = PtuFile.open(inputFileName.toPath()))
+		{
+			final PtuHeader header = ptuFile.header;
+			if(header.dGlobalResolution <= 0)
+			{
+				IJ.error("Sync rate is not found in the header, unable to calculate lag times.");
+				return;
+			}
+			if(!fcsDialog(header))
+				return;
+
+			final long nBaseBin = Math.max(1, Math.round(dMinLag * 1e-6 / header.dGlobalResolution));
+			final Correlator correlator = new Correlator(nLevels, nChannels, nBaseBin);
+			//reverse direction of cross-correlation is calculated in the same pass
+			final Correlator reverse = (nChA != nChB) ? new Correlator(nLevels, nChannels, nBaseBin) : null;
+
+			double [] weightsA = getGate(nDtimeMin, nDtimeMax);
+			double [] weightsB = weightsA;
+			if(bFLCS)
+			{
+				IJ.showStatus("Calculating microtime histograms...");
+				final double [][] decay = getDecays(ptuFile);
+				weightsA = getFilter(decay[nChA], weightsA, nChA);
+				weightsB = getFilter(decay[nChB], weightsB, nChB);
+				if(weightsA == null || weightsB == null)
+					return;
+			}
+			correlator.setChannelA(nChA, weightsA);
+			correlator.setChannelB(nChB, weightsB);
+			if(reverse != null)
+			{
+				reverse.setChannelA(nChB, weightsB);
+				reverse.setChannelB(nChA, weightsA);
+			}
+
+			IJ.showStatus("Correlating photons...");
+			final long nStart = System.currentTimeMillis();
+			if(reverse == null)
+			{
+				ptuFile.readPhotons(correlator, (nDone, nTotal) -> IJ.showProgress((double)nDone / nTotal));
+			}
+			else
+			{
+				ptuFile.readPhotons((nSync, nCh, dtime) -> {
+					correlator.photon(nSync, nCh, dtime);
+					reverse.photon(nSync, nCh, dtime);
+				}, (nDone, nTotal) -> IJ.showProgress((double)nDone / nTotal));
+				reverse.finish();
+			}
+			correlator.finish();
+			IJ.log("Correlation of " + Long.toString(correlator.nPhotons) + " photons took "
+					+ Long.toString(System.currentTimeMillis() - nStart) + " ms.");
+			IJ.showStatus("Correlating photons...done.");
+
+			showCorrelation(inputFileName.getName(), header, correlator, reverse);
+		}
+		catch (IOException e)
+		{
+			IJ.error(e.getMessage());
+		}
+	}
+
+	boolean fcsDialog(final PtuHeader header)
+	{
+		final GenericDialog gd = new GenericDialog("FCS parameters");
+		gd.addMessage((header.isImage() ? "Image" : "Point") + " measurement, " + Long.toString(header.nRecords) + " records");
+		gd.addChoice("Channel A:", channelOptions, Prefs.get("PTU_Reader.sFcsChannelA", "1"));
+		gd.addChoice("Channel B:", channelOptions, Prefs.get("PTU_Reader.sFcsChannelB", "1"));
+		gd.addNumericField("Minimum lag:", Prefs.get("PTU_Reader.dFcsMinLag", 1.0), 3, 8, "us");
+		gd.addNumericField("Levels:", Prefs.get("PTU_Reader.nFcsLevels", Correlator.DEFAULT_LEVELS), 0);
+		gd.addNumericField("Lags per level:", Prefs.get("PTU_Reader.nFcsChannels", Correlator.DEFAULT_CHANNELS), 0);
+		gd.addStringField("Microtime range (empty for all):", Prefs.get("PTU_Reader.sFcsDtimeRange", ""));
+		gd.addCheckbox("Remove uncorrelated background (FLCS)", Prefs.get("PTU_Reader.bFcsFLCS", false));
+		gd.showDialog();
+		if(gd.wasCanceled())
+			return false;
+		nChA = gd.getNextChoiceIndex();
+		nChB = gd.getNextChoiceIndex();
+		dMinLag = gd.getNextNumber();
+		nLevels = (int) gd.getNextNumber();
+		nChannels = (int) gd.getNextNumber();
+		final String sDtimeRange = gd.getNextString();
+		bFLCS = gd.getNextBoolean();
+		Prefs.set("PTU_Reader.sFcsChannelA", channelOptions[nChA]);
+		Prefs.set("PTU_Reader.sFcsChannelB", channelOptions[nChB]);
+		Prefs.set("PTU_Reader.dFcsMinLag", dMinLag);
+		Prefs.set("PTU_Reader.nFcsLevels", nLevels);
+		Prefs.set("PTU_Reader.nFcsChannels", nChannels);
+		Prefs.set("PTU_Reader.sFcsDtimeRange", sDtimeRange);
+		Prefs.set("PTU_Reader.bFcsFLCS", bFLCS);
+		nDtimeMin = 0;
+		nDtimeMax = MAX_DTIME - 1;
+		if(sDtimeRange.trim().length() > 0)
+		{
+			final String [] range = Tools.split(sDtimeRange, " -");
+			nDtimeMin = Math.max(0, (int) Tools.parseDouble(range[0], 0));
+			if(range.length == 2)
+				nDtimeMax = Math.min(MAX_DTIME - 1, (int) Tools.parseDouble(range[1], MAX_DTIME - 1));
+		}
+		return true;
+	}
+
+	/** weights of the microtime gate, null if there is no gate **/
+	static double [] getGate(final int nDtimeMin, final int nDtimeMax)
+	{
+		if(nDtimeMin <= 0 && nDtimeMax >= MAX_DTIME - 1)
+			return null;
+		final double [] weights = new double[nDtimeMax + 1];
+		for(int t = Math.max(0, nDtimeMin); t <= nDtimeMax; t++)
+		{
+			weights[t] = 1.0;
+		}
+		return weights;
+	}
+
+	/** microtime histograms of all channels (trimmed to the maximum microtime) **/
+	static double [][] getDecays(final PtuFile ptuFile) throws IOException
+	{
+		final long [][] histograms = new long[4][MAX_DTIME];
+		final int [] dtimeMax = new int[1];
+		ptuFile.readPhotons((nSync, nCh, dtime) -> {
+			if(nCh >= 0 && nCh < 4 && dtime < MAX_DTIME)
+			{
+				histograms[nCh][dtime]++;
+				if(dtime > dtimeMax[0])
+					dtimeMax[0] = dtime;
+			}
+		}, (nDone, nTotal) -> IJ.showProgress((double)nDone / nTotal));
+		final double [][] decay = new double[4][dtimeMax[0] + 1];
+		for(int nCh = 0; nCh < 4; nCh++)
+		{
+			for(int t = 0; t <= dtimeMax[0]; t++)
+			{
+				decay[nCh][t] = histograms[nCh][t];
+			}
+		}
+		return decay;
+	}
+
+	/** FLCS background removal filter multiplied by the gate **/
+	static double [] getFilter(final double [] decay, final double [] gate, final int nCh)
+	{
+		final double [] gated = decay.clone();
+		if(gate != null)
+		{
+			for(int t = 0; t < gated.length; t++)
+			{
+				if(t >= gate.length || gate[t] == 0.0)
+					gated[t] = 0.0;
+			}
+		}
+		final double [] filter = Correlator.getBackgroundFilter(gated);
+		if(filter == null)
+		{
+			IJ.error("Unable to calculate FLCS filter for channel " + Integer.toString(nCh + 1) + " (no signal above background).");
+		}
+		return filter;
+	}
+
+	/** shows G(tau) curves (lags longer than the measurement are omitted) **/
+	static void showCorrelation(final String sTitle, final PtuHeader header, final Correlator correlator, final Correlator reverse)
+	{
+		final double [] lags = correlator.getLags();
+		final double [] g = correlator.getCorrelation();
+		final double [] gReverse = (reverse == null) ? null : reverse.getCorrelation();
+		int nValid = 0;
+		for(int i = 0; i < lags.length; i++)
+		{
+			if(!Double.isNaN(g[i]) && (gReverse == null || !Double.isNaN(gReverse[i])))
+				nValid = i + 1;
+		}
+		final double [] dTau = new double[nValid];
+		for(int i = 0; i < nValid; i++)
+		{
+			dTau[i] = lags[i] * header.dGlobalResolution;
+		}
+		final Plot plot = new Plot(sTitle + " correlation", "Lag (s)", "G(tau)");
+		plot.add("line", dTau, Arrays.copyOf(g, nValid));
+		if(gReverse != null)
+		{
+			plot.setColor(java.awt.Color.RED);
+			plot.add("line", dTau, Arrays.copyOf(gReverse, nValid));
+			plot.addLegend("A x B\nB x A");
+		}
+		plot.setLogScaleX();
+		plot.setLimitsToFit(false);
+		plot.show();
+	}
+}
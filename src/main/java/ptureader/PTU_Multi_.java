@@ -0,0 +1,166 @@
+package ptureader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.io.DirectoryChooser;
+import ij.measure.Calibration;
+import ij.plugin.PlugIn;
+
+/** Loads a set of ptu files (mosaic tiles or time points) from a folder
+ * into one Intensity and FastLifetime stack per channel (see MultiFileLoader).
+ * Output is shown before decoding and filled as the files are decoded. **/
+public class PTU_Multi_ implements PlugIn
+{
+	final static String [] modeOptions = new String [] {"Tiles (mosaic)", "Time series"};
+
+	@Override
+	public void run(String arg)
+	{
+		final String sFolder;
+		if(arg.equals(""))
+		{
+			final DirectoryChooser dirChooser = new DirectoryChooser("Choose folder with ptu files");
+			if(dirChooser.getDirectory() == null)
+				return;
+			sFolder = dirChooser.getDirectory();
+		}
+		else
+		{
+			sFolder = arg;
+		}
+		final GenericDialog gd = new GenericDialog("Load multiple files");
+		gd.addStringField("File pattern:", Prefs.get("PTU_Reader.sMultiPattern", "*.ptu"));
+		gd.addChoice("Assemble as:", modeOptions, Prefs.get("PTU_Reader.sMultiMode", modeOptions[0]));
+		gd.addNumericField("Tiles in a row:", Prefs.get("PTU_Reader.nMultiColumns", 2), 0);
+		gd.addNumericField("Time series bin frames (0 = join):", Prefs.get("PTU_Reader.nMultiTimeBin", 0), 0);
+		gd.addCheckbox("Remove negative FastLifetime", Prefs.get("PTU_Reader.bRemoveNegativeLT", false));
+		gd.addNumericField("Parallel files:", Prefs.get("PTU_Reader.nMultiThreads", Math.min(4, Runtime.getRuntime().availableProcessors())), 0);
+		gd.showDialog();
+		if(gd.wasCanceled())
+			return;
+		final String sPattern = gd.getNextString();
+		final int nMode = gd.getNextChoiceIndex();
+		final int nColumns = Math.max(1, (int) gd.getNextNumber());
+		final int nTimeBin = Math.max(0, (int) gd.getNextNumber());
+		final boolean bRemoveNegativeLT = gd.getNextBoolean();
+		final int nThreads = Math.max(1, (int) gd.getNextNumber());
+		Prefs.set("PTU_Reader.sMultiPattern", sPattern);
+		Prefs.set("PTU_Reader.sMultiMode", modeOptions[nMode]);
+		Prefs.set("PTU_Reader.nMultiColumns", nColumns);
+		Prefs.set("PTU_Reader.nMultiTimeBin", nTimeBin);
+		Prefs.set("PTU_Reader.bRemoveNegativeLT", bRemoveNegativeLT);
+		Prefs.set("PTU_Reader.nMultiThreads", nThreads);
+
+		final Runnable loading = () -> load(new File(sFolder).toPath(), sPattern, nMode, nColumns, nTimeBin, bRemoveNegativeLT, nThreads);
+		if(IJ.isMacro())
+		{
+			loading.run();
+		}
+		else
+		{
+			new Thread(loading, "PTU_Reader multiple files").start();
+		}
+	}
+
+	void load(final Path folder, final String sPattern, final int nMode, final int nColumns, final int nTimeBin, final boolean bRemoveNegativeLT, final int nThreads)
+	{
+		final PTU_Reader_.LoadProgress progress = new PTU_Reader_.LoadProgress();
+		progress.showCancel(folder.getFileName() + File.separator + sPattern);
+		try
+		{
+			final List<Path> files = MultiFileLoader.listFiles(folder, sPattern);
+			IJ.log("PTU_Reader v." + PtuFile.sVersion + ": loading " + Integer.toString(files.size()) + " files from " + folder);
+			IJ.showStatus("Reading headers...");
+			final MultiFileLoader loader = new MultiFileLoader(files, IJ::log);
+			loader.nMode = nMode;
+			loader.nColumns = nColumns;
+			loader.nTimeBin = nTimeBin;
+			loader.bRemoveNegativeLT = bRemoveNegativeLT;
+			final long nStart = System.currentTimeMillis();
+			IJ.showStatus("Analyzing files...");
+			loader.analyze(nThreads, progress);
+			final FlimData output = loader.allocate();
+
+			//output is shown empty and updated after each file
+			final String sTitle = folder.getFileName() + ((nMode == MultiFileLoader.TILES) ? "_Tiles" : "_Series");
+			final ImagePlus [] images = show(output, loader.headers[0], sTitle);
+			IJ.showStatus("Decoding files...");
+			try
+			{
+				loader.decode(nThreads, nFile -> {
+					for(final ImagePlus imp : images)
+					{
+						if(imp != null)
+							imp.updateAndDraw();
+					}
+				}, progress);
+			}
+			finally
+			{
+				for(final ImagePlus imp : images)
+				{
+					if(imp != null)
+						IJ.run(imp, "Enhance Contrast", "saturated=0.35");
+				}
+			}
+			IJ.showProgress(1.0);
+			IJ.log("Loaded " + Integer.toString(files.size()) + " files in " + Long.toString(System.currentTimeMillis() - nStart) + " ms.");
+		}
+		catch (IOException e)
+		{
+			IJ.error(e.getMessage());
+		}
+		catch (CancellationException e)
+		{
+			IJ.log("Loading of multiple files is cancelled.");
+			IJ.showProgress(1.0);
+		}
+		finally
+		{
+			progress.closeCancel();
+		}
+	}
+
+	/** wraps output arrays into images (Intensity and FastLifetime per channel) and shows them **/
+	static ImagePlus [] show(final FlimData output, final PtuHeader header, final String sTitle)
+	{
+		final ImagePlus [] images = new ImagePlus[8];
+		final Calibration cal = new Calibration();
+		cal.setUnit("um");
+		cal.pixelWidth = header.dPixSize;
+		cal.pixelHeight = header.dPixSize;
+		for(int nCh = 0; nCh < 4; nCh++)
+		{
+			if(!output.bChannels[nCh])
+				continue;
+			final String sChannel = "_C" + Integer.toString(nCh + 1);
+			final ImageStack stackInt = new ImageStack(output.nPixX, output.nPixY);
+			final ImageStack stackAverT = new ImageStack(output.nPixX, output.nPixY);
+			for(int nBin = 0; nBin < output.nTotalBins; nBin++)
+			{
+				stackInt.addSlice("", output.fIntensity[nCh][nBin]);
+				stackAverT.addSlice("", output.fLifetime[nCh][nBin]);
+			}
+			images[2 * nCh] = new ImagePlus(sTitle + sChannel + "_Intensity", stackInt);
+			images[2 * nCh + 1] = new ImagePlus(sTitle + sChannel + "_FastLifeTime", stackAverT);
+			for(int i = 2 * nCh; i < 2 * nCh + 2; i++)
+			{
+				if(header.dPixSize > 0)
+				{
+					images[i].setCalibration(cal);
+				}
+				images[i].show();
+			}
+		}
+		return images;
+	}
+}
@@ -0,0 +1,247 @@
+package ptureader;
+
+import java.awt.Point;
+import java.io.IOException;
+import java.nio.file.Paths;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.WindowManager;
+import ij.gui.GenericDialog;
+import ij.gui.Plot;
+import ij.gui.PlotWindow;
+import ij.gui.Roi;
+import ij.gui.RoiListener;
+import ij.plugin.PlugIn;
+import ij.util.Tools;
+
+/** Shows lifetime decay curve of the ROI on the image opened by PTU_Reader
+ * (with "Build photon index" option). The curve is built from the photon index
+ * saved next to the ptu file and is updated live when ROI is moved or changed. **/
+public class PTU_ROI_Decay_ implements PlugIn, RoiListener
+{
+	/** image property with the path to the source ptu file **/
+	public final static String PROP_FILE = "PTU_File";
+
+	/** image property with the channel (zero based) of the image **/
+	public final static String PROP_CHANNEL = "PTU_Channel";
+
+	/** image property with the region of the image in the full frame
+	 * ("x,y,width,height", set if photons were cropped during loading) **/
+	public final static String PROP_CROP = "PTU_Crop";
+
+	/** image property with the number of loaded records
+	 * (set if only the valid part of a damaged file was loaded, see PTU_Check_) **/
+	public final static String PROP_RECORDS = "PTU_Records";
+
+	ImagePlus imp;
+
+	PhotonIndex photonIndex;
+
+	int nCh;
+
+	/** frame range of the decay curve (inclusive) **/
+	int nFrameFrom;
+
+	int nFrameTo;
+
+	/** region of the image in the full frame of the photon index **/
+	int nCropX = 0;
+
+	int nCropY = 0;
+
+	int nCropWidth;
+
+	int nCropHeight;
+
+	boolean bLogScale;
+
+	/** pixels inside ROI (indices y*nPixX+x) **/
+	int [] pixels = new int[0];
+
+	PlotWindow plotWindow = null;
+
+	@Override
+	public void run(String arg)
+	{
+		imp = WindowManager.getCurrentImage();
+		if(imp == null)
+		{
+			IJ.noImage();
+			return;
+		}
+		final Object sFile = imp.getProperty(PROP_FILE);
+		final Object sChannel = imp.getProperty(PROP_CHANNEL);
+		if(sFile == null || sChannel == null)
+		{
+			IJ.error("Current image was not loaded by PTU_Reader.");
+			return;
+		}
+		try
+		{
+			photonIndex = PhotonIndex.load(Paths.get(sFile.toString()));
+		}
+		catch (IOException e)
+		{
+			IJ.error("Unable to read photon index: " + e.getMessage());
+			return;
+		}
+		if(photonIndex == null)
+		{
+			IJ.error("No photon index found for " + sFile + ",\nload the file with \"Build photon index\" option.");
+			return;
+		}
+		if(!readCrop(imp.getProperty(PROP_CROP)))
+		{
+			IJ.error("Image size (" + Integer.toString(imp.getWidth()) + "x" + Integer.toString(imp.getHeight())
+					+ ") does not match the photon index (" + Integer.toString(photonIndex.nPixX) + "x" + Integer.toString(photonIndex.nPixY) + ").");
+			return;
+		}
+		nCh = Integer.parseInt(sChannel.toString());
+		if(!photonIndex.bChannels[nCh])
+		{
+			IJ.error("Photon index does not contain channel " + Integer.toString(nCh + 1) + ".");
+			return;
+		}
+		if(!decayDialog())
+			return;
+
+		updateDecay();
+		Roi.addRoiListener(this);
+	}
+
+	/** reads region of the image in the full frame (crop property, if present),
+	 * returns false if it does not fit the image or the photon index **/
+	boolean readCrop(final Object sCrop)
+	{
+		nCropX = 0;
+		nCropY = 0;
+		nCropWidth = imp.getWidth();
+		nCropHeight = imp.getHeight();
+		if(sCrop != null)
+		{
+			final String [] values = Tools.split(sCrop.toString(), ",");
+			if(values.length != 4)
+				return false;
+			nCropX = (int)Tools.parseDouble(values[0], -1);
+			nCropY = (int)Tools.parseDouble(values[1], -1);
+			nCropWidth = (int)Tools.parseDouble(values[2], -1);
+			nCropHeight = (int)Tools.parseDouble(values[3], -1);
+		}
+		return nCropWidth == imp.getWidth() && nCropHeight == imp.getHeight()
+				&& nCropX >= 0 && nCropY >= 0
+				&& nCropX + nCropWidth <= photonIndex.nPixX && nCropY + nCropHeight <= photonIndex.nPixY;
+	}
+
+	boolean decayDialog()
+	{
+		final GenericDialog gd = new GenericDialog("ROI decay curve");
+		nFrameFrom = photonIndex.nFrameMin;
+		nFrameTo = photonIndex.nFrameMax;
+		if(photonIndex.bByFrame)
+		{
+			gd.addStringField("Frame range:", Integer.toString(nFrameFrom) + "-" + Integer.toString(nFrameTo));
+		}
+		gd.addCheckbox("Logarithmic Y axis", Prefs.get("PTU_Reader.bDecayLogScale", true));
+		gd.showDialog();
+		if(gd.wasCanceled())
+			return false;
+		if(photonIndex.bByFrame)
+		{
+			final String[] range = Tools.split(gd.getNextString(), " -");
+			final double c1 = gd.parseDouble(range[0]);
+			final double c2 = range.length == 2 ? gd.parseDouble(range[1]) : Double.NaN;
+			nFrameFrom = Double.isNaN(c1) ? photonIndex.nFrameMin : (int)c1;
+			nFrameTo = Double.isNaN(c2) ? nFrameFrom : (int)c2;
+			if(nFrameFrom > nFrameTo)
+			{
+				nFrameFrom = photonIndex.nFrameMin;
+				nFrameTo = photonIndex.nFrameMax;
+			}
+		}
+		bLogScale = gd.getNextBoolean();
+		Prefs.set("PTU_Reader.bDecayLogScale", bLogScale);
+		return true;
+	}
+
+	@Override
+	public void roiModified(final ImagePlus imp2, final int id)
+	{
+		if(imp2 != imp)
+			return;
+		if(plotWindow != null && plotWindow.isClosed())
+		{
+			Roi.removeRoiListener(this);
+			return;
+		}
+		updateDecay();
+	}
+
+	/** builds decay curve of the current ROI (or the whole image) and shows it **/
+	void updateDecay()
+	{
+		final int nPixels = getRoiPixels(imp.getRoi());
+		final long [] lHistogram = photonIndex.getDecay(nCh, pixels, nPixels, nFrameFrom, nFrameTo);
+		final double [] dTime = new double[lHistogram.length];
+		final double [] dCounts = new double[lHistogram.length];
+		long nTotal = 0;
+		for(int i = 0; i < lHistogram.length; i++)
+		{
+			dTime[i] = i * photonIndex.fTimeResolution;
+			dCounts[i] = lHistogram[i];
+			nTotal += lHistogram[i];
+		}
+		final Plot plot = new Plot(imp.getTitle() + " ROI decay (" + Long.toString(nTotal) + " photons)", "Time (ns)", "Photons");
+		plot.add("line", dTime, dCounts);
+		plot.setAxisYLog(bLogScale);
+		plot.setLimitsToFit(false);
+		if(plotWindow == null || plotWindow.isClosed())
+		{
+			plotWindow = plot.show();
+		}
+		else
+		{
+			plotWindow.drawPlot(plot);
+		}
+	}
+
+	/** fills pixels with indices (in the photon index) of the pixels inside ROI
+	 * (all pixels of the image if roi is null), returns their number **/
+	int getRoiPixels(final Roi roi)
+	{
+		final int nPixX = photonIndex.nPixX;
+		if(roi == null)
+		{
+			final int nPixTotal = nCropWidth * nCropHeight;
+			if(pixels.length < nPixTotal)
+			{
+				pixels = new int[nPixTotal];
+			}
+			int nPixels = 0;
+			for(int y = 0; y < nCropHeight; y++)
+			{
+				for(int x = 0; x < nCropWidth; x++)
+				{
+					pixels[nPixels++] = (y + nCropY) * nPixX + x + nCropX;
+				}
+			}
+			return nPixTotal;
+		}
+		final Point [] points = roi.getContainedPoints();
+		if(pixels.length < points.length)
+		{
+			pixels = new int[points.length];
+		}
+		int nPixels = 0;
+		for(final Point p : points)
+		{
+			//ROI coordinates are in the (cropped) image
+			if(p.x >= 0 && p.x < nCropWidth && p.y >= 0 && p.y < nCropHeight)
+			{
+				pixels[nPixels++] = (p.y + nCropY) * nPixX + p.x + nCropX;
+			}
+		}
+		return nPixels;
+	}
+}
@@ -23,14 +23,25 @@
 package ptureader;
 
 import java.awt.AWTEvent;
+import java.awt.Button;
 import java.awt.Choice;
 import java.awt.Color;
+import java.awt.EventQueue;
+import java.awt.FlowLayout;
+import java.awt.Frame;
+import java.awt.GraphicsEnvironment;
 import java.awt.Label;
 import java.awt.TextField;
+import java.awt.event.ActionEvent;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.*;
-import java.nio.*;
-import java.nio.channels.FileChannel;
+import java.nio.file.Path;
 import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
 
 import ij.*;
 import ij.gui.GenericDialog;
@@ -43,118 +54,38 @@ import ij.util.Tools;
 public class PTU_Reader_ implements PlugIn
 {
 	/** plugin version **/
-    String sVersion = "0.2.2";
-
-	 // wraparound constants
-    final static int PT3WRAPAROUND = 65536;
-    final static int HT3WRAPAROUND = 1024;    
-    
-    /** Main reading buffer **/
-    ByteBuffer bBuff = null;
-
-    /** total number of records **/
-    int nRecords = 0;
-    
-	/** image width**/
-	int nPixX = 0;
+	String sVersion = PtuFile.sVersion;
 	
-	/** image height**/
-	int nPixY = 0;
+	/** acquisition parameters **/
+	PtuHeader header;
 	
-	/** pixel size in um**/
-	double dPixSize = 0;
+	/** total number of Frames in PTU file **/   
+	int nTotFrames;
 	
-	/** Line start marker**/
-	int nLineStart = 0;
+	/** maximum microtime (dtime) in the file **/
+	int nDtimeMax;
 	
-	/** Line end marker**/
-	int nLineStop = 0;
+	/** whether nTotFrames is estimated by quick look (full analysis is not done yet) **/
+	boolean bFramesEstimated = false;
 	
-	/** Frame marker **/
-	int nFrameMark = -1;
+	/** flag: whether to load just a range of frames**/
+	boolean bLoadRange;
 	
-	/** resolution of TCSPC in ns**/
-	float fTimeResolution = 0.0f;
+	/** whether per frame sums are kept for re-binning (see PTU_Rebin_) **/
+	boolean bKeepFrameSums;
 	
-	/** if Frame marker is present (NOT A RELIABLE MARKER??)**/
-	boolean bFrameMarkerPresent = false;
-    
-    /** bin size in frames**/
-    int nTimeBin = 1;
-    
-    /** show lifetime stack**/
-    boolean bLoadLTOrderedStacks = true;
-    
-    /** show intensity and average lifetime per frame images**/
-	boolean bLoadIntAverLTImages = true;
-	
-    /** bin size in frames**/
-    int nTotalBins = 0;
-    
-    /** array marking presence of channels **/
-    boolean [] bChannels = new boolean[4]; 
-    
-    /** acquisition information **/
-    public StringBuilder stringInfo = new StringBuilder();
-    
-    /** acquisition information **/
-    String AcquisitionInfo;
-    
-    /** flag: whether to load just a range of frames**/
-    boolean bLoadRange;
-    
-    /** min frame number to load**/
-    int nFrameMin;
-    
-    /** max frame number to load**/
-    int nFrameMax;
-    
-    /** total number of Frames in PTU file **/   
-    int nTotFrames;
-    
-    /** Lifetime loading option:
-     * 0 = whole stack
-     * 1 = use binning **/
-    int nLTload;
-        
-    /** defines record format depending on device (picoharp/hydraharp, etc) **/
-    int nRecordType;
-
-    boolean isT2;
-
-    int nHT3Version = 2;
-    
-    //RECORD READING STATE VARIABLES 
-    
-    /** current nsync value (without accumulated global time) **/
-    int nsync = 0;
-    /** channel number or if it is wraparound signal (chan == 15)**/
-	int chan = 0;
-	/** special marker value (line/frame start/stop)**/
-	int markers = 0;
-	/** lifetime count **/
-	int dtime = 0;
-	/** accumulated global time addition **/
-	long ofltime;
-	
-	/** current line (y coordinate )**/
-	int curLine; 
-	
-	/** current pixel's x coordinate **/
-	int curPixel = 0;
-	
-	/** current "global time" = ofltime + nsync**/
-	long curSync = 0;
-	
-	/** "global time" of line start **/
-	long syncStart = -1;
-	
-	/** whether the photon is between start/stop line markers **/
-	boolean insideLine = false;
+	/** whether frames are shifted to the first one before summing (see DriftCorrection) **/
+	boolean bDriftCorrection;
+
+	/** number of records of the valid part found by PTU_Check_
+	 * (only they are loaded), -1 to load all records **/
+	long nValidRecords = -1;
 	
-	/** maximum time of photon arrival (int) **/
-	int dtimemax;
+	/** load parameters chosen in the dialog **/
+	final DecodeParameters params = new DecodeParameters();
 	
+	/** acquisition information **/
+	String AcquisitionInfo;
 	
 	/** array of intensity images for each channel **/
 	final ImagePlus [] ipInt = new ImagePlus[4];
@@ -164,15 +95,12 @@ public class PTU_Reader_ implements PlugIn
 	
 	/** array of stacks with ordered lifetime images for each channel **/
 	final ImagePlus [] ipLTOrdered = new ImagePlus[4];
+
+	/** progress of loading, cancelled by its own Cancel window **/
+	final LoadProgress progress = new LoadProgress();
 	
-	/** total cumulative photons per channel **/
-	final long [][] lPhotCumHistogram = new long[4][];
-	
-	/** IRF average time estimation per channel **/
-	final float [] tZeroIRF = new float[4];
-	
-	/** make negative lifetime zero **/
-	boolean bRemoveNegativeLT = false;
+	/** quick look Intensity and FastLifetime images (two per channel) **/
+	final ImagePlus [] ipPreview = new ImagePlus[8];
 	
 	//UI things	
 	Choice loadOption;
@@ -186,9 +114,6 @@ public class PTU_Reader_ implements PlugIn
 	@Override
 	public void run(String arg) 
 	{		
-		/** current binned frame number **/
-		int nBinnedFrameN = 0;
-
 		//*******************************************************************
 		// Open .pt3/.ptu file... 
 		//*******************************************************************
@@ -208,363 +133,591 @@ public class PTU_Reader_ implements PlugIn
 		
 		File inputFileName = new File(sInputFilenamePath);
 
-		String filename = inputFileName.getName();
-		String extension = filename.substring(filename.length()-3);
+		//extension without compression suffix (.gz/.zst/.xz)
+		String extension = PtuFile.getExtension(inputFileName.toPath());
 		
-		if(!(extension.toLowerCase().equals("ptu") || extension.toLowerCase().equals("pt3")))
+		if(!(extension.equals("ptu") || extension.equals("pt3")))
 		{
 			IJ.error("Only ptu and pt3 format files are supported!");
 			return;
 		}
 
-		//initialize reading byte buffer
-		try (FileInputStream fis = new FileInputStream(inputFileName);
-				FileChannel fc = fis.getChannel(); ) 
-		{
-			int size = (int)fc.size();
-			bBuff = ByteBuffer.allocate(size);
-
-			fc.read(bBuff);
-			bBuff.flip();
-
-			System.out.println("file size: " + size);
-
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		System.out.println("Buffer position: " + bBuff.position());
-
-		System.out.println("Buffer limit: " + bBuff.limit());
-		
 		//READING HEADER
 		IJ.log("PTU_Reader v." + sVersion );
-		stringInfo.append("PTU_Reader v." + sVersion + "\n");
 		
 		IJ.showStatus("Reading header info...");
 		
-		//ptu format
-		if(extension.toLowerCase().equals("ptu"))
-		{
-			if(!HeaderReader.readPTUHeader(this))
-			return;
-		}
-		//pt3 format
-		if(extension.toLowerCase().equals("pt3"))
-		{
-			if (!HeaderReader.readPT3Header(this))
-				return;
-			nRecordType = HeaderReader.rtPicoHarpT3;
-		}
-		
-		//store info
-		AcquisitionInfo = "";
-		AcquisitionInfo = stringInfo.toString();
-		
-		//get current data position in the buffer		
-		int dataPosition = bBuff.position();
-		System.out.println("Data position: " + dataPosition);
-		
-		//STUB
-		//For some reason reading markers with values more that 2
-		// is wrong. 
-		//temporary stub
-		if(nLineStart > 2)
-			nLineStart = 4;
-		
-		if(nLineStop > 2)
-			nLineStop = 4;	
-		
-		if(nFrameMark > 2 && nRecordType == HeaderReader.rtPicoHarpT3)
+		final double dCacheMB = Prefs.get("PTU_Reader.dCacheMB", -1);
+		if(dCacheMB >= 0)
 		{
-			nFrameMark = 4;
-			bFrameMarkerPresent = true;
+			DecodeCache.getInstance().setBudget((long)(dCacheMB * 1024 * 1024));
 		}
 		
-		if(nFrameMark > 2 && nRecordType != HeaderReader.rtPicoHarpT3)
+		progress.showCancel(inputFileName.getName());
+		PtuFile ptuFile = null;
+		//after the dialog the cancel window belongs to the loading
+		boolean bStarted = false;
+		try
 		{
-			//nFrameMark=4;
-			bFrameMarkerPresent = true;
-		}
-		
-		//****************************************************
-		//****************************************************
-		// Read T3 records (the actual data) once
-		// to calculate total frame number, maximum lifetime register and syncCountPerLine
-		//****************************************************
-		//****************************************************
-		
-		resetReading();
-		
-		int frameNb = 1;
-		long syncCountPerLine = 0;
-		int nLines = 0;
-		
-		dtimemax = Integer.MIN_VALUE;
-		
-		boolean isPhoton;
-
-		IJ.showStatus("Analyzing average acquisition speed/max time/channels...");
-		
-		for(int n = 0; n < nRecords; n++)
-		{				
-			isPhoton = readRecord();
-					
-			// it is a marker!
-			if (!isPhoton)
-			{		
-				if (markers == nLineStart && syncStart < 0)
+			//valid part of the file is cached separately
+			DecodeCache.FileKey fileKey = DecodeCache.FileKey.of(inputFileName.toPath());
+			if(nValidRecords >= 0)
+			{
+				fileKey = fileKey.limit(nValidRecords);
+			}
+			final DecodeCache.FileInfo info = DecodeCache.getInstance().getInfo(fileKey);
+			PtuIndex index = null;
+			String shortFilename = inputFileName.getName().split(".pt")[0];
+			if(info == null)
+			{
+				ptuFile = PtuFile.openShared(inputFileName.toPath(), IJ::log, new BufferPool(PtuFile.READER_POOL_BYTES));
+				header = ptuFile.header;
+				
+				System.out.println("Data position: " + header.dataPosition);
+				
+				//optional validation of the records (see PTU_Check_),
+				//only the valid part of a damaged file is loaded
+				if(nValidRecords < 0 && Prefs.get("PTU_Reader.bCheckRecords", false))
 				{
-					syncStart = ofltime + nsync;
+					IJ.showStatus("Checking records...");
+					final IntegrityCheck check = IntegrityCheck.scan(ptuFile, Runtime.getRuntime().availableProcessors(), progress);
+					IJ.log(check.getReport());
+					nValidRecords = check.nValidRecords;
+					fileKey = fileKey.limit(nValidRecords);
 				}
-				else
+				//this loading gets its own limited header, 
+				//the shared file can be used by other loadings at the same time
+				if(nValidRecords >= 0)
 				{
-					if ((markers == nLineStop) && (syncStart >= 0))
-					{
-						syncCountPerLine += ofltime + nsync - syncStart;
-						syncStart = -1;
-						nLines++;
-					}
+					final PtuFile validPart = ptuFile.limit(nValidRecords);
+					ptuFile.close();
+					ptuFile = validPart;
+					header = ptuFile.header;
+				}
+				
+				//large file: estimate parameters and show preview from a part of records,
+				//the full analysis is done after the dialog
+				if(Prefs.get("PTU_Reader.bQuickLook", true) && header.nRecords > QuickLook.DEFAULT_RECORDS
+						&& header.isImage() && !header.isT2)
+				{
+					IJ.showStatus("Quick look...");
+					final QuickLook quickLook = QuickLook.scan(ptuFile, QuickLook.DEFAULT_RECORDS, progress);
+					IJ.log(quickLook.getReport());
+					showPreview(quickLook, shortFilename);
+					nTotFrames = quickLook.nTotFrames;
+					nDtimeMax = quickLook.dtimemax;
+					bFramesEstimated = !quickLook.bExact;
 				}
-				if(markers >= nFrameMark && bFrameMarkerPresent) 
+				else
 				{
-					frameNb += 1;
+					index = analyzeFile(ptuFile, fileKey);
 				}
 			}
-			//it is photon, let's mark channel presence
 			else
 			{
-				bChannels[chan-1] = true;
-				
-				if(dtime > dtimemax)
-					dtimemax = dtime;
+				index = useCachedInfo(info);
+			}
+			
+			//store info
+			AcquisitionInfo = "PTU_Reader v." + sVersion + "\n" + header.stringInfo.toString();
+	
+			if(index != null)
+			{
+				logIndex(index);
+			}
+			//show user load settings dialog 
+			progress.closeCancel();
+			if(!loadDialog())
+			{
+				return;
+			}
+			//loading continues in the background (unless called from a macro),
+			//so the plugin returns and several files can be loaded at once
+			final PtuFile loadFile = ptuFile;
+			final DecodeCache.FileKey loadKey = fileKey;
+			final PtuIndex loadIndex = index;
+			ptuFile = null;
+			bStarted = true;
+			if(IJ.isMacro())
+			{
+				load(loadFile, loadKey, loadIndex, inputFileName, shortFilename);
+			}
+			else
+			{
+				final Thread loader = new Thread(() -> load(loadFile, loadKey, loadIndex, inputFileName, shortFilename), "PTU_Reader " + inputFileName.getName());
+				loader.start();
 			}
-			IJ.showProgress(n + 1, nRecords);
 		}
-		IJ.showProgress(nRecords, nRecords);
-		
-		//somehow SymPhoTime removes last measurement???
-		dtimemax--;
-		
-		// Get the average sync signals per line in the recorded data
-		// It helps to determine photon assignment to a pixel.
-		// Is it the best idea? I'm not sure, but it works so far. 
-		// In principle, should use line start/end
-		syncCountPerLine /= nLines;				
-		
-		if(!bFrameMarkerPresent)
-			frameNb = (int)Math.ceil((double)nLines/(double)nPixY) + 1;
-
-		IJ.log("syncCountPerLine: " + syncCountPerLine);
-		IJ.log("Total frames: " + Integer.toString(frameNb-1));
-		IJ.log("Maximum time: " + Integer.toString(dtimemax));
-		
-		nTotFrames = frameNb-1;
-		//show user load settings dialog 
-		if(!loadDialog())
+		catch (IOException e) 
 		{
-			bBuff.clear();
-			return;
+			IJ.error(e.getMessage());
 		}
-		
-		//load range only
-		if(!bLoadRange)
+		catch (CancellationException e)
 		{
-			nFrameMin = 1;
-			nFrameMax = frameNb-1;
+			IJ.log("Loading of " + inputFileName.getName() + " is cancelled.");
+			IJ.showProgress(1.0);
 		}
+		finally
+		{
+			closeFile(ptuFile);
+			if(!bStarted)
+				progress.closeCancel();
+		}
+	}
+	
+	/** analyzes the file (if index is null), decodes records and shows the output.
+	 * Cancel stops loading, decoded part of the data is shown then.
+	 * The file is closed at the end. **/
+	void load(final PtuFile file, final DecodeCache.FileKey fileKey, final PtuIndex knownIndex, final File inputFileName, final String shortFilename)
+	{
+		progress.showCancel(inputFileName.getName());
+		PtuFile ptuFile = file;
+		PtuIndex index = knownIndex;
+		try
+		{
+			if(index == null)
+			{
+				index = analyzeFile(ptuFile, fileKey);
+				logIndex(index);
+			}
 			
-		nTotalBins = (int)Math.ceil((double)(nFrameMax-nFrameMin+1)/(double)nTimeBin);
-
-		//prepare output images 
-		String shortFilename = inputFileName.getName().split(".pt")[0];
-		
-		initOutput(shortFilename);
-		
-		////////////////////////////////////////////////////////
-		////// Read the data second time and place it in images
-		////////////////////////////////////////////////////////	
-		
-		IJ.showStatus("Reading lifetime data...");
-				
-		// initialize/reset read variables		
-		resetReading();	
-		
-		bBuff.position(dataPosition);
-		
-		boolean frameUpdate = true;	
-		
-		int nCurrFrame = 1;		
-		
-		float tempFloat = 0;
-		
-		int tempInt = 0;
+			params.validate(nTotFrames);
 			
-		// read data
-		for(int n = 0; n < nRecords; n++)
-		{	
+			//shifts are estimated for each load, so drift corrected data is never reused
+			params.drift = null;
+			if(bDriftCorrection)
+			{
+				if(ptuFile == null)
+				{
+					ptuFile = openFile(inputFileName.toPath());
+				}
+				IJ.showStatus("Estimating drift...");
+				params.drift = DriftCorrection.estimate(ptuFile, index, params, Runtime.getRuntime().availableProcessors(), progress);
+				IJ.log(params.drift.getReport());
+			}
 			
-			isPhoton = readRecord();
+			//frame sums are made only during decoding
+			final FrameSums cachedSums = DecodeCache.getInstance().getSums(fileKey);
+			final boolean bBuildSums = bKeepFrameSums && params.bLoadIntAverLTImages
+					&& (cachedSums == null || !cachedSums.covers(params)) && hasMemoryForSums(index);
+			FlimData data = bBuildSums ? null : DecodeCache.getInstance().getData(fileKey, params);
+			final boolean bDecodeData = (data == null);
+			boolean bCached = !bDecodeData;
+			//parameters of the dense accumulators
+			DecodeParameters decodeParams = params;
+			boolean bSparseLT = false;
+			if(bCached)
+			{
+				IJ.log("Using cached lifetime data.");
+			}
+			else
+			{
+				//choose representation of the outputs before decoding
+				final double dBudgetMB = Prefs.get("PTU_Reader.dMemoryBudgetMB", -1);
+				final MemoryPlan plan = MemoryPlan.create(header, index, params, dBudgetMB >= 0 ? (long)(dBudgetMB * 1024 * 1024) : -1);
+				IJ.log(plan.getReport(params));
+				if(!plan.isDense(params) && !confirmPlan(plan))
+				{
+					return;
+				}
+				decodeParams = plan.getDecodeParameters(params);
+				bSparseLT = (plan.nLTStack == MemoryPlan.SPARSE);
+			}
 			
-			//update global time
-			//this should happen after the readRecord
-			curSync = ofltime + nsync;
+			//photon index is built only if there is no saved one,
+			//saved index is always unfiltered
+			final Path ptuPath = inputFileName.toPath();
+			//(index of the valid part only is not saved)
+			final boolean bUnfiltered = params.filter.passesAll() && params.drift == null && !header.bRecordsChecked;
+			PhotonIndex photonIndex = null;
+			PhotonIndex.Builder photons = null;
+			boolean bPartial = false;
+			if(params.bBuildPhotonIndex || bSparseLT)
+			{
+				if(bUnfiltered && PhotonIndex.isAvailable(ptuPath, params.nFrameMin, params.nFrameMax))
+				{
+					if(bSparseLT)
+					{
+						photonIndex = PhotonIndex.load(ptuPath);
+					}
+				}
+				else
+				{
+					photons = new PhotonIndex.Builder(header, index, params, true);
+				}
+			}
 			
-			//it is a marker
-			if(!isPhoton)
-			{		
-				if(markers >= nFrameMark && bFrameMarkerPresent) 
+			if(bDecodeData || photons != null)
+			{
+				if(ptuFile == null)
 				{
-					nCurrFrame += 1;
-					frameUpdate = true;
-					curLine = 0;
+					ptuFile = openFile(ptuPath);
 				}
-				if (markers == nLineStart && syncStart < 0)
+				//prepare output 
+				if(bDecodeData)
 				{
-					insideLine = true;
-					syncStart = curSync;
+					data = new FlimData(header, index, decodeParams, new BufferPool(), IJ::log);
+					if(bBuildSums)
+					{
+						data.frameSums = new FrameSums(header, index, decodeParams);
+					}
 				}
-				else
+				
+				////////////////////////////////////////////////////////
+				////// Read the data second time and place it in images
+				////////////////////////////////////////////////////////	
+				
+				IJ.showStatus("Reading lifetime data...");
+				
+				try
+				{
+					ptuFile.decode(index, decodeParams, bDecodeData ? data : null, photons, progress);
+				}
+				catch (CancellationException e)
+				{
+					if(!bDecodeData)
+						throw e;
+					//what is decoded so far is shown, but not cached
+					IJ.log("Loading of " + inputFileName.getName() + " is cancelled, showing partial data.");
+					IJ.showProgress(1.0);
+					bPartial = true;
+					photons = null;
+				}
+				
+				IJ.showStatus("Reading lifetime values...done.");
+				
+				if(bDecodeData && data.frameSums != null)
 				{
-					if (markers == nLineStop && syncStart >= 0)
+					if(!bPartial)
 					{
-						insideLine = false;
-						curLine++;						
-						syncStart = -1;
-						if(curLine == nPixY && (!bFrameMarkerPresent))
-						{
-							nCurrFrame += 1;
-							curLine = 0;
-							frameUpdate = true;
-						}
+						data.frameSums.finish();
+						DecodeCache.getInstance().putSums(fileKey, data.frameSums);
+						IJ.log("Frame sums are kept for PTU Rebin (" + Long.toString(data.frameSums.getSizeBytes() >> 20) + " MB).");
 					}
+					data.frameSums = null;
 				}
-			}
-			//it is a photon
-			else if (insideLine)
-			{				
-				curPixel = (int) Math.floor((curSync-syncStart)/(double)syncCountPerLine*nPixX);
 				
-				if(nCurrFrame >= nFrameMin && nCurrFrame <= nFrameMax)
+				if(bDecodeData && !bPartial && params.drift == null)
+				{
+					bCached = DecodeCache.getInstance().putData(fileKey, decodeParams, data);
+				}
+			}
+			if(photons != null)
+			{
+				photonIndex = buildPhotonIndex(photons, ptuPath, params.bBuildPhotonIndex && bUnfiltered);
+			}
+			if(bSparseLT && photonIndex == null)
+			{
+				IJ.log("Photon index is not available, lifetime stack is not loaded.");
+			}
+			
+			//cached data stays unchanged, output gets a copy
+			if(bCached)
+			{
+				data = data.copy(decodeParams.bLoadIntAverLTImages, decodeParams.bLoadLTOrderedStacks);
+			}
+			showCalculateOutput(data, bSparseLT ? photonIndex : null, bPartial ? shortFilename + "_partial" : shortFilename, inputFileName.getAbsolutePath());
+			closePreview();
+		}
+		catch (IOException e) 
+		{
+			IJ.error(e.getMessage());
+		}
+		catch (CancellationException e)
+		{
+			IJ.log("Loading of " + inputFileName.getName() + " is cancelled.");
+			IJ.showProgress(1.0);
+		}
+		finally
+		{
+			closeFile(ptuFile);
+			progress.closeCancel();
+		}
+	}
+
+	/** opens the shared file, limited to the valid part if only it is loaded **/
+	PtuFile openFile(final Path path) throws IOException
+	{
+		final PtuFile file = PtuFile.openShared(path, s -> {}, new BufferPool(PtuFile.READER_POOL_BYTES));
+		if(!header.bRecordsChecked)
+			return file;
+		try
+		{
+			return file.limit(header.nRecords);
+		}
+		finally
+		{
+			file.close();
+		}
+	}
+
+	/** checks that frame sums of the loaded frames fit into a half of the memory **/
+	boolean hasMemoryForSums(final PtuIndex index)
+	{
+		final long nBytes = FrameSums.getSizeBytes(header, index, params);
+		if(nBytes > Runtime.getRuntime().maxMemory() / 2)
+		{
+			IJ.log("Not enough memory for frame sums (" + Long.toString(nBytes >> 20) + " MB), they are not kept.");
+			return false;
+		}
+		return true;
+	}
+
+	/** shows progress in the status bar. Each loading has its own cancel flag,
+	 * set by the Cancel button (or Escape key) of a small window of this loading,
+	 * so several files loaded at once are cancelled separately
+	 * (the global ImageJ Escape state is not used). **/
+	static class LoadProgress implements ProgressListener
+	{
+		volatile boolean bCancelled = false;
+
+		/** window with the Cancel button, created and disposed in the event thread **/
+		Frame cancelWindow = null;
+
+		@Override
+		public void progress(final long nDone, final long nTotal)
+		{
+			IJ.showProgress((double)nDone / nTotal);
+		}
+
+		@Override
+		public boolean isCancelled()
+		{
+			return bCancelled;
+		}
+
+		public void cancel()
+		{
+			bCancelled = true;
+		}
+
+		/** shows the cancel window of this loading (nothing in headless mode) **/
+		void showCancel(final String sName)
+		{
+			if(GraphicsEnvironment.isHeadless())
+				return;
+			EventQueue.invokeLater(() -> {
+				if(cancelWindow != null)
+					return;
+				cancelWindow = new Frame("PTU_Reader");
+				cancelWindow.setLayout(new FlowLayout());
+				cancelWindow.add(new Label(sName));
+				final Button cancelButton = new Button("Cancel");
+				cancelButton.addActionListener(e -> {
+					cancel();
+					cancelButton.setEnabled(false);
+				});
+				cancelButton.addKeyListener(new KeyAdapter()
 				{
-					if(bLoadIntAverLTImages)
+					@Override
+					public void keyPressed(final KeyEvent e)
 					{
-						//frame update
-						if(frameUpdate)
-						{
-							nBinnedFrameN = (int)Math.ceil((double)(nCurrFrame-nFrameMin+1)/(double)nTimeBin);
-							//update current frame in the output
-							for (int nCh = 0; nCh < 4; nCh++)
-							{
-								if(bChannels[nCh])
-								{
-									ipInt[nCh].setSliceWithoutUpdate(nBinnedFrameN);
-									ipAverT[nCh].setSliceWithoutUpdate(nBinnedFrameN);
-								}						
-							}
-							frameUpdate = false;
-						}
-						
-						if(dtime <= dtimemax)
-						{
-							//intensity
-							tempFloat = Float.intBitsToFloat(ipInt[chan-1].getProcessor().getPixel(curPixel, curLine));
-							tempFloat++;
-							ipInt[chan-1].getProcessor().putPixel(curPixel, curLine, Float.floatToIntBits(tempFloat));
-	
-							//cumulative lifetime
-							tempFloat = Float.intBitsToFloat(ipAverT[chan-1].getProcessor().getPixel(curPixel, curLine));	
-							tempFloat += dtime; ///cumulative sum
-							ipAverT[chan-1].getProcessor().putPixel(curPixel, curLine, Float.floatToIntBits(tempFloat));
-							lPhotCumHistogram[chan-1][dtime]++;
-						}
+						if(e.getKeyCode() == KeyEvent.VK_ESCAPE)
+							cancelButton.dispatchEvent(new ActionEvent(cancelButton, ActionEvent.ACTION_PERFORMED, "Cancel"));
 					}
-					
-					//update lifetime ordered stacks 
-					if(bLoadLTOrderedStacks)
-					{						
-						if(nLTload == 0)
-						{
-							ipLTOrdered[chan-1].setSliceWithoutUpdate(dtime+1);
-						}
-						else
-						{
-							ipLTOrdered[chan-1].setPosition(1, dtime+1, nBinnedFrameN);
-						}
-						tempInt = ipLTOrdered[chan-1].getProcessor().getPixel(curPixel, curLine);
-						tempInt++;
-						ipLTOrdered[chan-1].getProcessor().putPixel(curPixel, curLine, tempInt);
+				});
+				cancelWindow.add(cancelButton);
+				cancelWindow.addWindowListener(new WindowAdapter()
+				{
+					@Override
+					public void windowClosing(final WindowEvent e)
+					{
+						cancel();
 					}
+				});
+				cancelWindow.pack();
+				cancelWindow.setVisible(true);
+			});
+		}
 
-				}				
-			}	
-			IJ.showProgress(n + 1, nRecords);
-		}// END of the second read record loop///////////////////
-		
-		IJ.showProgress(nRecords, nRecords);
-		IJ.showStatus("Reading lifetime values...done.");
-		
-		// Clears the byte buffer containing the file data
-		bBuff.clear(); 
-		
-		showCalculateOutput();
+		/** disposes the cancel window **/
+		void closeCancel()
+		{
+			if(GraphicsEnvironment.isHeadless())
+				return;
+			EventQueue.invokeLater(() -> {
+				if(cancelWindow == null)
+					return;
+				cancelWindow.dispose();
+				cancelWindow = null;
+			});
+		}
+	}
+	
+	/** reads all records once to calculate total frame number,
+	 * maximum lifetime register and syncCountPerLine (and caches them) **/
+	PtuIndex analyzeFile(final PtuFile ptuFile, final DecodeCache.FileKey fileKey) throws IOException
+	{
+		IJ.showStatus("Analyzing average acquisition speed/max time/channels...");
+		final PtuIndex index = ptuFile.analyze(progress);
+		DecodeCache.getInstance().putInfo(fileKey, header, index);
+		setIndex(index);
+		return index;
+	}
 
+	/** takes header and index of the file analyzed before **/
+	PtuIndex useCachedInfo(final DecodeCache.FileInfo info)
+	{
+		IJ.log("Using cached header and frames analysis.");
+		header = info.header;
+		setIndex(info.index);
+		return info.index;
 	}
 
-	/** show final images **/
-	void showCalculateOutput()
+	/** frame count and maximum lifetime for the load dialog
+	 * from the (analyzed or cached) index **/
+	void setIndex(final PtuIndex index)
+	{
+		nTotFrames = index.nTotFrames;
+		nDtimeMax = index.dtimemax;
+		bFramesEstimated = false;
+	}
+	
+	static void logIndex(final PtuIndex index)
 	{
-		if(bLoadIntAverLTImages)
+		IJ.log("syncCountPerLine: " + index.syncCountPerLine);
+		IJ.log("Total frames: " + Integer.toString(index.nTotFrames));
+		IJ.log("Maximum time: " + Integer.toString(index.dtimemax));
+	}
+	
+	/** shows Intensity and FastLifetime of the quick look (replaced by the loaded ones later) **/
+	void showPreview(final QuickLook quickLook, final String shortFilename)
+	{
+		if(quickLook.preview == null)
+			return;
+		for(int nCh = 0; nCh < 4; nCh++)
+		{
+			if(!quickLook.preview.bChannels[nCh])
+				continue;
+			final String sChannel = "_C" + Integer.toString(nCh + 1);
+			ipPreview[2 * nCh] = new ImagePlus(shortFilename + sChannel + "_Intensity_Preview",
+					new ij.process.FloatProcessor(quickLook.preview.nPixX, quickLook.preview.nPixY, quickLook.preview.fIntensity[nCh][0]));
+			ipPreview[2 * nCh + 1] = new ImagePlus(shortFilename + sChannel + "_FastLifeTime_Preview",
+					new ij.process.FloatProcessor(quickLook.preview.nPixX, quickLook.preview.nPixY, quickLook.preview.fLifetime[nCh][0]));
+			for(int i = 2 * nCh; i <= 2 * nCh + 1; i++)
+			{
+				ipPreview[i].show();
+				IJ.run(ipPreview[i], "Enhance Contrast", "saturated=0.35");
+			}
+		}
+	}
+	
+	/** closes preview images (if they are still open) **/
+	void closePreview()
+	{
+		for(int i = 0; i < ipPreview.length; i++)
+		{
+			if(ipPreview[i] != null)
+			{
+				ipPreview[i].changes = false;
+				ipPreview[i].close();
+				ipPreview[i] = null;
+			}
+		}
+	}
+	
+	/** groups collected photons by pixel and (optionally) saves the index next to the file,
+	 * returns null if there are too many photons **/
+	static PhotonIndex buildPhotonIndex(final PhotonIndex.Builder photons, final Path ptuPath, final boolean bSave)
+	{
+		IJ.showStatus("Building photon index...");
+		final PhotonIndex photonIndex = photons.build();
+		if(photonIndex == null)
+		{
+			IJ.log("Too many photons for the photon index.");
+			return null;
+		}
+		if(bSave)
+		{
+			try
+			{
+				photonIndex.save(ptuPath);
+				IJ.log("Photon index saved to " + PhotonIndex.getIndexPath(ptuPath));
+			}
+			catch (IOException e)
+			{
+				IJ.log("Unable to save photon index: " + e.getMessage());
+			}
+		}
+		IJ.showStatus("Building photon index...done.");
+		return photonIndex;
+	}
+	
+	/** shows the plan if some outputs are not stored in memory as usual,
+	 * returns false if user cancels loading **/
+	boolean confirmPlan(final MemoryPlan plan)
+	{
+		final GenericDialog gd = new GenericDialog("Not enough memory");
+		gd.addMessage("Not all requested outputs fit in memory:\n" + plan.getReport(params) + "\nContinue loading?");
+		gd.showDialog();
+		return !gd.wasCanceled();
+	}
+	
+	static void closeFile(final PtuFile ptuFile)
+	{
+		if(ptuFile == null)
+			return;
+		try
+		{
+			ptuFile.close();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/** calculates fast lifetime, wraps accumulators into images and shows them **/
+	void showCalculateOutput(final FlimData data, final PhotonIndex photonIndex, final String shortFilename, final String sFilePath)
+	{
+		initOutput(data, photonIndex, shortFilename);
+		
+		//source of the images, used by ROI decay command
+		//(with the region of cropped images in the full frame)
+		final PhotonFilter filter = params.filter;
+		final String sCrop = filter.isCropped(header.nPixX, header.nPixY) ? 
+				Integer.toString(filter.getX0(header.nPixX)) + "," + Integer.toString(filter.getY0(header.nPixY)) + ","
+				+ Integer.toString(filter.getWidth(header.nPixX)) + "," + Integer.toString(filter.getHeight(header.nPixY)) : null;
+		for(int nCh = 0; nCh < 4; nCh++)
+		{
+			for(final ImagePlus imp : new ImagePlus[] {ipInt[nCh], ipAverT[nCh], ipLTOrdered[nCh]})
+			{
+				if(imp != null)
+				{
+					imp.setProperty(PTU_ROI_Decay_.PROP_FILE, sFilePath);
+					imp.setProperty(PTU_ROI_Decay_.PROP_CHANNEL, Integer.toString(nCh));
+					if(sCrop != null)
+						imp.setProperty(PTU_ROI_Decay_.PROP_CROP, sCrop);
+					if(header.bRecordsChecked)
+						imp.setProperty(PTU_ROI_Decay_.PROP_RECORDS, Long.toString(header.nRecords));
+				}
+			}
+		}
+		
+		if(data.bIntAverLT)
 		{
 			final Calibration calIntLT = new Calibration();
 			calIntLT.setUnit("um");
-			calIntLT.pixelWidth = dPixSize;
-			calIntLT.pixelHeight = dPixSize;
+			calIntLT.pixelWidth = header.dPixSize;
+			calIntLT.pixelHeight = header.dPixSize;
 			
-			estimateIRFZeroTime();
+			if(params.ltBinning != null)
+			{
+				IJ.log(params.ltBinning.getReport());
+			}
+			data.computeFastLifetime(header.fTimeResolution, params.bRemoveNegativeLT, params.ltBinning, IJ::log);
 			for(int nCh = 0; nCh < 4; nCh++)
 			{
-				if(bChannels[nCh])	
+				if(data.bChannels[nCh])	
 				{
 					ipInt[nCh].setProperty("Info", AcquisitionInfo);
 					ipAverT[nCh].setProperty("Info", AcquisitionInfo);
-					if(dPixSize > 0)
+					if(header.dPixSize > 0)
 					{
 						ipInt[nCh].setCalibration(calIntLT);
 						ipAverT[nCh].setCalibration(calIntLT);
 
 					}
-					//calculate average
-					for(int nFrame = 1; nFrame <= nTotalBins; nFrame++)
-					{
-						ipAverT[nCh].setSliceWithoutUpdate(nFrame);
-						ipInt[nCh].setSliceWithoutUpdate(nFrame);
-						for(int x = 0; x<nPixX;x++)
-							for(int y = 0; y<nPixY;y++)
-							{
-								final float fPhotons = ipInt[nCh].getProcessor().getf(x,y);
-								final float fSum = ipAverT[nCh].getProcessor().getf(x,y);
-								if(fPhotons > 0)
-								{
-									float fLTCorrected = (fTimeResolution*fSum/fPhotons) - tZeroIRF[nCh];
-									//if(fLTCorrected > 0.0f )
-									//{
-									if(bRemoveNegativeLT)
-									{
-										if(fLTCorrected<0.0f)
-											fLTCorrected = 0.0f;
-									}								
-									ipAverT[nCh].getProcessor().setf(x, y, fLTCorrected);
-									//}
-								}
-								//should be already zero otherwise
-							}
-					}
-					
-					ipInt[nCh].setSliceWithoutUpdate(1);
-					ipAverT[nCh].setSliceWithoutUpdate(1);
 					ipInt[nCh].show();
 					IJ.run(ipInt[nCh], "Enhance Contrast", "saturated=0.35");
 					ipAverT[nCh].show();
@@ -574,22 +727,22 @@ public class PTU_Reader_ implements PlugIn
 		}
 		
 		//set scale, add info and show lifetime ordered images
-		if(bLoadLTOrderedStacks)
+		if(data.bLTStack || photonIndex != null)
 		{
 			final Calibration calLTOrder = new Calibration();
 			calLTOrder.setXUnit("um");
 			calLTOrder.setYUnit("um");
 			calLTOrder.setZUnit("ns");
-			calLTOrder.pixelWidth = dPixSize;
-			calLTOrder.pixelHeight = dPixSize;
-			calLTOrder.pixelDepth = fTimeResolution;
+			calLTOrder.pixelWidth = header.dPixSize;
+			calLTOrder.pixelHeight = header.dPixSize;
+			calLTOrder.pixelDepth = header.fTimeResolution;
 			for(int nCh = 0; nCh < 4; nCh++)
-				if(bChannels[nCh])
+				if(data.bChannels[nCh])
 				{
 					//metadata
 					ipLTOrdered[nCh].setProperty("Info", AcquisitionInfo); 
 					//image calibration
-					if(dPixSize>0)
+					if(header.dPixSize>0)
 					{
 						ipLTOrdered[nCh].setCalibration(calLTOrder);
 					}					
@@ -600,61 +753,58 @@ public class PTU_Reader_ implements PlugIn
 		}
 	}
 	
-	/** initializes output images/stacks **/
-	void initOutput(String shortFilename)
+	/** wraps accumulated arrays into output images/stacks (without copying),
+	 * lifetime stack is computed from photon index if it is not null **/
+	void initOutput(final FlimData data, final PhotonIndex photonIndex, final String shortFilename)
 	{
 
 		for (int nCh = 0; nCh < 4; nCh++)
-			if(bChannels[nCh])				
+			if(data.bChannels[nCh])				
 			{	
 				String sChannel = "_C" + Integer.toString(nCh+1);
-				if(bLoadIntAverLTImages)
+				//intensity and lifetime
+				if(data.bIntAverLT)
 				{
-					lPhotCumHistogram[nCh] = new long[dtimemax+1];
-					//intensity and lifetime
-					if(bLoadIntAverLTImages)
+					String sIntTitle = shortFilename + sChannel + "_Intensity";
+					String sFLTtitle = shortFilename + sChannel + "_FastLifeTime";
+					if(params.nLTload == 1)
+					{
+						sIntTitle = sIntTitle + "_Bin="	+ Integer.toString(params.nTimeBin);
+						sFLTtitle = sFLTtitle + "_Bin="	+ Integer.toString(params.nTimeBin);
+					}
+					final ImageStack stackInt = new ImageStack(data.nPixX, data.nPixY);
+					final ImageStack stackAverT = new ImageStack(data.nPixX, data.nPixY);
+					for(int nBin = 0; nBin < data.nTotalBins; nBin++)
 					{
-						String sIntTitle = shortFilename + sChannel + "_Intensity";
-						String sFLTtitle = shortFilename + sChannel + "_FastLifeTime";
-						if(nLTload == 1)
-						{
-							sIntTitle = sIntTitle + "_Bin="	+ Integer.toString(nTimeBin);
-							sFLTtitle = sFLTtitle + "_Bin="	+ Integer.toString(nTimeBin);
-						}
-						ipInt[nCh] = IJ.createImage(sIntTitle, "32-bit black", nPixX, nPixY, nTotalBins);
-						ipAverT[nCh] = IJ.createImage(sFLTtitle, "32-bit black", nPixX, nPixY, nTotalBins);	
+						stackInt.addSlice("", data.fIntensity[nCh][nBin]);
+						stackAverT.addSlice("", data.fLifetime[nCh][nBin]);
 					}
+					ipInt[nCh] = new ImagePlus(sIntTitle, stackInt);
+					ipAverT[nCh] = new ImagePlus(sFLTtitle, stackAverT);
 				}
 				
 				//lifetime ordered
-				if(bLoadLTOrderedStacks)
+				if(data.bLTStack || photonIndex != null)
 				{
 					String sLTtitle = shortFilename + sChannel + "_LifetimeStack";
-					if(nLTload == 1)
+					if(params.nLTload == 1)
 					{
-						sLTtitle = sLTtitle +"_Bin=" + Integer.toString(nTimeBin);
+						sLTtitle = sLTtitle +"_Bin=" + Integer.toString(params.nTimeBin);
 					}
-					
-					try 
-					{											
-						if(nLTload == 0)
-						{
-							ipLTOrdered[nCh] = IJ.createImage(sLTtitle, "8-bit black", nPixX, nPixY, dtimemax + 1);
-						}
-						else
-						{
-							ipLTOrdered[nCh] = IJ.createHyperStack(sLTtitle, nPixX, nPixY, 1, dtimemax+1, nTotalBins, 8);							
-						}
+					final ImageStack stackLT;
+					if(data.bLTStack)
+					{
+						stackLT = new DecayStack(data.ltDecay[nCh], data.nPixX, data.nPixY);
 					}
-
-					catch (Exception e) 
+					else
 					{
-						e.printStackTrace();
-					} 
-					catch (OutOfMemoryError e) 
+						stackLT = new PhotonStack(photonIndex, nCh, params);
+					}
+					ipLTOrdered[nCh] = new ImagePlus(sLTtitle, stackLT);
+					if(params.nLTload == 1)
 					{
-						IJ.log("Unable to allocate memory for lifetime stack (out of memory)!!\n Skipping lifetime loading.");
-						bLoadLTOrderedStacks = false;
+						ipLTOrdered[nCh].setDimensions(1, data.nLTSlices, data.nTotalBins);
+						ipLTOrdered[nCh].setOpenAsHyperStack(true);
 					}
 				}
 
@@ -662,41 +812,6 @@ public class PTU_Reader_ implements PlugIn
 		
 	}
 	
-	void estimateIRFZeroTime()
-	{
-		for(int nCh = 0; nCh < 4; nCh++)
-		{
-			if(bChannels[nCh])	
-			{
-				//calculate derivative of total photon histogram
-				for (int t = 0; t < dtimemax; t++)
-				{
-					lPhotCumHistogram[nCh][t] =lPhotCumHistogram[nCh][t+1]-lPhotCumHistogram[nCh][t]; 					
-				}
-				//find maximum
-				long lMax = Long.MAX_VALUE*(-1);
-				int maxInd = 0;
-				for(int t=0; t < dtimemax; t++)
-				{
-					if(lPhotCumHistogram[nCh][t]>lMax)
-					{
-						lMax = lPhotCumHistogram[nCh][t];
-						maxInd = t;
-					}
-				}
-				// peak position centroid estimate
-				// according to https://iopscience.iop.org/article/10.3847/2515-5172/aae265
-				// A Robust Method to Measure Centroids of Spectral Lines
-				// Richard Teague  and Daniel Foreman-Mackey
-				// DOI 10.3847/2515-5172/aae265
-				//estimate
-				final float fMax = ( float ) ( maxInd - 0.5*(lPhotCumHistogram[nCh][maxInd+1]-lPhotCumHistogram[nCh][maxInd-1])/(lPhotCumHistogram[nCh][maxInd+1]+lPhotCumHistogram[nCh][maxInd-1]-2.0f*lPhotCumHistogram[nCh][maxInd]) );	
-				tZeroIRF[nCh] = fTimeResolution*(fMax+1.0f);
-				IJ.log("Estimated IRF t=0 for channel "+Integer.toString( nCh )+": "+Float.toString( tZeroIRF[nCh] )+"ns");
-			}
-		}
-	}
-	
     public static int hex2dec(String s) 
     {
         String digits = "0123456789ABCDEF";
@@ -709,98 +824,6 @@ public class PTU_Reader_ implements PlugIn
         }
         return val;
     }
-    
-	
-	/** function reads one 4 byte record from the file
-	 *  into the current state variables. 
-	 *  Returns true if it is a photon and false if it is a marker. **/
-	boolean readRecord()
-	{
-		final byte[] record = new byte[4];
-		bBuff.get(record,0,4);
-		
-		final int recordData = ((record[3] & 0xFF) << 24) | ((record[2] & 0xFF) << 16) | ((record[1] & 0xFF) << 8) | (record[0] & 0xFF); //Convert from little endian
-
-		//picoharp
-		if(nRecordType == HeaderReader.rtPicoHarpT3)
-		{
-			return ReadPT3(recordData);
-		}
-		//multiharp
-		return ReadHT3(recordData);
-	}
-	
-	/** returns true if it is a photon data, returns false if it is a marker **/
-	boolean ReadPT3(final int recordData)//, long nsync, int dtime, int chan, int markers)
-	{
-		boolean isPhoton = true;
-		nsync = recordData&0xFFFF; //lowest 16 bits
-		dtime = (recordData>>>16)&0xFFF;
-		chan = (recordData>>>28)&0xF;
-
-		if (chan == 15)
-		{	
-			isPhoton = false;
-			markers = (recordData>>16)&0xF;			
-			if(markers == 0 || dtime == 0)
-			{
-				ofltime += PT3WRAPAROUND;
-			}
-		}
-		return isPhoton;
-	}
-	
-	/** returns true if it is a photon data, returns false if it is a marker **/
-	boolean ReadHT3(final int recordData)//, long nsync, int dtime, int chan, int markers)
-	{
-		int special;
-	
-		boolean isPhoton=true;
-		nsync = recordData&0x3FF;//lowest 10 bits
-		dtime = (recordData>>>10)&0x7FFF;
-		chan = (recordData>>>25)&0x3F;
-		special = (recordData>>>31)&0x1;
-		special = special * chan;
-		
-		if (special == 0)
-		{
-			/*if(chan==0)
-				return false;
-			else
-			*/
-			chan = chan + 1;
-			return isPhoton;
-		}
-		isPhoton = false;
-		if(chan == 63)
-		{
-			if(nsync==0 || nHT3Version == 1)
-				ofltime = ofltime + HT3WRAPAROUND;
-			else
-				ofltime = ofltime + HT3WRAPAROUND * nsync;
-		}
-		
-		if ((chan >= 1) && (chan <= 15)) // these are markers
-		{
-				markers = chan;
-		}					
-		
-		return isPhoton;
-	}
-	
-	void resetReading()
-	{
-		ofltime = 0;
-	    curLine = 0;
-		curSync = 0;
-		syncStart = -1;
-		nsync = 0;
-		chan = 0;
-		dtime = 0;
-		markers = 0;
-		curPixel = 0;
-		insideLine = false;
-	}	
 	
     /** 
 	 * Dialog displaying options for loading
@@ -809,7 +832,7 @@ public class PTU_Reader_ implements PlugIn
 	{
 		loadParamsDialog = new GenericDialog("FLIM data load parameters");
 			
-		loadParamsDialog.addMessage("Total number of frames: " + Integer.toString(nTotFrames) );
+		loadParamsDialog.addMessage("Total number of frames: " + (bFramesEstimated ? "about " : "") + Integer.toString(nTotFrames) );
 		loadParamsDialog.addCheckbox("Show Intensity and FastLifetime", Prefs.get("PTU_Reader.bIntLTImages", true));
 		loadParamsDialog.addCheckbox("Show Lifetime raw stack", Prefs.get("PTU_Reader.bLTOrder", false));
 		loadParamsDialog.addMessage("\n");	
@@ -819,6 +842,16 @@ public class PTU_Reader_ implements PlugIn
 		loadParamsDialog.addCheckbox("Load only frame range (applies to all)", Prefs.get("PTU_Reader.bLoadRange", false));
 		loadParamsDialog.addStringField("Range:", new DecimalFormat("#").format(1) + "-" +  new DecimalFormat("#").format(nTotFrames));		
 		loadParamsDialog.addCheckbox("Remove negative FastLifetime", Prefs.get("PTU_Reader.bRemoveNegativeLT", false));
+		loadParamsDialog.addChoice("FastLifetime binning:", AdaptiveBinning.sModes, Prefs.get("PTU_Reader.sLTBinning", AdaptiveBinning.sModes[AdaptiveBinning.NONE]));
+		loadParamsDialog.addNumericField("Target photons per pixel:", Prefs.get("PTU_Reader.nLTBinPhotons", 100), 0);
+		loadParamsDialog.addNumericField("Maximum kernel radius:", Prefs.get("PTU_Reader.nLTBinRadius", 5), 0);
+		loadParamsDialog.addCheckbox("Build photon index (ROI decay curves)", Prefs.get("PTU_Reader.bBuildPhotonIndex", false));
+		loadParamsDialog.addCheckbox("Keep frame sums (PTU Rebin)", Prefs.get("PTU_Reader.bKeepFrameSums", false));
+		loadParamsDialog.addCheckbox("Correct drift (phase correlation)", Prefs.get("PTU_Reader.bDriftCorrection", false));
+		loadParamsDialog.addMessage("Filters (leave empty to load everything):");
+		loadParamsDialog.addStringField("Crop x,y,width,height:", Prefs.get("PTU_Reader.sCrop", ""));
+		loadParamsDialog.addStringField("Channels (e.g. 1,3):", Prefs.get("PTU_Reader.sChannels", ""));
+		loadParamsDialog.addStringField("Microtime range (0-" + Integer.toString(nDtimeMax) + "):", Prefs.get("PTU_Reader.sDtimeRange", ""));
 		
 		loadOption = ( Choice ) loadParamsDialog.getChoices().get( 0 );
 		tfBin = ( TextField ) loadParamsDialog.getNumericFields().get( 0 );
@@ -878,58 +911,120 @@ public class PTU_Reader_ implements PlugIn
 	
 	void readDialogParameters()
 	{
-		bLoadIntAverLTImages = loadParamsDialog.getNextBoolean();
-		Prefs.set("PTU_Reader.bIntLTImages", bLoadIntAverLTImages);	
+		params.bLoadIntAverLTImages = loadParamsDialog.getNextBoolean();
+		Prefs.set("PTU_Reader.bIntLTImages", params.bLoadIntAverLTImages);	
 		
-		bLoadLTOrderedStacks = loadParamsDialog.getNextBoolean();
-		Prefs.set("PTU_Reader.bLTOrder", bLoadLTOrderedStacks);
+		params.bLoadLTOrderedStacks = loadParamsDialog.getNextBoolean();
+		Prefs.set("PTU_Reader.bLTOrder", params.bLoadLTOrderedStacks);
 		
-		nLTload = loadParamsDialog.getNextChoiceIndex();
-		Prefs.set("PTU_Reader.LTload", loadoptions[nLTload]);
+		params.nLTload = loadParamsDialog.getNextChoiceIndex();
+		Prefs.set("PTU_Reader.LTload", loadoptions[params.nLTload]);
 		
-		nTimeBin = (int)loadParamsDialog.getNextNumber();
-		if(nTimeBin < 1 || nTimeBin > nTotFrames)
+		//estimated number of frames is checked after the analysis (DecodeParameters.validate)
+		final int nFramesLimit = bFramesEstimated ? Integer.MAX_VALUE : nTotFrames;
+		
+		params.nTimeBin = (int)loadParamsDialog.getNextNumber();
+		if(params.nTimeBin < 1 || params.nTimeBin > nFramesLimit)
 		{
 			IJ.log("Bin size should be in the range from 1 to total frame size, resetting to 1");
-			nTimeBin = 1;
+			params.nTimeBin = 1;
 		}
 		
-		Prefs.set("PTU_Reader.nTimeBin", nTimeBin);
+		Prefs.set("PTU_Reader.nTimeBin", params.nTimeBin);
 		
 		bLoadRange = loadParamsDialog.getNextBoolean();
 		Prefs.set("PTU_Reader.bLoadRange", bLoadRange);	
+		//range of frames (read always, to keep the order of the fields)
+		String sFrameRange = loadParamsDialog.getNextString();
 		if(!bLoadRange)
 		{
-			 nFrameMin = 1;
-			 nFrameMax = nTotFrames;
+			 params.nFrameMin = 1;
+			 params.nFrameMax = nFramesLimit;
 		}
 		else
 		{
-			//range of frames		
-			String sFrameRange = loadParamsDialog.getNextString();
 			Prefs.set("PTU_Reader.sFrameRange", sFrameRange);	
 			String[] range = Tools.split(sFrameRange, " -");
 			double c1 = loadParamsDialog.parseDouble(range[0]);
 			double c2 = range.length == 2 ? loadParamsDialog.parseDouble(range[1]) : Double.NaN;
-			nFrameMin = Double.isNaN(c1)?1:(int)c1;
-			nFrameMax = Double.isNaN(c2)?nFrameMin:(int)c2;
-			if (nFrameMin < 1) nFrameMin = 1;
-			if (nFrameMax > nTotFrames) nFrameMax = nTotFrames;
-			if (nFrameMin > nFrameMax) 
+			params.nFrameMin = Double.isNaN(c1)?1:(int)c1;
+			params.nFrameMax = Double.isNaN(c2)?params.nFrameMin:(int)c2;
+			if (params.nFrameMin < 1) params.nFrameMin = 1;
+			if (params.nFrameMax > nFramesLimit) params.nFrameMax = nFramesLimit;
+			if (params.nFrameMin > params.nFrameMax) 
 			{
-				nFrameMin = 1; 
-				nFrameMax = nTotFrames;
+				params.nFrameMin = 1; 
+				params.nFrameMax = nFramesLimit;
 			}	
 
 		}	
 		
-		if(nLTload == 0)
+		if(params.nLTload == 0)
 		{
-			nTimeBin = nFrameMax - nFrameMin + 1;
+			params.nTimeBin = params.nFrameMax - params.nFrameMin + 1;
 		}
 		
-		bRemoveNegativeLT = loadParamsDialog.getNextBoolean();
-		Prefs.set("PTU_Reader.bRemoveNegativeLT", bRemoveNegativeLT);	
+		params.bRemoveNegativeLT = loadParamsDialog.getNextBoolean();
+		Prefs.set("PTU_Reader.bRemoveNegativeLT", params.bRemoveNegativeLT);	
+		
+		final int nLTBinning = loadParamsDialog.getNextChoiceIndex();
+		final int nLTBinPhotons = (int)loadParamsDialog.getNextNumber();
+		final int nLTBinRadius = (int)loadParamsDialog.getNextNumber();
+		Prefs.set("PTU_Reader.sLTBinning", AdaptiveBinning.sModes[nLTBinning]);
+		Prefs.set("PTU_Reader.nLTBinPhotons", nLTBinPhotons);
+		Prefs.set("PTU_Reader.nLTBinRadius", nLTBinRadius);
+		params.ltBinning = AdaptiveBinning.create(nLTBinning, nLTBinPhotons, nLTBinRadius);
+		
+		params.bBuildPhotonIndex = loadParamsDialog.getNextBoolean();
+		Prefs.set("PTU_Reader.bBuildPhotonIndex", params.bBuildPhotonIndex);
+		
+		bKeepFrameSums = loadParamsDialog.getNextBoolean();
+		Prefs.set("PTU_Reader.bKeepFrameSums", bKeepFrameSums);
+		
+		bDriftCorrection = loadParamsDialog.getNextBoolean();
+		Prefs.set("PTU_Reader.bDriftCorrection", bDriftCorrection);
+		
+		params.filter = readFilter(loadParamsDialog.getNextString(), loadParamsDialog.getNextString(), loadParamsDialog.getNextString());
+	}
+	
+	/** parses filter fields of the dialog (empty field means no filtering) **/
+	static PhotonFilter readFilter(final String sCrop, final String sChannels, final String sDtimeRange)
+	{
+		Prefs.set("PTU_Reader.sCrop", sCrop);
+		Prefs.set("PTU_Reader.sChannels", sChannels);
+		Prefs.set("PTU_Reader.sDtimeRange", sDtimeRange);
+		final PhotonFilter filter = new PhotonFilter();
+		final String [] crop = Tools.split(sCrop, " ,");
+		if(crop.length == 4)
+		{
+			filter.nCropX = (int)Tools.parseDouble(crop[0], 0);
+			filter.nCropY = (int)Tools.parseDouble(crop[1], 0);
+			filter.nCropWidth = (int)Tools.parseDouble(crop[2], 0);
+			filter.nCropHeight = (int)Tools.parseDouble(crop[3], 0);
+		}
+		else if(sCrop.trim().length() > 0)
+		{
+			IJ.log("Crop should be given as x,y,width,height, loading the whole image");
+		}
+		final String [] channels = Tools.split(sChannels, " ,");
+		if(sChannels.trim().length() > 0)
+		{
+			Arrays.fill(filter.bChannels, false);
+			for(int i = 0; i < channels.length; i++)
+			{
+				final int nCh = (int)Tools.parseDouble(channels[i], 0) - 1;
+				if(nCh >= 0 && nCh < 4)
+					filter.bChannels[nCh] = true;
+			}
+		}
+		final String [] range = Tools.split(sDtimeRange, " -");
+		if(sDtimeRange.trim().length() > 0)
+		{
+			filter.nDtimeMin = Math.max(0, (int)Tools.parseDouble(range[0], 0));
+			if(range.length == 2)
+				filter.nDtimeMax = (int)Tools.parseDouble(range[1], Integer.MAX_VALUE);
+		}
+		return filter;
 	}
 
 	public static void main( final String[] args )
@@ -0,0 +1,141 @@
+package ptureader;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.WindowManager;
+import ij.gui.GenericDialog;
+import ij.measure.Calibration;
+import ij.plugin.PlugIn;
+import ij.util.Tools;
+
+/** Makes binned, range limited or sliding window Intensity and FastLifetime
+ * stacks of the file opened by PTU_Reader (with "Keep frame sums" option)
+ * from its per frame sums, without reading the file again (see FrameSums). **/
+public class PTU_Rebin_ implements PlugIn
+{
+	@Override
+	public void run(String arg)
+	{
+		final ImagePlus imp = WindowManager.getCurrentImage();
+		if(imp == null)
+		{
+			IJ.noImage();
+			return;
+		}
+		final Object sFile = imp.getProperty(PTU_ROI_Decay_.PROP_FILE);
+		if(sFile == null)
+		{
+			IJ.error("Current image was not loaded by PTU_Reader.");
+			return;
+		}
+		final DecodeCache.FileKey fileKey;
+		try
+		{
+			final Object sRecords = imp.getProperty(PTU_ROI_Decay_.PROP_RECORDS);
+			final DecodeCache.FileKey wholeFile = DecodeCache.FileKey.of(Paths.get(sFile.toString()));
+			fileKey = (sRecords == null) ? wholeFile : wholeFile.limit(Long.parseLong(sRecords.toString()));
+		}
+		catch (IOException e)
+		{
+			IJ.error("Unable to read " + sFile + ": " + e.getMessage());
+			return;
+		}
+		final FrameSums sums = DecodeCache.getInstance().getSums(fileKey);
+		final DecodeCache.FileInfo info = DecodeCache.getInstance().getInfo(fileKey);
+		if(sums == null || info == null)
+		{
+			IJ.error("No frame sums of " + sFile + " are available,\nload the file with \"Keep frame sums\" option.");
+			return;
+		}
+
+		final GenericDialog gd = new GenericDialog("Rebin frames");
+		gd.addMessage("Frames " + Integer.toString(sums.nFrameMin) + "-" + Integer.toString(sums.nFrameMax) + " are available.");
+		gd.addStringField("Range:", Integer.toString(sums.nFrameMin) + "-" + Integer.toString(sums.nFrameMax));
+		gd.addNumericField("Bin frames:", Prefs.get("PTU_Reader.nRebinFrames", 1), 0);
+		gd.addCheckbox("Sliding window (bin starts every frame)", Prefs.get("PTU_Reader.bRebinSliding", false));
+		gd.addCheckbox("Remove negative FastLifetime", Prefs.get("PTU_Reader.bRemoveNegativeLT", false));
+		gd.addChoice("FastLifetime binning:", AdaptiveBinning.sModes, Prefs.get("PTU_Reader.sLTBinning", AdaptiveBinning.sModes[AdaptiveBinning.NONE]));
+		gd.addNumericField("Target photons per pixel:", Prefs.get("PTU_Reader.nLTBinPhotons", 100), 0);
+		gd.addNumericField("Maximum kernel radius:", Prefs.get("PTU_Reader.nLTBinRadius", 5), 0);
+		gd.showDialog();
+		if(gd.wasCanceled())
+			return;
+		final String[] range = Tools.split(gd.getNextString(), " -");
+		final double c1 = gd.parseDouble(range[0]);
+		final double c2 = range.length == 2 ? gd.parseDouble(range[1]) : Double.NaN;
+		int nFrameFrom = Double.isNaN(c1) ? sums.nFrameMin : (int)c1;
+		int nFrameTo = Double.isNaN(c2) ? nFrameFrom : (int)c2;
+		if(nFrameFrom < sums.nFrameMin || nFrameTo > sums.nFrameMax || nFrameFrom > nFrameTo)
+		{
+			IJ.log("Frame range is outside of the available frames, using all of them.");
+			nFrameFrom = sums.nFrameMin;
+			nFrameTo = sums.nFrameMax;
+		}
+		int nBinFrames = (int)gd.getNextNumber();
+		if(nBinFrames < 1 || nBinFrames > nFrameTo - nFrameFrom + 1)
+		{
+			IJ.log("Bin size should be in the range from 1 to the number of frames, resetting to 1");
+			nBinFrames = 1;
+		}
+		final boolean bSliding = gd.getNextBoolean();
+		final boolean bRemoveNegativeLT = gd.getNextBoolean();
+		final int nLTBinning = gd.getNextChoiceIndex();
+		final int nLTBinPhotons = (int)gd.getNextNumber();
+		final int nLTBinRadius = (int)gd.getNextNumber();
+		Prefs.set("PTU_Reader.nRebinFrames", nBinFrames);
+		Prefs.set("PTU_Reader.bRebinSliding", bSliding);
+		Prefs.set("PTU_Reader.bRemoveNegativeLT", bRemoveNegativeLT);
+		Prefs.set("PTU_Reader.sLTBinning", AdaptiveBinning.sModes[nLTBinning]);
+		Prefs.set("PTU_Reader.nLTBinPhotons", nLTBinPhotons);
+		Prefs.set("PTU_Reader.nLTBinRadius", nLTBinRadius);
+		final AdaptiveBinning binning = AdaptiveBinning.create(nLTBinning, nLTBinPhotons, nLTBinRadius);
+
+		final long nStart = System.currentTimeMillis();
+		final FlimData data = sums.getBins(nFrameFrom, nFrameTo, nBinFrames, bSliding ? 1 : nBinFrames);
+		data.computeFastLifetime(info.header.fTimeResolution, bRemoveNegativeLT, binning, IJ::log);
+		IJ.log("Rebinned in " + Long.toString(System.currentTimeMillis() - nStart) + " ms.");
+
+		final String shortFilename = Paths.get(sFile.toString()).getFileName().toString().split(".pt")[0];
+		final String sSuffix = "_" + Integer.toString(nFrameFrom) + "-" + Integer.toString(nFrameTo)
+			+ (bSliding ? "_Window=" : "_Bin=") + Integer.toString(nBinFrames);
+		final Calibration cal = new Calibration();
+		cal.setUnit("um");
+		cal.pixelWidth = info.header.dPixSize;
+		cal.pixelHeight = info.header.dPixSize;
+		for(int nCh = 0; nCh < 4; nCh++)
+		{
+			if(!data.bChannels[nCh])
+				continue;
+			final String sChannel = "_C" + Integer.toString(nCh + 1);
+			final ImageStack stackInt = new ImageStack(data.nPixX, data.nPixY);
+			final ImageStack stackAverT = new ImageStack(data.nPixX, data.nPixY);
+			for(int nBin = 0; nBin < data.nTotalBins; nBin++)
+			{
+				stackInt.addSlice("", data.fIntensity[nCh][nBin]);
+				stackAverT.addSlice("", data.fLifetime[nCh][nBin]);
+			}
+			for(final ImagePlus out : new ImagePlus[] {
+					new ImagePlus(shortFilename + sChannel + "_Intensity" + sSuffix, stackInt),
+					new ImagePlus(shortFilename + sChannel + "_FastLifeTime" + sSuffix, stackAverT)})
+			{
+				out.setProperty(PTU_ROI_Decay_.PROP_FILE, sFile.toString());
+				out.setProperty(PTU_ROI_Decay_.PROP_CHANNEL, Integer.toString(nCh));
+				if(imp.getProperty(PTU_ROI_Decay_.PROP_CROP) != null)
+					out.setProperty(PTU_ROI_Decay_.PROP_CROP, imp.getProperty(PTU_ROI_Decay_.PROP_CROP));
+				if(imp.getProperty(PTU_ROI_Decay_.PROP_RECORDS) != null)
+					out.setProperty(PTU_ROI_Decay_.PROP_RECORDS, imp.getProperty(PTU_ROI_Decay_.PROP_RECORDS));
+				if(info.header.dPixSize > 0)
+				{
+					out.setCalibration(cal);
+				}
+				out.show();
+				IJ.run(out, "Enhance Contrast", "saturated=0.35");
+			}
+		}
+	}
+}
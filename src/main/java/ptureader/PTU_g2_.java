@@ -0,0 +1,101 @@
+package ptureader;
+
+import java.io.File;
+import java.io.IOException;
+
+import ij.IJ;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.gui.Plot;
+import ij.io.OpenDialog;
+import ij.plugin.PlugIn;
+
+/** Coincidence histogram g2(tau) (antibunching) between two channels
+ * of ptu/pt3 file, T2 or T3 records (see CoincidenceHistogram).
+ * For T3 records photon time is the global time plus microtime.
+ * Times are calculated in picoseconds. **/
+public class PTU_g2_ implements PlugIn
+{
+	final static String [] channelOptions = new String [] {"1", "2", "3", "4"};
+
+	/** maximum number of bins of positive lags **/
+	final static int MAX_HALF_BINS = 1 << 20;
+
+	@Override
+	public void run(String arg)
+	{
+		String sInputFilenamePath;
+		if(arg.equals(""))
+		{
+			OpenDialog opDiag = new OpenDialog("Choose ptu/pt3 file for g2");
+			if(opDiag.getPath() == null)
+				return;
+			sInputFilenamePath = opDiag.getPath();
+		}
+		else
+		{
+			sInputFilenamePath = arg;
+		}
+		final File inputFileName = new File(sInputFilenamePath);
+
+		try (PtuFile ptuFile = PtuFile.open(inputFileName.toPath()))
+		{
+			final PtuHeader header = ptuFile.header;
+			if(header.dGlobalResolution <= 0)
+			{
+				IJ.error("Time resolution is not found in the header.");
+				return;
+			}
+			final GenericDialog gd = new GenericDialog("g2 parameters");
+			gd.addMessage((header.isT2 ? "T2" : "T3") + " records, " + Long.toString(header.nRecords) + " records");
+			gd.addChoice("Channel A:", channelOptions, Prefs.get("PTU_Reader.sG2ChannelA", "1"));
+			gd.addChoice("Channel B:", channelOptions, Prefs.get("PTU_Reader.sG2ChannelB", "2"));
+			gd.addNumericField("Bin width:", Prefs.get("PTU_Reader.dG2BinWidth", 100.0), 1, 8, "ps");
+			gd.addNumericField("Maximum lag:", Prefs.get("PTU_Reader.dG2MaxLag", 200.0), 1, 8, "ns");
+			gd.showDialog();
+			if(gd.wasCanceled())
+				return;
+			final int nChA = gd.getNextChoiceIndex();
+			final int nChB = gd.getNextChoiceIndex();
+			final double dBinWidth = gd.getNextNumber();
+			final double dMaxLag = gd.getNextNumber();
+			Prefs.set("PTU_Reader.sG2ChannelA", channelOptions[nChA]);
+			Prefs.set("PTU_Reader.sG2ChannelB", channelOptions[nChB]);
+			Prefs.set("PTU_Reader.dG2BinWidth", dBinWidth);
+			Prefs.set("PTU_Reader.dG2MaxLag", dMaxLag);
+
+			final long nBinWidth = Math.max(1, Math.round(dBinWidth));
+			final int nHalfBins = (int) Math.min(MAX_HALF_BINS, Math.ceil(dMaxLag * 1000.0 / nBinWidth));
+			final CoincidenceHistogram histogram = new CoincidenceHistogram(nChA, nChB, nBinWidth, nHalfBins);
+
+			//time in picoseconds
+			final double dSyncPs = header.dGlobalResolution * 1e12;
+			final double dDtimePs = header.isT2 ? 0.0 : header.fTimeResolution * 1000.0;
+			IJ.showStatus("Building coincidence histogram...");
+			final long nStart = System.currentTimeMillis();
+			ptuFile.readPhotons((nSync, nCh, dtime) -> histogram.add(Math.round(nSync * dSyncPs + dtime * dDtimePs), nCh),
+					(nDone, nTotal) -> IJ.showProgress((double)nDone / nTotal));
+			IJ.log("g2 of " + Long.toString(histogram.nPhotonsA) + " and " + Long.toString(histogram.nPhotonsB)
+					+ " photons took " + Long.toString(System.currentTimeMillis() - nStart) + " ms.");
+			if(histogram.nDropped > 0)
+			{
+				IJ.log("Too many photons within maximum lag, " + Long.toString(histogram.nDropped) + " photons were not paired completely.");
+			}
+			IJ.showStatus("Building coincidence histogram...done.");
+
+			final double [] lags = histogram.getLags();
+			for(int i = 0; i < lags.length; i++)
+			{
+				lags[i] *= 0.001;
+			}
+			final Plot plot = new Plot(inputFileName.getName() + " g2", "Lag (ns)", "g2(tau)");
+			plot.add("line", lags, histogram.getG2());
+			plot.setLimitsToFit(false);
+			plot.show();
+		}
+		catch (IOException e)
+		{
+			IJ.error(e.getMessage());
+		}
+	}
+}
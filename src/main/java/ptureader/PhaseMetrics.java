@@ -0,0 +1,84 @@
+package ptureader;
+
+/** Counts of one pass over the records of a file (analysis, decoding
+ * or reading photons), reported to DecoderMetrics when the pass ends
+ * (also when it is cancelled or fails, then bComplete is false).
+ * Decoding loops add records per block and count only rare events
+ * (markers, dropped photons), so collecting them costs almost nothing. **/
+public class PhaseMetrics
+{
+	public final static int PHASE_ANALYZE = 0;
+
+	public final static int PHASE_DECODE = 1;
+
+	public final static int PHASE_PHOTONS = 2;
+
+	public final static String [] PHASE_NAMES = new String [] {"analyze", "decode", "photons"};
+
+	/** one of PHASE_ constants **/
+	public final int nPhase;
+
+	/** file name **/
+	public final String sFile;
+
+	/** records read **/
+	public long nRecords = 0;
+
+	/** photon records **/
+	public long nPhotons = 0;
+
+	/** marker records (line/frame), overflows are not included **/
+	public long nMarkers = 0;
+
+	/** overflow (wraparound) records **/
+	public long nOverflows = 0;
+
+	/** photons dropped during decoding because dtime > dtimemax **/
+	public long nDropped = 0;
+
+	/** bytes of records read **/
+	public long nBytes = 0;
+
+	/** number of lines found (analysis only, -1 for other phases) **/
+	public long nLines = -1;
+
+	/** duration of the pass, ns **/
+	public long nNanos = 0;
+
+	/** whether the pass went over all records it had to read **/
+	public boolean bComplete = false;
+
+	/** start of the pass (System.nanoTime) **/
+	final long nStart;
+
+	PhaseMetrics(final int nPhase, final String sFile)
+	{
+		this.nPhase = nPhase;
+		this.sFile = sFile;
+		nStart = System.nanoTime();
+	}
+
+	/** finishes counting: during the pass nMarkers holds all non-photon records,
+	 * overflows are taken from the reader **/
+	void finish(final RecordReader rr, final int nRecordBytes)
+	{
+		nNanos = System.nanoTime() - nStart;
+		nOverflows = rr.nOverflows;
+		nPhotons = nRecords - nMarkers;
+		nMarkers = Math.max(0, nMarkers - nOverflows);
+		nBytes = nRecords * nRecordBytes;
+	}
+
+	public String getPhaseName()
+	{
+		return PHASE_NAMES[nPhase];
+	}
+
+	@Override
+	public String toString()
+	{
+		return getPhaseName() + " " + sFile + (bComplete ? "" : " (incomplete)") + ": " + nRecords + " records, "
+				+ nPhotons + " photons, " + nMarkers + " markers, " + nOverflows + " overflows, "
+				+ nDropped + " dropped, " + nNanos / 1000000 + " ms";
+	}
+}
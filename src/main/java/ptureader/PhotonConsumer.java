@@ -0,0 +1,10 @@
+package ptureader;
+
+/** Receives photons of the file in the order of arrival (see PtuFile.readPhotons).
+ * Called on the reading thread for every photon, so it should return quickly. **/
+public interface PhotonConsumer
+{
+	/** nSync is global (macro) time in sync periods, 
+	 * nCh is channel (zero based), dtime is microtime (lifetime) bin **/
+	void photon(long nSync, int nCh, int dtime);
+}
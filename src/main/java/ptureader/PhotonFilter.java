@@ -0,0 +1,149 @@
+package ptureader;
+
+import java.util.Arrays;
+
+/** Photon filters applied during decoding (in addition to the frame range
+ * of DecodeParameters): spatial crop, channel subset and microtime window.
+ * Filters are checked in the decoding loop before the pixel position
+ * is calculated, lines outside of the crop are skipped using line checkpoints
+ * of PtuIndex and outputs are allocated at the cropped size.
+ * Filters are combined with and() (intersection). **/
+public class PhotonFilter
+{
+	/** left border of the crop (pixels) **/
+	public int nCropX = 0;
+
+	/** top border of the crop (lines) **/
+	public int nCropY = 0;
+
+	/** width of the crop, zero or negative means up to the image border **/
+	public int nCropWidth = 0;
+
+	/** height of the crop, zero or negative means up to the image border **/
+	public int nCropHeight = 0;
+
+	/** channels to load **/
+	public final boolean [] bChannels = new boolean [] {true, true, true, true};
+
+	/** minimum microtime (dtime) of loaded photons **/
+	public int nDtimeMin = 0;
+
+	/** maximum microtime (dtime, inclusive) of loaded photons **/
+	public int nDtimeMax = Integer.MAX_VALUE;
+
+	/** first pixel of the crop within the image **/
+	public int getX0(final int nPixX)
+	{
+		return Math.min(Math.max(0, nCropX), nPixX);
+	}
+
+	/** first line of the crop within the image **/
+	public int getY0(final int nPixY)
+	{
+		return Math.min(Math.max(0, nCropY), nPixY);
+	}
+
+	/** width of the crop within the image **/
+	public int getWidth(final int nPixX)
+	{
+		final int x0 = getX0(nPixX);
+		final int x1 = (nCropWidth > 0) ? (int)Math.min((long)x0 + nCropWidth, nPixX) : nPixX;
+		return x1 - x0;
+	}
+
+	/** height of the crop within the image **/
+	public int getHeight(final int nPixY)
+	{
+		final int y0 = getY0(nPixY);
+		final int y1 = (nCropHeight > 0) ? (int)Math.min((long)y0 + nCropHeight, nPixY) : nPixY;
+		return y1 - y0;
+	}
+
+	/** whether only a part of the image is loaded **/
+	public boolean isCropped(final int nPixX, final int nPixY)
+	{
+		return getWidth(nPixX) != nPixX || getHeight(nPixY) != nPixY;
+	}
+
+	/** whether the filter passes all photons (no crop, all channels and microtimes) **/
+	public boolean passesAll()
+	{
+		return equals(new PhotonFilter());
+	}
+
+	/** returns filter passing only photons passing both filters **/
+	public PhotonFilter and(final PhotonFilter other)
+	{
+		final PhotonFilter out = new PhotonFilter();
+		out.nCropX = Math.max(nCropX, other.nCropX);
+		out.nCropY = Math.max(nCropY, other.nCropY);
+		out.nCropWidth = intersect(nCropX, nCropWidth, other.nCropX, other.nCropWidth, out.nCropX);
+		out.nCropHeight = intersect(nCropY, nCropHeight, other.nCropY, other.nCropHeight, out.nCropY);
+		//empty intersection: crop starts outside of any image
+		if(out.nCropWidth < 0)
+		{
+			out.nCropX = Integer.MAX_VALUE;
+			out.nCropWidth = 1;
+		}
+		if(out.nCropHeight < 0)
+		{
+			out.nCropY = Integer.MAX_VALUE;
+			out.nCropHeight = 1;
+		}
+		for(int nCh = 0; nCh < 4; nCh++)
+		{
+			out.bChannels[nCh] = bChannels[nCh] && other.bChannels[nCh];
+		}
+		out.nDtimeMin = Math.max(nDtimeMin, other.nDtimeMin);
+		out.nDtimeMax = Math.min(nDtimeMax, other.nDtimeMax);
+		return out;
+	}
+
+	/** size of the intersection of two crop ranges starting at nStart
+	 * (zero size means unlimited, negative value means empty intersection) **/
+	static int intersect(final int nStart1, final int nSize1, final int nStart2, final int nSize2, final int nStart)
+	{
+		long nEnd = Long.MAX_VALUE;
+		if(nSize1 > 0)
+			nEnd = Math.min(nEnd, (long)nStart1 + nSize1);
+		if(nSize2 > 0)
+			nEnd = Math.min(nEnd, (long)nStart2 + nSize2);
+		if(nEnd == Long.MAX_VALUE)
+			return 0;
+		if(nEnd <= nStart)
+			return -1;
+		return (int)(nEnd - nStart);
+	}
+
+	/** returns independent copy **/
+	public PhotonFilter copy()
+	{
+		final PhotonFilter out = new PhotonFilter();
+		out.nCropX = nCropX;
+		out.nCropY = nCropY;
+		out.nCropWidth = nCropWidth;
+		out.nCropHeight = nCropHeight;
+		System.arraycopy(bChannels, 0, out.bChannels, 0, 4);
+		out.nDtimeMin = nDtimeMin;
+		out.nDtimeMax = nDtimeMax;
+		return out;
+	}
+
+	@Override
+	public boolean equals(final Object o)
+	{
+		if(!(o instanceof PhotonFilter))
+			return false;
+		final PhotonFilter other = (PhotonFilter) o;
+		return nCropX == other.nCropX && nCropY == other.nCropY
+				&& nCropWidth == other.nCropWidth && nCropHeight == other.nCropHeight
+				&& Arrays.equals(bChannels, other.bChannels)
+				&& nDtimeMin == other.nDtimeMin && nDtimeMax == other.nDtimeMax;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return ((nCropX * 31 + nCropY) * 31 + nCropWidth) * 31 + nCropHeight + Arrays.hashCode(bChannels) * 17 + nDtimeMin * 7 + nDtimeMax;
+	}
+}
@@ -0,0 +1,384 @@
+package ptureader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/** Photons grouped by pixel (compressed sparse rows):
+ * for each channel, photons of pixel p are stored in dtimes
+ * from offsets[p] to offsets[p+1] (exclusive), in the order of acquisition.
+ * Optionally frame number of each photon is stored as well,
+ * so photons of a time window are found by binary search.
+ * Decay curve of any ROI is built in time proportional
+ * to the number of photons inside of it.
+ * The index can be saved next to the ptu file (FILE_SUFFIX). **/
+public class PhotonIndex
+{
+	/** suffix of the index file, added to the full name of ptu file **/
+	public final static String FILE_SUFFIX = ".phidx";
+
+	/** "PTUPHIDX" **/
+	final static long MAGIC = 0x5054555048494458L;
+
+	final static int FORMAT_VERSION = 1;
+
+	/** maximum number of photons per channel (limit of java arrays) **/
+	final static int MAX_PHOTONS = Integer.MAX_VALUE - 8;
+
+	/** image width**/
+	public final int nPixX;
+
+	/** image height**/
+	public final int nPixY;
+
+	/** number of lifetime values (dtimemax+1) **/
+	public final int nLTSlices;
+
+	/** resolution of TCSPC in ns**/
+	public final float fTimeResolution;
+
+	/** range of frames contained in the index (inclusive) **/
+	public final int nFrameMin;
+
+	public final int nFrameMax;
+
+	/** whether frame number of each photon is stored **/
+	public final boolean bByFrame;
+
+	/** array marking presence of channels **/
+	public final boolean [] bChannels = new boolean[4];
+
+	/** start of photons of each pixel (nPixX*nPixY+1 values) per channel **/
+	final int [][] offsets = new int[4][];
+
+	/** lifetime of photons per channel **/
+	final short [][] dtimes = new short[4][];
+
+	/** frame number of photons per channel (null if !bByFrame) **/
+	final int [][] frames = new int[4][];
+
+	PhotonIndex(final int nPixX, final int nPixY, final int nLTSlices, final float fTimeResolution, final int nFrameMin, final int nFrameMax, final boolean bByFrame)
+	{
+		this.nPixX = nPixX;
+		this.nPixY = nPixY;
+		this.nLTSlices = nLTSlices;
+		this.fTimeResolution = fTimeResolution;
+		this.nFrameMin = nFrameMin;
+		this.nFrameMax = nFrameMax;
+		this.bByFrame = bByFrame;
+	}
+
+	/** total number of photons in the channel **/
+	public int getPhotonCount(final int nCh)
+	{
+		if(!bChannels[nCh])
+			return 0;
+		return offsets[nCh][nPixX * nPixY];
+	}
+
+	/** adds lifetime histogram of photons in provided pixels (indices y*nPixX+x,
+	 * first nPixels values are used) and frames from nFrameFrom to nFrameTo (inclusive)
+	 * to lHistogram (nLTSlices long). Frame range is ignored if !bByFrame. **/
+	public void addDecay(final int nCh, final int [] pixels, final int nPixels, final int nFrameFrom, final int nFrameTo, final long [] lHistogram)
+	{
+		if(!bChannels[nCh])
+			return;
+		final int [] offset = offsets[nCh];
+		final short [] dtime = dtimes[nCh];
+		final int [] frame = frames[nCh];
+		final boolean bAllFrames = !bByFrame || (nFrameFrom <= nFrameMin && nFrameTo >= nFrameMax);
+		final int nPixTotal = nPixX * nPixY;
+		for(int i = 0; i < nPixels; i++)
+		{
+			final int nPix = pixels[i];
+			if(nPix < 0 || nPix >= nPixTotal)
+				continue;
+			int nStart = offset[nPix];
+			int nEnd = offset[nPix + 1];
+			if(!bAllFrames)
+			{
+				nStart = lowerBound(frame, nStart, nEnd, nFrameFrom);
+				nEnd = lowerBound(frame, nStart, nEnd, nFrameTo + 1);
+			}
+			for(int n = nStart; n < nEnd; n++)
+			{
+				lHistogram[dtime[n]]++;
+			}
+		}
+	}
+
+	/** returns lifetime histogram of photons in provided pixels and frames,
+	 * see addDecay **/
+	public long [] getDecay(final int nCh, final int [] pixels, final int nPixels, final int nFrameFrom, final int nFrameTo)
+	{
+		final long [] lHistogram = new long[nLTSlices];
+		addDecay(nCh, pixels, nPixels, nFrameFrom, nFrameTo, lHistogram);
+		return lHistogram;
+	}
+
+	/** first position in the sorted range [nStart, nEnd) with value >= nValue **/
+	static int lowerBound(final int [] values, int nStart, int nEnd, final int nValue)
+	{
+		while(nStart < nEnd)
+		{
+			final int nMid = (nStart + nEnd) >>> 1;
+			if(values[nMid] < nValue)
+				nStart = nMid + 1;
+			else
+				nEnd = nMid;
+		}
+		return nStart;
+	}
+
+	/** location of the index file for the provided ptu file **/
+	public static Path getIndexPath(final Path ptuPath)
+	{
+		return ptuPath.resolveSibling(ptuPath.getFileName().toString() + FILE_SUFFIX);
+	}
+
+	/** saves the index next to the ptu file,
+	 * file size and modification time are stored to detect changes **/
+	public void save(final Path ptuPath) throws IOException
+	{
+		final DecodeCache.FileKey fileKey = DecodeCache.FileKey.of(ptuPath);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(getIndexPath(ptuPath)), 1 << 16)))
+		{
+			out.writeLong(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeLong(fileKey.nSize);
+			out.writeLong(fileKey.nLastModified);
+			out.writeInt(nPixX);
+			out.writeInt(nPixY);
+			out.writeInt(nLTSlices);
+			out.writeFloat(fTimeResolution);
+			out.writeInt(nFrameMin);
+			out.writeInt(nFrameMax);
+			out.writeBoolean(bByFrame);
+			for(int nCh = 0; nCh < 4; nCh++)
+			{
+				out.writeBoolean(bChannels[nCh]);
+				if(!bChannels[nCh])
+					continue;
+				final int nPhotons = getPhotonCount(nCh);
+				for(final int nOffset : offsets[nCh])
+				{
+					out.writeInt(nOffset);
+				}
+				for(int n = 0; n < nPhotons; n++)
+				{
+					out.writeShort(dtimes[nCh][n]);
+				}
+				if(bByFrame)
+				{
+					for(int n = 0; n < nPhotons; n++)
+					{
+						out.writeInt(frames[nCh][n]);
+					}
+				}
+			}
+		}
+	}
+
+	/** loads the index saved next to the ptu file,
+	 * returns null if there is no index or the ptu file was modified after it was saved **/
+	public static PhotonIndex load(final Path ptuPath) throws IOException
+	{
+		return read(ptuPath, true);
+	}
+
+	/** returns true if there is saved index for the (unmodified) ptu file
+	 * containing all frames of the provided range **/
+	public static boolean isAvailable(final Path ptuPath, final int nFrameMin, final int nFrameMax)
+	{
+		try
+		{
+			final PhotonIndex index = read(ptuPath, false);
+			return index != null && index.nFrameMin <= nFrameMin && index.nFrameMax >= nFrameMax;
+		}
+		catch(IOException e)
+		{
+			return false;
+		}
+	}
+
+	/** reads saved index (or only its parameters, if !bPhotons) **/
+	static PhotonIndex read(final Path ptuPath, final boolean bPhotons) throws IOException
+	{
+		final DecodeCache.FileKey fileKey = DecodeCache.FileKey.of(ptuPath);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(getIndexPath(ptuPath)), 1 << 16)))
+		{
+			if(in.readLong() != MAGIC || in.readInt() != FORMAT_VERSION)
+				return null;
+			if(in.readLong() != fileKey.nSize || in.readLong() != fileKey.nLastModified)
+				return null;
+			final int nPixX = in.readInt();
+			final int nPixY = in.readInt();
+			final int nLTSlices = in.readInt();
+			final float fTimeResolution = in.readFloat();
+			final int nFrameMin = in.readInt();
+			final int nFrameMax = in.readInt();
+			final boolean bByFrame = in.readBoolean();
+			final PhotonIndex index = new PhotonIndex(nPixX, nPixY, nLTSlices, fTimeResolution, nFrameMin, nFrameMax, bByFrame);
+			if(!bPhotons)
+				return index;
+			for(int nCh = 0; nCh < 4; nCh++)
+			{
+				index.bChannels[nCh] = in.readBoolean();
+				if(!index.bChannels[nCh])
+					continue;
+				final int [] offset = new int[nPixX * nPixY + 1];
+				for(int i = 0; i < offset.length; i++)
+				{
+					offset[i] = in.readInt();
+				}
+				final int nPhotons = offset[offset.length - 1];
+				final short [] dtime = new short[nPhotons];
+				for(int n = 0; n < nPhotons; n++)
+				{
+					dtime[n] = in.readShort();
+				}
+				if(bByFrame)
+				{
+					final int [] frame = new int[nPhotons];
+					for(int n = 0; n < nPhotons; n++)
+					{
+						frame[n] = in.readInt();
+					}
+					index.frames[nCh] = frame;
+				}
+				index.offsets[nCh] = offset;
+				index.dtimes[nCh] = dtime;
+			}
+			return index;
+		}
+		catch(NoSuchFileException e)
+		{
+			return null;
+		}
+	}
+
+	/** collects photons in the order of decoding
+	 * and groups them by pixel at the end **/
+	public static class Builder
+	{
+		final PhotonIndex index;
+
+		/** pixel of each collected photon per channel **/
+		final int [][] pixels = new int[4][];
+
+		final short [][] dtimes = new short[4][];
+
+		final int [][] frames = new int[4][];
+
+		/** number of collected photons per channel **/
+		final int [] nPhotons = new int[4];
+
+		/** whether there were more photons than MAX_PHOTONS **/
+		boolean bFull = false;
+
+		public Builder(final PtuHeader header, final PtuIndex ptuIndex, final DecodeParameters params, final boolean bByFrame)
+		{
+			index = new PhotonIndex(params.filter.getWidth(header.nPixX), params.filter.getHeight(header.nPixY), ptuIndex.dtimemax + 1, 
+					header.fTimeResolution, params.nFrameMin, params.nFrameMax, bByFrame);
+			for(int nCh = 0; nCh < 4; nCh++)
+			{
+				index.bChannels[nCh] = ptuIndex.bChannels[nCh] && params.filter.bChannels[nCh];
+				if(!index.bChannels[nCh])
+					continue;
+				pixels[nCh] = new int[1 << 16];
+				dtimes[nCh] = new short[1 << 16];
+				if(bByFrame)
+				{
+					frames[nCh] = new int[1 << 16];
+				}
+			}
+		}
+
+		/** adds photon of channel nCh (zero based) **/
+		void add(final int nCh, final int nPix, final int nFrame, final int dtime)
+		{
+			final int n = nPhotons[nCh];
+			if(n == pixels[nCh].length)
+			{
+				if(!grow(nCh))
+					return;
+			}
+			pixels[nCh][n] = nPix;
+			dtimes[nCh][n] = (short) dtime;
+			if(index.bByFrame)
+			{
+				frames[nCh][n] = nFrame;
+			}
+			nPhotons[nCh] = n + 1;
+		}
+
+		boolean grow(final int nCh)
+		{
+			final int nOld = pixels[nCh].length;
+			if(nOld >= MAX_PHOTONS)
+			{
+				bFull = true;
+				return false;
+			}
+			final int nNew = (int) Math.min(MAX_PHOTONS, nOld + (long)(nOld >> 1));
+			pixels[nCh] = Arrays.copyOf(pixels[nCh], nNew);
+			dtimes[nCh] = Arrays.copyOf(dtimes[nCh], nNew);
+			if(index.bByFrame)
+			{
+				frames[nCh] = Arrays.copyOf(frames[nCh], nNew);
+			}
+			return true;
+		}
+
+		/** groups collected photons by pixel (stable counting sort),
+		 * returns null if there were too many photons **/
+		public PhotonIndex build()
+		{
+			if(bFull)
+				return null;
+			final int nPixTotal = index.nPixX * index.nPixY;
+			for(int nCh = 0; nCh < 4; nCh++)
+			{
+				if(!index.bChannels[nCh])
+					continue;
+				final int nTotal = nPhotons[nCh];
+				final int [] pixel = pixels[nCh];
+				final int [] offset = new int[nPixTotal + 1];
+				for(int n = 0; n < nTotal; n++)
+				{
+					offset[pixel[n] + 1]++;
+				}
+				for(int i = 0; i < nPixTotal; i++)
+				{
+					offset[i + 1] += offset[i];
+				}
+				final int [] position = Arrays.copyOf(offset, nPixTotal);
+				final short [] dtime = new short[nTotal];
+				final int [] frame = index.bByFrame ? new int[nTotal] : null;
+				for(int n = 0; n < nTotal; n++)
+				{
+					final int nDest = position[pixel[n]]++;
+					dtime[nDest] = dtimes[nCh][n];
+					if(frame != null)
+					{
+						frame[nDest] = frames[nCh][n];
+					}
+				}
+				index.offsets[nCh] = offset;
+				index.dtimes[nCh] = dtime;
+				index.frames[nCh] = frame;
+				//free temporary arrays
+				pixels[nCh] = null;
+				dtimes[nCh] = null;
+				frames[nCh] = null;
+			}
+			return index;
+		}
+	}
+}
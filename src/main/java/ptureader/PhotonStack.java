@@ -0,0 +1,93 @@
+package ptureader;
+
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+/** Lifetime ordered stack of one channel computed slice by slice
+ * from the photon index (instead of keeping all slices in memory).
+ * Slices are ordered as in the dense stack: dtime for the whole stack
+ * or (bin*nLTSlices + dtime) for the binned one, 8-bit, saturated at 255. **/
+public class PhotonStack extends VirtualStack
+{
+	final PhotonIndex photonIndex;
+
+	final int nCh;
+
+	/** first frame of the first bin **/
+	final int nFrameMin;
+
+	/** last frame (inclusive) **/
+	final int nFrameMax;
+
+	/** frames per bin **/
+	final int nTimeBin;
+
+	final int nTotalBins;
+
+	public PhotonStack(final PhotonIndex photonIndex, final int nCh, final DecodeParameters params)
+	{
+		super(photonIndex.nPixX, photonIndex.nPixY, null, null);
+		this.photonIndex = photonIndex;
+		this.nCh = nCh;
+		nFrameMin = params.nFrameMin;
+		nFrameMax = params.nFrameMax;
+		nTimeBin = params.nTimeBin;
+		nTotalBins = (params.nLTload == 0) ? 1 : params.getTotalBins();
+	}
+
+	@Override
+	public int getSize()
+	{
+		return photonIndex.nLTSlices * nTotalBins;
+	}
+
+	@Override
+	public String getSliceLabel(final int n)
+	{
+		return "";
+	}
+
+	/** counts photons of the slice (n is one based) **/
+	@Override
+	public ImageProcessor getProcessor(final int n)
+	{
+		final int nSlice = n - 1;
+		final int dtime = nSlice % photonIndex.nLTSlices;
+		final int nBin = nSlice / photonIndex.nLTSlices;
+		int nFrameFrom = nFrameMin;
+		int nFrameTo = nFrameMax;
+		if(nTotalBins > 1)
+		{
+			nFrameFrom = nFrameMin + nBin * nTimeBin;
+			nFrameTo = Math.min(nFrameMax, nFrameFrom + nTimeBin - 1);
+		}
+		final int nPixTotal = photonIndex.nPixX * photonIndex.nPixY;
+		final byte [] pixels = new byte[nPixTotal];
+		if(photonIndex.bChannels[nCh])
+		{
+			final int [] offset = photonIndex.offsets[nCh];
+			final short [] dtimes = photonIndex.dtimes[nCh];
+			final int [] frames = photonIndex.frames[nCh];
+			final boolean bAllFrames = frames == null || (nFrameFrom <= photonIndex.nFrameMin && nFrameTo >= photonIndex.nFrameMax);
+			for(int nPix = 0; nPix < nPixTotal; nPix++)
+			{
+				int nStart = offset[nPix];
+				int nEnd = offset[nPix + 1];
+				if(!bAllFrames)
+				{
+					nStart = PhotonIndex.lowerBound(frames, nStart, nEnd, nFrameFrom);
+					nEnd = PhotonIndex.lowerBound(frames, nStart, nEnd, nFrameTo + 1);
+				}
+				int nCount = 0;
+				for(int i = nStart; i < nEnd; i++)
+				{
+					if(dtimes[i] == dtime)
+						nCount++;
+				}
+				pixels[nPix] = (byte) Math.min(nCount, 255);
+			}
+		}
+		return new ByteProcessor(photonIndex.nPixX, photonIndex.nPixY, pixels);
+	}
+}
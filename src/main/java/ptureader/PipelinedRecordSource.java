@@ -0,0 +1,227 @@
+package ptureader;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/** Records source with two-stage pipeline:
+ * a reading thread fills fixed-size chunks (from a small ring of reusable buffers)
+ * and passes them to the decoder through a bounded queue,
+ * so reading and decoding run in parallel.
+ * The reading thread waits if the decoder is behind (backpressure),
+ * the decoder waits if reading is behind.
+ * Chunks are taken from the pool and returned to it on close.
+ * Subclasses only define how to fill one chunk. **/
+public abstract class PipelinedRecordSource implements RecordSource
+{
+	/** marks the end of the data **/
+	final static ByteBuffer END = ByteBuffer.allocate(0);
+
+	/** chunks filled by the reading thread **/
+	final ArrayBlockingQueue<ByteBuffer> filled;
+
+	/** empty chunks ready for reuse **/
+	final ArrayBlockingQueue<ByteBuffer> free;
+
+	/** all chunks of the ring **/
+	final ByteBuffer [] ring;
+
+	/** pool of the chunks **/
+	final BufferPool pool;
+
+	/** whether the chunks are returned to the pool **/
+	boolean bReleased = false;
+
+	Thread readThread = null;
+
+	/** exception in the reading thread **/
+	volatile IOException error = null;
+
+	/** signals reading thread to stop **/
+	volatile boolean bStop = false;
+
+	/** chunk that is currently decoded **/
+	ByteBuffer current = null;
+
+	/** whether the end of the data is reached **/
+	boolean bEnd = false;
+
+	/** index of the next record **/
+	long nPosition = 0;
+
+	/** takes nRingSize chunks of nChunkBytes (multiple of 4) from the pool **/
+	PipelinedRecordSource(final BufferPool pool, final int nRingSize, final int nChunkBytes, final boolean bDirect)
+	{
+		this.pool = pool;
+		ring = new ByteBuffer[nRingSize];
+		for(int i = 0; i < nRingSize; i++)
+		{
+			ring[i] = pool.getBuffer(nChunkBytes, bDirect);
+		}
+		filled = new ArrayBlockingQueue<>(ring.length + 1);
+		free = new ArrayBlockingQueue<>(ring.length + 1);
+	}
+
+	/** fills the chunk (from position to limit) with the next portion of data,
+	 *  returns false if there is no more data.
+	 *  Called on the reading thread only. **/
+	abstract boolean fillChunk(ByteBuffer chunk) throws IOException;
+
+	/** starts the reading thread **/
+	void start(final String sName)
+	{
+		free.clear();
+		filled.clear();
+		for(final ByteBuffer chunk : ring)
+		{
+			free.add(chunk);
+		}
+		current = null;
+		bEnd = false;
+		bStop = false;
+		error = null;
+		readThread = new Thread(this::readLoop, sName);
+		readThread.setDaemon(true);
+		readThread.start();
+	}
+
+	/** stops the reading thread and waits for it.
+	 * The thread is not interrupted (that would close a FileChannel),
+	 * instead filled chunks are returned, so it never waits for a free one.**/
+	void stop() throws IOException
+	{
+		if(readThread == null)
+			return;
+		bStop = true;
+		try
+		{
+			while(readThread.isAlive())
+			{
+				ByteBuffer chunk;
+				while((chunk = filled.poll()) != null)
+				{
+					if(chunk != END)
+						free.offer(chunk);
+				}
+				readThread.join(10);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			throw new InterruptedIOException("Interrupted while stopping the reading thread");
+		}
+		readThread = null;
+	}
+
+	/** function running on the reading thread **/
+	void readLoop()
+	{
+		try
+		{
+			while(!bStop)
+			{
+				final ByteBuffer chunk = free.take();
+				if(bStop)
+					break;
+				chunk.clear();
+				final boolean bMore = fillChunk(chunk);
+				chunk.flip();
+				if(chunk.hasRemaining())
+				{
+					filled.put(chunk);
+				}
+				if(!bMore)
+					break;
+			}
+		}
+		catch(IOException e)
+		{
+			error = e;
+		}
+		catch(RuntimeException e)
+		{
+			//e.g. missing native decompressor or corrupted compressed data,
+			//reported to the decoder instead of ending the data silently
+			error = new IOException(e);
+		}
+		catch(InterruptedException e)
+		{
+			if(!bStop)
+				error = new InterruptedIOException("Reading was interrupted");
+		}
+		finally
+		{
+			//there is always space for the end marker
+			filled.offer(END);
+		}
+	}
+
+	@Override
+	public int read(final int [] dst, final int nMax) throws IOException
+	{
+		int nRead = 0;
+		while(nRead < nMax && !bEnd)
+		{
+			if(current == null || current.remaining() < 4)
+			{
+				if(current != null)
+				{
+					free.offer(current);
+					current = null;
+				}
+				try
+				{
+					final ByteBuffer next = filled.take();
+					if(next == END)
+					{
+						bEnd = true;
+						if(error != null)
+							throw error;
+						break;
+					}
+					current = next;
+				}
+				catch (InterruptedException e)
+				{
+					throw new InterruptedIOException("Reading was interrupted");
+				}
+			}
+			final int n = Math.min(nMax - nRead, current.remaining() / 4);
+			current.asIntBuffer().get(dst, nRead, n);
+			current.position(current.position() + 4 * n);
+			nRead += n;
+		}
+		nPosition += nRead;
+		return nRead;
+	}
+
+	/** moves forward by reading and dropping records **/
+	void skipForward(final long nRecord) throws IOException
+	{
+		final int [] skipRecords = new int[RecordBlock.BLOCK_SIZE];
+		while(nPosition < nRecord)
+		{
+			if(read(skipRecords, (int)Math.min(skipRecords.length, nRecord - nPosition)) == 0)
+				break;
+		}
+	}
+
+	/** stops the reading thread and returns the chunks to the pool **/
+	@Override
+	public void close() throws IOException
+	{
+		stop();
+		if(!bReleased)
+		{
+			bReleased = true;
+			filled.clear();
+			free.clear();
+			current = null;
+			for(final ByteBuffer chunk : ring)
+			{
+				pool.release(chunk);
+			}
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package ptureader;
+
+/** Receives progress of records reading/decoding **/
+public interface ProgressListener
+{
+	/** called periodically, nDone out of nTotal records are processed **/
+	void progress(long nDone, long nTotal);
+	
+	/** checked before each block of records, if it returns true,
+	 * reading stops with CancellationException (accumulators keep
+	 * what was decoded so far) **/
+	default boolean isCancelled()
+	{
+		return false;
+	}
+}
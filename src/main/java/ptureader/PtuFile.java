@@ -0,0 +1,909 @@
+package ptureader;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.concurrent.CancellationException;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.compress.compressors.CompressorException;
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
+
+/** PicoQuant ptu/pt3 FLIM image file, independent of ImageJ UI.
+ * Typical use:
+ * <pre>
+ * try (PtuFile ptu = PtuFile.open(path))
+ * {
+ *    PtuIndex index = ptu.analyze(null);
+ *    DecodeParameters params = new DecodeParameters();
+ *    params.validate(index.nTotFrames);
+ *    FlimData data = new FlimData(ptu.header, index, params, pool, log);
+ *    ptu.decode(index, params, data, null);
+ * }
+ * </pre>
+ * Header, index and decoding do not share any mutable state
+ * except the (read-only) file mapping. Several jobs can work
+ * with the same file concurrently: openShared returns one 
+ * reference counted mapping per file, each analyze/decode call 
+ * uses its own RecordReader (cursor) starting at the frame checkpoint 
+ * from the index, so no locking is needed.
+ * Compressed files (.ptu.gz, .pt3.gz, .ptu.zst, .ptu.xz, etc) are not mapped,
+ * they are decompressed on the fly (on a separate thread) during each pass. 
+ * Uncompressed files are prefetched by a separate thread as well (see bPrefetch).
+ * Counts of each pass (records, photons, time) are reported to metrics (see DecoderMetrics). **/
+public class PtuFile implements Closeable
+{
+	/** library/plugin version **/
+	public final static String sVersion = "0.2.2";
+
+	/** how often (in records) progress is reported **/
+	final static int PROGRESS_STEP = 1 << 20;
+	
+	/** initial size of the buffer for reading header of compressed file **/
+	final static int HEADER_CHUNK = 1 << 16;
+	
+	/** maximum size of the header **/
+	final static int HEADER_MAX = 1 << 26;
+	
+	/** minimum distance (in records) worth moving the reader to skip lines **/
+	final static int SKIP_MIN_RECORDS = 4 * RecordBlock.BLOCK_SIZE;
+	
+	/** number of records in one mapped segment (1 GB) **/
+	final static int SEGMENT_RECORDS = 1 << 28;
+
+	/** size of one record **/
+	final static int RECORD_BYTES = 4;
+
+	/** retained size of a pool used only for reading (record blocks and
+	 * prefetch rings of several readers, reused between passes and chunks) **/
+	public final static long READER_POOL_BYTES = 1L << 26;
+
+	/** path to the file **/
+	public final Path path;
+
+	/** acquisition parameters from the file header **/
+	public final PtuHeader header;
+
+	/** read-only mapping of the records, split into segments 
+	 * of SEGMENT_RECORDS each (null for compressed files) **/
+	final IntBuffer [] recordSegments;
+
+	/** file channel (null for compressed files) **/
+	final FileChannel fc;
+	
+	/** compression type (extension without dot) or null if file is not compressed **/
+	final String sCompression;
+	
+	/** if true, records of uncompressed file are read by a prefetching thread
+	 * into a ring of direct buffers (overlapping I/O with decoding),
+	 * otherwise they are taken from the memory mapping directly **/
+	public boolean bPrefetch = true;
+
+	/** pool of record blocks and accumulators **/
+	final BufferPool pool;
+
+	/** receives counts of each pass over the records (null to disable) **/
+	public DecoderMetrics metrics = DecoderMetrics.global;
+
+	/** log messages receiver **/
+	final Consumer<String> log;
+	
+	/** files opened with openShared (by real path) **/
+	final static HashMap<Path, PtuFile> sharedFiles = new HashMap<>();
+	
+	/** number of users of this file, it is closed when reaches zero **/
+	int nRefCount = 1;
+	
+	/** whether the file is registered in sharedFiles **/
+	boolean bShared = false;
+
+	/** file whose mapping is used by this limited view (see limit), null otherwise **/
+	PtuFile parent = null;
+
+	PtuFile(final Path path, final FileChannel fc, final IntBuffer [] recordSegments, final String sCompression, final PtuHeader header, final BufferPool pool, final Consumer<String> log)
+	{
+		this.path = path;
+		this.fc = fc;
+		this.sCompression = sCompression;
+		this.recordSegments = recordSegments;
+		this.header = header;
+		this.pool = pool;
+		this.log = log;
+	}
+
+	/** opens file and reads its header, messages are not logged **/
+	public static PtuFile open(final Path path) throws IOException
+	{
+		return open(path, s -> {}, new BufferPool());
+	}
+
+	/** opens file and reads its header,
+	 * header tags and messages are sent to the log **/
+	public static PtuFile open(final Path path, final Consumer<String> log) throws IOException
+	{
+		return open(path, log, new BufferPool());
+	}
+
+	/** opens file and reads its header,
+	 * header tags and messages are sent to the log,
+	 * buffers are taken from (and returned to) the provided pool **/
+	public static PtuFile open(final Path path, final Consumer<String> log, final BufferPool pool) throws IOException
+	{
+		final String sCompression = getCompression(path);
+		final String extension = getExtension(path);
+		if(!(extension.equals("ptu") || extension.equals("pt3")))
+		{
+			throw new IOException("Only ptu and pt3 format files are supported!");
+		}
+		if(sCompression != null)
+		{
+			final PtuHeader header = readCompressedHeader(path, sCompression, extension, log);
+			return new PtuFile(path, null, null, sCompression, header, pool, log);
+		}
+		final FileChannel fc = FileChannel.open(path, StandardOpenOption.READ);
+		try
+		{
+			final ByteBuffer headerBuff = fc.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(fc.size(), HEADER_MAX));
+			final PtuHeader header = new PtuHeader();
+			if(!readHeader(headerBuff, header, extension, log))
+			{
+				throw new IOException(header.sError);
+			}
+			header.fixMarkers();
+			//header of a crashed acquisition can declare more records than written
+			final long nFileRecords = Math.max(0, (fc.size() - header.dataPosition) / RECORD_BYTES);
+			if(header.nRecords > nFileRecords)
+			{
+				log.accept("Header declares " + header.nRecords + " records, but the file contains only "
+						+ nFileRecords + " (truncated file), reading them.");
+				header.nRecords = nFileRecords;
+			}
+			return new PtuFile(path, fc, mapRecords(fc, header.dataPosition), null, header, pool, log);
+		}
+		catch(IOException | RuntimeException e)
+		{
+			fc.close();
+			throw e;
+		}
+	}
+	
+	/** maps records part of the file in segments
+	 * (single mapping cannot be larger than 2GB) **/
+	static IntBuffer [] mapRecords(final FileChannel fc, final long nDataPosition) throws IOException
+	{
+		final long nTotRecords = Math.max(0, (fc.size() - nDataPosition) / 4);
+		final int nSegments = (int)((nTotRecords + SEGMENT_RECORDS - 1) / SEGMENT_RECORDS);
+		final IntBuffer [] segments = new IntBuffer[nSegments];
+		for(int i = 0; i < nSegments; i++)
+		{
+			final long nSegRecords = Math.min(SEGMENT_RECORDS, nTotRecords - (long)i * SEGMENT_RECORDS);
+			segments[i] = fc.map(FileChannel.MapMode.READ_ONLY, nDataPosition + 4L * i * SEGMENT_RECORDS, 4L * nSegRecords)
+					.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+		}
+		return segments;
+	}
+	
+	static boolean readHeader(final ByteBuffer bBuff, final PtuHeader header, final String extension, final Consumer<String> log)
+	{
+		if(extension.equals("ptu"))
+		{
+			return HeaderReader.readPTUHeader(bBuff, header, log);
+		}
+		return HeaderReader.readPT3Header(bBuff, header, log);
+	}
+	
+	/** reads header from the beginning of the compressed file,
+	 * the size of the header is not known in advance, so the 
+	 * beginning of the stream is read with increasing size until 
+	 * the whole header fits **/
+	static PtuHeader readCompressedHeader(final Path path, final String sCompression, final String extension, final Consumer<String> log) throws IOException
+	{
+		int nChunk = HEADER_CHUNK;
+		while(true)
+		{
+			final byte [] headerBytes = new byte[nChunk];
+			int nRead = 0;
+			try (InputStream in = openStream(path, sCompression))
+			{
+				while(nRead < nChunk)
+				{
+					final int n = in.read(headerBytes, nRead, nChunk - nRead);
+					if(n < 0)
+						break;
+					nRead += n;
+				}
+			}
+			final PtuHeader header = new PtuHeader();
+			try
+			{
+				//log only the final (complete) attempt
+				final StringBuilder sbLog = new StringBuilder();
+				if(!readHeader(ByteBuffer.wrap(headerBytes, 0, nRead), header, extension, s -> sbLog.append(s).append("\n")))
+				{
+					throw new IOException(header.sError);
+				}
+				for(final String s : sbLog.toString().split("\n"))
+				{
+					log.accept(s);
+				}
+				header.fixMarkers();
+				return header;
+			}
+			catch(BufferUnderflowException | IndexOutOfBoundsException e)
+			{
+				if(nRead < nChunk || nChunk >= HEADER_MAX)
+				{
+					throw new IOException("Unexpected end of the file while reading the header.");
+				}
+				nChunk *= 4;
+			}
+		}
+	}
+	
+	/** returns compression type (as extension) of the file 
+	 * or null if the file is not compressed **/
+	public static String getCompression(final Path path)
+	{
+		final String filename = path.getFileName().toString().toLowerCase();
+		for(final String sExt : new String[] {"gz", "zst", "xz", "bz2"})
+		{
+			if(filename.endsWith("." + sExt))
+				return sExt;
+		}
+		return null;
+	}
+	
+	/** opens decompressing stream of the file **/
+	static InputStream openStream(final Path path, final String sCompression) throws IOException
+	{
+		final InputStream in = new BufferedInputStream(Files.newInputStream(path), 1 << 16);
+		try
+		{
+			if(sCompression.equals("gz"))
+			{
+				return new GZIPInputStream(in, 1 << 16);
+			}
+			final String sType;
+			switch(sCompression)
+			{
+				case "zst":
+					sType = CompressorStreamFactory.ZSTANDARD;
+					break;
+				case "xz":
+					sType = CompressorStreamFactory.XZ;
+					break;
+				default:
+					sType = CompressorStreamFactory.BZIP2;
+			}
+			return new CompressorStreamFactory().createCompressorInputStream(sType, in);
+		}
+		catch(CompressorException | LinkageError e)
+		{
+			in.close();
+			throw new IOException("Unable to decompress " + sCompression + " file (" + e.getMessage() + ")");
+		}
+		catch(IOException e)
+		{
+			in.close();
+			throw e;
+		}
+	}
+
+	/** returns mapping of the file shared with all other users 
+	 * that opened it with this function (it is opened if necessary). 
+	 * Each call should be paired with close(). Log and pool 
+	 * are used only when the file is not opened yet.**/
+	public static PtuFile openShared(final Path path, final Consumer<String> log, final BufferPool pool) throws IOException
+	{
+		final Path realPath = path.toRealPath();
+		synchronized(sharedFiles)
+		{
+			PtuFile file = sharedFiles.get(realPath);
+			if(file != null)
+			{
+				file.nRefCount++;
+				return file;
+			}
+			file = open(realPath, log, pool);
+			file.bShared = true;
+			sharedFiles.put(realPath, file);
+			return file;
+		}
+	}
+	
+	/** registers one more user of the file, 
+	 * it should call close() when the file is not needed anymore **/
+	public PtuFile acquire()
+	{
+		synchronized(sharedFiles)
+		{
+			if(nRefCount == 0)
+			{
+				throw new IllegalStateException("File " + path + " is already closed.");
+			}
+			nRefCount++;
+		}
+		return this;
+	}
+	
+	/** returns a view of the file limited to its first nMaxRecords records
+	 * (valid part found by IntegrityCheck, it can be more than declared in the header).
+	 * The view has its own copy of the header, so the header of this file,
+	 * shared with the other users, stays unchanged. The view uses the mapping
+	 * of this file (one more user, see acquire) and should be closed. **/
+	public PtuFile limit(final long nMaxRecords)
+	{
+		final PtuHeader limited = header.copy();
+		limited.nRecords = nMaxRecords;
+		limited.bRecordsChecked = true;
+		final PtuFile view = new PtuFile(path, fc, recordSegments, sCompression, limited, pool, log);
+		view.bPrefetch = bPrefetch;
+		view.metrics = metrics;
+		view.parent = acquire();
+		return view;
+	}
+
+	/** returns lower case extension of the file (without dot),
+	 * ignoring compression extension **/
+	public static String getExtension(final Path path)
+	{
+		String filename = path.getFileName().toString().toLowerCase();
+		final String sCompression = getCompression(path);
+		if(sCompression != null)
+		{
+			filename = filename.substring(0, filename.length() - sCompression.length() - 1);
+		}
+		if(filename.length() < 3)
+			return "";
+		return filename.substring(filename.length()-3);
+	}
+
+	/** returns new reader positioned at the first record,
+	 * it uses the provided block for decoding.
+	 * Reader should be closed after use. **/
+	public RecordReader newReader(final RecordBlock block) throws IOException
+	{
+		if(sCompression != null)
+		{
+			return new RecordReader(header, new StreamRecordSource(openStream(path, sCompression), header.dataPosition, pool), block);
+		}
+		if(bPrefetch)
+		{
+			return new RecordReader(header, new ChannelRecordSource(fc, header.dataPosition, pool), block);
+		}
+		return new RecordReader(header, new MappedRecordSource(recordSegments, SEGMENT_RECORDS), block);
+	}
+
+	/** reads all records once to calculate total frame number,
+	 * maximum lifetime register, present channels and syncCountPerLine **/
+	public PtuIndex analyze(final ProgressListener progress) throws IOException
+	{
+		if(!header.isImage())
+		{
+			throw new IOException("The plugin works only with FLIM image (2D) data.\n "
+					+ "It appears that your ptu file has different kind of measurements.\n"
+					+ "(probably FCS?)");
+		}
+		if(header.isT2)
+		{
+			throw new IOException("T2 records do not contain lifetime (microtime),\n"
+					+ "only correlation (FCS, g2) is available for this file.");
+		}
+		final RecordBlock block = pool.getBlock();
+		final PhaseMetrics phase = new PhaseMetrics(PhaseMetrics.PHASE_ANALYZE, path.getFileName().toString());
+		try (RecordReader rr = newReader(block))
+		{
+			try
+			{
+				final PtuIndex index = analyze(rr, phase, progress);
+				phase.bComplete = true;
+				return index;
+			}
+			finally
+			{
+				reportPhase(phase, rr);
+			}
+		}
+		finally
+		{
+			pool.release(block);
+		}
+	}
+	
+	PtuIndex analyze(final RecordReader rr, final PhaseMetrics phase, final ProgressListener progress) throws IOException
+	{
+		final PtuIndex index = new PtuIndex();
+		final long nRecords = header.nRecords;
+
+		int frameNb = 1;
+		long syncCountPerLine = 0;
+		long nLines = 0;
+		/** current frame and line within it (as counted by decoding) **/
+		int nCurFrame = 1;
+		int nFrameLine = 0;
+		int dtimemax = Integer.MIN_VALUE;
+		boolean isPhoton;
+		int nBlock;
+		long nNextProgress = 0;
+		
+		//first frame starts at the beginning
+		index.addCheckpoint(0, 0, -1);
+
+		for(long n = 0; n < nRecords; n += nBlock)
+		{
+			checkCancelled(progress);
+			nBlock = rr.readBlock(nRecords - n);
+			if(nBlock == 0)
+				break;
+			phase.nRecords += nBlock;
+			for(int i = 0; i < nBlock; i++)
+			{
+				isPhoton = rr.readRecord(i);
+
+				// it is a marker!
+				if (!isPhoton)
+				{
+					phase.nMarkers++;
+					if (rr.markers == header.nLineStart && rr.syncStart < 0)
+					{
+						rr.syncStart = rr.ofltime + rr.nsync;
+					}
+					else
+					{
+						if ((rr.markers == header.nLineStop) && (rr.syncStart >= 0))
+						{
+							syncCountPerLine += rr.ofltime + rr.nsync - rr.syncStart;
+							rr.syncStart = -1;
+							nLines++;
+							nFrameLine++;
+							if(!header.bFrameMarkerPresent && nLines % header.nPixY == 0)
+							{
+								index.addCheckpoint(n + i + 1, rr.ofltime, -1);
+								nCurFrame++;
+								nFrameLine = 0;
+							}
+							else if(nFrameLine % PtuIndex.LINE_STEP == 0)
+							{
+								index.addLineCheckpoint(n + i + 1, rr.ofltime, nCurFrame, nFrameLine);
+							}
+						}
+					}
+					if(rr.markers >= header.nFrameMark && header.bFrameMarkerPresent)
+					{
+						frameNb += 1;
+						index.addCheckpoint(n + i + 1, rr.ofltime, rr.syncStart);
+						nCurFrame++;
+						nFrameLine = 0;
+					}
+				}
+				//it is photon, let's mark channel presence
+				else
+				{
+					index.bChannels[rr.chan-1] = true;
+
+					if(rr.dtime > dtimemax)
+						dtimemax = rr.dtime;
+				}
+			}
+			if(progress != null && n + nBlock >= nNextProgress)
+			{
+				progress.progress(n + nBlock, nRecords);
+				nNextProgress += PROGRESS_STEP;
+			}
+		}
+		if(progress != null)
+			progress.progress(nRecords, nRecords);
+
+		//somehow SymPhoTime removes last measurement???
+		dtimemax--;
+
+		// Get the average sync signals per line in the recorded data
+		// It helps to determine photon assignment to a pixel.
+		// Is it the best idea? I'm not sure, but it works so far.
+		// In principle, should use line start/end
+		if(nLines > 0)
+		{
+			syncCountPerLine /= nLines;
+		}
+		else
+		{
+			log.accept("Warning: no line start/stop markers found!");
+		}
+
+		if(!header.bFrameMarkerPresent)
+			frameNb = (int)Math.ceil((double)nLines/(double)header.nPixY) + 1;
+		else if(nRecords < header.nHeaderRecords && nFrameLine > 0)
+		{
+			//valid part of a truncated (or damaged) file ends inside of the frame
+			log.accept("The last frame (" + Integer.toString(frameNb) + ") is incomplete, it has " + Integer.toString(nFrameLine) + " lines.");
+			frameNb++;
+		}
+
+		index.nTotFrames = frameNb - 1;
+		index.dtimemax = dtimemax;
+		index.syncCountPerLine = syncCountPerLine;
+		index.nLines = nLines;
+		phase.nLines = nLines;
+		return index;
+	}
+
+	/** reads all records and sends photons (in the order of arrival) to the consumer,
+	 * works for any measurement (image or point) and for T2 records
+	 * (time tag is sent as nSync, in units of header.dGlobalResolution, and dtime is zero) **/
+	public void readPhotons(final PhotonConsumer consumer, final ProgressListener progress) throws IOException
+	{
+		final RecordBlock block = pool.getBlock();
+		final PhaseMetrics phase = new PhaseMetrics(PhaseMetrics.PHASE_PHOTONS, path.getFileName().toString());
+		try (RecordReader rr = newReader(block))
+		{
+			final long nRecords = header.nRecords;
+			long nNextProgress = 0;
+			int nBlock;
+			try
+			{
+				for(long n = 0; n < nRecords; n += nBlock)
+				{
+					checkCancelled(progress);
+					nBlock = rr.readBlock(nRecords - n);
+					if(nBlock == 0)
+						break;
+					phase.nRecords += nBlock;
+					for(int i = 0; i < nBlock; i++)
+					{
+						if(rr.readRecord(i))
+						{
+							consumer.photon(rr.ofltime + rr.nsync, rr.chan - 1, rr.dtime);
+						}
+						else
+						{
+							phase.nMarkers++;
+						}
+					}
+					if(progress != null && n + nBlock >= nNextProgress)
+					{
+						progress.progress(n + nBlock, nRecords);
+						nNextProgress += PROGRESS_STEP;
+					}
+				}
+				phase.bComplete = true;
+			}
+			finally
+			{
+				reportPhase(phase, rr);
+			}
+			if(progress != null)
+				progress.progress(nRecords, nRecords);
+		}
+		finally
+		{
+			pool.release(block);
+		}
+	}
+	
+	/** reads the data second time and places photons to the accumulators **/
+	public void decode(final PtuIndex index, final DecodeParameters params, final FlimData data, final ProgressListener progress) throws IOException
+	{
+		decode(index, params, data, null, progress);
+	}
+
+	/** reads the data second time and places photons to the accumulators 
+	 * and/or to the photon index (any of them can be null) **/
+	public void decode(final PtuIndex index, final DecodeParameters params, final FlimData data, final PhotonIndex.Builder photons, final ProgressListener progress) throws IOException
+	{
+		final RecordBlock block = pool.getBlock();
+		final PhaseMetrics phase = new PhaseMetrics(PhaseMetrics.PHASE_DECODE, path.getFileName().toString());
+		try (RecordReader rr = newReader(block))
+		{
+			try
+			{
+				decode(rr, index, params, data, photons, phase, progress);
+				phase.bComplete = true;
+			}
+			finally
+			{
+				reportPhase(phase, rr);
+			}
+		}
+		finally
+		{
+			pool.release(block);
+		}
+	}
+	
+	/** decodes intensity and lifetime sum of the frames (bins) of params
+	 * and reports each of them to the listener as soon as it is complete,
+	 * only one bin is kept in memory (its buffers are reused for the next bin),
+	 * bHistogram adds photons histogram of each bin **/
+	public void decodeFrames(final PtuIndex index, final DecodeParameters params, final boolean bHistogram, final FrameListener listener, final ProgressListener progress) throws IOException
+	{
+		final DecodeParameters frameParams = params.copy();
+		frameParams.bLoadIntAverLTImages = true;
+		frameParams.bLoadLTOrderedStacks = false;
+		final FlimData data = new FlimData(header, index, frameParams, 1, bHistogram, pool, log);
+		final FrameResult frame = new FrameResult();
+		data.binListener = (d, nBin) -> {
+			frame.set(d, frameParams, nBin);
+			listener.frameDecoded(frame);
+		};
+		try
+		{
+			decode(index, frameParams, data, progress);
+		}
+		finally
+		{
+			data.release(pool);
+		}
+	}
+	
+	void decode(final RecordReader rr, final PtuIndex index, final DecodeParameters params, final FlimData data, final PhotonIndex.Builder photons, final PhaseMetrics phase, final ProgressListener progress) throws IOException
+	{
+		final long nRecords = header.nRecords;
+		final int nPixX = header.nPixX;
+		final int nPixY = header.nPixY;
+		final double syncCountPerLine = index.syncCountPerLine;
+		
+		//filters
+		final PhotonFilter filter = params.filter;
+		final int nX0 = filter.getX0(nPixX);
+		final int nOutX = filter.getWidth(nPixX);
+		final int nX1 = nX0 + nOutX;
+		final int nY0 = filter.getY0(nPixY);
+		final int nY1 = nY0 + filter.getHeight(nPixY);
+		final int nDtimeMin = filter.nDtimeMin;
+		final int nDtimeMax = Math.min(filter.nDtimeMax, index.dtimemax);
+		final boolean [] bChannelOn = new boolean[4];
+		for(int nCh = 0; nCh < 4; nCh++)
+		{
+			bChannelOn[nCh] = index.bChannels[nCh] && filter.bChannels[nCh];
+		}
+		//drift correction moves photons between lines, so all lines are read
+		final DriftCorrection drift = params.drift;
+		//lines outside of the crop are skipped
+		final boolean bSkipLines = (nY0 > 0 || nY1 < nPixY) && drift == null;
+		boolean bDone = false;
+		
+		final boolean bIntAverLT = data != null && data.bIntAverLT;
+		final boolean bLTStack = data != null && data.bLTStack;
+		final BinListener binListener = (data != null) ? data.binListener : null;
+		final FrameSums frameSums = (data != null) ? data.frameSums : null;
+		/** number of bins reported to binListener **/
+		int nBinsDone = 0;
+
+		//start from the first frame of the range (and the first line of the crop)
+		final long nFirstRecord = rr.seekLine(index, params.nFrameMin, (drift == null) ? nY0 : 0);
+		/** drift of the current frame, lines and pixels (subtracted from photon position) **/
+		int nShiftY = 0;
+		double dShiftX = 0.0;
+		if(drift != null)
+		{
+			nShiftY = drift.getShiftY(rr.curFrame);
+			dShiftX = drift.getShiftX(rr.curFrame);
+		}
+		/** current binned frame number (starting from zero) **/
+		int nBin = (rr.curFrame - params.nFrameMin) / params.nTimeBin;
+		/** slot of the bin in the accumulators (see FlimData.nBinSlots) **/
+		final int nBinSlots = (data != null) ? data.nBinSlots : 1;
+		int nSlot = Math.max(0, nBin) % nBinSlots;
+		final boolean bBinHistogram = bIntAverLT && data.bBinHistogram;
+		boolean isPhoton;
+		long nNextProgress = 0;
+
+		// read data
+		long n = nFirstRecord;
+		while(n < nRecords && rr.curFrame <= params.nFrameMax && !bDone)
+		{
+			checkCancelled(progress);
+			final int nBlock = rr.readBlock(nRecords - n);
+			if(nBlock == 0)
+				break;
+			phase.nRecords += nBlock;
+			/** index of the record after the block (or after moving the reader) **/
+			long nNext = n + nBlock;
+			for(int i = 0; i < nBlock; i++)
+			{
+				isPhoton = rr.readRecord(i);
+
+				//update global time
+				//this should happen after the readRecord
+				rr.curSync = rr.ofltime + rr.nsync;
+
+				//it is a marker
+				if(!isPhoton)
+				{
+					phase.nMarkers++;
+					if(rr.markers >= header.nFrameMark && header.bFrameMarkerPresent)
+					{
+						rr.curFrame += 1;
+						rr.curLine = 0;
+					}
+					if (rr.markers == header.nLineStart && rr.syncStart < 0)
+					{
+						rr.insideLine = true;
+						rr.syncStart = rr.curSync;
+					}
+					else
+					{
+						if (rr.markers == header.nLineStop && rr.syncStart >= 0)
+						{
+							rr.insideLine = false;
+							rr.curLine++;
+							rr.syncStart = -1;
+							if(rr.curLine == nPixY && (!header.bFrameMarkerPresent))
+							{
+								rr.curFrame += 1;
+								rr.curLine = 0;
+							}
+						}
+					}
+					//outside of the crop, move to the next line of the crop
+					//if it is far enough
+					if(bSkipLines && !rr.insideLine && (rr.curLine < nY0 || rr.curLine >= nY1))
+					{
+						final int nNextFrame = (rr.curLine < nY0) ? rr.curFrame : rr.curFrame + 1;
+						if(nNextFrame > params.nFrameMax)
+						{
+							phase.nRecords -= nBlock - i - 1;
+							bDone = true;
+							break;
+						}
+						final long nNextRecord = index.getLineRecord(nNextFrame, nY0);
+						if(nNextRecord > n + i + 1 + SKIP_MIN_RECORDS)
+						{
+							nNext = rr.seekLine(index, nNextFrame, nY0);
+						}
+					}
+					nBin = (rr.curFrame - params.nFrameMin) / params.nTimeBin;
+					nSlot = Math.max(0, nBin) % nBinSlots;
+					if(drift != null)
+					{
+						nShiftY = drift.getShiftY(rr.curFrame);
+						dShiftX = drift.getShiftX(rr.curFrame);
+					}
+					if(binListener != null && nBin > nBinsDone)
+					{
+						nBinsDone = notifyBins(binListener, data, nBinsDone, nBin);
+					}
+					if(nNext != n + nBlock)
+					{
+						//reader was moved, the rest of the block is skipped
+						phase.nRecords -= nBlock - i - 1;
+						break;
+					}
+				}
+				//it is a photon, reject it as early as possible
+				else if (rr.insideLine && rr.curLine - nShiftY >= nY0 && rr.curLine - nShiftY < nY1
+						&& rr.dtime >= nDtimeMin && rr.dtime <= nDtimeMax && bChannelOn[rr.chan - 1])
+				{
+					rr.curPixel = (int) Math.floor((rr.curSync-rr.syncStart)/syncCountPerLine*nPixX - dShiftX);
+
+					if(rr.curFrame >= params.nFrameMin && rr.curFrame <= params.nFrameMax
+							&& rr.curPixel >= nX0 && rr.curPixel < nX1)
+					{
+						final int nPix = (rr.curLine - nShiftY - nY0) * nOutX + rr.curPixel - nX0;
+						final int nCh = rr.chan - 1;
+						if(bIntAverLT)
+						{
+							//intensity
+							data.fIntensity[nCh][nSlot][nPix]++;
+							//cumulative lifetime
+							data.fLifetime[nCh][nSlot][nPix] += rr.dtime;
+							data.lPhotCumHistogram[nCh][rr.dtime]++;
+							if(bBinHistogram)
+							{
+								data.lBinHistogram[nCh][nSlot][rr.dtime]++;
+							}
+						}
+
+						//update lifetime ordered stacks
+						if(bLTStack)
+						{
+							data.ltDecay[nCh].add((data.nLTload == 0) ? 0 : nBin, nPix, rr.dtime);
+						}
+						
+						if(photons != null)
+						{
+							photons.add(nCh, nPix, rr.curFrame, rr.dtime);
+						}
+						
+						if(frameSums != null)
+						{
+							frameSums.add(nCh, nPix, rr.curFrame, rr.dtime);
+						}
+					}
+				}
+				//photons of the last (incomplete) microtime bin
+				else if(rr.dtime > index.dtimemax)
+				{
+					phase.nDropped++;
+				}
+			}
+			if(progress != null && nNext >= nNextProgress)
+			{
+				progress.progress(nNext, nRecords);
+				nNextProgress = nNext + PROGRESS_STEP;
+			}
+			n = nNext;
+		}
+		if(progress != null)
+			progress.progress(nRecords, nRecords);
+		if(binListener != null)
+		{
+			notifyBins(binListener, data, nBinsDone, data.nTotalBins);
+		}
+	}
+	
+	/** completes counts of the pass and reports them **/
+	void reportPhase(final PhaseMetrics phase, final RecordReader rr)
+	{
+		phase.finish(rr, RECORD_BYTES);
+		if(metrics != null)
+		{
+			metrics.phaseFinished(phase);
+		}
+	}
+
+	/** throws CancellationException if the listener asks to stop reading **/
+	static void checkCancelled(final ProgressListener progress)
+	{
+		if(progress != null && progress.isCancelled())
+		{
+			throw new CancellationException("Reading of records is cancelled.");
+		}
+	}
+	
+	/** reports bins from nFrom to nTo (exclusive) as decoded,
+	 * returns the number of reported bins.
+	 * If only some bins are kept, slots of reported bins are cleared for reuse. **/
+	static int notifyBins(final BinListener binListener, final FlimData data, final int nFrom, final int nTo)
+	{
+		final int nEnd = Math.min(nTo, data.nTotalBins);
+		for(int nBin = nFrom; nBin < nEnd; nBin++)
+		{
+			binListener.binDecoded(data, nBin);
+			if(data.nBinSlots < data.nTotalBins)
+			{
+				data.clearSlot(nBin);
+			}
+		}
+		return Math.max(nFrom, nEnd);
+	}
+
+	/** releases the file (if this is the last user),
+	 * the mapping is freed by the garbage collector **/
+	@Override
+	public void close() throws IOException
+	{
+		synchronized(sharedFiles)
+		{
+			if(nRefCount == 0)
+				return;
+			nRefCount--;
+			if(nRefCount > 0)
+				return;
+			if(bShared)
+			{
+				sharedFiles.remove(path);
+			}
+		}
+		if(parent != null)
+		{
+			parent.close();
+			return;
+		}
+		if(fc != null)
+		{
+			fc.close();
+		}
+	}
+}
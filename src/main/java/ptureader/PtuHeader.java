@@ -0,0 +1,129 @@
+package ptureader;
+
+/** Acquisition parameters read from the header of ptu/pt3 file **/
+public class PtuHeader
+{
+	/** submode of point measurements (FCS, etc) **/
+	public final static int SUBMODE_POINT = 0;
+
+	/** submode of image (FLIM) measurements **/
+	public final static int SUBMODE_IMAGE = 3;
+
+	/** total number of records **/
+	public long nRecords = 0;
+
+	/** number of records declared in the header
+	 * (nRecords is limited to the records present in the file) **/
+	public long nHeaderRecords = 0;
+
+	/** image width**/
+	public int nPixX = 0;
+
+	/** image height**/
+	public int nPixY = 0;
+
+	/** pixel size in um**/
+	public double dPixSize = 0;
+
+	/** Line start marker**/
+	public int nLineStart = 0;
+
+	/** Line end marker**/
+	public int nLineStop = 0;
+
+	/** Frame marker **/
+	public int nFrameMark = -1;
+
+	/** resolution of TCSPC in ns**/
+	public float fTimeResolution = 0.0f;
+
+	/** resolution of global time (sync period) in seconds, 0 if unknown **/
+	public double dGlobalResolution = 0.0;
+
+	/** measurement submode (image, point, etc) **/
+	public int nSubMode = SUBMODE_IMAGE;
+
+	/** if Frame marker is present (NOT A RELIABLE MARKER??)**/
+	public boolean bFrameMarkerPresent = false;
+
+	/** defines record format depending on device (picoharp/hydraharp, etc) **/
+	public int nRecordType;
+
+	/** whether records are T2 (time tags without microtime) **/
+	public boolean isT2;
+
+	/** version of HydraHarp type records (1 or 2, they differ in overflow records) **/
+	public int nHT3Version = 2;
+
+	/** whether nRecords is limited to the valid part by IntegrityCheck
+	 * (only in the header copy of a limited file, see PtuFile.limit) **/
+	public boolean bRecordsChecked = false;
+
+	/** position of the first record in the file (in bytes) **/
+	public int dataPosition = 0;
+
+	/** acquisition information (all header tags) **/
+	public final StringBuilder stringInfo = new StringBuilder();
+
+	/** description of the problem if header cannot be read **/
+	public String sError = null;
+
+	/** returns independent copy of the header **/
+	public PtuHeader copy()
+	{
+		final PtuHeader out = new PtuHeader();
+		out.nRecords = nRecords;
+		out.nHeaderRecords = nHeaderRecords;
+		out.nPixX = nPixX;
+		out.nPixY = nPixY;
+		out.dPixSize = dPixSize;
+		out.nLineStart = nLineStart;
+		out.nLineStop = nLineStop;
+		out.nFrameMark = nFrameMark;
+		out.fTimeResolution = fTimeResolution;
+		out.dGlobalResolution = dGlobalResolution;
+		out.nSubMode = nSubMode;
+		out.bFrameMarkerPresent = bFrameMarkerPresent;
+		out.nRecordType = nRecordType;
+		out.isT2 = isT2;
+		out.nHT3Version = nHT3Version;
+		out.bRecordsChecked = bRecordsChecked;
+		out.dataPosition = dataPosition;
+		out.stringInfo.append(stringInfo);
+		out.sError = sError;
+		return out;
+	}
+
+	/** whether the file contains an image (scan with line markers) **/
+	public boolean isImage()
+	{
+		return nSubMode == SUBMODE_IMAGE;
+	}
+
+	/** applies corrections to the marker values read from the header,
+	 * should be called once the header is read **/
+	void fixMarkers()
+	{
+		//STUB
+		//For some reason reading markers with values more that 2
+		// is wrong.
+		//temporary stub
+		if(nLineStart > 2)
+			nLineStart = 4;
+
+		if(nLineStop > 2)
+			nLineStop = 4;
+
+		if(nFrameMark > 2 && nRecordType == HeaderReader.rtPicoHarpT3)
+		{
+			nFrameMark = 4;
+			bFrameMarkerPresent = true;
+		}
+
+		if(nFrameMark > 2 && nRecordType != HeaderReader.rtPicoHarpT3)
+		{
+			//nFrameMark=4;
+			bFrameMarkerPresent = true;
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package ptureader;
+
+import java.util.Arrays;
+
+/** Results of the analysis (first) pass over all records:
+ * total number of frames, maximum lifetime register, 
+ * present channels and average acquisition speed **/
+public class PtuIndex
+{
+	/** total number of Frames in PTU file **/   
+	public int nTotFrames = 0;
+	
+	/** maximum time of photon arrival (int) **/
+	public int dtimemax = Integer.MIN_VALUE;
+	
+	/** array marking presence of channels **/
+	public final boolean [] bChannels = new boolean[4]; 
+	
+	/** average number of sync signals per line **/
+	public long syncCountPerLine = 0;
+	
+	/** total number of lines (line start/stop pairs) **/
+	public long nLines = 0;
+	
+	/** number of stored frame checkpoints **/
+	int nCheckpoints = 0;
+	
+	/** checkpoints: index of the first record of each frame (frame 1 at position 0) **/
+	long [] lFrameRecord = new long[16];
+	
+	/** checkpoints: accumulated global time at the start of each frame **/
+	long [] lFrameOfltime = new long[16];
+	
+	/** checkpoints: "global time" of the line start at the start of each frame 
+	 * (-1 if frame starts outside of a line) **/
+	long [] lFrameSyncStart = new long[16];
+	
+	/** adds checkpoint of the next frame **/
+	void addCheckpoint(final long nRecord, final long ofltime, final long syncStart)
+	{
+		if(nCheckpoints == lFrameRecord.length)
+		{
+			final int nNewLength = 2 * lFrameRecord.length;
+			lFrameRecord = Arrays.copyOf(lFrameRecord, nNewLength);
+			lFrameOfltime = Arrays.copyOf(lFrameOfltime, nNewLength);
+			lFrameSyncStart = Arrays.copyOf(lFrameSyncStart, nNewLength);
+		}
+		lFrameRecord[nCheckpoints] = nRecord;
+		lFrameOfltime[nCheckpoints] = ofltime;
+		lFrameSyncStart[nCheckpoints] = syncStart;
+		nCheckpoints++;
+	}
+	
+	/** line checkpoints are stored every LINE_STEP lines of a frame **/
+	final static int LINE_STEP = 16;
+	
+	/** number of stored line checkpoints **/
+	int nLineCheckpoints = 0;
+	
+	/** line checkpoints: index of the record after the end of the previous line **/
+	long [] lLineRecord = new long[16];
+	
+	/** line checkpoints: accumulated global time at the checkpoint **/
+	long [] lLineOfltime = new long[16];
+	
+	/** line checkpoints: frame (starting from 1) **/
+	int [] nLineFrame = new int[16];
+	
+	/** line checkpoints: line within the frame (starting from 0) **/
+	int [] nLineNumber = new int[16];
+	
+	/** adds checkpoint of the line, record nRecord follows the end of the previous line **/
+	void addLineCheckpoint(final long nRecord, final long ofltime, final int nFrame, final int nLine)
+	{
+		if(nLineCheckpoints == lLineRecord.length)
+		{
+			final int nNewLength = 2 * lLineRecord.length;
+			lLineRecord = Arrays.copyOf(lLineRecord, nNewLength);
+			lLineOfltime = Arrays.copyOf(lLineOfltime, nNewLength);
+			nLineFrame = Arrays.copyOf(nLineFrame, nNewLength);
+			nLineNumber = Arrays.copyOf(nLineNumber, nNewLength);
+		}
+		lLineRecord[nLineCheckpoints] = nRecord;
+		lLineOfltime[nLineCheckpoints] = ofltime;
+		nLineFrame[nLineCheckpoints] = nFrame;
+		nLineNumber[nLineCheckpoints] = nLine;
+		nLineCheckpoints++;
+	}
+	
+	/** returns index of the last line checkpoint of the frame 
+	 * at or before the line, -1 if there is none **/
+	int findLineCheckpoint(final int nFrame, final int nLine)
+	{
+		int nLow = 0;
+		int nHigh = nLineCheckpoints;
+		//first checkpoint after (nFrame, nLine)
+		while(nLow < nHigh)
+		{
+			final int nMid = (nLow + nHigh) >>> 1;
+			if(nLineFrame[nMid] < nFrame || (nLineFrame[nMid] == nFrame && nLineNumber[nMid] <= nLine))
+				nLow = nMid + 1;
+			else
+				nHigh = nMid;
+		}
+		final int nFound = nLow - 1;
+		if(nFound < 0 || nLineFrame[nFound] != nFrame)
+			return -1;
+		return nFound;
+	}
+	
+	/** returns index of the record from which reading of the line 
+	 * (starting from 0) of the frame (starting from 1) starts, 
+	 * -1 if there is no checkpoint for the frame **/
+	public long getLineRecord(final int nFrame, final int nLine)
+	{
+		final int nCheckpoint = findLineCheckpoint(nFrame, nLine);
+		if(nCheckpoint >= 0)
+			return lLineRecord[nCheckpoint];
+		if(hasCheckpoint(nFrame))
+			return getFrameRecord(nFrame);
+		return -1;
+	}
+	
+	/** returns true if there is a checkpoint for the frame (starting from 1) **/
+	public boolean hasCheckpoint(final int nFrame)
+	{
+		return nFrame >= 1 && nFrame <= nCheckpoints;
+	}
+	
+	/** returns index of the first record of the frame (starting from 1) **/
+	public long getFrameRecord(final int nFrame)
+	{
+		return lFrameRecord[nFrame - 1];
+	}
+}
@@ -0,0 +1,331 @@
+package ptureader;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/** Quick estimate of the file parameters (frames, dtimemax, channels)
+ * and low photon preview of Intensity and FastLifetime, made from
+ * a limited number of records: the beginning of the file and
+ * evenly spaced samples over the rest of it.
+ * Each sample is read with a fresh reader state (global time counted
+ * from the sample start, overflow records handled as usual)
+ * and it is synchronized by the first frame marker inside it:
+ * records before the marker are used only for statistics.
+ * Photons of a line are placed when the line stop marker arrives,
+ * using the length of this line, so no frame analysis is needed.
+ * Preview contains photons of all sampled frames together.
+ * Compressed files cannot be sampled quickly, only their beginning is read. **/
+public class QuickLook
+{
+	/** records read by default (about a second of reading) **/
+	public final static long DEFAULT_RECORDS = 1L << 23;
+
+	/** maximum number of samples after the beginning **/
+	final static int MAX_SAMPLES = 64;
+
+	/** minimum length of a sample (records) **/
+	final static long MIN_SAMPLE_RECORDS = 1L << 14;
+
+	/** largest microtime counted in the histogram **/
+	final static int MAX_DTIME = 1 << 15;
+
+	/** initial capacity of the line buffer (photons) **/
+	final static int LINE_CAPACITY = 1024;
+
+	final PtuHeader header;
+
+	/** estimated total number of frames **/
+	public int nTotFrames = 0;
+
+	/** estimated maximum microtime **/
+	public int dtimemax = 0;
+
+	/** channels found in the samples **/
+	public final boolean [] bChannels = new boolean[4];
+
+	/** average line length in sync periods **/
+	public long syncCountPerLine = 0;
+
+	/** whether all records were read (estimates are exact) **/
+	public boolean bExact = false;
+
+	/** number of records read **/
+	public long nScannedRecords = 0;
+
+	/** number of samples read (including the beginning) **/
+	public int nSamples = 0;
+
+	/** Intensity and FastLifetime preview (one bin), null if no photons were placed **/
+	public FlimData preview = null;
+
+	/** accumulated intensity and microtime per channel **/
+	final float [][] fIntensity = new float[4][];
+
+	final float [][] fLifetime = new float[4][];
+
+	final long [][] lHistogram = new long[4][MAX_DTIME];
+
+	int nDtimeMaxFound = -1;
+
+	long nLines = 0;
+
+	long nLineSyncs = 0;
+
+	long nFrameMarkers = 0;
+
+	long nPlacedPhotons = 0;
+
+	/** photons of the current line: time, channel and microtime **/
+	long [] lineTimes = new long[LINE_CAPACITY];
+
+	int [] lineChannels = new int[LINE_CAPACITY];
+
+	int [] lineDtimes = new int[LINE_CAPACITY];
+
+	int nLinePhotons = 0;
+
+	/** whether lines of the current sample are counted from a frame start **/
+	boolean bSynced = false;
+
+	/** current line of the frame in the current sample **/
+	int nFrameLine = 0;
+
+	QuickLook(final PtuHeader header)
+	{
+		this.header = header;
+		final int nPixTotal = header.nPixX * header.nPixY;
+		for(int nCh = 0; nCh < 4; nCh++)
+		{
+			fIntensity[nCh] = new float[nPixTotal];
+			fLifetime[nCh] = new float[nPixTotal];
+		}
+	}
+
+	/** reads up to nRecordBudget records of the file (a quarter from the beginning,
+	 * the rest in samples long enough to contain a whole frame, if possible) **/
+	public static QuickLook scan(final PtuFile ptuFile, final long nRecordBudget, final ProgressListener progress) throws IOException
+	{
+		final PtuHeader header = ptuFile.header;
+		if(!header.isImage() || header.isT2)
+		{
+			throw new IOException("Preview is available only for FLIM image (T3) data.");
+		}
+		final QuickLook ql = new QuickLook(header);
+		final long nRecords = header.nRecords;
+		final RecordBlock block = ptuFile.pool.getBlock();
+		try (RecordReader rr = ptuFile.newReader(block))
+		{
+			if(nRecords <= nRecordBudget)
+			{
+				ql.scanSample(rr, 0, nRecords, progress);
+				ql.bExact = true;
+			}
+			else
+			{
+				//the beginning is always synchronized
+				final long nHead = (ptuFile.sCompression == null) ? nRecordBudget / 4 : nRecordBudget;
+				ql.scanSample(rr, 0, nHead, progress);
+				final long nLeft = nRecordBudget - nHead;
+				//records of one frame, estimated from the lines of the beginning
+				final long nFrameRecords = (ql.nLines > 0) ? nHead * header.nPixY / ql.nLines : nHead;
+				if(nLeft > 0 && 2 * nFrameRecords > nLeft)
+				{
+					//samples would not contain whole frames, longer beginning is more useful
+					ql.scanRecords(rr, nLeft, progress);
+				}
+				else if(nLeft > 0)
+				{
+					final long nSampleRecords = Math.max(MIN_SAMPLE_RECORDS, 2 * nFrameRecords);
+					final int nSampleCount = (int) Math.max(1, Math.min(MAX_SAMPLES, nLeft / nSampleRecords));
+					for(int k = 1; k <= nSampleCount; k++)
+					{
+						final long nStart = nHead + (nRecords - nHead - nSampleRecords) * k / nSampleCount;
+						ql.scanSample(rr, nStart, nSampleRecords, progress);
+						if(progress != null)
+							progress.progress(k, nSampleCount);
+					}
+				}
+			}
+		}
+		finally
+		{
+			ptuFile.pool.release(block);
+		}
+		ql.finish();
+		return ql;
+	}
+
+	/** reads nLength records starting from nStart **/
+	void scanSample(final RecordReader rr, final long nStart, final long nLength, final ProgressListener progress) throws IOException
+	{
+		rr.seekRecord(nStart);
+		//lines are counted from the frame marker (or from the file start)
+		bSynced = (nStart == 0);
+		nFrameLine = 0;
+		nLinePhotons = 0;
+		nSamples++;
+		scanRecords(rr, nLength, progress);
+	}
+
+	/** reads next nLength records of the current sample **/
+	void scanRecords(final RecordReader rr, final long nLength, final ProgressListener progress) throws IOException
+	{
+		int nBlock;
+		for(long n = 0; n < nLength; n += nBlock)
+		{
+			PtuFile.checkCancelled(progress);
+			nBlock = rr.readBlock(nLength - n);
+			if(nBlock == 0)
+				break;
+			nScannedRecords += nBlock;
+			for(int i = 0; i < nBlock; i++)
+			{
+				if(rr.readRecord(i))
+				{
+					final int nCh = rr.chan - 1;
+					bChannels[nCh] = true;
+					if(rr.dtime > nDtimeMaxFound)
+						nDtimeMaxFound = rr.dtime;
+					if(rr.dtime < MAX_DTIME)
+						lHistogram[nCh][rr.dtime]++;
+					if(bSynced && rr.syncStart >= 0)
+					{
+						addLinePhoton(rr.ofltime + rr.nsync, nCh, rr.dtime);
+					}
+				}
+				//marker, same rules as in PtuFile.analyze
+				else
+				{
+					if(rr.markers == header.nLineStart && rr.syncStart < 0)
+					{
+						rr.syncStart = rr.ofltime + rr.nsync;
+						nLinePhotons = 0;
+					}
+					else if(rr.markers == header.nLineStop && rr.syncStart >= 0)
+					{
+						final long nLineSyncCount = rr.ofltime + rr.nsync - rr.syncStart;
+						nLines++;
+						nLineSyncs += nLineSyncCount;
+						if(bSynced)
+						{
+							placeLine(nFrameLine, rr.syncStart, nLineSyncCount);
+						}
+						rr.syncStart = -1;
+						nFrameLine++;
+						if(!header.bFrameMarkerPresent && nFrameLine == header.nPixY)
+						{
+							nFrameLine = 0;
+						}
+					}
+					if(rr.markers >= header.nFrameMark && header.bFrameMarkerPresent)
+					{
+						nFrameMarkers++;
+						bSynced = true;
+						nFrameLine = 0;
+					}
+				}
+			}
+		}
+	}
+
+	void addLinePhoton(final long nTime, final int nCh, final int dtime)
+	{
+		if(nLinePhotons == lineTimes.length)
+		{
+			final int nCapacity = lineTimes.length * 2;
+			lineTimes = Arrays.copyOf(lineTimes, nCapacity);
+			lineChannels = Arrays.copyOf(lineChannels, nCapacity);
+			lineDtimes = Arrays.copyOf(lineDtimes, nCapacity);
+		}
+		lineTimes[nLinePhotons] = nTime;
+		lineChannels[nLinePhotons] = nCh;
+		lineDtimes[nLinePhotons] = dtime;
+		nLinePhotons++;
+	}
+
+	/** places photons of the finished line nLine of the frame **/
+	void placeLine(final int nLine, final long nLineStart, final long nLineSyncCount)
+	{
+		if(nLine < header.nPixY && nLineSyncCount > 0)
+		{
+			for(int i = 0; i < nLinePhotons; i++)
+			{
+				final int x = (int) Math.floor((double)(lineTimes[i] - nLineStart) / nLineSyncCount * header.nPixX);
+				if(x >= 0 && x < header.nPixX)
+				{
+					final int nPix = nLine * header.nPixX + x;
+					fIntensity[lineChannels[i]][nPix]++;
+					fLifetime[lineChannels[i]][nPix] += lineDtimes[i];
+					nPlacedPhotons++;
+				}
+			}
+		}
+		nLinePhotons = 0;
+	}
+
+	/** makes estimates and the preview from the accumulated values **/
+	void finish()
+	{
+		//as in PtuFile.analyze
+		dtimemax = Math.max(0, nDtimeMaxFound - 1);
+		if(nLines > 0)
+		{
+			syncCountPerLine = nLineSyncs / nLines;
+		}
+		final double dScale = bExact ? 1.0 : (double)header.nRecords / Math.max(1, nScannedRecords);
+		if(bExact && header.bFrameMarkerPresent)
+		{
+			nTotFrames = (int) nFrameMarkers;
+		}
+		else if(bExact)
+		{
+			nTotFrames = (int) Math.ceil((double)nLines / header.nPixY);
+		}
+		else
+		{
+			//lines are more frequent than frame markers, so their rate is more reliable
+			nTotFrames = (int) Math.max(1, Math.round(nLines * dScale / header.nPixY));
+		}
+		if(nPlacedPhotons == 0)
+			return;
+
+		final PtuIndex index = new PtuIndex();
+		index.nTotFrames = 1;
+		index.dtimemax = dtimemax;
+		index.syncCountPerLine = syncCountPerLine;
+		final DecodeParameters params = new DecodeParameters();
+		params.bLoadLTOrderedStacks = false;
+		params.validate(1);
+		for(int nCh = 0; nCh < 4; nCh++)
+		{
+			index.bChannels[nCh] = bChannels[nCh];
+		}
+		preview = new FlimData(header, index, params, new BufferPool(), s -> {});
+		for(int nCh = 0; nCh < 4; nCh++)
+		{
+			if(!preview.bChannels[nCh])
+				continue;
+			System.arraycopy(fIntensity[nCh], 0, preview.fIntensity[nCh][0], 0, fIntensity[nCh].length);
+			System.arraycopy(fLifetime[nCh], 0, preview.fLifetime[nCh][0], 0, fLifetime[nCh].length);
+			System.arraycopy(lHistogram[nCh], 0, preview.lPhotCumHistogram[nCh], 0, Math.min(MAX_DTIME, preview.nLTSlices));
+		}
+		preview.computeFastLifetime(header.fTimeResolution, false, s -> {});
+	}
+
+	/** description of the estimates for the log **/
+	public String getReport()
+	{
+		final StringBuilder sb = new StringBuilder();
+		sb.append(bExact ? "Read all " : "Sampled ").append(nScannedRecords).append(" of ").append(header.nRecords)
+			.append(" records (").append(nSamples).append(nSamples == 1 ? " part" : " parts").append(")\n");
+		sb.append("Total frames").append(bExact ? ": " : " (estimate): ").append(nTotFrames).append("\n");
+		sb.append("Maximum time").append(bExact ? ": " : " (estimate): ").append(dtimemax).append("\n");
+		sb.append("Channels:");
+		for(int nCh = 0; nCh < 4; nCh++)
+		{
+			if(bChannels[nCh])
+				sb.append(" ").append(nCh + 1);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,204 @@
+package ptureader;
+
+import java.io.IOException;
+
+/** Block of raw T3 (or T2) records split into separate "lanes"
+ *  (nsync, dtime, channel, special flag).
+ *  For T2 records nsync lane contains the time tag and dtime is zero.
+ *  Bit fields of the whole block are extracted in tight branch-free
+ *  loops over primitive arrays (that the JIT compiles to SIMD instructions),
+ *  overflow and markers are resolved afterwards record by record. **/
+public class RecordBlock
+{
+	/** default number of records in one block **/
+	public final static int BLOCK_SIZE = 8192;
+
+	/** record formats (bit layouts) **/
+	public final static int FORMAT_PT3 = 0;
+
+	public final static int FORMAT_HT3 = 1;
+
+	public final static int FORMAT_PT2 = 2;
+
+	public final static int FORMAT_HT2 = 3;
+
+	/** raw 32-bit records (already converted from little endian) **/
+	final int [] raw;
+
+	/** nsync value of each record **/
+	final int [] nsync;
+
+	/** lifetime (microtime) of each record **/
+	final int [] dtime;
+
+	/** channel field of each record **/
+	final int [] chan;
+
+	/** 1 if record is special (marker/overflow), 0 if it is a photon **/
+	final int [] special;
+
+	/** number of valid records in the block **/
+	int nFilled = 0;
+
+	public RecordBlock()
+	{
+		this(BLOCK_SIZE);
+	}
+
+	public RecordBlock(final int nSize)
+	{
+		raw = new int[nSize];
+		nsync = new int[nSize];
+		dtime = new int[nSize];
+		chan = new int[nSize];
+		special = new int[nSize];
+	}
+
+	/** capacity of the block in records **/
+	public int capacity()
+	{
+		return raw.length;
+	}
+
+	/** reads next block from the records source,
+	 *  but not more than nMax records.
+	 *  Returns the number of records read.**/
+	public int fill(final RecordSource records, final long nMax) throws IOException
+	{
+		nFilled = records.read(raw, (int) Math.min(nMax, raw.length));
+		return nFilled;
+	}
+
+	/** returns format (bit layout) of the record type **/
+	public static int getFormat(final int nRecordType)
+	{
+		switch(nRecordType)
+		{
+			case HeaderReader.rtPicoHarpT3:
+				return FORMAT_PT3;
+			case HeaderReader.rtPicoHarpT2:
+				return FORMAT_PT2;
+			case HeaderReader.rtHydraHarpT2:
+			case HeaderReader.rtHydraHarp2T2:
+			case HeaderReader.rtTimeHarp260NT2:
+			case HeaderReader.rtTimeHarp260PT2:
+			case HeaderReader.rtMultiHarpNT2:
+				return FORMAT_HT2;
+			default:
+				return FORMAT_HT3;
+		}
+	}
+
+	/** splits raw records into lanes according to the record format **/
+	public void split(final int nFormat)
+	{
+		switch(nFormat)
+		{
+			case FORMAT_PT3:
+				splitPT3();
+				break;
+			case FORMAT_PT2:
+				splitPT2();
+				break;
+			case FORMAT_HT2:
+				splitHT2();
+				break;
+			default:
+				splitHT3();
+		}
+	}
+
+	/** PicoHarp T3 format: 16 bits nsync, 12 bits dtime, 4 bits channel.
+	 * Channel 15 means special record **/
+	void splitPT3()
+	{
+		final int n = nFilled;
+		for(int i = 0; i < n; i++)
+		{
+			nsync[i] = raw[i] & 0xFFFF;
+		}
+		for(int i = 0; i < n; i++)
+		{
+			dtime[i] = (raw[i] >>> 16) & 0xFFF;
+		}
+		for(int i = 0; i < n; i++)
+		{
+			chan[i] = (raw[i] >>> 28) & 0xF;
+		}
+		//chan == 15 -> (15+1)>>>4 = 1, otherwise 0
+		for(int i = 0; i < n; i++)
+		{
+			special[i] = (chan[i] + 1) >>> 4;
+		}
+	}
+
+	/** HydraHarp/MultiHarp/TimeHarp T3 format: 10 bits nsync, 15 bits dtime,
+	 * 6 bits channel and 1 bit special flag **/
+	void splitHT3()
+	{
+		final int n = nFilled;
+		for(int i = 0; i < n; i++)
+		{
+			nsync[i] = raw[i] & 0x3FF;
+		}
+		for(int i = 0; i < n; i++)
+		{
+			dtime[i] = (raw[i] >>> 10) & 0x7FFF;
+		}
+		for(int i = 0; i < n; i++)
+		{
+			chan[i] = (raw[i] >>> 25) & 0x3F;
+		}
+		for(int i = 0; i < n; i++)
+		{
+			special[i] = raw[i] >>> 31;
+		}
+	}
+
+	/** PicoHarp T2 format: 28 bits time tag, 4 bits channel.
+	 * Channel 15 means special record, its lowest 4 bits (markers)
+	 * are placed to dtime lane **/
+	void splitPT2()
+	{
+		final int n = nFilled;
+		for(int i = 0; i < n; i++)
+		{
+			nsync[i] = raw[i] & 0xFFFFFFF;
+		}
+		for(int i = 0; i < n; i++)
+		{
+			chan[i] = (raw[i] >>> 28) & 0xF;
+		}
+		for(int i = 0; i < n; i++)
+		{
+			special[i] = (chan[i] + 1) >>> 4;
+		}
+		for(int i = 0; i < n; i++)
+		{
+			dtime[i] = (raw[i] & 0xF) * special[i];
+		}
+	}
+
+	/** HydraHarp/MultiHarp/TimeHarp T2 format: 25 bits time tag,
+	 * 6 bits channel and 1 bit special flag **/
+	void splitHT2()
+	{
+		final int n = nFilled;
+		for(int i = 0; i < n; i++)
+		{
+			nsync[i] = raw[i] & 0x1FFFFFF;
+		}
+		for(int i = 0; i < n; i++)
+		{
+			dtime[i] = 0;
+		}
+		for(int i = 0; i < n; i++)
+		{
+			chan[i] = (raw[i] >>> 25) & 0x3F;
+		}
+		for(int i = 0; i < n; i++)
+		{
+			special[i] = raw[i] >>> 31;
+		}
+	}
+}
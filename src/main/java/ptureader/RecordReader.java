@@ -0,0 +1,274 @@
+package ptureader;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/** Reads T3 (or T2) records block by block and keeps the state of reading
+ * (accumulated global time, current line, pixel, etc).
+ * Each reader has its own state (and its own view of the records), 
+ * so different readers over the same file can be used 
+ * from different threads independently. **/
+public class RecordReader implements Closeable
+{
+	 // wraparound constants
+	final static int PT3WRAPAROUND = 65536;
+	final static int HT3WRAPAROUND = 1024;
+	final static int PT2WRAPAROUND = 210698240;
+	final static int HT2WRAPAROUND_V1 = 33552000;
+	final static int HT2WRAPAROUND_V2 = 33554432;
+
+	/** defines record format depending on device (picoharp/hydraharp, etc) **/
+	final int nRecordType;
+
+	final int nHT3Version;
+
+	/** bit layout of the records (see RecordBlock) **/
+	final int nFormat;
+
+	/** source of the records **/
+	final RecordSource records;
+
+	/** current block of records split into lanes **/
+	final RecordBlock recBlock;
+
+	//RECORD READING STATE VARIABLES
+
+	/** current nsync value (without accumulated global time) **/
+	public int nsync = 0;
+	/** channel number or if it is wraparound signal (chan == 15)**/
+	public int chan = 0;
+	/** special marker value (line/frame start/stop)**/
+	public int markers = 0;
+	/** lifetime count **/
+	public int dtime = 0;
+	/** accumulated global time addition **/
+	public long ofltime;
+
+	/** current line (y coordinate )**/
+	public int curLine;
+
+	/** current pixel's x coordinate **/
+	public int curPixel = 0;
+
+	/** current "global time" = ofltime + nsync**/
+	public long curSync = 0;
+
+	/** "global time" of line start **/
+	public long syncStart = -1;
+
+	/** whether the photon is between start/stop line markers **/
+	public boolean insideLine = false;
+	
+	/** current frame (starting from 1) **/
+	public int curFrame = 1;
+
+	/** number of overflow (wraparound) records read, not reset with the state **/
+	public long nOverflows = 0;
+
+	public RecordReader(final PtuHeader header, final RecordSource records, final RecordBlock recBlock)
+	{
+		this.nRecordType = header.nRecordType;
+		this.nHT3Version = header.nHT3Version;
+		this.nFormat = RecordBlock.getFormat(nRecordType);
+		this.records = records;
+		this.recBlock = recBlock;
+		reset();
+	}
+
+	/** function reads next block of records (but not more than nMax)
+	 *  and splits them into lanes. Returns the number of records in the block. **/
+	public int readBlock(final long nMax) throws IOException
+	{
+		recBlock.fill(records, nMax);
+		recBlock.split(nFormat);
+		return recBlock.nFilled;
+	}
+
+	/** function resolves i-th record of the current block
+	 *  into the current state variables.
+	 *  Returns true if it is a photon and false if it is a marker. **/
+	public boolean readRecord(final int i)
+	{
+		nsync = recBlock.nsync[i];
+		dtime = recBlock.dtime[i];
+		chan = recBlock.chan[i];
+
+		switch(nFormat)
+		{
+			//picoharp
+			case RecordBlock.FORMAT_PT3:
+				return ReadPT3(recBlock.special[i]);
+			case RecordBlock.FORMAT_PT2:
+				return ReadPT2(recBlock.special[i]);
+			case RecordBlock.FORMAT_HT2:
+				return ReadHT2(recBlock.special[i]);
+			//multiharp
+			default:
+				return ReadHT3(recBlock.special[i]);
+		}
+	}
+
+	/** returns true if it is a photon data, returns false if it is a marker **/
+	boolean ReadPT3(final int special)
+	{
+		//chan == 15
+		if (special != 0)
+		{
+			markers = dtime&0xF;
+			if(markers == 0 || dtime == 0)
+			{
+				ofltime += PT3WRAPAROUND;
+				nOverflows++;
+			}
+			return false;
+		}
+		return true;
+	}
+
+	/** returns true if it is a photon data, returns false if it is a marker **/
+	boolean ReadHT3(final int special)
+	{
+		if (special * chan == 0)
+		{
+			/*if(chan==0)
+				return false;
+			else
+			*/
+			chan = chan + 1;
+			return true;
+		}
+		if(chan == 63)
+		{
+			if(nsync==0 || nHT3Version == 1)
+				ofltime = ofltime + HT3WRAPAROUND;
+			else
+				ofltime = ofltime + HT3WRAPAROUND * nsync;
+			nOverflows++;
+		}
+
+		if ((chan >= 1) && (chan <= 15)) // these are markers
+		{
+				markers = chan;
+		}
+
+		return false;
+	}
+
+	/** T2 record, nsync contains time tag.
+	 * Returns true if it is a photon data, returns false if it is a marker **/
+	boolean ReadPT2(final int special)
+	{
+		//chan == 15
+		if (special != 0)
+		{
+			markers = dtime;
+			if(markers == 0)
+			{
+				ofltime += PT2WRAPAROUND;
+				nOverflows++;
+			}
+			return false;
+		}
+		//channels start from 1, as in T3
+		chan = chan + 1;
+		return true;
+	}
+
+	/** T2 record, nsync contains time tag.
+	 * Returns true if it is a photon data, returns false if it is a marker
+	 * (or sync, channel 0 of special records) **/
+	boolean ReadHT2(final int special)
+	{
+		if (special == 0)
+		{
+			chan = chan + 1;
+			return true;
+		}
+		if(chan == 63)
+		{
+			if(nHT3Version == 1)
+				ofltime = ofltime + HT2WRAPAROUND_V1;
+			else if(nsync == 0)
+				ofltime = ofltime + HT2WRAPAROUND_V2;
+			else
+				ofltime = ofltime + (long)HT2WRAPAROUND_V2 * nsync;
+			nOverflows++;
+		}
+
+		if ((chan >= 1) && (chan <= 15)) // these are markers
+		{
+				markers = chan;
+		}
+
+		return false;
+	}
+
+	/** resets reading state **/
+	public void reset()
+	{
+		ofltime = 0;
+		curLine = 0;
+		curSync = 0;
+		syncStart = -1;
+		nsync = 0;
+		chan = 0;
+		dtime = 0;
+		markers = 0;
+		curPixel = 0;
+		insideLine = false;
+		curFrame = 1;
+	}
+	
+	/** moves the reader to the record with provided index (counting from the first record)
+	 * and resets the state, so global time, line and frame are counted from there **/
+	public void seekRecord(final long nRecord) throws IOException
+	{
+		reset();
+		records.seek(nRecord);
+	}
+
+	/** moves the reader to the start of the frame (starting from 1),
+	 * using checkpoints stored in the index. 
+	 * Returns index of the record the reader is positioned at. **/
+	public long seekFrame(final PtuIndex index, final int nFrame) throws IOException
+	{
+		reset();
+		if(!index.hasCheckpoint(nFrame))
+		{
+			records.seek(0);
+			return 0;
+		}
+		final int nCheckpoint = nFrame - 1;
+		records.seek(index.lFrameRecord[nCheckpoint]);
+		ofltime = index.lFrameOfltime[nCheckpoint];
+		syncStart = index.lFrameSyncStart[nCheckpoint];
+		insideLine = syncStart >= 0;
+		curFrame = nFrame;
+		return index.lFrameRecord[nCheckpoint];
+	}
+
+	/** moves the reader to the line (starting from 0) of the frame (starting from 1)
+	 * or to the closest preceding checkpoint. 
+	 * Returns index of the record the reader is positioned at. **/
+	public long seekLine(final PtuIndex index, final int nFrame, final int nLine) throws IOException
+	{
+		final int nCheckpoint = index.findLineCheckpoint(nFrame, nLine);
+		if(nCheckpoint < 0)
+		{
+			return seekFrame(index, nFrame);
+		}
+		reset();
+		records.seek(index.lLineRecord[nCheckpoint]);
+		ofltime = index.lLineOfltime[nCheckpoint];
+		curFrame = nFrame;
+		curLine = index.nLineNumber[nCheckpoint];
+		return index.lLineRecord[nCheckpoint];
+	}
+
+	/** closes the source of records **/
+	@Override
+	public void close() throws IOException
+	{
+		records.close();
+	}
+}
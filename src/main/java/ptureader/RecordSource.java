@@ -0,0 +1,16 @@
+package ptureader;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/** Source of raw 32-bit records (already converted from little endian) **/
+public interface RecordSource extends Closeable
+{
+	/** reads next records (but not more than nMax) to dst array,
+	 * returns the number of records read (zero if there are no more records) **/
+	int read(int [] dst, int nMax) throws IOException;
+	
+	/** moves the source to the record with provided index 
+	 * (counting from the first record) **/
+	void seek(long nRecord) throws IOException;
+}
@@ -0,0 +1,81 @@
+package ptureader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/** Records source over the (decompressing) input stream.
+ * The stream is read and decompressed on its own thread,
+ * see PipelinedRecordSource. Only forward seek is possible. **/
+public class StreamRecordSource extends PipelinedRecordSource
+{
+	/** size of one chunk in bytes (multiple of record size) **/
+	final static int CHUNK_BYTES = 1 << 20;
+
+	/** number of chunks in the ring **/
+	final static int RING_SIZE = 4;
+
+	final InputStream in;
+
+	/** number of bytes to skip at the beginning (header) **/
+	long nSkipBytes;
+
+	/** starts reading of the stream, first nSkipBytes are skipped (header) **/
+	public StreamRecordSource(final InputStream in, final long nSkipBytes)
+	{
+		this(in, nSkipBytes, new BufferPool());
+	}
+
+	/** same, chunks of the ring are taken from the pool (and returned on close) **/
+	public StreamRecordSource(final InputStream in, final long nSkipBytes, final BufferPool pool)
+	{
+		super(pool, RING_SIZE, CHUNK_BYTES, false);
+		this.in = in;
+		this.nSkipBytes = nSkipBytes;
+		start("PTU stream reader");
+	}
+
+	@Override
+	boolean fillChunk(final ByteBuffer chunk) throws IOException
+	{
+		final byte [] arr = chunk.array();
+		while(nSkipBytes > 0)
+		{
+			final int n = in.read(arr, 0, (int)Math.min(arr.length, nSkipBytes));
+			if(n < 0)
+				throw new IOException("Unexpected end of the stream while skipping the header");
+			nSkipBytes -= n;
+		}
+		int nRead = 0;
+		final int nSize = chunk.remaining();
+		while(nRead < nSize)
+		{
+			final int n = in.read(arr, nRead, nSize - nRead);
+			if(n < 0)
+				break;
+			nRead += n;
+		}
+		chunk.position(nRead);
+		return nRead == nSize;
+	}
+
+	/** only forward movement is possible **/
+	@Override
+	public void seek(final long nRecord) throws IOException
+	{
+		if(nRecord < nPosition)
+		{
+			throw new IOException("Cannot move backwards in the compressed stream.");
+		}
+		skipForward(nRecord);
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		bStop = true;
+		//unblocks reading thread waiting for the stream
+		in.close();
+		super.close();
+	}
+}
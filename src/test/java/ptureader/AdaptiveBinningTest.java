@@ -0,0 +1,185 @@
+package ptureader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/** Tests of the FastLifetime binning: square kernels and quadtree regions
+ * made with summed-area tables compared with brute force sums of the pixels. **/
+public class AdaptiveBinningTest
+{
+	final static int N_PIX_X = 45;
+
+	final static int N_PIX_Y = 31;
+
+	@Test
+	public void testSummedArea()
+	{
+		final Random random = new Random(1);
+		final float [] fImage = generate(random, 0.0);
+		final AdaptiveBinning.SummedArea sat = new AdaptiveBinning.SummedArea(fImage, N_PIX_X, N_PIX_Y);
+		for(int n = 0; n < 1000; n++)
+		{
+			final int x0 = random.nextInt(N_PIX_X);
+			final int y0 = random.nextInt(N_PIX_Y);
+			final int nWidth = random.nextInt(N_PIX_X - x0 + 1);
+			final int nHeight = random.nextInt(N_PIX_Y - y0 + 1);
+			assertEquals("rectangle " + x0 + "," + y0 + "," + nWidth + "," + nHeight,
+					sum(fImage, x0, y0, nWidth, nHeight), sat.getRect(x0, y0, nWidth, nHeight), 0.0);
+		}
+	}
+
+	@Test
+	public void testSquare()
+	{
+		final Random random = new Random(2);
+		//sparse image (some pixels reach the maximum radius) and a dense one
+		for(final double dEmpty : new double [] {0.9, 0.2})
+		{
+			final float [] fInt = generate(random, dEmpty);
+			final float [] fLT = lifetimeSums(random, fInt);
+			for(final int nTarget : new int [] {1, 50, 400})
+			{
+				for(final int nMaxRadius : new int [] {0, 3, 100})
+				{
+					final AdaptiveBinning binning = new AdaptiveBinning(AdaptiveBinning.SQUARE, nTarget, nMaxRadius);
+					final float [] fBinnedInt = new float[fInt.length];
+					final float [] fBinnedLT = new float[fInt.length];
+					binning.apply(fInt, fLT, N_PIX_X, N_PIX_Y, fBinnedInt, fBinnedLT);
+					final float [] fExpectedInt = new float[fInt.length];
+					final float [] fExpectedLT = new float[fInt.length];
+					final int nRadiusLimit = Math.min(nMaxRadius, Math.max(N_PIX_X, N_PIX_Y));
+					for(int y = 0; y < N_PIX_Y; y++)
+					{
+						for(int x = 0; x < N_PIX_X; x++)
+						{
+							//smallest kernel with enough photons
+							int nRadius = 0;
+							while(nRadius < nRadiusLimit && square(fInt, x, y, nRadius) < nTarget)
+							{
+								nRadius++;
+							}
+							fExpectedInt[y * N_PIX_X + x] = (float) square(fInt, x, y, nRadius);
+							fExpectedLT[y * N_PIX_X + x] = (float) square(fLT, x, y, nRadius);
+						}
+					}
+					final String sName = "empty " + dEmpty + ", target " + nTarget + ", radius " + nMaxRadius;
+					assertArrayEquals(sName + " intensity", fExpectedInt, fBinnedInt, 0.0f);
+					assertArrayEquals(sName + " lifetime", fExpectedLT, fBinnedLT, 0.0f);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testQuadtree()
+	{
+		final Random random = new Random(3);
+		final float [] fInt = generate(random, 0.5);
+		final float [] fLT = lifetimeSums(random, fInt);
+		for(final int nTarget : new int [] {1, 30, 300, 100000})
+		{
+			final AdaptiveBinning binning = new AdaptiveBinning(AdaptiveBinning.QUADTREE, nTarget, 0);
+			final float [] fBinnedInt = new float[fInt.length];
+			final float [] fBinnedLT = new float[fInt.length];
+			binning.apply(fInt, fLT, N_PIX_X, N_PIX_Y, fBinnedInt, fBinnedLT);
+			final float [] fExpectedInt = new float[fInt.length];
+			final float [] fExpectedLT = new float[fInt.length];
+			split(fInt, fLT, 0, 0, N_PIX_X, N_PIX_Y, nTarget, fExpectedInt, fExpectedLT);
+			assertArrayEquals("target " + nTarget + " intensity", fExpectedInt, fBinnedInt, 0.0f);
+			assertArrayEquals("target " + nTarget + " lifetime", fExpectedLT, fBinnedLT, 0.0f);
+		}
+		//one photon in each pixel, every pixel is a leaf
+		final float [] fOnes = new float[16];
+		Arrays.fill(fOnes, 1.0f);
+		final float [] fBinned = new float[16];
+		new AdaptiveBinning(AdaptiveBinning.QUADTREE, 1, 0).apply(fOnes, fOnes, 4, 4, fBinned, new float[16]);
+		assertArrayEquals("single pixel leaves", fOnes, fBinned, 0.0f);
+	}
+
+	@Test
+	public void testNone()
+	{
+		assertNull("no binning", AdaptiveBinning.create(AdaptiveBinning.NONE, 100, 5));
+	}
+
+	/** brute force quadtree: quarters are split while all of them have nTarget photons **/
+	static void split(final float [] fInt, final float [] fLT, final int x0, final int y0, final int nWidth, final int nHeight, final int nTarget, final float [] fOutInt, final float [] fOutLT)
+	{
+		final int nHalfX = nWidth / 2;
+		final int nHalfY = nHeight / 2;
+		final int [][] quarters = new int [][] {{x0, y0, nHalfX, nHalfY}, {x0 + nHalfX, y0, nWidth - nHalfX, nHalfY},
+			{x0, y0 + nHalfY, nHalfX, nHeight - nHalfY}, {x0 + nHalfX, y0 + nHalfY, nWidth - nHalfX, nHeight - nHalfY}};
+		boolean bSplit = nHalfX > 0 && nHalfY > 0;
+		for(final int [] q : quarters)
+		{
+			bSplit &= sum(fInt, q[0], q[1], q[2], q[3]) >= nTarget;
+		}
+		if(bSplit)
+		{
+			for(final int [] q : quarters)
+			{
+				split(fInt, fLT, q[0], q[1], q[2], q[3], nTarget, fOutInt, fOutLT);
+			}
+			return;
+		}
+		final float fSumInt = (float) sum(fInt, x0, y0, nWidth, nHeight);
+		final float fSumLT = (float) sum(fLT, x0, y0, nWidth, nHeight);
+		for(int y = y0; y < y0 + nHeight; y++)
+		{
+			for(int x = x0; x < x0 + nWidth; x++)
+			{
+				fOutInt[y * N_PIX_X + x] = fSumInt;
+				fOutLT[y * N_PIX_X + x] = fSumLT;
+			}
+		}
+	}
+
+	/** sum of the square around the pixel clipped by the image **/
+	static double square(final float [] fImage, final int x, final int y, final int nRadius)
+	{
+		final int x0 = Math.max(0, x - nRadius);
+		final int y0 = Math.max(0, y - nRadius);
+		return sum(fImage, x0, y0, Math.min(N_PIX_X, x + nRadius + 1) - x0, Math.min(N_PIX_Y, y + nRadius + 1) - y0);
+	}
+
+	static double sum(final float [] fImage, final int x0, final int y0, final int nWidth, final int nHeight)
+	{
+		double dSum = 0;
+		for(int y = y0; y < y0 + nHeight; y++)
+		{
+			for(int x = x0; x < x0 + nWidth; x++)
+			{
+				dSum += fImage[y * N_PIX_X + x];
+			}
+		}
+		return dSum;
+	}
+
+	/** photon counts, the part dEmpty of pixels is empty **/
+	static float [] generate(final Random random, final double dEmpty)
+	{
+		final float [] fImage = new float[N_PIX_X * N_PIX_Y];
+		for(int i = 0; i < fImage.length; i++)
+		{
+			fImage[i] = (random.nextDouble() < dEmpty) ? 0 : random.nextInt(20);
+		}
+		return fImage;
+	}
+
+	/** lifetime sums (sum of photon dtimes) of the pixels **/
+	static float [] lifetimeSums(final Random random, final float [] fInt)
+	{
+		final float [] fLT = new float[fInt.length];
+		for(int i = 0; i < fInt.length; i++)
+		{
+			fLT[i] = fInt[i] * (100 + random.nextInt(50));
+		}
+		return fLT;
+	}
+}
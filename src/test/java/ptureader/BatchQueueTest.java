@@ -0,0 +1,212 @@
+package ptureader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+/** Tests of the batch queue: a job taken over by another worker during
+ * the conversion does not publish its output, and several local worker
+ * processes finish all jobs when one of them is killed in the middle of a job. **/
+public class BatchQueueTest
+{
+	final static int N_FILES = 4;
+
+	/** stale timeout of the worker processes, s **/
+	final static String STALE_S = "2";
+
+	/** maximum run time of the worker processes, s **/
+	final static long WORKER_TIMEOUT_S = 180;
+
+	@Test
+	public void testTakenOver() throws IOException
+	{
+		final Path folder = Files.createTempDirectory("ptureader");
+		try
+		{
+			final Path input = copyExample(folder.resolve("input"), 1);
+			final Path output = folder.resolve("output");
+			Files.createDirectories(output);
+			final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+			//the ticket is recovered (as by another worker) when the conversion ends
+			final BatchQueue batch = new BatchQueue(folder.resolve("queue"), 60000, messages::add)
+			{
+				@Override
+				void convert(final Path file, final Path tmp) throws IOException
+				{
+					super.convert(file, tmp);
+					for(final Path running : list(RUNNING, ""))
+					{
+						final String sName = running.getFileName().toString();
+						Files.move(running, queue.resolve(TODO).resolve(sName.substring(0, sName.indexOf(JOB) + JOB.length())));
+					}
+				}
+			};
+			assertEquals("added jobs", 1, batch.add(input));
+			final Path running = batch.claim();
+			assertNotNull("claimed job", running);
+			//output of the new owner
+			final Path root = output.resolve(BatchQueue.getOutputName(input.resolve("tile_1.ptu")));
+			Files.createDirectories(root);
+			Files.write(root.resolve("owner"), new byte[] {1});
+
+			assertFalse("job is not done by the old owner", batch.process(running, output));
+			assertTrue("output of the new owner is kept", Files.exists(root.resolve("owner")));
+			assertEquals("temporary output is dropped", Collections.singletonList(root), listOutput(output));
+			assertFalse("ticket is not recreated", Files.exists(running));
+			assertEquals("job waits for the new owner", 1, batch.list(BatchQueue.TODO, "").size());
+			assertTrue("taken over job is logged", messages.get(messages.size() - 1).contains("taken over"));
+		}
+		finally
+		{
+			BatchQueue.deleteTree(folder);
+		}
+	}
+
+	@Test
+	public void testKilledWorker() throws IOException, InterruptedException
+	{
+		final Path folder = Files.createTempDirectory("ptureader");
+		final List<Process> workers = new ArrayList<>();
+		try
+		{
+			final Path input = copyExample(folder.resolve("input"), N_FILES);
+			final Path queue = folder.resolve("queue");
+			final Path output = folder.resolve("output");
+			final BatchQueue batch = new BatchQueue(queue, BatchQueue.DEFAULT_STALE_MS, s -> {});
+			assertEquals("added jobs", N_FILES, batch.add(input));
+
+			//the first worker is killed as soon as it starts a job
+			final Process killed = startWorker(queue, output);
+			workers.add(killed);
+			String sKilled = null;
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(killed.getInputStream(), StandardCharsets.UTF_8)))
+			{
+				String sLine;
+				while((sLine = reader.readLine()) != null)
+				{
+					if(sLine.contains(": converting "))
+					{
+						killed.destroyForcibly();
+						sKilled = sLine.substring(0, sLine.indexOf(": converting "));
+						break;
+					}
+				}
+			}
+			assertNotNull("killed worker started a job", sKilled);
+			assertTrue("killed worker stopped", killed.waitFor(WORKER_TIMEOUT_S, TimeUnit.SECONDS));
+			//the job may have been finished before the kill
+			final boolean bStale = !batch.list(BatchQueue.RUNNING, "").isEmpty();
+
+			final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+			final List<Thread> readers = new ArrayList<>();
+			for(int nWorker = 0; nWorker < 2; nWorker++)
+			{
+				final Process worker = startWorker(queue, output);
+				workers.add(worker);
+				final Thread reader = new Thread(() -> {
+					try (BufferedReader in = new BufferedReader(new InputStreamReader(worker.getInputStream(), StandardCharsets.UTF_8)))
+					{
+						String sLine;
+						while((sLine = in.readLine()) != null)
+						{
+							messages.add(sLine);
+						}
+					}
+					catch (IOException e)
+					{
+						messages.add(e.toString());
+					}
+				});
+				reader.start();
+				readers.add(reader);
+			}
+			for(int nWorker = 1; nWorker < workers.size(); nWorker++)
+			{
+				assertTrue("worker " + nWorker + " finished", workers.get(nWorker).waitFor(WORKER_TIMEOUT_S, TimeUnit.SECONDS));
+				assertEquals("exit code of worker " + nWorker, 0, workers.get(nWorker).exitValue());
+				readers.get(nWorker - 1).join();
+			}
+
+			if(bStale)
+			{
+				boolean bRecovered = false;
+				for(final String sLine : messages)
+				{
+					bRecovered |= sLine.startsWith("Worker " + sKilled + " stopped responding");
+				}
+				assertTrue("job of the killed worker is recovered: " + messages, bRecovered);
+			}
+			assertEquals("done jobs", N_FILES, batch.list(BatchQueue.DONE, "").size());
+			for(final String sFolder : new String [] {BatchQueue.TODO, BatchQueue.RUNNING, BatchQueue.FAILED})
+			{
+				assertEquals(sFolder + " jobs", 0, batch.list(sFolder, "").size());
+			}
+			final List<Path> roots = listOutput(output);
+			assertEquals("outputs without temporary folders", N_FILES, roots.size());
+			for(final Path root : roots)
+			{
+				assertFalse("complete output " + root, root.getFileName().toString().contains(".part-"));
+				assertTrue("dataset of " + root, Files.exists(root.resolve(N5Export.DATASET).resolve("s0").resolve("attributes.json")));
+			}
+		}
+		finally
+		{
+			for(final Process worker : workers)
+			{
+				worker.destroyForcibly();
+				worker.waitFor();
+			}
+			BatchQueue.deleteTree(folder);
+		}
+	}
+
+	/** worker process with the classpath of the test **/
+	static Process startWorker(final Path queue, final Path output) throws IOException
+	{
+		final String sJava = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+		final ProcessBuilder builder = new ProcessBuilder(sJava, "-cp", System.getProperty("java.class.path"),
+				BatchQueue.class.getName(), "work", queue.toString(), output.toString(), STALE_S);
+		builder.redirectErrorStream(true);
+		return builder.start();
+	}
+
+	/** folder with nFiles copies of the example file **/
+	static Path copyExample(final Path folder, final int nFiles) throws IOException
+	{
+		Files.createDirectories(folder);
+		for(int nFile = 1; nFile <= nFiles; nFile++)
+		{
+			Files.copy(ReferenceTest.FOLDER.resolve(ReferenceTest.PTU_NAME), folder.resolve("tile_" + nFile + ".ptu"), StandardCopyOption.REPLACE_EXISTING);
+		}
+		return folder;
+	}
+
+	/** folders of the output, sorted by name **/
+	static List<Path> listOutput(final Path output) throws IOException
+	{
+		final List<Path> out = new ArrayList<>();
+		try (Stream<Path> paths = Files.list(output))
+		{
+			paths.forEach(out::add);
+		}
+		Collections.sort(out);
+		return out;
+	}
+}
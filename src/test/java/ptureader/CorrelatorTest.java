@@ -0,0 +1,136 @@
+package ptureader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/** Tests of the streaming multi-tau correlator: comparison with
+ * the correlation of binned photon counts calculated directly,
+ * flat correlation of uncorrelated photons and throughput (photons per second).
+ * Minimum speed can be changed with -Dptureader.minCorrelatorSpeed=(photons/s). **/
+public class CorrelatorTest
+{
+	/** default minimum speed of the correlator (photons/s, 24 levels),
+	 * faster than the count rate of a typical FCS measurement **/
+	final static double DEFAULT_MIN_SPEED = 1.0e6;
+
+	/** photons of the throughput test **/
+	final static int N_SPEED_PHOTONS = 1 << 21;
+
+	/** number of timed runs in the throughput test **/
+	final static int N_SPEED_RUNS = 3;
+
+	@Test
+	public void testDirectCorrelation()
+	{
+		final int nLevels = 6;
+		final int nChannels = 8;
+		final long nBaseBin = 3;
+		final long [] syncs = generate(new Random(1), 100000, 20);
+		final Correlator correlator = new Correlator(nLevels, nChannels, nBaseBin);
+		correlator.setChannelA(0, null);
+		correlator.setChannelB(0, null);
+		for(final long nSync : syncs)
+		{
+			correlator.photon(nSync, 0, 0);
+		}
+		correlator.finish();
+		assertEquals("photons", syncs.length, correlator.nPhotons);
+
+		final double [] g = correlator.getCorrelation();
+		final double [] lags = correlator.getLags();
+		assertEquals("lags", correlator.getLagCount(), g.length);
+		final long nFirstBin = syncs[0] / nBaseBin;
+		final long nLastBin = syncs[syncs.length - 1] / nBaseBin;
+		int n = 0;
+		for(int k = 0; k < nLevels; k++)
+		{
+			//photon counts of the level bins
+			final long nFirst = nFirstBin >> k;
+			final int nBins = (int) ((nLastBin >> k) - nFirst + 1);
+			final double [] counts = new double[nBins];
+			for(final long nSync : syncs)
+			{
+				counts[(int) ((nSync / nBaseBin >> k) - nFirst)]++;
+			}
+			for(int j = (k == 0) ? 1 : nChannels; j < 2 * nChannels; j++, n++)
+			{
+				assertEquals("lag of level " + k, (double) j * nBaseBin * (1L << k), lags[n], 0.0);
+				double dAcc = 0.0;
+				for(int t = j; t < nBins; t++)
+				{
+					dAcc += counts[t] * counts[t - j];
+				}
+				final double dExpected = dAcc * nBins * nBins / ((double) (nBins - j) * syncs.length * syncs.length);
+				assertEquals("G of level " + k + " lag " + j, dExpected, g[n], 1.0e-12 * dExpected);
+			}
+		}
+	}
+
+	@Test
+	public void testUncorrelated()
+	{
+		final long [] syncs = generate(new Random(2), 1000000, 50);
+		final Correlator correlator = new Correlator(10, Correlator.DEFAULT_CHANNELS, 10);
+		correlator.setChannelA(0, null);
+		correlator.setChannelB(1, null);
+		final Random random = new Random(3);
+		for(final long nSync : syncs)
+		{
+			correlator.photon(nSync, random.nextInt(2), 0);
+		}
+		correlator.finish();
+		final double [] g = correlator.getCorrelation();
+		for(int i = 0; i < g.length; i++)
+		{
+			if(!Double.isNaN(g[i]))
+				assertEquals("cross-correlation of lag " + i, 1.0, g[i], 0.05);
+		}
+	}
+
+	@Test
+	public void testThroughput()
+	{
+		final double dMinSpeed = Double.parseDouble(System.getProperty("ptureader.minCorrelatorSpeed", Double.toString(DEFAULT_MIN_SPEED)));
+		final long [] syncs = generate(new Random(4), N_SPEED_PHOTONS, 100);
+		long nBest = Long.MAX_VALUE;
+		//first run is a warm-up
+		for(int nRun = 0; nRun <= N_SPEED_RUNS; nRun++)
+		{
+			final long nStart = System.nanoTime();
+			final Correlator correlator = new Correlator(Correlator.DEFAULT_LEVELS, Correlator.DEFAULT_CHANNELS, 1);
+			correlator.setChannelA(0, null);
+			correlator.setChannelB(0, null);
+			for(final long nSync : syncs)
+			{
+				correlator.photon(nSync, 0, 0);
+			}
+			correlator.finish();
+			final long nTime = System.nanoTime() - nStart;
+			assertEquals("photons", syncs.length, correlator.nPhotons);
+			if(nRun > 0)
+			{
+				nBest = Math.min(nBest, nTime);
+			}
+		}
+		final double dSpeed = syncs.length * 1.0e9 / nBest;
+		assertTrue(String.format("correlator throughput %.3g photons/s (minimum %.3g)", dSpeed, dMinSpeed), dSpeed >= dMinSpeed);
+	}
+
+	/** arrival times (sync periods) of nPhotons photons with exponential
+	 * intervals of average dInterval **/
+	static long [] generate(final Random random, final int nPhotons, final double dInterval)
+	{
+		final long [] syncs = new long[nPhotons];
+		long nSync = 1000;
+		for(int i = 0; i < nPhotons; i++)
+		{
+			nSync += (long) (-dInterval * Math.log(1.0 - random.nextDouble()));
+			syncs[i] = nSync;
+		}
+		return syncs;
+	}
+}
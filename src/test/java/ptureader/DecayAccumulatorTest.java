@@ -0,0 +1,116 @@
+package ptureader;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/** Tests of the pixel major lifetime histograms: counts of all counter widths
+ * compared with a plain [bin][pixel][dtime] histogram, saturation,
+ * choice of the counter width and slice major images for display. **/
+public class DecayAccumulatorTest
+{
+	final static int N_PIX_X = 37;
+
+	final static int N_PIX_Y = 23;
+
+	final static int N_LT = 50;
+
+	final static int N_BINS = 3;
+
+	@Test
+	public void testCounts()
+	{
+		for(final int nBits : new int [] {8, 16, 32})
+		{
+			final int nPixTotal = N_PIX_X * N_PIX_Y;
+			final DecayAccumulator decay = new DecayAccumulator(nPixTotal, N_LT, N_BINS, nBits, new BufferPool());
+			assertEquals("counter width", nBits, decay.nBits);
+			assertEquals("size", (long) nPixTotal * N_LT * N_BINS * nBits / 8, decay.getSizeBytes());
+			final long [][][] reference = new long[N_BINS][nPixTotal][N_LT];
+			final Random random = new Random(nBits);
+			for(int n = 0; n < 200000; n++)
+			{
+				final int nBin = random.nextInt(N_BINS);
+				final int nPix = random.nextInt(nPixTotal);
+				final int dtime = random.nextInt(N_LT);
+				decay.add(nBin, nPix, dtime);
+				reference[nBin][nPix][dtime]++;
+			}
+			//one pixel above 255 counts
+			for(int n = 0; n < 300; n++)
+			{
+				decay.add(1, 5, 7);
+				reference[1][5][7]++;
+			}
+			final long nMax = (1L << nBits) - 1;
+			final long [] pixelDecay = new long[N_LT];
+			final byte [] slice = new byte[nPixTotal];
+			for(int nBin = 0; nBin < N_BINS; nBin++)
+			{
+				for(int nPix = 0; nPix < nPixTotal; nPix++)
+				{
+					decay.getDecay(nBin, nPix, pixelDecay);
+					for(int dtime = 0; dtime < N_LT; dtime++)
+					{
+						final long nExpected = Math.min(reference[nBin][nPix][dtime], nMax);
+						final String sName = nBits + " bit, bin " + nBin + ", pixel " + nPix + ", dtime " + dtime;
+						assertEquals(sName, nExpected, decay.get(nBin, nPix, dtime));
+						assertEquals(sName + " decay", nExpected, pixelDecay[dtime]);
+					}
+				}
+				for(int dtime = 0; dtime < N_LT; dtime++)
+				{
+					decay.getSlice(nBin, dtime, slice);
+					for(int nPix = 0; nPix < nPixTotal; nPix++)
+					{
+						assertEquals(nBits + " bit slice " + dtime + ", pixel " + nPix,
+								Math.min(reference[nBin][nPix][dtime], 255), slice[nPix] & 0xFF);
+					}
+				}
+			}
+			//copy is independent
+			final DecayAccumulator copy = new DecayAccumulator(decay);
+			copy.add(0, 0, 0);
+			assertEquals("copy", Math.min(reference[0][0][0] + 1, nMax), copy.get(0, 0, 0));
+			assertEquals("source of the copy", Math.min(reference[0][0][0], nMax), decay.get(0, 0, 0));
+		}
+	}
+
+	@Test
+	public void testSaturation()
+	{
+		final DecayAccumulator decay = new DecayAccumulator(4, 2, 1, 16, new BufferPool());
+		for(int n = 0; n < 70000; n++)
+		{
+			decay.add(0, 3, 1);
+		}
+		assertEquals("16 bit counter saturates", 0xFFFF, decay.get(0, 3, 1));
+		assertEquals("neighbour counter", 0, decay.get(0, 3, 0));
+	}
+
+	@Test
+	public void testCounterBits()
+	{
+		assertEquals(8, DecayAccumulator.getCounterBits(255, 32));
+		assertEquals(16, DecayAccumulator.getCounterBits(256, 32));
+		assertEquals(16, DecayAccumulator.getCounterBits(65535, 32));
+		assertEquals(32, DecayAccumulator.getCounterBits(65536, 32));
+		assertEquals("limited by the maximum width", 16, DecayAccumulator.getCounterBits(1L << 40, 16));
+		assertEquals("at least 8 bits", 8, DecayAccumulator.getCounterBits(1L << 40, 4));
+	}
+
+	@Test
+	public void testDisplayStack()
+	{
+		final DecayAccumulator decay = new DecayAccumulator(N_PIX_X * N_PIX_Y, N_LT, 1, 8, new BufferPool());
+		decay.add(0, 2 * N_PIX_X + 3, 10);
+		decay.add(0, 2 * N_PIX_X + 3, 10);
+		final DecayStack stack = new DecayStack(decay, N_PIX_X, N_PIX_Y);
+		assertEquals("slices", N_LT, stack.getSize());
+		//slices are one based
+		assertEquals("pixel of the slice", 2, ((byte []) stack.getProcessor(11).getPixels())[2 * N_PIX_X + 3]);
+		assertEquals("other slice", 0, ((byte []) stack.getProcessor(10).getPixels())[2 * N_PIX_X + 3]);
+	}
+}
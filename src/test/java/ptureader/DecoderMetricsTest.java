@@ -0,0 +1,111 @@
+package ptureader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+/** Tests of the decoder metrics: counts of analysis and decoding
+ * of the example file reported to a sink and summed, incomplete (cancelled) passes
+ * and the JMX registration of the global metrics. **/
+public class DecoderMetricsTest
+{
+	@Test
+	public void testPhases() throws IOException
+	{
+		final DecoderMetrics metrics = new DecoderMetrics();
+		final ArrayList<PhaseMetrics> phases = new ArrayList<>();
+		metrics.addSink(phases::add);
+		long nRecords;
+		PtuIndex index;
+		try (PtuFile ptuFile = PtuFile.open(ReferenceTest.FOLDER.resolve(ReferenceTest.PTU_NAME)))
+		{
+			ptuFile.metrics = metrics;
+			nRecords = ptuFile.header.nRecords;
+			index = ptuFile.analyze(null);
+			final DecodeParameters params = new DecodeParameters();
+			params.validate(index.nTotFrames);
+			final FlimData data = new FlimData(ptuFile.header, index, params, ptuFile.pool, s -> {});
+			ptuFile.decode(index, params, data, null);
+		}
+		assertEquals("passes", 2, phases.size());
+		final PhaseMetrics analyze = phases.get(0);
+		final PhaseMetrics decode = phases.get(1);
+		assertEquals("analyze phase", PhaseMetrics.PHASE_ANALYZE, analyze.nPhase);
+		assertEquals("decode phase", PhaseMetrics.PHASE_DECODE, decode.nPhase);
+		assertEquals("file", ReferenceTest.PTU_NAME, analyze.sFile);
+		assertTrue("analysis is complete", analyze.bComplete);
+		assertTrue("decoding is complete", decode.bComplete);
+		assertEquals("analyzed records", nRecords, analyze.nRecords);
+		assertEquals("bytes", 4 * nRecords, analyze.nBytes);
+		assertEquals("records are photons, markers or overflows", analyze.nRecords, analyze.nPhotons + analyze.nMarkers + analyze.nOverflows);
+		assertTrue("overflows", analyze.nOverflows > 0);
+		assertEquals("lines", index.nLines, analyze.nLines);
+		assertTrue("photons", analyze.nPhotons > 0);
+		//decoding starts from the first frame, so it reads the same records
+		assertEquals("decoded photons", analyze.nPhotons, decode.nPhotons);
+
+		assertEquals("total records", analyze.nRecords + decode.nRecords, metrics.getRecords());
+		assertEquals("total photons", analyze.nPhotons + decode.nPhotons, metrics.getPhotons());
+		assertEquals("total overflows", analyze.nOverflows + decode.nOverflows, metrics.getOverflows());
+		assertEquals("total dropped", decode.nDropped, metrics.getDroppedPhotons());
+		assertEquals("analyze count", 1, metrics.getAnalyzeCount());
+		assertEquals("decode count", 1, metrics.getDecodeCount());
+		assertEquals("incomplete", 0, metrics.getIncompletePasses());
+		assertEquals("without line markers", 0, metrics.getFilesWithoutLineMarkers());
+		assertTrue("records per second", metrics.getRecordsPerSecond() > 0);
+		metrics.reset();
+		assertEquals("reset", 0, metrics.getRecords());
+	}
+
+	@Test
+	public void testCancelled() throws IOException
+	{
+		final DecoderMetrics metrics = new DecoderMetrics();
+		final ArrayList<PhaseMetrics> phases = new ArrayList<>();
+		metrics.addSink(phases::add);
+		try (PtuFile ptuFile = PtuFile.open(ReferenceTest.FOLDER.resolve(ReferenceTest.PTU_NAME)))
+		{
+			ptuFile.metrics = metrics;
+			ptuFile.analyze(new ProgressListener()
+			{
+				@Override
+				public void progress(final long nRecordsDone, final long nRecordsTotal)
+				{
+				}
+
+				@Override
+				public boolean isCancelled()
+				{
+					return true;
+				}
+			});
+			fail("analysis should be cancelled");
+		}
+		catch (CancellationException e)
+		{
+			//expected
+		}
+		assertEquals("passes", 1, phases.size());
+		assertFalse("pass is incomplete", phases.get(0).bComplete);
+		assertEquals("incomplete passes", 1, metrics.getIncompletePasses());
+	}
+
+	@Test
+	public void testJMX() throws JMException
+	{
+		final long nRecords = DecoderMetrics.global.getRecords();
+		final Object records = ManagementFactory.getPlatformMBeanServer().getAttribute(new ObjectName(DecoderMetrics.MBEAN_NAME), "Records");
+		assertEquals("records through JMX", nRecords, ((Long) records).longValue());
+	}
+}
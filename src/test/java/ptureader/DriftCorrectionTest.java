@@ -0,0 +1,160 @@
+package ptureader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+/** Tests of the drift estimate: the transform compared with a direct DFT,
+ * known whole and fractional shifts of a frame with random spots,
+ * frames with few photons keeping the shift of the previous frame
+ * and a constant shift applied during decoding of the example file. **/
+public class DriftCorrectionTest
+{
+	final static int N_PIX_X = 60;
+
+	final static int N_PIX_Y = 44;
+
+	final static int N_SPOTS = 40;
+
+	@Test
+	public void testTransform()
+	{
+		final int n = 16;
+		final Random random = new Random(1);
+		final double [] re = new double[n];
+		final double [] im = new double[n];
+		for(int i = 0; i < n; i++)
+		{
+			re[i] = random.nextDouble();
+			im[i] = random.nextDouble();
+		}
+		final double [] outRe = re.clone();
+		final double [] outIm = im.clone();
+		DriftCorrection.fft(outRe, outIm, n, false);
+		for(int k = 0; k < n; k++)
+		{
+			double dRe = 0;
+			double dIm = 0;
+			for(int j = 0; j < n; j++)
+			{
+				final double dAngle = -2.0 * Math.PI * j * k / n;
+				dRe += re[j] * Math.cos(dAngle) - im[j] * Math.sin(dAngle);
+				dIm += re[j] * Math.sin(dAngle) + im[j] * Math.cos(dAngle);
+			}
+			assertEquals("real part " + k, dRe, outRe[k], 1.0e-9);
+			assertEquals("imaginary part " + k, dIm, outIm[k], 1.0e-9);
+		}
+		//inverse is not normalized
+		DriftCorrection.fft(outRe, outIm, n, true);
+		for(int i = 0; i < n; i++)
+		{
+			assertEquals("inverse " + i, n * re[i], outRe[i], 1.0e-9);
+			assertEquals("inverse imaginary " + i, n * im[i], outIm[i], 1.0e-9);
+		}
+	}
+
+	@Test
+	public void testShifts()
+	{
+		final Random random = new Random(2);
+		final double [][] spots = new double[N_SPOTS][2];
+		for(final double [] spot : spots)
+		{
+			spot[0] = 5 + random.nextDouble() * (N_PIX_X - 10);
+			spot[1] = 5 + random.nextDouble() * (N_PIX_Y - 10);
+		}
+		final double [][] shifts = new double [][] {{3, -2}, {-5, 4}, {0.4, 1}, {-2.3, 0}, {1.5, -3}};
+		final DriftCorrection drift = new DriftCorrection(N_PIX_X, N_PIX_Y, 1, shifts.length + 2);
+		drift.setReference(0, render(spots, 0, 0));
+		for(int k = 0; k < shifts.length; k++)
+		{
+			drift.estimateFrame(k + 1, render(spots, shifts[k][0], shifts[k][1]));
+		}
+		//last frame is almost empty
+		final float [] fEmpty = new float[N_PIX_X * N_PIX_Y];
+		fEmpty[10] = DriftCorrection.MIN_PHOTONS - 1;
+		drift.estimateFrame(shifts.length + 1, fEmpty);
+		drift.fillMissing();
+
+		for(int k = 0; k < shifts.length; k++)
+		{
+			final int nFrame = k + 2;
+			assertEquals("x shift of frame " + nFrame, shifts[k][0], drift.getShiftX(nFrame), 0.25);
+			assertEquals("y shift of frame " + nFrame, (long) shifts[k][1], drift.getShiftY(nFrame));
+		}
+		assertEquals("reference", 0.0, drift.getShiftX(1), 0.0);
+		assertFalse("empty frame is not estimated", drift.bEstimated[shifts.length + 1]);
+		assertEquals("empty frame keeps x shift", drift.getShiftX(shifts.length + 1), drift.getShiftX(shifts.length + 2), 0.0);
+		assertEquals("empty frame keeps y shift", drift.getShiftY(shifts.length + 1), drift.getShiftY(shifts.length + 2));
+		assertEquals("outside of the range", 0.0, drift.getShiftX(shifts.length + 3), 0.0);
+		assertEquals("outside of the range", 0, drift.getShiftY(0));
+	}
+
+	@Test
+	public void testApplied() throws IOException
+	{
+		final int nShiftX = 2;
+		final int nShiftY = 1;
+		try (PtuFile ptuFile = PtuFile.open(ReferenceTest.FOLDER.resolve(ReferenceTest.PTU_NAME)))
+		{
+			final PtuIndex index = ptuFile.analyze(null);
+			final DecodeParameters params = new DecodeParameters();
+			params.bLoadLTOrderedStacks = false;
+			params.validate(index.nTotFrames);
+			final FlimData data = new FlimData(ptuFile.header, index, params, ptuFile.pool, s -> {});
+			ptuFile.decode(index, params, data, null);
+
+			final DriftCorrection drift = new DriftCorrection(ptuFile.header.nPixX, ptuFile.header.nPixY, params.nFrameMin, params.nFrameMax);
+			for(int k = 0; k < drift.fShiftX.length; k++)
+			{
+				drift.fShiftX[k] = nShiftX;
+				drift.nShiftY[k] = nShiftY;
+			}
+			final DecodeParameters shiftedParams = params.copy();
+			shiftedParams.drift = drift;
+			final FlimData shifted = new FlimData(ptuFile.header, index, shiftedParams, ptuFile.pool, s -> {});
+			ptuFile.decode(index, shiftedParams, shifted, null);
+
+			//photon of the pixel (x, y) is placed to (x - shift x, y - shift y)
+			final int nPixX = data.nPixX;
+			for(int nCh = 0; nCh < 4; nCh++)
+			{
+				if(!data.bChannels[nCh])
+					continue;
+				for(int y = 0; y < data.nPixY - nShiftY; y++)
+				{
+					for(int x = 0; x < nPixX - nShiftX; x++)
+					{
+						final int i = y * nPixX + x;
+						final int nSource = (y + nShiftY) * nPixX + x + nShiftX;
+						assertEquals("intensity of channel " + nCh + " at " + x + "," + y, data.fIntensity[nCh][0][nSource], shifted.fIntensity[nCh][0][i], 0.0);
+						assertEquals("lifetime of channel " + nCh + " at " + x + "," + y, data.fLifetime[nCh][0][nSource], shifted.fLifetime[nCh][0][i], 0.0);
+					}
+				}
+			}
+		}
+	}
+
+	/** image of gaussian spots (sigma 1.5 pixels) moved by dx, dy **/
+	static float [] render(final double [][] spots, final double dx, final double dy)
+	{
+		final float [] fImage = new float[N_PIX_X * N_PIX_Y];
+		for(final double [] spot : spots)
+		{
+			for(int y = 0; y < N_PIX_Y; y++)
+			{
+				for(int x = 0; x < N_PIX_X; x++)
+				{
+					final double dX = x - spot[0] - dx;
+					final double dY = y - spot[1] - dy;
+					fImage[y * N_PIX_X + x] += (float) (50.0 * Math.exp(-(dX * dX + dY * dY) / (2 * 1.5 * 1.5)));
+				}
+			}
+		}
+		return fImage;
+	}
+}
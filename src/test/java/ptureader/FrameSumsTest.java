@@ -0,0 +1,144 @@
+package ptureader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+/** Tests of re-binning from per frame prefix sums: binned, range limited
+ * and sliding window bins compared with sums of the photons added to each frame,
+ * and sums kept during decoding of the example file compared with the decoded images. **/
+public class FrameSumsTest
+{
+	final static int N_PIX_X = 8;
+
+	final static int N_PIX_Y = 6;
+
+	final static int N_LT = 20;
+
+	final static int N_FRAME_MIN = 3;
+
+	final static int N_FRAME_MAX = 14;
+
+	@Test
+	public void testBins()
+	{
+		final PtuHeader header = new PtuHeader();
+		header.nPixX = N_PIX_X;
+		header.nPixY = N_PIX_Y;
+		final PtuIndex index = new PtuIndex();
+		index.dtimemax = N_LT - 1;
+		index.bChannels[0] = true;
+		index.bChannels[2] = true;
+		final DecodeParameters params = new DecodeParameters();
+		params.nFrameMin = N_FRAME_MIN;
+		params.nFrameMax = N_FRAME_MAX;
+		final FrameSums sums = new FrameSums(header, index, params);
+		assertTrue("covers own parameters", sums.covers(params));
+
+		//photons of each frame [channel][frame][pixel], frames 6 and 11 are empty
+		final int nPixTotal = N_PIX_X * N_PIX_Y;
+		final long [][][] nIntensity = new long[4][N_FRAME_MAX + 1][nPixTotal];
+		final long [][][] nLifetime = new long[4][N_FRAME_MAX + 1][nPixTotal];
+		final long [][][] lHistogram = new long[4][N_FRAME_MAX + 1][N_LT];
+		final Random random = new Random(1);
+		for(int nFrame = N_FRAME_MIN; nFrame <= N_FRAME_MAX; nFrame++)
+		{
+			if(nFrame == 6 || nFrame == 11)
+				continue;
+			for(int n = 0; n < 2000; n++)
+			{
+				final int nCh = random.nextBoolean() ? 0 : 2;
+				final int nPix = random.nextInt(nPixTotal);
+				final int dtime = random.nextInt(N_LT);
+				sums.add(nCh, nPix, nFrame, dtime);
+				nIntensity[nCh][nFrame][nPix]++;
+				nLifetime[nCh][nFrame][nPix] += dtime;
+				lHistogram[nCh][nFrame][dtime]++;
+			}
+		}
+		sums.finish();
+
+		//all frames, usual binning (last bin is shorter), sliding window, one frame
+		final int [][] settings = new int [][] {{3, 14, 1, 1}, {3, 14, 12, 12}, {3, 14, 5, 5}, {5, 12, 3, 1}, {7, 7, 1, 1}, {4, 13, 20, 20}};
+		for(final int [] setting : settings)
+		{
+			final int nFrom = setting[0];
+			final int nTo = setting[1];
+			final int nWidth = setting[2];
+			final int nStep = setting[3];
+			final String sName = "frames " + nFrom + "-" + nTo + ", width " + nWidth + ", step " + nStep;
+			final FlimData data = sums.getBins(nFrom, nTo, nWidth, nStep);
+			final int nBins = FrameSums.getBinCount(nFrom, nTo, nWidth, nStep);
+			assertEquals(sName + " bins", nBins, data.nTotalBins);
+			for(final int nCh : new int [] {0, 2})
+			{
+				for(int nBin = 0; nBin < nBins; nBin++)
+				{
+					final int nBinFrom = nFrom + nBin * nStep;
+					final int nBinTo = Math.min(nTo, nBinFrom + nWidth - 1);
+					final float [] fExpectedInt = new float[nPixTotal];
+					final float [] fExpectedLT = new float[nPixTotal];
+					for(int nFrame = nBinFrom; nFrame <= nBinTo; nFrame++)
+					{
+						for(int nPix = 0; nPix < nPixTotal; nPix++)
+						{
+							fExpectedInt[nPix] += nIntensity[nCh][nFrame][nPix];
+							fExpectedLT[nPix] += nLifetime[nCh][nFrame][nPix];
+						}
+					}
+					assertArrayEquals(sName + " intensity of bin " + nBin, fExpectedInt, data.fIntensity[nCh][nBin], 0.0f);
+					assertArrayEquals(sName + " lifetime of bin " + nBin, fExpectedLT, data.fLifetime[nCh][nBin], 0.0f);
+				}
+				final long [] lExpected = new long[N_LT];
+				for(int nFrame = nFrom; nFrame <= nTo; nFrame++)
+				{
+					for(int t = 0; t < N_LT; t++)
+					{
+						lExpected[t] += lHistogram[nCh][nFrame][t];
+					}
+				}
+				assertArrayEquals(sName + " histogram", lExpected, data.lPhotCumHistogram[nCh]);
+			}
+		}
+
+		try
+		{
+			sums.getBins(1, 14, 1, 1);
+			fail("frames outside of the sums should be refused");
+		}
+		catch (IllegalArgumentException e)
+		{
+			//expected
+		}
+	}
+
+	@Test
+	public void testDecoded() throws IOException
+	{
+		try (PtuFile ptuFile = PtuFile.open(ReferenceTest.FOLDER.resolve(ReferenceTest.PTU_NAME)))
+		{
+			final PtuIndex index = ptuFile.analyze(null);
+			final DecodeParameters params = new DecodeParameters();
+			params.bLoadLTOrderedStacks = false;
+			params.validate(index.nTotFrames);
+			final FlimData data = new FlimData(ptuFile.header, index, params, ptuFile.pool, s -> {});
+			data.frameSums = new FrameSums(ptuFile.header, index, params);
+			ptuFile.decode(index, params, data, null);
+			data.frameSums.finish();
+			final FlimData bins = data.frameSums.getBins(params.nFrameMin, params.nFrameMax, params.nTimeBin, params.nTimeBin);
+			for(int nCh = 0; nCh < 4; nCh++)
+			{
+				if(!data.bChannels[nCh])
+					continue;
+				assertArrayEquals("intensity of channel " + nCh, data.fIntensity[nCh][0], bins.fIntensity[nCh][0], 0.0f);
+				assertArrayEquals("lifetime sum of channel " + nCh, data.fLifetime[nCh][0], bins.fLifetime[nCh][0], 0.0f);
+			}
+		}
+	}
+}
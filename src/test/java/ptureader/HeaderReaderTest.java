@@ -0,0 +1,96 @@
+package ptureader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+
+import org.junit.Test;
+
+/** Tests of the PicoHarp pt3 header: point measurement without
+ * imaging header (ImgHdrSize = 0) is read and refused only by the image analysis,
+ * image measurement reads the imaging header. **/
+public class HeaderReaderTest
+{
+	/** position of SubMode (after the text fields and 6 integers) **/
+	final static int SUBMODE_POSITION = 16 + 6 + 18 + 12 + 18 + 2 + 256 + 6 * 4;
+
+	final static int HEADER_BYTES = 4096;
+
+	@Test
+	public void testPointMeasurement() throws IOException
+	{
+		final ByteBuffer bBuff = newHeader();
+		PtuHeader header = new PtuHeader();
+		assertTrue("point header is read", HeaderReader.readPT3Header(bBuff, header, s -> {}));
+		assertNull("no error", header.sError);
+		assertFalse("not an image", header.isImage());
+		assertEquals("record type", HeaderReader.rtPicoHarpT3, header.nRecordType);
+		//records follow the size of the imaging header
+		final int nDataPosition = header.dataPosition;
+		assertTrue("data after the header", nDataPosition > SUBMODE_POSITION);
+
+		bBuff.putInt(nDataPosition - 8, 1234);
+		bBuff.rewind();
+		header = new PtuHeader();
+		assertTrue("point header is read", HeaderReader.readPT3Header(bBuff, header, s -> {}));
+		assertEquals("records", 1234, header.nRecords);
+		assertEquals("data position", nDataPosition, header.dataPosition);
+
+		//image commands refuse it
+		try
+		{
+			new PtuFile(Paths.get("point.pt3"), null, null, null, header, new BufferPool(), s -> {}).analyze(null);
+			fail("point measurement should be refused by the image analysis");
+		}
+		catch (IOException e)
+		{
+			//expected
+		}
+	}
+
+	@Test
+	public void testImage()
+	{
+		final ByteBuffer bBuff = newHeader();
+		final PtuHeader point = new PtuHeader();
+		HeaderReader.readPT3Header(bBuff, point, s -> {});
+		final int nImagePosition = point.dataPosition;
+		//imaging header of 8 integers
+		bBuff.putInt(nImagePosition - 4, 8);
+		bBuff.putInt(nImagePosition + 12, 1);
+		bBuff.putInt(nImagePosition + 16, 2);
+		bBuff.putInt(nImagePosition + 24, 256);
+		bBuff.putInt(nImagePosition + 28, 128);
+		bBuff.rewind();
+		final PtuHeader header = new PtuHeader();
+		assertTrue("image header is read", HeaderReader.readPT3Header(bBuff, header, s -> {}));
+		assertTrue("image", header.isImage());
+		assertEquals("line start", 1, header.nLineStart);
+		assertEquals("line stop", 2, header.nLineStop);
+		assertEquals("width", 256, header.nPixX);
+		assertEquals("height", 128, header.nPixY);
+		assertEquals("data position", nImagePosition + 32, header.dataPosition);
+	}
+
+	/** empty version 2.0 header of an imaging (SubMode 3) measurement,
+	 * without imaging header **/
+	static ByteBuffer newHeader()
+	{
+		final ByteBuffer bBuff = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		final byte [] version = "2.0".getBytes(StandardCharsets.US_ASCII);
+		for(int i = 0; i < version.length; i++)
+		{
+			bBuff.put(16 + i, version[i]);
+		}
+		bBuff.putInt(SUBMODE_POSITION, PtuHeader.SUBMODE_IMAGE);
+		return bBuff;
+	}
+}
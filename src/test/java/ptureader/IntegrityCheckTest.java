@@ -0,0 +1,92 @@
+package ptureader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+/** Tests of the record check on a copy of the example file with one damaged
+ * photon record: the valid part ends before it and its limited view
+ * does not change the header of the file shared with another loading. **/
+public class IntegrityCheckTest
+{
+	@Test
+	public void testValidPart() throws IOException
+	{
+		final Path folder = Files.createTempDirectory("ptureader");
+		final Path file = folder.resolve("damaged.ptu");
+		Files.copy(ReferenceTest.FOLDER.resolve(ReferenceTest.PTU_NAME), file);
+		try
+		{
+			//the first photon record after the middle gets channel 7
+			long nRecords;
+			long nDamaged;
+			try (PtuFile ptuFile = PtuFile.open(file))
+			{
+				nRecords = ptuFile.header.nRecords;
+				nDamaged = nRecords / 2;
+				try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE))
+				{
+					final ByteBuffer record = ByteBuffer.allocate(PtuFile.RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+					while(true)
+					{
+						record.clear();
+						fc.read(record, ptuFile.header.dataPosition + nDamaged * PtuFile.RECORD_BYTES);
+						if((record.getInt(0) >>> 28) != 15)
+							break;
+						nDamaged++;
+					}
+					record.putInt(0, (record.getInt(0) & 0x0FFFFFFF) | (7 << 28));
+					record.rewind();
+					fc.write(record, ptuFile.header.dataPosition + nDamaged * PtuFile.RECORD_BYTES);
+				}
+			}
+
+			final PtuFile shared = PtuFile.openShared(file, s -> {}, new BufferPool());
+			final PtuFile other = PtuFile.openShared(file, s -> {}, new BufferPool());
+			assertSame("one shared file", shared, other);
+			final IntegrityCheck check = IntegrityCheck.scan(shared, 3, null);
+			assertTrue("damaged", check.isDamaged());
+			assertEquals("bad channel", 1, check.nProblems[IntegrityCheck.BAD_CHANNEL]);
+			assertEquals("all records are scanned", nRecords, check.nScannedRecords);
+			assertEquals("valid records", nDamaged, check.nValidRecords);
+
+			final PtuFile validPart = shared.limit(check.nValidRecords);
+			assertEquals("records of the valid part", nDamaged, validPart.header.nRecords);
+			assertTrue("valid part is checked", validPart.header.bRecordsChecked);
+			assertEquals("records of the shared file", nRecords, other.header.nRecords);
+			assertFalse("shared file is not checked", other.header.bRecordsChecked);
+
+			//the view works after the other users close the file
+			shared.close();
+			other.close();
+			final DecoderMetrics metrics = new DecoderMetrics();
+			final ArrayList<PhaseMetrics> phases = new ArrayList<>();
+			metrics.addSink(phases::add);
+			validPart.metrics = metrics;
+			validPart.analyze(null);
+			assertEquals("analyzed records of the valid part", nDamaged, phases.get(0).nRecords);
+			validPart.close();
+			synchronized(PtuFile.sharedFiles)
+			{
+				assertFalse("file is closed with the last view", PtuFile.sharedFiles.containsKey(file.toRealPath()));
+			}
+		}
+		finally
+		{
+			Files.deleteIfExists(file);
+			Files.deleteIfExists(folder);
+		}
+	}
+}
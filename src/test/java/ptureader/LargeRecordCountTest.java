@@ -0,0 +1,174 @@
+package ptureader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+import org.junit.Test;
+
+/** Regression test of 64-bit record counts and positions:
+ * a generated PicoHarp T3 image stream of more than 2^31 records
+ * (with more than 2^31 photons inside of the lines) is analyzed and decoded.
+ * Records are generated on the fly by a RecordSource (no file is written). **/
+public class LargeRecordCountTest
+{
+	/** image size **/
+	final static int N_PIX = 64;
+
+	/** photons per pixel in one line **/
+	final static int N_PIXEL_PHOTONS = 128;
+
+	/** photons in one line **/
+	final static int N_LINE_PHOTONS = N_PIX * N_PIXEL_PHOTONS;
+
+	/** records of one line: overflow, photon outside of the line,
+	 * line start, photons, line stop **/
+	final static int N_LINE_RECORDS = N_LINE_PHOTONS + 4;
+
+	/** records of one frame **/
+	final static int N_FRAME_RECORDS = N_PIX * N_LINE_RECORDS;
+
+	/** number of frames, the last frame starts after the record 2^31 **/
+	final static int N_FRAMES = 4097;
+
+	/** total number of records **/
+	final static long N_RECORDS = (long) N_FRAMES * N_FRAME_RECORDS;
+
+	/** sync periods per pixel **/
+	final static int PIXEL_SYNC = 1000;
+
+	final static int LINE_START = 1;
+
+	final static int LINE_STOP = 2;
+
+	@Test
+	public void testAboveIntRecords() throws IOException
+	{
+		assertTrue("generated stream is above 2^31 records", N_RECORDS > Integer.MAX_VALUE);
+		assertTrue("last frame starts above 2^31 records", (long) (N_FRAMES - 1) * N_FRAME_RECORDS > Integer.MAX_VALUE);
+		try (PtuFile ptuFile = generatedFile())
+		{
+			final PtuIndex index = ptuFile.analyze(null);
+			assertEquals("frames", N_FRAMES, index.nTotFrames);
+			assertEquals("lines", (long) N_FRAMES * N_PIX, index.nLines);
+			assertEquals("record of the last frame", (long) (N_FRAMES - 1) * N_FRAME_RECORDS, index.getFrameRecord(N_FRAMES));
+
+			//all frames summed
+			DecodeParameters params = newParameters();
+			params.validate(index.nTotFrames);
+			FlimData data = new FlimData(ptuFile.header, index, params, ptuFile.pool, s -> {});
+			ptuFile.decode(index, params, data, null);
+			assertIntensity(data.fIntensity[0][0], (long) N_FRAMES * N_PIXEL_PHOTONS);
+
+			//last frame only (reader moves above 2^31 records)
+			params = newParameters();
+			params.nFrameMin = N_FRAMES;
+			params.nFrameMax = N_FRAMES;
+			params.validate(index.nTotFrames);
+			data = new FlimData(ptuFile.header, index, params, ptuFile.pool, s -> {});
+			ptuFile.decode(index, params, data, null);
+			assertIntensity(data.fIntensity[0][0], N_PIXEL_PHOTONS);
+		}
+	}
+
+	/** checks that all pixels have the same number of photons
+	 * and the total (summed as long) **/
+	static void assertIntensity(final float [] fIntensity, final long nPixelPhotons)
+	{
+		assertEquals("pixels", N_PIX * N_PIX, fIntensity.length);
+		long nTotal = 0;
+		for(int i = 0; i < fIntensity.length; i++)
+		{
+			assertEquals("photons of pixel " + i, nPixelPhotons, (long) fIntensity[i]);
+			nTotal += (long) fIntensity[i];
+		}
+		assertEquals("total photons", nPixelPhotons * N_PIX * N_PIX, nTotal);
+	}
+
+	static DecodeParameters newParameters()
+	{
+		final DecodeParameters params = new DecodeParameters();
+		params.bLoadLTOrderedStacks = false;
+		return params;
+	}
+
+	/** file with the header of the generated stream and its records source **/
+	static PtuFile generatedFile()
+	{
+		final PtuHeader header = new PtuHeader();
+		header.nRecordType = HeaderReader.rtPicoHarpT3;
+		header.nRecords = N_RECORDS;
+		header.nHeaderRecords = N_RECORDS;
+		header.nPixX = N_PIX;
+		header.nPixY = N_PIX;
+		header.nLineStart = LINE_START;
+		header.nLineStop = LINE_STOP;
+		header.fTimeResolution = 0.004f;
+		header.dGlobalResolution = 1.0e-8;
+		return new PtuFile(Paths.get("generated.ptu"), null, null, null, header, new BufferPool(), s -> {})
+		{
+			@Override
+			public RecordReader newReader(final RecordBlock block)
+			{
+				return new RecordReader(header, new GeneratedSource(), block);
+			}
+		};
+	}
+
+	/** repeats the records of one line **/
+	static class GeneratedSource implements RecordSource
+	{
+		final int [] line = new int[N_LINE_RECORDS];
+
+		long nPosition = 0;
+
+		GeneratedSource()
+		{
+			int n = 0;
+			//overflow (channel 15, zero markers), so each line starts at the new sync period
+			line[n++] = 0xF0000000;
+			//the last microtime bin is dropped by decoding (see PtuFile.analyze),
+			//it is occupied by a photon that is not counted anyway
+			line[n++] = (1 << 28) | (0xFFF << 16);
+			line[n++] = 0xF0000000 | (LINE_START << 16) | 1;
+			for(int nPhoton = 0; nPhoton < N_LINE_PHOTONS; nPhoton++)
+			{
+				final int nX = nPhoton / N_PIXEL_PHOTONS;
+				final int nSync = 1 + nX * PIXEL_SYNC + PIXEL_SYNC / 2;
+				final int nDtime = 100 + nPhoton % 32;
+				//channel 1
+				line[n++] = (1 << 28) | (nDtime << 16) | nSync;
+			}
+			line[n++] = 0xF0000000 | (LINE_STOP << 16) | (1 + N_PIX * PIXEL_SYNC);
+		}
+
+		@Override
+		public int read(final int [] dst, final int nMax)
+		{
+			int nRead = 0;
+			final int nTotal = (int) Math.min(nMax, N_RECORDS - nPosition);
+			while(nRead < nTotal)
+			{
+				final int nOffset = (int) (nPosition % N_LINE_RECORDS);
+				final int n = Math.min(nTotal - nRead, N_LINE_RECORDS - nOffset);
+				System.arraycopy(line, nOffset, dst, nRead, n);
+				nRead += n;
+				nPosition += n;
+			}
+			return nRead;
+		}
+
+		@Override
+		public void seek(final long nRecord)
+		{
+			nPosition = nRecord;
+		}
+
+		@Override
+		public void close()
+		{
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package ptureader;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/** Tests of the cancel flags of loadings: cancelling one loading
+ * does not cancel the others. **/
+public class LoadProgressTest
+{
+	@Test
+	public void testSeparateCancel()
+	{
+		final PTU_Reader_.LoadProgress first = new PTU_Reader_.LoadProgress();
+		final PTU_Reader_.LoadProgress second = new PTU_Reader_.LoadProgress();
+		assertFalse("new loading", first.isCancelled());
+		first.cancel();
+		assertTrue("cancelled loading", first.isCancelled());
+		assertFalse("other loading", second.isCancelled());
+		//a new loading of the same plugin starts uncancelled
+		assertFalse("next loading", new PTU_Reader_().progress.isCancelled());
+	}
+}
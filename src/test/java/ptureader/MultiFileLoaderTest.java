@@ -0,0 +1,163 @@
+package ptureader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/** Tests of the multi-file loader on copies of the example file:
+ * tiles and time series compared with the single file decoding,
+ * header compatibility and stopping of the other files after a failure. **/
+public class MultiFileLoaderTest
+{
+	final static int N_FILES = 3;
+
+	/** how long the waiting file waits for the cancellation, ms **/
+	final static long CANCEL_TIMEOUT = 10000;
+
+	@Test
+	public void testTilesAndTimeSeries() throws IOException
+	{
+		final Path folder = copyExample();
+		try
+		{
+			final List<Path> files = MultiFileLoader.listFiles(folder, "tile_*.ptu");
+			assertEquals("files", N_FILES, files.size());
+			final float [] fSingle = ReferenceTest.decode(true).fIntensity[0][0];
+
+			//2 columns, the last tile of the second row is empty
+			MultiFileLoader loader = new MultiFileLoader(files, s -> {});
+			loader.nMode = MultiFileLoader.TILES;
+			loader.nColumns = 2;
+			loader.analyze(2, null);
+			FlimData output = loader.allocate();
+			loader.decode(2, null, null);
+			final int nPixX = loader.headers[0].nPixX;
+			final int nPixY = loader.headers[0].nPixY;
+			assertEquals("mosaic width", 2 * nPixX, output.nPixX);
+			assertEquals("mosaic height", 2 * nPixY, output.nPixY);
+			for(int nTile = 0; nTile < 4; nTile++)
+			{
+				final float [] fTile = new float[nPixX * nPixY];
+				for(int y = 0; y < nPixY; y++)
+				{
+					System.arraycopy(output.fIntensity[0][0], ((nTile / 2) * nPixY + y) * output.nPixX + (nTile % 2) * nPixX, fTile, y * nPixX, nPixX);
+				}
+				assertArrayEquals("tile " + nTile, (nTile < N_FILES) ? fSingle : new float[fTile.length], fTile, 0.0f);
+			}
+
+			//one slice per file
+			loader = new MultiFileLoader(files, s -> {});
+			loader.nMode = MultiFileLoader.TIME_SERIES;
+			loader.analyze(2, null);
+			output = loader.allocate();
+			loader.decode(2, null, null);
+			assertEquals("time points", N_FILES, output.nTotalBins);
+			for(int nBin = 0; nBin < N_FILES; nBin++)
+			{
+				assertArrayEquals("time point " + nBin, fSingle, output.fIntensity[0][nBin], 0.0f);
+			}
+		}
+		finally
+		{
+			deleteFolder(folder);
+		}
+	}
+
+	@Test
+	public void testCompatibility()
+	{
+		final PtuHeader first = new PtuHeader();
+		first.nPixX = 10;
+		first.nPixY = 10;
+		first.fTimeResolution = 0.004f;
+		first.nRecordType = HeaderReader.rtPicoHarpT3;
+		final PtuHeader header = new PtuHeader();
+		header.nPixX = 10;
+		header.nPixY = 10;
+		header.fTimeResolution = 0.004f;
+		header.nRecordType = HeaderReader.rtPicoHarpT3;
+		assertNull("same headers", MultiFileLoader.getIncompatibility(first, header));
+		header.nPixY = 12;
+		assertNotNull("image size", MultiFileLoader.getIncompatibility(first, header));
+		header.nPixY = 10;
+		header.fTimeResolution = 0.008f;
+		assertNotNull("TCSPC resolution", MultiFileLoader.getIncompatibility(first, header));
+		header.fTimeResolution = 0.004f;
+		header.nRecordType = HeaderReader.rtHydraHarpT3;
+		assertNotNull("record type", MultiFileLoader.getIncompatibility(first, header));
+		header.nRecordType = HeaderReader.rtPicoHarpT3;
+		header.isT2 = true;
+		assertNotNull("T2 records", MultiFileLoader.getIncompatibility(first, header));
+	}
+
+	/** the first file waits until it is cancelled, the second one fails:
+	 * the failure should stop the first file before its result is collected **/
+	@Test
+	public void testFailureStopsOthers() throws IOException
+	{
+		final Path folder = copyExample();
+		try
+		{
+			final MultiFileLoader loader = new MultiFileLoader(MultiFileLoader.listFiles(folder, "tile_*.ptu"), s -> {});
+			final MultiFileLoader.MultiProgress total = loader.new MultiProgress(null, N_FILES, nFile -> true);
+			final AtomicBoolean bCancelled = new AtomicBoolean(false);
+			try
+			{
+				loader.runParallel(N_FILES, total, nFile -> {
+					if(nFile == 1)
+						throw new IOException("damaged file");
+					if(nFile == 0)
+					{
+						final long nStart = System.currentTimeMillis();
+						while(!total.isCancelled() && System.currentTimeMillis() - nStart < CANCEL_TIMEOUT)
+						{
+							Thread.yield();
+						}
+						bCancelled.set(total.isCancelled());
+					}
+				});
+				fail("failure of the file should be thrown");
+			}
+			catch (IOException e)
+			{
+				assertTrue("failed file is named", e.getMessage().contains("tile_2.ptu"));
+			}
+			assertTrue("other files are cancelled by the failure", bCancelled.get());
+		}
+		finally
+		{
+			deleteFolder(folder);
+		}
+	}
+
+	/** temporary folder with N_FILES copies of the example file **/
+	static Path copyExample() throws IOException
+	{
+		final Path folder = Files.createTempDirectory("ptureader");
+		for(int nFile = 1; nFile <= N_FILES; nFile++)
+		{
+			Files.copy(ReferenceTest.FOLDER.resolve(ReferenceTest.PTU_NAME), folder.resolve("tile_" + nFile + ".ptu"));
+		}
+		return folder;
+	}
+
+	static void deleteFolder(final Path folder) throws IOException
+	{
+		for(int nFile = 1; nFile <= N_FILES; nFile++)
+		{
+			Files.deleteIfExists(folder.resolve("tile_" + nFile + ".ptu"));
+		}
+		Files.deleteIfExists(folder);
+	}
+}
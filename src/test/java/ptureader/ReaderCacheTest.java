@@ -0,0 +1,44 @@
+package ptureader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+/** Tests of the second load of a file by PTU_Reader: the cached analysis
+ * gives the load dialog the same frame count and maximum time as the first load. **/
+public class ReaderCacheTest
+{
+	@Test
+	public void testSecondLoad() throws IOException
+	{
+		final Path path = ReferenceTest.FOLDER.resolve(ReferenceTest.PTU_NAME);
+		final DecodeCache.FileKey fileKey = DecodeCache.FileKey.of(path);
+		DecodeCache.getInstance().remove(fileKey);
+		final PTU_Reader_ first = new PTU_Reader_();
+		try (PtuFile ptuFile = PtuFile.open(path))
+		{
+			first.header = ptuFile.header;
+			first.analyzeFile(ptuFile, fileKey);
+		}
+		assertTrue("frames of the first load", first.nTotFrames > 0);
+
+		final DecodeCache.FileInfo info = DecodeCache.getInstance().getInfo(fileKey);
+		assertNotNull("analysis is cached", info);
+		final PTU_Reader_ second = new PTU_Reader_();
+		second.useCachedInfo(info);
+		assertEquals("frames of the second load", first.nTotFrames, second.nTotFrames);
+		assertEquals("maximum time of the second load", first.nDtimeMax, second.nDtimeMax);
+		assertFalse("frames are not estimated", second.bFramesEstimated);
+		//frame range of the dialog
+		second.params.validate(second.nTotFrames);
+		assertEquals("first frame", 1, second.params.nFrameMin);
+		assertEquals("last frame", first.nTotFrames, second.params.nFrameMax);
+		DecodeCache.getInstance().remove(fileKey);
+	}
+}
@@ -0,0 +1,307 @@
+package ptureader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+/** Compares decoding of the records split into lanes (RecordBlock.split* and
+ * RecordReader.readRecord) with a straightforward per-record decoder
+ * (bit fields extracted from each raw record, as in PicoQuant demo code)
+ * on random records of all formats, including overflow and marker records. **/
+public class RecordDecodeTest
+{
+	/** number of generated records per format **/
+	final static int N_RECORDS = 100000;
+
+	/** block sizes to test (state of the reader is kept across blocks) **/
+	final static int [] BLOCK_SIZES = new int [] {RecordBlock.BLOCK_SIZE, 1000, 7};
+
+	@Test
+	public void testPT3()
+	{
+		check(HeaderReader.rtPicoHarpT3, 2);
+	}
+
+	@Test
+	public void testHT3v1()
+	{
+		check(HeaderReader.rtHydraHarpT3, 1);
+	}
+
+	@Test
+	public void testHT3v2()
+	{
+		check(HeaderReader.rtHydraHarp2T3, 2);
+		check(HeaderReader.rtMultiHarpNT3, 2);
+	}
+
+	@Test
+	public void testPT2()
+	{
+		check(HeaderReader.rtPicoHarpT2, 2);
+	}
+
+	@Test
+	public void testHT2v1()
+	{
+		check(HeaderReader.rtHydraHarpT2, 1);
+	}
+
+	@Test
+	public void testHT2v2()
+	{
+		check(HeaderReader.rtHydraHarp2T2, 2);
+		check(HeaderReader.rtTimeHarp260PT2, 2);
+	}
+
+	/** decodes the same random records with the reader and the reference
+	 * and compares the state after each record **/
+	static void check(final int nRecordType, final int nHT3Version)
+	{
+		final int nFormat = RecordBlock.getFormat(nRecordType);
+		final int [] raw = generate(nFormat, new Random(nRecordType + nHT3Version));
+		final PtuHeader header = new PtuHeader();
+		header.nRecordType = nRecordType;
+		header.nHT3Version = nHT3Version;
+		header.isT2 = (nFormat == RecordBlock.FORMAT_PT2 || nFormat == RecordBlock.FORMAT_HT2);
+		for(final int nBlockSize : BLOCK_SIZES)
+		{
+			final String sName = "type " + nRecordType + " v" + nHT3Version + " block " + nBlockSize;
+			final ReferenceDecoder ref = new ReferenceDecoder(nFormat, nHT3Version);
+			long nPhotons = 0;
+			long nOverflows = 0;
+			try (RecordReader rr = new RecordReader(header, new ArraySource(raw), new RecordBlock(nBlockSize)))
+			{
+				int n = 0;
+				int nBlock;
+				while((nBlock = rr.readBlock(raw.length - n)) > 0)
+				{
+					for(int i = 0; i < nBlock; i++, n++)
+					{
+						final boolean isPhoton = rr.readRecord(i);
+						final boolean isPhotonRef = ref.read(raw[n]);
+						final String sRecord = sName + ", record " + n + " (" + Integer.toHexString(raw[n]) + ")";
+						assertEquals(sRecord + " photon", isPhotonRef, isPhoton);
+						assertEquals(sRecord + " overflow time", ref.ofltime, rr.ofltime);
+						if(isPhoton)
+						{
+							nPhotons++;
+							assertEquals(sRecord + " nsync", ref.nsync, rr.nsync);
+							assertEquals(sRecord + " dtime", ref.dtime, rr.dtime);
+							assertEquals(sRecord + " channel", ref.chan, rr.chan);
+						}
+						else
+						{
+							assertEquals(sRecord + " markers", ref.markers, rr.markers);
+						}
+					}
+				}
+				assertEquals(sName + " records", raw.length, n);
+				nOverflows = rr.nOverflows;
+			}
+			catch (IOException e)
+			{
+				throw new AssertionError(e);
+			}
+			assertEquals(sName + " overflows", ref.nOverflows, nOverflows);
+			//generated records contain all kinds of records
+			assertTrue(sName + " has photons", nPhotons > 0 && nPhotons < raw.length);
+			assertTrue(sName + " has overflows", nOverflows > 0);
+		}
+	}
+
+	/** random records: mostly photons, with overflow
+	 * (including multiple overflows) and marker records **/
+	static int [] generate(final int nFormat, final Random random)
+	{
+		final int [] raw = new int[N_RECORDS];
+		for(int n = 0; n < raw.length; n++)
+		{
+			final int nKind = random.nextInt(10);
+			int nRecord = random.nextInt();
+			switch(nFormat)
+			{
+				case RecordBlock.FORMAT_PT3:
+				case RecordBlock.FORMAT_PT2:
+					if(nKind == 0)
+					{
+						//overflow (zero markers, for PT3 zero dtime too)
+						nRecord = 0xF0000000 | (nRecord & ((nFormat == RecordBlock.FORMAT_PT3) ? 0xFFFF : 0x0FFFFFF0));
+					}
+					else if(nKind == 1)
+					{
+						//marker (or other special record)
+						nRecord |= 0xF0000000;
+					}
+					else
+					{
+						//photon in channels 0-14
+						nRecord = (nRecord & 0x0FFFFFFF) | (random.nextInt(15) << 28);
+					}
+					break;
+				default:
+					if(nKind == 0)
+					{
+						//overflow, some with nsync 0 and 1
+						nRecord = 0xFE000000 | (random.nextBoolean() ? random.nextInt(2) : (nRecord & 0x1FFFFFF));
+					}
+					else if(nKind == 1)
+					{
+						//marker 1-15 or sync (T2) or other special record
+						nRecord = 0x80000000 | (random.nextInt(20) << 25) | (nRecord & 0x1FFFFFF);
+					}
+					else
+					{
+						nRecord &= 0x7FFFFFFF;
+					}
+			}
+			raw[n] = nRecord;
+		}
+		return raw;
+	}
+
+	/** per-record decoding of the raw 32-bit records **/
+	static class ReferenceDecoder
+	{
+		final int nFormat;
+
+		final int nVersion;
+
+		int nsync;
+
+		int dtime;
+
+		int chan;
+
+		int markers;
+
+		long ofltime = 0;
+
+		long nOverflows = 0;
+
+		ReferenceDecoder(final int nFormat, final int nVersion)
+		{
+			this.nFormat = nFormat;
+			this.nVersion = nVersion;
+		}
+
+		/** returns true for a photon **/
+		boolean read(final int nRecord)
+		{
+			switch(nFormat)
+			{
+				case RecordBlock.FORMAT_PT3:
+					nsync = nRecord & 0xFFFF;
+					dtime = (nRecord >>> 16) & 0xFFF;
+					chan = (nRecord >>> 28) & 0xF;
+					if(chan == 15)
+					{
+						markers = (nRecord >> 16) & 0xF;
+						if(markers == 0 || dtime == 0)
+							overflow(65536);
+						return false;
+					}
+					return true;
+				case RecordBlock.FORMAT_PT2:
+					nsync = nRecord & 0x0FFFFFFF;
+					dtime = 0;
+					chan = (nRecord >>> 28) & 0xF;
+					if(chan == 15)
+					{
+						markers = nRecord & 0xF;
+						if(markers == 0)
+							overflow(210698240);
+						return false;
+					}
+					chan++;
+					return true;
+				case RecordBlock.FORMAT_HT2:
+				{
+					nsync = nRecord & 0x1FFFFFF;
+					dtime = 0;
+					chan = (nRecord >>> 25) & 0x3F;
+					if((nRecord >>> 31) == 0)
+					{
+						chan++;
+						return true;
+					}
+					if(chan == 0x3F)
+					{
+						if(nVersion == 1)
+							overflow(33552000);
+						else
+							overflow(33554432L * Math.max(1, nsync));
+					}
+					if(chan >= 1 && chan <= 15)
+						markers = chan;
+					return false;
+				}
+				default:
+				{
+					nsync = nRecord & 0x3FF;
+					dtime = (nRecord >>> 10) & 0x7FFF;
+					chan = (nRecord >>> 25) & 0x3F;
+					//special records with channel 0 are photons too (as in the plugin)
+					if((nRecord >>> 31) == 0 || chan == 0)
+					{
+						chan++;
+						return true;
+					}
+					if(chan == 0x3F)
+					{
+						if(nVersion == 1)
+							overflow(1024);
+						else
+							overflow(1024L * Math.max(1, nsync));
+					}
+					if(chan >= 1 && chan <= 15)
+						markers = chan;
+					return false;
+				}
+			}
+		}
+
+		void overflow(final long nTime)
+		{
+			ofltime += nTime;
+			nOverflows++;
+		}
+	}
+
+	/** records from an array **/
+	static class ArraySource implements RecordSource
+	{
+		final int [] raw;
+
+		int nPos = 0;
+
+		ArraySource(final int [] raw)
+		{
+			this.raw = raw;
+		}
+
+		@Override
+		public int read(final int [] dst, final int nMax)
+		{
+			final int n = Math.min(nMax, raw.length - nPos);
+			System.arraycopy(raw, nPos, dst, 0, n);
+			nPos += n;
+			return n;
+		}
+
+		@Override
+		public void seek(final long nRecord)
+		{
+			nPos = (int) nRecord;
+		}
+
+		@Override
+		public void close()
+		{
+		}
+	}
+}
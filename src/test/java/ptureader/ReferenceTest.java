@@ -0,0 +1,171 @@
+package ptureader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Test;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+/** Headless regression and throughput test of the reader.
+ * Decodes Example_PTU_PicoHarp.ptu from the example data folder,
+ * compares intensity and fast lifetime images with the reference outputs
+ * of SymPhoTime and of the plugin (PicoHarp_SymPhoTime folder)
+ * and measures decoding speed (records per second).
+ * Minimum speed can be changed with -Dptureader.minSpeed=(records/s). **/
+public class ReferenceTest
+{
+	/** location of the reference data (relative to the repository root) **/
+	final static Path FOLDER = Paths.get("example_data", "PicoHarp_SymPhoTime");
+
+	final static String PTU_NAME = "Example_PTU_PicoHarp.ptu";
+
+	/** default minimum decoding speed (records/s, analysis + decoding) **/
+	final static double DEFAULT_MIN_SPEED = 1.0e6;
+
+	/** tolerance of the lifetime compared to the plugin reference, ns **/
+	final static float TOL_LIFETIME = 1.0e-4f;
+
+	/** tolerance of the lifetime compared to SymPhoTime, ns
+	 * (SymPhoTime values are shifted by about 0.02 ns) **/
+	final static float TOL_LIFETIME_SYMPHOTIME = 0.025f;
+
+	/** number of timed runs in the throughput check **/
+	final static int N_SPEED_RUNS = 5;
+
+	@Test
+	public void testIntensityPrefetch() throws IOException
+	{
+		checkIntensity(true);
+	}
+
+	@Test
+	public void testIntensityMapped() throws IOException
+	{
+		checkIntensity(false);
+	}
+
+	@Test
+	public void testLifetimePrefetch() throws IOException
+	{
+		checkLifetime(true);
+	}
+
+	@Test
+	public void testLifetimeMapped() throws IOException
+	{
+		checkLifetime(false);
+	}
+
+	@Test
+	public void testThroughputPrefetch() throws IOException
+	{
+		checkSpeed(true);
+	}
+
+	@Test
+	public void testThroughputMapped() throws IOException
+	{
+		checkSpeed(false);
+	}
+
+	void checkIntensity(final boolean bPrefetch) throws IOException
+	{
+		final float [] fIntensity = decode(bPrefetch).fIntensity[0][0];
+		compare("intensity vs plugin", fIntensity, readReference("PTU_Reader_C1_Intensity.tif"), null, 0.0f);
+		compare("intensity vs SymPhoTime", fIntensity, readReference("SymPhoTime_photon_count.tif"), null, 0.0f);
+	}
+
+	void checkLifetime(final boolean bPrefetch) throws IOException
+	{
+		final float [] fLifetime = decode(bPrefetch).fLifetime[0][0];
+		compare("fast lifetime vs plugin", fLifetime, readReference("PTU_Reader_C1_FastLifeTime.tif"), null, TOL_LIFETIME);
+		//SymPhoTime shows zero lifetime for empty pixels and pixels with negative values,
+		//so only pixels with non-zero reference are compared
+		final float [] fLifetimeSPT = readReference("SymPhoTime_fast_lifetime_ns.tif");
+		compare("fast lifetime vs SymPhoTime", fLifetime, fLifetimeSPT, fLifetimeSPT, TOL_LIFETIME_SYMPHOTIME);
+	}
+
+	/** analyzes and decodes the example file (intensity and lifetime) **/
+	static FlimData decode(final boolean bPrefetch) throws IOException
+	{
+		try (PtuFile ptuFile = PtuFile.open(FOLDER.resolve(PTU_NAME), s -> {}))
+		{
+			ptuFile.bPrefetch = bPrefetch;
+			final PtuIndex index = ptuFile.analyze(null);
+			final DecodeParameters params = new DecodeParameters();
+			params.validate(index.nTotFrames);
+			final FlimData data = new FlimData(ptuFile.header, index, params, ptuFile.pool, s -> {});
+			ptuFile.decode(index, params, data, null);
+			data.computeFastLifetime(ptuFile.header.fTimeResolution, params.bRemoveNegativeLT, s -> {});
+			return data;
+		}
+	}
+
+	/** measures the best time of analysis and decoding of the example file **/
+	static void checkSpeed(final boolean bPrefetch) throws IOException
+	{
+		final double dMinSpeed = Double.parseDouble(System.getProperty("ptureader.minSpeed", Double.toString(DEFAULT_MIN_SPEED)));
+		long nRecords = 0;
+		long nBest = Long.MAX_VALUE;
+		//first run is a warm-up
+		for(int nRun = 0; nRun <= N_SPEED_RUNS; nRun++)
+		{
+			final long nStart = System.nanoTime();
+			try (PtuFile ptuFile = PtuFile.open(FOLDER.resolve(PTU_NAME), s -> {}))
+			{
+				ptuFile.bPrefetch = bPrefetch;
+				final PtuIndex index = ptuFile.analyze(null);
+				final DecodeParameters params = new DecodeParameters();
+				params.validate(index.nTotFrames);
+				final FlimData data = new FlimData(ptuFile.header, index, params, ptuFile.pool, s -> {});
+				ptuFile.decode(index, params, data, null);
+				data.release(ptuFile.pool);
+				nRecords = ptuFile.header.nRecords;
+			}
+			final long nTime = System.nanoTime() - nStart;
+			if(nRun > 0)
+			{
+				nBest = Math.min(nBest, nTime);
+			}
+		}
+		final double dSpeed = nRecords * 1.0e9 / nBest;
+		assertTrue(String.format("%s throughput %.3g records/s (minimum %.3g)", bPrefetch ? "prefetch" : "mapped", dSpeed, dMinSpeed),
+				dSpeed >= dMinSpeed);
+	}
+
+	/** compares images pixel by pixel, if fMask is not null,
+	 * only pixels with non-zero mask are compared **/
+	static void compare(final String sName, final float [] fResult, final float [] fReference, final float [] fMask, final float fTolerance)
+	{
+		assertNotNull(sName + ": cannot read the reference image", fReference);
+		assertEquals(sName + ": image size", fReference.length, fResult.length);
+		float fMaxDiff = 0.0f;
+		int nDiffPixels = 0;
+		for(int i = 0; i < fResult.length; i++)
+		{
+			if(fMask != null && fMask[i] == 0.0f)
+				continue;
+			final float fDiff = Math.abs(fResult[i] - fReference[i]);
+			fMaxDiff = Math.max(fMaxDiff, fDiff);
+			if(fDiff > fTolerance)
+				nDiffPixels++;
+		}
+		assertEquals(sName + ": pixels out of tolerance (max difference " + fMaxDiff + ")", 0, nDiffPixels);
+	}
+
+	/** reads 32-bit reference image, returns null if it cannot be read **/
+	static float [] readReference(final String sName)
+	{
+		final ImagePlus imp = IJ.openImage(FOLDER.resolve(sName).toString());
+		if(imp == null)
+			return null;
+		return (float []) imp.getProcessor().convertToFloatProcessor().getPixels();
+	}
+}